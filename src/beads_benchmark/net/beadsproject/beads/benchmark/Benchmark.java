@@ -0,0 +1,156 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
+
+/**
+ * A Benchmark is a UGen graph that is rendered offline through {@link NonrealtimeIO} and timed. Subclasses build the graph in
+ * {@link #build(AudioContext)}. Each run builds the graph in a fresh {@link AudioContext} and times only the rendering, after a
+ * number of warm-up runs that give the JIT compiler a chance to settle. The result is given as nanoseconds per sample frame
+ * (lower is better) and as the realtime factor (seconds of audio rendered per second of wall clock time).
+ */
+public abstract class Benchmark {
+
+	/** The default buffer sizes swept by suites that care about buffer size. */
+	public static final int[] BUFFER_SIZES = {32, 64, 128, 256, 512, 1024, 2048};
+
+	/** The name of this Benchmark. */
+	private final String name;
+
+	/**
+	 * Creates a new Benchmark with the given name.
+	 *
+	 * @param name the name.
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the name of this Benchmark.
+	 *
+	 * @return the name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Builds the graph to be timed, connected to {@link AudioContext#out}.
+	 *
+	 * @param ac the AudioContext.
+	 */
+	public abstract void build(AudioContext ac);
+
+	/**
+	 * Builds and renders the graph once.
+	 *
+	 * @param bufferSize the buffer size.
+	 * @param ms the length of audio to render in milliseconds.
+	 * @return the time taken to render in nanoseconds.
+	 */
+	private long runOnce(int bufferSize, double ms) {
+		AudioContext ac = new AudioContext(bufferSize, new NonrealtimeIO());
+		build(ac);
+		long start = System.nanoTime();
+		ac.runForNMillisecondsNonRealTime(ms);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Runs this Benchmark.
+	 *
+	 * @param bufferSize the buffer size.
+	 * @param seconds the length of audio to render in each run, in seconds.
+	 * @param warmups the number of runs to discard.
+	 * @param iterations the number of runs to time.
+	 * @return the result.
+	 */
+	public Result run(int bufferSize, double seconds, int warmups, int iterations) {
+		for(int i = 0; i < warmups; i++) {
+			runOnce(bufferSize, seconds * 1000);
+		}
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for(int i = 0; i < iterations; i++) {
+			long t = runOnce(bufferSize, seconds * 1000);
+			best = Math.min(best, t);
+			total += t;
+		}
+		double frames = seconds * 44100;
+		return new Result(name, bufferSize, best / frames, total / (frames * iterations), (seconds * 1e9) / best);
+	}
+
+	/**
+	 * Runs a set of Benchmarks at each of the given buffer sizes and prints the results to System.out.
+	 *
+	 * @param benchmarks the Benchmarks.
+	 * @param bufferSizes the buffer sizes.
+	 * @param seconds the length of audio to render in each run, in seconds.
+	 * @param warmups the number of runs to discard.
+	 * @param iterations the number of runs to time.
+	 */
+	public static void runAll(Benchmark[] benchmarks, int[] bufferSizes, double seconds, int warmups, int iterations) {
+		for(Benchmark b : benchmarks) {
+			for(int bufferSize : bufferSizes) {
+				System.out.println(b.run(bufferSize, seconds, warmups, iterations));
+			}
+		}
+	}
+
+	/**
+	 * Parses the standard arguments of the benchmark suites: [seconds] [warmups] [iterations].
+	 *
+	 * @param args the command line arguments.
+	 * @return seconds, warmups and iterations.
+	 */
+	static double[] parseArgs(String[] args) {
+		return new double[] {
+				args.length > 0 ? Double.parseDouble(args[0]) : 2,
+				args.length > 1 ? Integer.parseInt(args[1]) : 3,
+				args.length > 2 ? Integer.parseInt(args[2]) : 5
+		};
+	}
+
+	/**
+	 * The timing of a Benchmark at one buffer size.
+	 */
+	public static class Result {
+
+		private final String name;
+		private final int bufferSize;
+		private final double bestNanosPerFrame, meanNanosPerFrame, realtimeFactor;
+
+		Result(String name, int bufferSize, double bestNanosPerFrame, double meanNanosPerFrame, double realtimeFactor) {
+			this.name = name;
+			this.bufferSize = bufferSize;
+			this.bestNanosPerFrame = bestNanosPerFrame;
+			this.meanNanosPerFrame = meanNanosPerFrame;
+			this.realtimeFactor = realtimeFactor;
+		}
+
+		/** @return the best time per sample frame, in nanoseconds. */
+		public double getBestNanosPerFrame() {
+			return bestNanosPerFrame;
+		}
+
+		/** @return the mean time per sample frame, in nanoseconds. */
+		public double getMeanNanosPerFrame() {
+			return meanNanosPerFrame;
+		}
+
+		/** @return the realtime factor of the best run. */
+		public double getRealtimeFactor() {
+			return realtimeFactor;
+		}
+
+		public String toString() {
+			return String.format("%-40s buffer=%5d best=%10.2f ns/frame mean=%10.2f ns/frame realtime x%.1f",
+					name, bufferSize, bestNanosPerFrame, meanNanosPerFrame, realtimeFactor);
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+/**
+ * Runs every benchmark suite: {@link GraphBenchmarks} across buffer sizes from 32 to 2048, followed by
+ * {@link OscillatorBenchmarks} (with the partials per core of an OscillatorBank), {@link FilterBenchmarks},
+ * {@link SampleBenchmarks} and {@link ExpressionBenchmarks} at a buffer size of 512. Everything is rendered offline, so the
+ * results don't depend on the audio hardware.
+ *
+ * <p/>Usage: Benchmarks [seconds] [warmups] [iterations]
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		double seconds = a[0];
+		int warmups = (int)a[1];
+		int iterations = (int)a[2];
+		System.out.println("seconds=" + seconds + " warmups=" + warmups + " iterations=" + iterations
+				+ " java=" + System.getProperty("java.version"));
+		Benchmark.runAll(GraphBenchmarks.benchmarks(), Benchmark.BUFFER_SIZES, seconds, warmups, iterations);
+		int[] standard = {512};
+		Benchmark.runAll(OscillatorBenchmarks.benchmarks(), standard, seconds, warmups, iterations);
+		OscillatorBenchmarks.printPartialsPerCore(seconds, warmups, iterations);
+		Benchmark.runAll(FilterBenchmarks.benchmarks(), standard, seconds, warmups, iterations);
+		Benchmark.runAll(SampleBenchmarks.benchmarks(), standard, seconds, warmups, iterations);
+		Benchmark.runAll(ExpressionBenchmarks.benchmarks(), standard, seconds, warmups, iterations);
+	}
+
+}
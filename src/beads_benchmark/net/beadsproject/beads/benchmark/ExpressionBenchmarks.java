@@ -0,0 +1,119 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.ugens.Expression;
+import net.beadsproject.beads.ugens.Function;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.WavePlayer;
+
+/**
+ * Benchmarks of control math over two low frequency oscillators, worked out by many {@link Function}s, which call
+ * calculate() for every frame, and by {@link Expression}s with the same formula, which work a buffer at a time. There are
+ * two formulas: a scaled and clamped sum, which is all arithmetic, and an exponential mapping to frequency, whose cost is
+ * mostly in Math.pow(), and which is also run at control rate.
+ *
+ * <p/>Usage: ExpressionBenchmarks [seconds] [warmups] [iterations]
+ */
+public class ExpressionBenchmarks {
+
+	/** The number of formulas. */
+	private static final int FORMULAS = 128;
+
+	/** The control block size for the control rate case. */
+	private static final int CONTROL_BLOCK = 16;
+
+	/**
+	 * Gets the Benchmarks in this suite.
+	 *
+	 * @return the Benchmarks.
+	 */
+	public static Benchmark[] benchmarks() {
+		return new Benchmark[] {
+				new Benchmark("Function arithmetic x" + FORMULAS) {
+					public void build(AudioContext ac) {
+						buildFunctions(ac, false);
+					}
+				},
+				new Benchmark("Expression arithmetic x" + FORMULAS) {
+					public void build(AudioContext ac) {
+						buildExpressions(ac, false, 1);
+					}
+				},
+				new Benchmark("Function exponential x" + FORMULAS) {
+					public void build(AudioContext ac) {
+						buildFunctions(ac, true);
+					}
+				},
+				new Benchmark("Expression exponential x" + FORMULAS) {
+					public void build(AudioContext ac) {
+						buildExpressions(ac, true, 1);
+					}
+				},
+				new Benchmark("Expression exponential x" + FORMULAS + " control rate") {
+					public void build(AudioContext ac) {
+						buildExpressions(ac, true, CONTROL_BLOCK);
+					}
+				}
+		};
+	}
+
+	/**
+	 * Builds the Function cases.
+	 */
+	private static void buildFunctions(AudioContext ac, boolean exponential) {
+		WavePlayer lfo1 = new WavePlayer(ac, 0.5f, Buffer.SINE);
+		WavePlayer lfo2 = new WavePlayer(ac, 3f, Buffer.TRIANGLE);
+		Gain g = new Gain(ac, 1, 1f / FORMULAS);
+		for(int i = 0; i < FORMULAS; i++) {
+			final float depth = 0.1f + i * 0.01f;
+			if(exponential) {
+				final float base = 100f + i * 10f;
+				g.addInput(new Function(lfo1, lfo2) {
+					public float calculate() {
+						return Math.min((float)Math.pow(2, x[0] * depth + x[1] * 0.3f) * base, 10000f);
+					}
+				});
+			} else {
+				final float base = i / (float)FORMULAS;
+				g.addInput(new Function(lfo1, lfo2) {
+					public float calculate() {
+						return Math.min(Math.max(x[0] * depth + x[1] * 0.3f + base, 0f), 1f);
+					}
+				});
+			}
+		}
+		ac.out.addInput(g);
+	}
+
+	/**
+	 * Builds the Expression cases.
+	 */
+	private static void buildExpressions(AudioContext ac, boolean exponential, int controlBlock) {
+		Expression.Term lfo1 = Expression.input(new WavePlayer(ac, 0.5f, Buffer.SINE));
+		Expression.Term lfo2 = Expression.input(new WavePlayer(ac, 3f, Buffer.TRIANGLE));
+		Gain g = new Gain(ac, 1, 1f / FORMULAS);
+		for(int i = 0; i < FORMULAS; i++) {
+			float depth = 0.1f + i * 0.01f;
+			Expression.Term sum = lfo1.times(depth).plus(lfo2.times(0.3f));
+			Expression e;
+			if(exponential) {
+				e = new Expression(ac, Expression.value(2).pow(sum).times(100f + i * 10f).min(10000f));
+			} else {
+				e = new Expression(ac, sum.plus(i / (float)FORMULAS).clamp(0f, 1f));
+			}
+			e.setControlRate(controlBlock);
+			g.addInput(e);
+		}
+		ac.out.addInput(g);
+	}
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		Benchmark.runAll(benchmarks(), new int[] {512}, a[0], (int)a[1], (int)a[2]);
+	}
+
+}
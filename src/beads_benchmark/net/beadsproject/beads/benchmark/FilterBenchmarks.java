@@ -0,0 +1,106 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.ugens.Add;
+import net.beadsproject.beads.ugens.BiquadFilter;
+import net.beadsproject.beads.ugens.Envelope;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.Noise;
+import net.beadsproject.beads.ugens.Static;
+import net.beadsproject.beads.ugens.WavePlayer;
+
+/**
+ * Benchmarks of {@link BiquadFilter} with static coefficients, which are calculated once, with coefficients controlled by
+ * {@link Envelope}s that have settled, which are constant and so calculated once per buffer, and with coefficients modulated
+ * by a UGen, which are recalculated for every sample, and with the same modulation at control rate, where they are
+ * recalculated once per control block.
+ *
+ * <p/>Usage: FilterBenchmarks [seconds] [warmups] [iterations]
+ */
+public class FilterBenchmarks {
+
+	/** The number of filters. */
+	private static final int FILTERS = 32;
+
+	/** The control block size for the k-rate case. */
+	private static final int CONTROL_BLOCK = 16;
+
+	/**
+	 * Gets the Benchmarks in this suite.
+	 *
+	 * @return the Benchmarks.
+	 */
+	public static Benchmark[] benchmarks() {
+		return new Benchmark[] {
+				new Benchmark("BiquadFilter static x" + FILTERS) {
+					public void build(AudioContext ac) {
+						Noise n = new Noise(ac);
+						Gain g = new Gain(ac, 1, 1f / FILTERS);
+						for(int i = 0; i < FILTERS; i++) {
+							BiquadFilter bf = new BiquadFilter(ac, 1, BiquadFilter.BP_SKIRT);
+							bf.setFrequency(200f + i * 50f).setQ(4f);
+							bf.addInput(n);
+							g.addInput(bf);
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("BiquadFilter steady x" + FILTERS) {
+					public void build(AudioContext ac) {
+						Noise n = new Noise(ac);
+						Gain g = new Gain(ac, 1, 1f / FILTERS);
+						for(int i = 0; i < FILTERS; i++) {
+							BiquadFilter bf = new BiquadFilter(ac, 1, BiquadFilter.BP_SKIRT);
+							bf.setFrequency(new Envelope(ac, 200f + i * 50f)).setQ(new Envelope(ac, 4f));
+							bf.addInput(n);
+							g.addInput(bf);
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("BiquadFilter modulated x" + FILTERS) {
+					public void build(AudioContext ac) {
+						Noise n = new Noise(ac);
+						Gain g = new Gain(ac, 1, 1f / FILTERS);
+						for(int i = 0; i < FILTERS; i++) {
+							WavePlayer lfo = new WavePlayer(ac, 0.5f + i * 0.1f, Buffer.SINE);
+							Gain depth = new Gain(ac, 1, 100f);
+							depth.addInput(lfo);
+							BiquadFilter bf = new BiquadFilter(ac, 1, BiquadFilter.BP_SKIRT);
+							bf.setFrequency(new Add(ac, depth, new Static(ac, 200f + i * 50f))).setQ(4f);
+							bf.addInput(n);
+							g.addInput(bf);
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("BiquadFilter modulated k-rate x" + FILTERS) {
+					public void build(AudioContext ac) {
+						Noise n = new Noise(ac);
+						Gain g = new Gain(ac, 1, 1f / FILTERS);
+						for(int i = 0; i < FILTERS; i++) {
+							WavePlayer lfo = new WavePlayer(ac, 0.5f + i * 0.1f, Buffer.SINE);
+							lfo.setControlRate(CONTROL_BLOCK);
+							Gain depth = new Gain(ac, 1, 100f);
+							depth.addInput(lfo);
+							BiquadFilter bf = new BiquadFilter(ac, 1, BiquadFilter.BP_SKIRT);
+							bf.setFrequency(new Add(ac, depth, new Static(ac, 200f + i * 50f)).setControlRate(CONTROL_BLOCK)).setQ(4f);
+							bf.addInput(n);
+							g.addInput(bf);
+						}
+						ac.out.addInput(g);
+					}
+				}
+		};
+	}
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		Benchmark.runAll(benchmarks(), new int[] {512}, a[0], (int)a[1], (int)a[2]);
+	}
+
+}
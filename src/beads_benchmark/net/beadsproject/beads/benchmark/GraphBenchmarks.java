@@ -0,0 +1,80 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.ugens.Add;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.Mult;
+import net.beadsproject.beads.ugens.WavePlayer;
+
+/**
+ * Benchmarks of the UGen call chain itself, using cheap UGens ({@link Gain}, {@link Add} and {@link Mult}) so that the cost
+ * of updating the graph dominates. A deep graph is one long chain; a wide graph is many short chains summed into
+ * {@link AudioContext#out}. Each is run at buffer sizes from 32 to 2048, which shows the fixed cost per UGen update.
+ *
+ * <p/>Usage: GraphBenchmarks [seconds] [warmups] [iterations]
+ */
+public class GraphBenchmarks {
+
+	/**
+	 * Gets the Benchmarks in this suite.
+	 *
+	 * @return the Benchmarks.
+	 */
+	public static Benchmark[] benchmarks() {
+		return new Benchmark[] {
+				new Benchmark("graph deep 512") {
+					public void build(AudioContext ac) {
+						UGen u = new WavePlayer(ac, 220f, Buffer.SINE);
+						for(int i = 0; i < 512; i++) {
+							u = link(ac, u, i);
+						}
+						ac.out.addInput(u);
+					}
+				},
+				new Benchmark("graph wide 128x4") {
+					public void build(AudioContext ac) {
+						for(int v = 0; v < 128; v++) {
+							UGen u = new WavePlayer(ac, 220f + v, Buffer.SINE);
+							for(int i = 0; i < 3; i++) {
+								u = link(ac, u, i);
+							}
+							ac.out.addInput(u);
+						}
+					}
+				}
+		};
+	}
+
+	/**
+	 * Creates the next UGen in a chain, cycling through Gain, Add and Mult.
+	 */
+	private static UGen link(AudioContext ac, UGen input, int i) {
+		UGen u;
+		switch(i % 3) {
+		case 0:
+			u = new Gain(ac, 1, 0.99f);
+			u.addInput(input);
+			break;
+		case 1:
+			u = new Add(ac, 1, 0.001f);
+			u.addInput(input);
+			break;
+		default:
+			u = new Mult(ac, 1, 1.001f);
+			u.addInput(input);
+			break;
+		}
+		return u;
+	}
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		Benchmark.runAll(benchmarks(), Benchmark.BUFFER_SIZES, a[0], (int)a[1], (int)a[2]);
+	}
+
+}
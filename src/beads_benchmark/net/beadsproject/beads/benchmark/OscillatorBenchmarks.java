@@ -0,0 +1,210 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.data.Wavetable;
+import net.beadsproject.beads.ugens.Envelope;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.OscillatorBank;
+import net.beadsproject.beads.ugens.WavePlayer;
+import net.beadsproject.beads.ugens.WavetablePlayer;
+
+/**
+ * Benchmarks of banks of oscillators: many {@link WavePlayer}s summed together, and an {@link OscillatorBank} with the same
+ * number of partials. Large OscillatorBanks are also run with partials above the Nyquist frequency and with silent
+ * partials, which are skipped, and with frequencies that change every buffer and are smoothed. Finally, the number of
+ * partials that one core can render in real time is worked out for several sizes of OscillatorBank.
+ *
+ * <p/>There are also banks of saw waves: {@link WavePlayer}s, which alias, and band-limited {@link WavetablePlayer}s, at
+ * fixed frequencies, sweeping over several octaves, and morphing between a saw and a square.
+ *
+ * <p/>Usage: OscillatorBenchmarks [seconds] [warmups] [iterations]
+ */
+public class OscillatorBenchmarks {
+
+	/** The number of oscillators in each bank. */
+	private static final int OSCILLATORS = 128;
+
+	/** The number of partials in the large OscillatorBanks. */
+	private static final int PARTIALS = 4096;
+
+	/** The number of saw waves in the saw banks. */
+	private static final int SAWS = 32;
+
+	/** The sizes of OscillatorBank for which the partials per core are worked out. */
+	private static final int[] PARTIALS_PER_CORE_SIZES = {256, 1024, 4096};
+
+	/**
+	 * Gets the Benchmarks in this suite.
+	 *
+	 * @return the Benchmarks.
+	 */
+	public static Benchmark[] benchmarks() {
+		return new Benchmark[] {
+				new Benchmark("WavePlayer bank " + OSCILLATORS) {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / OSCILLATORS);
+						for(int i = 0; i < OSCILLATORS; i++) {
+							g.addInput(new WavePlayer(ac, 55f * (i + 1), Buffer.SINE));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("WavePlayer bank " + OSCILLATORS + " modulated") {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / OSCILLATORS);
+						for(int i = 0; i < OSCILLATORS; i++) {
+							WavePlayer lfo = new WavePlayer(ac, 0.1f * (i + 1), Buffer.SINE);
+							Gain depth = new Gain(ac, 1, 5f);
+							depth.addInput(lfo);
+							g.addInput(new WavePlayer(ac, depth, Buffer.SINE));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				bank(OSCILLATORS),
+				bank(PARTIALS),
+				new Benchmark("OscillatorBank " + PARTIALS + " sparse") {
+					public void build(AudioContext ac) {
+						// a quarter above the Nyquist frequency, and a quarter silent
+						OscillatorBank ob = new OscillatorBank(ac, Buffer.SINE, PARTIALS);
+						float[] freqs = new float[PARTIALS];
+						float[] gains = new float[PARTIALS];
+						for(int i = 0; i < PARTIALS; i++) {
+							freqs[i] = 7f * (i + 1);
+							gains[i] = i % 3 == 0 ? 0 : 1f / PARTIALS;
+						}
+						ob.setFrequencies(freqs);
+						ob.setGains(gains);
+						ac.out.addInput(ob);
+					}
+				},
+				new Benchmark("WavePlayer saw bank " + SAWS) {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / SAWS);
+						for(int i = 0; i < SAWS; i++) {
+							g.addInput(new WavePlayer(ac, 110f * (i + 1), Buffer.SAW));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("WavePlayer saw bank " + SAWS + " swept") {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / SAWS);
+						for(int i = 0; i < SAWS; i++) {
+							Envelope sweep = new Envelope(ac, 110f + i);
+							sweep.addSegment(3520f + i * 32, 10000);
+							g.addInput(new WavePlayer(ac, sweep, Buffer.SAW));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("WavetablePlayer saw bank " + SAWS) {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / SAWS);
+						for(int i = 0; i < SAWS; i++) {
+							g.addInput(new WavetablePlayer(ac, 110f * (i + 1), Wavetable.SAW));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("WavetablePlayer saw bank " + SAWS + " swept") {
+					public void build(AudioContext ac) {
+						Gain g = new Gain(ac, 1, 1f / SAWS);
+						for(int i = 0; i < SAWS; i++) {
+							// up five octaves over ten seconds
+							Envelope sweep = new Envelope(ac, 110f + i);
+							sweep.addSegment(3520f + i * 32, 10000);
+							g.addInput(new WavetablePlayer(ac, sweep, Wavetable.SAW));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("WavetablePlayer saw bank " + SAWS + " morphing") {
+					public void build(AudioContext ac) {
+						Wavetable table = new Wavetable(Buffer.SAW, Buffer.SQUARE);
+						Envelope morph = new Envelope(ac, 0);
+						morph.addSegment(1, 10000);
+						Gain g = new Gain(ac, 1, 1f / SAWS);
+						for(int i = 0; i < SAWS; i++) {
+							g.addInput(new WavetablePlayer(ac, 110f * (i + 1), table).setMorph(morph));
+						}
+						ac.out.addInput(g);
+					}
+				},
+				new Benchmark("OscillatorBank " + PARTIALS + " smoothed") {
+					public void build(AudioContext ac) {
+						final OscillatorBank ob = bank(ac, PARTIALS);
+						ob.setSmoothingTime(20);
+						// a new frequency for every partial every buffer
+						ac.out.addDependent(new UGen(ac) {
+							float detune = 1;
+							public void calculateBuffer() {
+								float[] freqs = ob.getFrequencies();
+								detune = detune > 1.01f ? 0.99f : detune + 0.0001f;
+								for(int i = 0; i < freqs.length; i++) {
+									freqs[i] = 5f * (i + 1) * detune;
+								}
+							}
+						});
+						ac.out.addInput(ob);
+					}
+				}
+		};
+	}
+
+	/**
+	 * Makes a Benchmark of an OscillatorBank of harmonics, all below the Nyquist frequency.
+	 */
+	private static Benchmark bank(final int partials) {
+		return new Benchmark("OscillatorBank " + partials) {
+			public void build(AudioContext ac) {
+				ac.out.addInput(bank(ac, partials));
+			}
+		};
+	}
+
+	/**
+	 * Makes an OscillatorBank of harmonics, all below the Nyquist frequency.
+	 */
+	private static OscillatorBank bank(AudioContext ac, int partials) {
+		OscillatorBank ob = new OscillatorBank(ac, Buffer.SINE, partials);
+		float[] freqs = new float[partials];
+		float[] gains = new float[partials];
+		float fundamental = 20000f / partials;
+		for(int i = 0; i < partials; i++) {
+			freqs[i] = fundamental * (i + 1);
+			gains[i] = 1f / partials;
+		}
+		ob.setFrequencies(freqs);
+		ob.setGains(gains);
+		return ob;
+	}
+
+	/**
+	 * Prints the number of partials of an OscillatorBank that one core can render in real time, for several sizes of
+	 * OscillatorBank: the number of partials times the realtime factor.
+	 *
+	 * @param seconds the length of audio to render in each run, in seconds.
+	 * @param warmups the number of runs to discard.
+	 * @param iterations the number of runs to time.
+	 */
+	public static void printPartialsPerCore(double seconds, int warmups, int iterations) {
+		for(int partials : PARTIALS_PER_CORE_SIZES) {
+			Benchmark.Result r = bank(partials).run(512, seconds, warmups, iterations);
+			System.out.println(String.format("%-40s %10.0f partials per core", "OscillatorBank " + partials,
+					partials * r.getRealtimeFactor()));
+		}
+	}
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		Benchmark.runAll(benchmarks(), new int[] {512}, a[0], (int)a[1], (int)a[2]);
+		printPartialsPerCore(a[0], (int)a[1], (int)a[2]);
+	}
+
+}
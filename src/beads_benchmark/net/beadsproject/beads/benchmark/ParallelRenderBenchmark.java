@@ -0,0 +1,72 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.ugens.BiquadFilter;
+import net.beadsproject.beads.ugens.Envelope;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.WavePlayer;
+
+/**
+ * Measures how rendering throughput scales with the number of render threads (see
+ * {@link AudioContext#setRenderThreads(int)}). A bank of independent voices, each a modulated
+ * {@link WavePlayer} through a {@link Gain} and a {@link BiquadFilter}, is summed into a master
+ * {@link Gain} bus and rendered offline through {@link NonrealtimeIO} using 1, 2, 4... threads up to the
+ * number of available processors. Results are printed as the realtime factor (seconds of audio
+ * rendered per second of wall clock time) and the speed-up over one thread.
+ *
+ * <p/>Usage: ParallelRenderBenchmark [voices] [seconds] [bufferSize]
+ */
+public class ParallelRenderBenchmark {
+
+	public static void main(String[] args) {
+		int voices = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+		int bufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("voices=" + voices + " seconds=" + seconds + " bufferSize=" + bufferSize + " processors=" + cores);
+		//warm up
+		render(1, voices, 1000, bufferSize);
+		double single = 0;
+		for(int threads = 1; threads <= cores; threads *= 2) {
+			double factor = render(threads, voices, seconds * 1000, bufferSize);
+			if(threads == 1) single = factor;
+			System.out.println("threads=" + threads + " realtime factor=" + factor + " speed-up=" + (factor / single));
+		}
+	}
+
+	/**
+	 * Renders the test graph and returns the realtime factor.
+	 */
+	private static double render(int threads, int voices, double ms, int bufferSize) {
+		AudioContext ac = new AudioContext(bufferSize, new NonrealtimeIO());
+		ac.setRenderThreads(threads);
+		Gain bus = new Gain(ac, 1, 1f / voices);
+		ac.out.addInput(bus);
+		for(int i = 0; i < voices; i++) {
+			WavePlayer mod = new WavePlayer(ac, 0.5f + i * 0.01f, Buffer.SINE);
+			Gain modDepth = new Gain(ac, 1, 500f);
+			modDepth.addInput(mod);
+			WavePlayer wp = new WavePlayer(ac, 110f + i, Buffer.SAW);
+			Envelope amp = new Envelope(ac, 0f);
+			amp.addSegment(1f, 50f);
+			Gain g = new Gain(ac, 1, amp);
+			g.addInput(wp);
+			BiquadFilter bf = new BiquadFilter(ac, 1, BiquadFilter.LP);
+			bf.setFrequency(1000f + i).setQ(2f);
+			bf.addInput(g);
+			bf.addInput(modDepth);
+			bus.addInput(bf);
+		}
+		long start = System.nanoTime();
+		ac.runForNMillisecondsNonRealTime(ms);
+		long elapsed = System.nanoTime() - start;
+		ac.setRenderThreads(1);
+		return (ms * 1000000.0) / elapsed;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.benchmark;
+
+import java.util.ArrayList;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.data.Sample;
+import net.beadsproject.beads.data.SampleAudioFormat;
+import net.beadsproject.beads.ugens.Gain;
+import net.beadsproject.beads.ugens.GranularSamplePlayer;
+import net.beadsproject.beads.ugens.SamplePlayer;
+import net.beadsproject.beads.ugens.Static;
+
+/**
+ * Benchmarks of {@link SamplePlayer}, with each {@link SamplePlayer.InterpolationType}, and of {@link GranularSamplePlayer} at
+ * various grain densities. The players play a synthetic stereo Sample held in memory at a rate that isn't a whole number,
+ * so that interpolation is actually used.
+ *
+ * <p/>Usage: SampleBenchmarks [seconds] [warmups] [iterations]
+ */
+public class SampleBenchmarks {
+
+	/** The number of players. */
+	private static final int PLAYERS = 16;
+
+	/** The playback rate. */
+	private static final float RATE = 0.73f;
+
+	/** The grain intervals used, in milliseconds. */
+	private static final float[] GRAIN_INTERVALS = {5f, 20f, 80f};
+
+	/** The Sample, created when first needed. */
+	private static Sample sample;
+
+	/**
+	 * Gets the test Sample: two seconds of a pair of detuned sine waves.
+	 *
+	 * @return the Sample.
+	 */
+	static synchronized Sample getSample() {
+		if(sample == null) {
+			sample = new Sample(new SampleAudioFormat(44100, 16, 2), 2000);
+			int frames = (int)sample.getNumFrames();
+			float[][] data = new float[2][frames];
+			for(int i = 0; i < frames; i++) {
+				data[0][i] = (float)Math.sin(2 * Math.PI * 440 * i / 44100.0);
+				data[1][i] = (float)Math.sin(2 * Math.PI * 443 * i / 44100.0);
+			}
+			sample.putFrames(0, data);
+		}
+		return sample;
+	}
+
+	/**
+	 * Gets the Benchmarks in this suite.
+	 *
+	 * @return the Benchmarks.
+	 */
+	public static Benchmark[] benchmarks() {
+		ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+		for(final SamplePlayer.InterpolationType type : SamplePlayer.InterpolationType.values()) {
+			list.add(new Benchmark("SamplePlayer " + type + " x" + PLAYERS) {
+				public void build(AudioContext ac) {
+					Gain g = new Gain(ac, 2, 1f / PLAYERS);
+					for(int i = 0; i < PLAYERS; i++) {
+						SamplePlayer sp = new SamplePlayer(ac, getSample());
+						sp.setInterpolationType(type);
+						sp.setLoopType(SamplePlayer.LoopType.LOOP_FORWARDS);
+						sp.setRate(new Static(ac, RATE));
+						g.addInput(sp);
+					}
+					ac.out.addInput(g);
+				}
+			});
+		}
+		for(final float interval : GRAIN_INTERVALS) {
+			list.add(new Benchmark("GranularSamplePlayer interval " + interval + "ms x" + PLAYERS) {
+				public void build(AudioContext ac) {
+					Gain g = new Gain(ac, 2, 1f / PLAYERS);
+					for(int i = 0; i < PLAYERS; i++) {
+						GranularSamplePlayer gsp = new GranularSamplePlayer(ac, getSample());
+						gsp.setLoopType(SamplePlayer.LoopType.LOOP_FORWARDS);
+						gsp.setGrainInterval(new Static(ac, interval));
+						gsp.setGrainSize(new Static(ac, 60f));
+						gsp.setRate(new Static(ac, RATE));
+						g.addInput(gsp);
+					}
+					ac.out.addInput(g);
+				}
+			});
+		}
+		return list.toArray(new Benchmark[list.size()]);
+	}
+
+	public static void main(String[] args) {
+		double[] a = Benchmark.parseArgs(args);
+		Benchmark.runAll(benchmarks(), new int[] {512}, a[0], (int)a[1], (int)a[2]);
+	}
+
+}
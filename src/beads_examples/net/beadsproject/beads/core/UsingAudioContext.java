@@ -110,6 +110,12 @@ public class UsingAudioContext {
 					System.out.println("kill");
 					rtf1.kill();
 					ac.stop();
+					//the file is finished in the background, so wait for it before exiting
+					try {
+						rtf1.awaitClosed();
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
 					System.exit(1);
 				}
 			});
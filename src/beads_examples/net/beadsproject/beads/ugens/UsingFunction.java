@@ -49,4 +49,27 @@ public class UsingFunction {
 			ac.start();
 		}
 	}
+
+	public static class WithExpression {
+		public static void main(String[] args) {
+			/*
+			 * The same thing with an Expression. Instead of writing
+			 * calculate(), you build the formula out of Terms, and
+			 * the Expression works it out a whole buffer at a time,
+			 * which is a lot faster when you have many of them.
+			 */
+			AudioContext ac = new AudioContext();
+			WavePlayer sound = new WavePlayer(ac, 50, Buffer.SAW);
+			WavePlayer mod = new WavePlayer(ac, 0.8f, new CosineWindow().getDefault());
+			/*
+			 * Expression.input() makes a Term from a UGen, and
+			 * each Term has methods such as plus() and times()
+			 * that make bigger Terms.
+			 */
+			Expression.Term window = Expression.input(mod).times(0.5f).plus(0.5f);
+			Expression e = new Expression(ac, Expression.input(sound).times(window).times(0.1f));
+			ac.out.addInput(e);
+			ac.start();
+		}
+	}
 }
@@ -58,10 +58,10 @@ public class UsingRecordToFile {
 		public static void main(String[] args) throws IOException {
 			/*
 			 * Try to record simultaneously into all the supported audio formats on this machine.
-			 * Currently, any unsupported formats will generate garbage files.
+			 * Currently, any formats other than WAVE and AIFF are recorded as WAVE.
 			 */
 			System.out.println("This example demonstrates how RecordToFile will support different file formats in the future.\n" +
-					"Currently, however, it only supports .wav files, and so the other outputted files may contain junk.\n");
+					"Currently, however, it only supports .wav and .aif files, and so the other outputted files will contain WAVE data.\n");
 			
 			final float THREE_SECONDS = 3000f;
 			final String SAMPLE = "audio/1234.aif";
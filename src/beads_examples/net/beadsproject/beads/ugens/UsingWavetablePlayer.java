@@ -0,0 +1,52 @@
+package net.beadsproject.beads.ugens;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.data.Buffer;
+import net.beadsproject.beads.data.Wavetable;
+
+public class UsingWavetablePlayer {
+
+	public static class Basic {
+		public static void main(String[] args) {
+			/*
+			 * A saw wave sweeping up to a high frequency. Try
+			 * the same thing with a WavePlayer and Buffer.SAW
+			 * to hear the aliasing that the band-limited
+			 * Wavetable gets rid of.
+			 */
+			AudioContext ac = new AudioContext();
+			Envelope freq = new Envelope(ac, 100f);
+			freq.addSegment(8000f, 10000f);
+			WavetablePlayer wp = new WavetablePlayer(ac, freq, Wavetable.SAW);
+			Gain g = new Gain(ac, 1, 0.1f);
+			g.addInput(wp);
+			ac.out.addInput(g);
+			ac.start();
+		}
+	}
+
+	public static class Morphing {
+		public static void main(String[] args) {
+			/*
+			 * A Wavetable can be made from several Buffers,
+			 * and a WavetablePlayer can morph between them.
+			 * Here a slow LFO morphs between a sine, a
+			 * triangle and a square.
+			 */
+			AudioContext ac = new AudioContext();
+			Wavetable table = new Wavetable(Buffer.SINE, Buffer.TRIANGLE, Buffer.SQUARE);
+			WavePlayer lfo = new WavePlayer(ac, 0.2f, Buffer.SINE);
+			Function morph = new Function(lfo) {
+				public float calculate() {
+					return x[0] * 0.5f + 0.5f;
+				}
+			};
+			WavetablePlayer wp = new WavetablePlayer(ac, 220f, table);
+			wp.setMorph(morph);
+			Gain g = new Gain(ac, 1, 0.1f);
+			g.addInput(wp);
+			ac.out.addInput(g);
+			ac.start();
+		}
+	}
+}
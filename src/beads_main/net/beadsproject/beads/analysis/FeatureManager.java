@@ -1,8 +1,9 @@
 package net.beadsproject.beads.analysis;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import net.beadsproject.beads.data.Sample;
 import net.beadsproject.beads.data.SampleManager;
@@ -11,16 +12,16 @@ import net.beadsproject.beads.data.SampleManager;
  * A static class for managing audio feature data. Features are stored in a Map indexed by the {@link Sample}s they
  * refer to. FeatureManager can look for feature files associated with {@link Sample}s. 
  * 
- * A danger to be aware of is the fact that FeatureManager is not well coupled to {@link SampleManager}, so if you wish
- * to remove {@link Sample}s you'll have to make sure you also manually remove entries in FeatureManager, otherwise
- * the {@link Sample} data will not be freed. This might be addressed in future versions.
+ * FeatureManager only holds weak references to the {@link Sample}s, so it doesn't keep them in memory. Once a 
+ * {@link Sample} has been removed from {@link SampleManager} (for example, when it has been released by all of its 
+ * users, see {@link SampleManager#release(Sample)}) and is no longer used elsewhere, both it and its FeatureSet are freed.
  * 
  * @author ollie
  *
  */
 public class FeatureManager {
 	
-	private final static Map<Sample, FeatureSet> featureSets = new Hashtable<Sample, FeatureSet>();
+	private final static Map<Sample, FeatureSet> featureSets = Collections.synchronizedMap(new WeakHashMap<Sample, FeatureSet>());
 
 	private static boolean verbose = true;
 	
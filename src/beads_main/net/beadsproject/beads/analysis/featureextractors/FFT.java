@@ -126,13 +126,15 @@ public class FFT extends FeatureExtractor<float[][], float[]>  {
 	}
 
 	/**
-	 * Perform FFT on data with given length, regular or inverse.
+	 * Perform FFT on data with given length, regular or inverse. The transform is done in place, and the spectrum is 
+	 * packed: data[0] and data[1] hold the real parts of the DC and Nyquist bins, and data[2k] and data[2k+1] hold the 
+	 * real and imaginary parts of bin k. The inverse gives back the original data scaled by n/2.
 	 * 
 	 * @param data the data
-	 * @param n the length
+	 * @param n the length, which must be a power of two.
 	 * @param isign true for regular, false for inverse.
 	 */
-	protected static void fft(float[] data, int n, boolean isign) {
+	public static void fft(float[] data, int n, boolean isign) {
 		float c1 = 0.5f; 
 		float c2, h1r, h1i, h2r, h2i;
 		double wr, wi, wpr, wpi, wtemp;
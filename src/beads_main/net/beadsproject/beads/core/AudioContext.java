@@ -5,15 +5,18 @@
  */
 package net.beadsproject.beads.core;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jaudiolibs.beads.AudioServerIO;
 
 import net.beadsproject.beads.data.Sample;
 import net.beadsproject.beads.data.SampleAudioFormat;
+import net.beadsproject.beads.data.audiofile.AudioFileWriter;
+import net.beadsproject.beads.data.audiofile.BackgroundAudioFileWriter;
 import net.beadsproject.beads.events.AudioContextStopTrigger;
 import net.beadsproject.beads.ugens.DelayTrigger;
 import net.beadsproject.beads.ugens.Gain;
@@ -55,14 +58,43 @@ public class AudioContext {
 	private int bufferSizeInFrames;
 
 	/** Used for allocating buffers to UGens. */
-	private int maxReserveBufs;
-	private ArrayList<float[]> bufferStore;
-	private int bufStoreIndex;
+	private static final int INITIAL_RESERVE_BUFS = 50;
+	private BufferPool bufferPool;
 	private float[] zeroBuf;
 
+	/** Flag for returning buffers to the pool as soon as the UGens that read them are done. */
+	private boolean bufferReuse;
+
+	/** The buffer pool while the render schedule is being run with buffer reuse, otherwise null. */
+	BufferPool schedulePool;
+
 	/** Used for testing for dropped frames. */
 	private long nanoLeap;
-	private boolean lastFrameGood;
+	private volatile boolean lastFrameGood;
+
+	/** Collects timing information. */
+	final Profiler profiler;
+
+	/** Flag for using the compiled render schedule rather than recursive updates. */
+	private boolean useRenderSchedule;
+
+	/** The compiled render schedule, rebuilt whenever the graph topology changes. */
+	private RenderSchedule renderSchedule;
+
+	/** Incremented whenever the graph topology changes. */
+	private volatile int topologyVersion;
+
+	/** The topology version that {@link #renderSchedule} was compiled from. */
+	private int scheduleVersion;
+
+	/** Renders the schedule on multiple threads, or null for single-threaded rendering. */
+	private ParallelRenderer parallelRenderer;
+
+	/** Set by {@link ParallelRenderer} while tracing the graph. */
+	ParallelRenderer renderTracer;
+
+	/** Commands posted from any thread, to be run at the start of the next time step. */
+	private final ConcurrentLinkedQueue<Runnable> commands;
 
 	/**
 	 * Creates a new AudioContext with default settings. The default buffer size
@@ -150,8 +182,11 @@ public class AudioContext {
 			IOAudioFormat audioFormat) {
 		// set up basic stuff
 		logTime = false;
-		maxReserveBufs = 50;
 		stopped = true;
+		useRenderSchedule = true;
+		commands = new ConcurrentLinkedQueue<Runnable>();
+		profiler = new Profiler(this);
+		lastFrameGood = true;
 		// set audio format
 		this.audioFormat = audioFormat;
 		// set buffer size
@@ -206,18 +241,18 @@ public class AudioContext {
 	 * Sets up the reserve of buffers.
 	 */
 	private void setupBufs() {
-		bufferStore = new ArrayList<float[]>();
-		while (bufferStore.size() < maxReserveBufs) {
-			bufferStore.add(new float[bufferSizeInFrames]);
-		}
+		bufferPool = new BufferPool(bufferSizeInFrames, INITIAL_RESERVE_BUFS);
 		zeroBuf = new float[bufferSizeInFrames];
 	}
 
 	/** callback from AudioIO. */
 	protected void update() {
-		bufStoreIndex = 0;
+		long start = System.nanoTime();
+		bufferPool.reset();
 		Arrays.fill(zeroBuf, 0f);
-		out.update(); // this will propagate all of the updates
+		runCommands();
+		renderGraph(); // this will propagate all of the updates
+		frameDone(System.nanoTime() - start);
 		timeStep++;
 		if (Thread.interrupted()) {
 			System.out.println("Thread interrupted");
@@ -228,6 +263,316 @@ public class AudioContext {
 		}
 	}
 
+	/**
+	 * Updates every UGen in the graph stemming from {@link #out} for the current
+	 * time step, either by running the compiled render schedule (which is
+	 * recompiled first if the topology has changed) or by calling
+	 * {@link UGen#update()} on {@link #out}.
+	 */
+	private void renderGraph() {
+		if (useRenderSchedule) {
+			int version = topologyVersion;
+			if (renderSchedule == null || scheduleVersion != version) {
+				renderSchedule = RenderSchedule.compile(out);
+				scheduleVersion = version;
+			}
+			if (parallelRenderer != null) {
+				parallelRenderer.render(renderSchedule);
+			} else if (bufferReuse) {
+				schedulePool = bufferPool;
+				try {
+					renderSchedule.runReusingBuffers(bufferPool);
+				} finally {
+					schedulePool = null;
+				}
+			} else {
+				renderSchedule.run();
+			}
+		} else {
+			out.update();
+		}
+	}
+
+	/**
+	 * Records the time taken to render a time step against the time available.
+	 * 
+	 * @param nanos
+	 *            the time taken in nanoseconds.
+	 */
+	private void frameDone(long nanos) {
+		lastFrameGood = nanos <= nanoLeap;
+		profiler.frame(nanos, nanoLeap);
+	}
+
+	/**
+	 * Runs all of the commands that have been posted since the last time step.
+	 */
+	private void runCommands() {
+		Runnable command;
+		while ((command = commands.poll()) != null) {
+			try {
+				command.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Posts a command to be run by the audio thread at the start of the next
+	 * time step, before any UGens are updated. This can be called from any
+	 * thread, and never blocks or waits for the audio thread. All of the
+	 * changes made by a command, such as adding a new voice to the graph and
+	 * setting up its envelopes, take effect together, and commands are run in
+	 * the order they were posted. This is the preferred way to change a
+	 * running graph from a thread other than the audio thread.
+	 * 
+	 * @param command
+	 *            the command to run.
+	 */
+	public void post(Runnable command) {
+		commands.offer(command);
+	}
+
+	/**
+	 * Posts a command that connects all outputs of the source UGen to the
+	 * inputs of the destination UGen at the start of the next time step.
+	 * 
+	 * @param destination
+	 *            the UGen to connect to.
+	 * @param source
+	 *            the UGen to connect.
+	 * @see #post(Runnable)
+	 * @see UGen#addInput(UGen)
+	 */
+	public void postAddInput(final UGen destination, final UGen source) {
+		post(new Runnable() {
+			public void run() {
+				destination.addInput(source);
+			}
+		});
+	}
+
+	/**
+	 * Posts a command that disconnects the source UGen from all inputs of the
+	 * destination UGen at the start of the next time step.
+	 * 
+	 * @param destination
+	 *            the UGen to disconnect from.
+	 * @param source
+	 *            the UGen to disconnect.
+	 * @see #post(Runnable)
+	 * @see UGen#removeAllConnections(UGen)
+	 */
+	public void postRemoveAllConnections(final UGen destination, final UGen source) {
+		post(new Runnable() {
+			public void run() {
+				destination.removeAllConnections(source);
+			}
+		});
+	}
+
+	/**
+	 * Posts a command that adds a dependent to a UGen at the start of the next
+	 * time step.
+	 * 
+	 * @param ugen
+	 *            the UGen to add the dependent to.
+	 * @param dependent
+	 *            the dependent UGen.
+	 * @see #post(Runnable)
+	 * @see UGen#addDependent(UGen)
+	 */
+	public void postAddDependent(final UGen ugen, final UGen dependent) {
+		post(new Runnable() {
+			public void run() {
+				ugen.addDependent(dependent);
+			}
+		});
+	}
+
+	/**
+	 * Posts a command that kills a Bead at the start of the next time step.
+	 * 
+	 * @param bead
+	 *            the Bead to kill.
+	 * @see #post(Runnable)
+	 * @see Bead#kill()
+	 */
+	public void postKill(final Bead bead) {
+		post(new Runnable() {
+			public void run() {
+				bead.kill();
+			}
+		});
+	}
+
+	/**
+	 * Called by {@link UGen} whenever a connection is added or removed, or a
+	 * UGen is killed, so that the render schedule is recompiled before the next
+	 * time step.
+	 */
+	void invalidateRenderSchedule() {
+		topologyVersion++;
+	}
+
+	/**
+	 * Switches between the compiled render schedule and recursive updating of
+	 * the UGen graph. With the render schedule (the default), the graph
+	 * reachable from {@link #out} is flattened into an array in topological
+	 * order whenever its connections change, and each time step is a straight
+	 * loop over that array. Connections made during a time step take effect
+	 * from the next time step.
+	 * 
+	 * @param useRenderSchedule
+	 *            true to use the compiled render schedule.
+	 */
+	public void setUseRenderSchedule(boolean useRenderSchedule) {
+		this.useRenderSchedule = useRenderSchedule;
+		renderSchedule = null;
+	}
+
+	/**
+	 * Checks whether the compiled render schedule is being used.
+	 * 
+	 * @return true if the compiled render schedule is being used.
+	 * @see #setUseRenderSchedule(boolean)
+	 */
+	public boolean isUsingRenderSchedule() {
+		return useRenderSchedule;
+	}
+
+	/**
+	 * Sets the number of threads used to render the graph. With more than one
+	 * thread, the UGens feeding into {@link #out} (or into the first UGen
+	 * below {@link #out} that has more than one input, such as a master
+	 * {@link Gain} bus) are split into independent groups that are updated
+	 * concurrently, and the UGens that sum them are updated once all groups
+	 * are done. The output is identical to single-threaded rendering, provided
+	 * that UGens don't share unsynchronized state other than through their
+	 * connections (for example, all {@link net.beadsproject.beads.ugens.Noise
+	 * Noise} UGens share one random number generator). Parallel rendering
+	 * requires the render schedule (see {@link #setUseRenderSchedule(boolean)}).
+	 * 
+	 * @param threads
+	 *            the number of threads, including the audio thread. Use 1 for
+	 *            single-threaded rendering.
+	 */
+	public void setRenderThreads(int threads) {
+		if (parallelRenderer != null) {
+			parallelRenderer.shutdown();
+			parallelRenderer = null;
+		}
+		if (threads > 1) {
+			parallelRenderer = new ParallelRenderer(this, threads);
+		}
+	}
+
+	/**
+	 * Gets the number of threads used to render the graph.
+	 * 
+	 * @return the number of threads.
+	 * @see #setRenderThreads(int)
+	 */
+	public int getRenderThreads() {
+		return parallelRenderer == null ? 1 : parallelRenderer.getThreads();
+	}
+
+	/**
+	 * Switches on or off the reuse of buffers within a time step. Normally
+	 * every buffer handed out by {@link #getBuf()} stays in use until the end
+	 * of the time step, so a large graph needs one buffer for every UGen
+	 * output. With buffer reuse switched on, the compiled render schedule
+	 * returns a UGen's output buffers to the reserve as soon as the last UGen
+	 * connected to it has been updated, so the number of buffers in use is
+	 * roughly the width of the graph, which makes better use of the CPU cache.
+	 * 
+	 * </p>This only applies to single-threaded rendering with the render
+	 * schedule (see {@link #setUseRenderSchedule(boolean)} and
+	 * {@link #setRenderThreads(int)}). UGens that are updated from within other
+	 * UGens, such as gain envelopes, always keep their buffers until the end of
+	 * the time step. However, the output of a UGen in the graph is no longer
+	 * valid at the end of the time step unless that UGen is {@link #out}, so
+	 * anything that reads a UGen's output directly from outside the graph
+	 * (rather than by being connected to it) should not be used with buffer
+	 * reuse.
+	 * 
+	 * @param bufferReuse
+	 *            true to reuse buffers within a time step.
+	 */
+	public void setBufferReuse(boolean bufferReuse) {
+		this.bufferReuse = bufferReuse;
+	}
+
+	/**
+	 * Determines whether buffers are reused within a time step.
+	 * 
+	 * @return true if buffers are reused.
+	 * @see #setBufferReuse(boolean)
+	 */
+	public boolean isBufferReuse() {
+		return bufferReuse;
+	}
+
+	/**
+	 * Gets the number of buffers that have been allocated for use by UGens,
+	 * including those held by the render threads.
+	 * 
+	 * @return the number of buffers allocated.
+	 */
+	public int getBuffersAllocated() {
+		int count = bufferPool.getAllocated();
+		ParallelRenderer renderer = parallelRenderer;
+		if (renderer != null) {
+			count += renderer.getBuffersAllocated();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the largest number of buffers that have been in use at once since
+	 * the AudioContext was created or since the last call to
+	 * {@link #resetBufferStats()}, including those used by the render threads.
+	 * Compare this with {@link #getBuffersAllocated()} to see how much of the
+	 * reserve is actually needed.
+	 * 
+	 * @return the peak number of buffers in use.
+	 */
+	public int getPeakBuffersInUse() {
+		int count = bufferPool.getPeakInUse();
+		ParallelRenderer renderer = parallelRenderer;
+		if (renderer != null) {
+			count += renderer.getPeakBuffersInUse();
+		}
+		return count;
+	}
+
+	/**
+	 * Resets the peak number of buffers in use.
+	 * 
+	 * @see #getPeakBuffersInUse()
+	 */
+	public void resetBufferStats() {
+		bufferPool.resetStats();
+		ParallelRenderer renderer = parallelRenderer;
+		if (renderer != null) {
+			renderer.resetBufferStats();
+		}
+	}
+
+	/**
+	 * Frees the buffers in the reserve beyond the peak number in use (for
+	 * example after a large part of the graph has been removed) at the start
+	 * of the next time step, and resets the peak.
+	 */
+	public void trimBuffers() {
+		post(new Runnable() {
+			public void run() {
+				bufferPool.trim();
+			}
+		});
+	}
+
 	/**
 	 * Gets a buffer from the buffer reserve. This buffer will be owned by you
 	 * until the next time step, and you shouldn't attempt to use it outside of
@@ -237,14 +582,13 @@ public class AudioContext {
 	 * @return buffer of size bufSize, unknown contents.
 	 */
 	public float[] getBuf() {
-		if (bufStoreIndex < bufferStore.size()) {
-			return bufferStore.get(bufStoreIndex++);
-		} else {
-			float[] buf = new float[bufferSizeInFrames];
-			bufferStore.add(buf);
-			bufStoreIndex++;
-			return buf;
+		if (parallelRenderer != null) {
+			float[] buf = parallelRenderer.getWorkerBuf();
+			if (buf != null) {
+				return buf;
+			}
 		}
+		return bufferPool.getBuf();
 	}
 
 	/**
@@ -282,18 +626,103 @@ public class AudioContext {
 			stopped = false;
 			reset();
 			while (out != null && !stopped) {
-				bufStoreIndex = 0;
-				Arrays.fill(zeroBuf, 0f);
-				if (!out.isPaused())
-					out.update();
-				timeStep++;
-				if (logTime && timeStep % 100 == 0) {
-					System.out.println(samplesToMs(timeStep
-							* bufferSizeInFrames)
-							/ 1000f + " (seconds)");
+				nonRealTimeStep();
+			}
+		}
+	}
+
+	/**
+	 * Renders one time step in non-realtime.
+	 */
+	private void nonRealTimeStep() {
+		long start = System.nanoTime();
+		bufferPool.reset();
+		Arrays.fill(zeroBuf, 0f);
+		runCommands();
+		if (!out.isPaused())
+			renderGraph();
+		frameDone(System.nanoTime() - start);
+		timeStep++;
+		if (logTime && timeStep % 100 == 0) {
+			System.out.println(samplesToMs(timeStep * bufferSizeInFrames)
+					/ 1000f + " (seconds)");
+		}
+	}
+
+	/**
+	 * Renders the output of this AudioContext to a file as fast as possible,
+	 * in the current Thread. The AudioContext must not be running. Rendering
+	 * and disk writes overlap: the output is converted into one of a pair of
+	 * large blocks while the other is written to disk by a separate thread,
+	 * and nothing is allocated per time step. Rendering stops after the given
+	 * duration, or earlier if the AudioContext is stopped (for example by a
+	 * {@link AudioContextStopTrigger}), in which case the file is shorter.
+	 * 
+	 * @param duration
+	 *            the length of audio to render in milliseconds.
+	 * @param path
+	 *            the file to write.
+	 * @param type
+	 *            the file type.
+	 * @param format
+	 *            the sample format.
+	 * @return the realtime factor, that is, the length of audio rendered
+	 *         divided by the time taken to render it.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	public double renderToFile(double duration, String path,
+			AudioFileWriter.Type type, AudioFileWriter.SampleFormat format)
+			throws IOException {
+		if (!stopped) {
+			throw new IllegalStateException("AudioContext is already running");
+		}
+		int channels = out.getOuts();
+		long frames = (long) msToSamples(duration);
+		int blockFrames = Math.max(bufferSizeInFrames, 16384);
+		BackgroundAudioFileWriter writer = new BackgroundAudioFileWriter(
+				new AudioFileWriter(new File(path), type, format, channels,
+						audioFormat.sampleRate), blockFrames, 2);
+		float[][] outs = new float[channels][];
+		long done = 0;
+		long start = System.nanoTime();
+		stopped = false;
+		reset();
+		try {
+			while (done < frames && !stopped) {
+				nonRealTimeStep();
+				for (int i = 0; i < channels; i++) {
+					outs[i] = out.getOutBuffer(i);
 				}
+				int n = (int) Math.min(bufferSizeInFrames, frames - done);
+				writer.write(outs, 0, n);
+				done += n;
 			}
+		} finally {
+			stopped = true;
+			writer.close();
 		}
+		double elapsed = (System.nanoTime() - start) / 1000000000.0;
+		return samplesToMs(done) / 1000.0 / elapsed;
+	}
+
+	/**
+	 * Renders the output of this AudioContext to a 16 bit file as fast as
+	 * possible, guessing the file type (WAV or AIFF) from its name.
+	 * 
+	 * @param duration
+	 *            the length of audio to render in milliseconds.
+	 * @param path
+	 *            the file to write.
+	 * @return the realtime factor.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 * @see #renderToFile(double, String, AudioFileWriter.Type,
+	 *      AudioFileWriter.SampleFormat)
+	 */
+	public double renderToFile(double duration, String path) throws IOException {
+		return renderToFile(duration, path, AudioFileWriter.Type.forFilename(path),
+				AudioFileWriter.SampleFormat.PCM_16);
 	}
 
 	/**
@@ -319,6 +748,7 @@ public class AudioContext {
 	 */
 	private void setBufferSize(int bufferSize) {
 		bufferSizeInFrames = bufferSize;
+		nanoLeap = (long) (1000000000 * ((float) bufferSizeInFrames / audioFormat.sampleRate));
 		setupBufs();
 	}
 
@@ -440,6 +870,37 @@ public class AudioContext {
 		return (sampleTime / audioFormat.sampleRate) * 1000.0;
 	}
 
+	/**
+	 * Gets the {@link Profiler}, which collects timing information about the
+	 * UGens in this AudioContext and about the time taken to render each time
+	 * step.
+	 * 
+	 * @return the Profiler.
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Gets the length of one buffer in nanoseconds, which is the time available
+	 * to render each time step.
+	 * 
+	 * @return the length of one buffer in nanoseconds.
+	 */
+	public long getNanoLeap() {
+		return nanoLeap;
+	}
+
+	/**
+	 * Determines whether the last time step was rendered in less time than
+	 * the length of one buffer.
+	 * 
+	 * @return true if the last time step was on time.
+	 */
+	public boolean isLastFrameGood() {
+		return lastFrameGood;
+	}
+
 	/**
 	 * Gets the current time step of this AudioContext. The time step begins at
 	 * zero when the AudioContext is started and is incremented by 1 for each
@@ -0,0 +1,257 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core;
+
+import java.util.IdentityHashMap;
+
+/**
+ * BufferPool is the reserve of buffers handed out by {@link AudioContext#getBuf()}. Every buffer handed out during a time step
+ * is returned to the pool at the start of the next time step. In addition, when the {@link RenderSchedule} is run with buffer
+ * reuse switched on, a UGen's output buffers are returned to the pool as soon as the last UGen that reads them has been
+ * updated, so that the number of buffers in use at any one time is roughly the width of the graph rather than its size.
+ *
+ * </p>Buffers are tracked by slot. Each slot has a count of the scheduled UGen outputs currently holding its buffer, so that a
+ * buffer passed straight through from a UGen's input to its output stays in use until every holder is finished with it.
+ * Buffers handed out from within a UGen's {@link UGen#calculateBuffer()}, for example to a UGen that is updated lazily as a
+ * parameter, are pinned until the end of the time step, as nothing is known about who reads them.
+ *
+ * </p>BufferPool isn't thread safe.
+ */
+final class BufferPool {
+
+	/** Reference count of a slot that isn't in use. */
+	private static final int FREE = -1;
+
+	/** Reference count of a slot that stays in use until the end of the time step. */
+	private static final int PINNED = Integer.MAX_VALUE;
+
+	/** The length of each buffer. */
+	private final int bufferSize;
+
+	/** The buffers, by slot. */
+	private float[][] buffers;
+
+	/** The number of holders of each slot, or {@link #FREE} or {@link #PINNED}. */
+	private int[] refs;
+
+	/** The slot of each buffer, only consulted for buffers passed through from one UGen to another. */
+	private final IdentityHashMap<float[], Integer> slotOf;
+
+	/** The number of slots. */
+	private int count;
+
+	/** Stack of free slots. */
+	private int[] free;
+	private int freeCount;
+
+	/** Slots handed out during the current time step, in order. */
+	private int[] handedOut;
+	private int handedOutCount;
+
+	/** Marks in {@link #handedOut} used while a scheduled UGen is being updated. */
+	private int nodeMark, ownMark;
+
+	/** Stats. */
+	private int inUse;
+	private int peakInUse;
+
+	/**
+	 * Creates a BufferPool with an initial reserve of buffers.
+	 *
+	 * @param bufferSize the length of each buffer.
+	 * @param reserve the number of buffers to allocate up front.
+	 */
+	BufferPool(int bufferSize, int reserve) {
+		this.bufferSize = bufferSize;
+		buffers = new float[Math.max(reserve, 1)][];
+		refs = new int[buffers.length];
+		free = new int[buffers.length];
+		handedOut = new int[buffers.length];
+		slotOf = new IdentityHashMap<float[], Integer>();
+		for(int i = 0; i < reserve; i++) {
+			addSlot();
+		}
+		reset();
+	}
+
+	/**
+	 * Allocates a new buffer and adds it to the free stack.
+	 */
+	private void addSlot() {
+		if(count == buffers.length) {
+			int length = buffers.length * 2;
+			float[][] b = new float[length][];
+			System.arraycopy(buffers, 0, b, 0, count);
+			buffers = b;
+			int[] r = new int[length];
+			System.arraycopy(refs, 0, r, 0, count);
+			refs = r;
+			int[] f = new int[length];
+			System.arraycopy(free, 0, f, 0, freeCount);
+			free = f;
+		}
+		float[] buf = new float[bufferSize];
+		buffers[count] = buf;
+		refs[count] = FREE;
+		slotOf.put(buf, count);
+		free[freeCount++] = count;
+		count++;
+	}
+
+	/**
+	 * Gets a buffer, allocating a new one if the pool is empty.
+	 *
+	 * @return a buffer, unknown contents.
+	 */
+	float[] getBuf() {
+		if(freeCount == 0) {
+			addSlot();
+		}
+		int slot = free[--freeCount];
+		refs[slot] = 0;
+		if(handedOutCount == handedOut.length) {
+			int[] h = new int[handedOut.length * 2];
+			System.arraycopy(handedOut, 0, h, 0, handedOutCount);
+			handedOut = h;
+		}
+		handedOut[handedOutCount++] = slot;
+		if(++inUse > peakInUse) peakInUse = inUse;
+		return buffers[slot];
+	}
+
+	/**
+	 * Returns every buffer to the pool, at the start of a time step. The free stack is refilled so that buffers are
+	 * handed out in the same order at every time step.
+	 */
+	void reset() {
+		for(int i = 0; i < count; i++) {
+			refs[i] = FREE;
+			free[i] = count - 1 - i;
+		}
+		freeCount = count;
+		handedOutCount = 0;
+		inUse = 0;
+	}
+
+	/**
+	 * Called by the {@link RenderSchedule} before updating a UGen.
+	 */
+	void beginNode() {
+		nodeMark = ownMark = handedOutCount;
+	}
+
+	/**
+	 * Called from {@link UGen#updateScheduled(UGen[][], int[][])} once the UGen has gathered its inputs and initialized its
+	 * outputs. Any buffers handed out after this point are pinned.
+	 */
+	void markOwnBuffers() {
+		ownMark = handedOutCount;
+	}
+
+	/**
+	 * Called by the {@link RenderSchedule} after updating a UGen. Records which slots the UGen's outputs hold, frees summed
+	 * input buffers that the UGen didn't pass through to its outputs and pins buffers handed out to anything else.
+	 *
+	 * @param ugen the UGen.
+	 * @param held filled with the slot held by each output, or -1.
+	 * @return true if any output holds a slot.
+	 */
+	boolean endNode(UGen ugen, int[] held) {
+		boolean holding = false;
+		float[][] bufOut = ugen.bufOut;
+		for(int i = 0; i < held.length; i++) {
+			held[i] = -1;
+			float[] b = i < bufOut.length ? bufOut[i] : null;
+			if(b == null) continue;
+			int slot = -1;
+			for(int k = nodeMark; k < ownMark; k++) {
+				if(buffers[handedOut[k]] == b) {
+					slot = handedOut[k];
+					break;
+				}
+			}
+			if(slot < 0) {
+				//passed through from an input, handed out to a lazily updated UGen, or left over from an earlier time step
+				Integer s = slotOf.get(b);
+				if(s != null) slot = s;
+			}
+			if(slot >= 0 && refs[slot] != FREE) {
+				if(refs[slot] != PINNED) refs[slot]++;
+				held[i] = slot;
+				holding = true;
+			}
+		}
+		for(int k = ownMark; k < handedOutCount; k++) {
+			refs[handedOut[k]] = PINNED;
+		}
+		for(int k = nodeMark; k < ownMark; k++) {
+			int slot = handedOut[k];
+			if(refs[slot] == 0) {
+				release(slot);
+			}
+		}
+		return holding;
+	}
+
+	/**
+	 * Releases the slots held by a UGen's outputs once the last UGen to read them has been updated.
+	 *
+	 * @param held the slot held by each output, or -1.
+	 */
+	void releaseHeld(int[] held) {
+		for(int i = 0; i < held.length; i++) {
+			int slot = held[i];
+			if(slot >= 0 && refs[slot] != PINNED && refs[slot] != FREE && --refs[slot] == 0) {
+				release(slot);
+			}
+		}
+	}
+
+	private void release(int slot) {
+		refs[slot] = FREE;
+		free[freeCount++] = slot;
+		inUse--;
+	}
+
+	/**
+	 * Discards free buffers beyond the peak number in use, and resets the peak.
+	 */
+	void trim() {
+		reset();
+		int keep = Math.max(peakInUse, 1);
+		while(count > keep) {
+			count--;
+			slotOf.remove(buffers[count]);
+			buffers[count] = null;
+		}
+		reset();
+		peakInUse = 0;
+	}
+
+	/**
+	 * Gets the number of buffers allocated.
+	 *
+	 * @return the number of buffers.
+	 */
+	int getAllocated() {
+		return count;
+	}
+
+	/**
+	 * Gets the largest number of buffers that have been in use at once since the last call to {@link #resetStats()}.
+	 *
+	 * @return the peak number of buffers in use.
+	 */
+	int getPeakInUse() {
+		return peakInUse;
+	}
+
+	/**
+	 * Resets the peak number of buffers in use.
+	 */
+	void resetStats() {
+		peakInUse = inUse;
+	}
+
+}
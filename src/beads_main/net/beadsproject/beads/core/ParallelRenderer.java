@@ -0,0 +1,401 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelRenderer updates a {@link RenderSchedule} on several threads. The schedule is split into a serial chain, which
+ * runs from the root down to the first UGen that pulls more than one other UGen (for example {@link AudioContext#out}, or a
+ * single master {@link net.beadsproject.beads.ugens.Gain Gain} bus plugged into it), and a set of independent partitions
+ * that feed that chain. The partitions are updated concurrently by a fixed pool of worker threads together with the calling
+ * thread, and the serial chain is updated once they have all finished. Since every UGen is still updated exactly once, in
+ * the same order relative to the UGens it depends on, the output is identical to that of the single-threaded schedule.
+ *
+ * </p>Partitions are worked out from connections, but UGens that are updated from within another UGen's
+ * {@link UGen#calculateBuffer()} (such as a shared gain envelope) are invisible to the schedule. To find these, the first
+ * time step after each recompilation is run on one thread with tracing switched on, and any partitions found to share a
+ * UGen in this way are merged. Sharing that starts later without any change in connections (for example by calling
+ * {@link net.beadsproject.beads.ugens.Gain#setGain(UGen)} on a running voice with another voice's envelope) isn't detected
+ * until the next recompilation, so avoid that in parallel mode.
+ */
+final class ParallelRenderer {
+
+	/** The AudioContext. */
+	private final AudioContext context;
+
+	/** The worker threads. The calling thread also takes part, so there is one fewer of these than the number of threads. */
+	private final Worker[] workers;
+
+	/** Barriers used to start and finish each time step. */
+	private final CyclicBarrier startBarrier, endBarrier;
+
+	/** Index of the next partition to be claimed by a thread. */
+	private final AtomicInteger nextPartition;
+
+	/** The schedule that the partitions were worked out for. */
+	private RenderSchedule schedule;
+
+	/** Partitions, as arrays of schedule positions, largest first. */
+	private int[][] partitions;
+
+	/** The serial chain, as schedule positions in update order. */
+	private int[] serial;
+
+	/** Partition of each schedule position, or -1 for the serial chain. */
+	private int[] partitionOf;
+
+	/** Partition currently being traced, or -1. */
+	private int tracePartition;
+
+	/** Partition of each UGen that has been traced outside of the schedule. */
+	private IdentityHashMap<UGen, Integer> tracedOwners;
+
+	/** Pairs of partitions that were found to share UGens while tracing. */
+	private ArrayList<int[]> tracedLinks;
+
+	/** Flag used to shut down the workers. */
+	private volatile boolean alive;
+
+	/**
+	 * Creates a ParallelRenderer using the given number of threads, including the calling thread.
+	 *
+	 * @param context the AudioContext.
+	 * @param threads the number of threads.
+	 */
+	ParallelRenderer(AudioContext context, int threads) {
+		this.context = context;
+		workers = new Worker[threads - 1];
+		startBarrier = new CyclicBarrier(threads);
+		endBarrier = new CyclicBarrier(threads);
+		nextPartition = new AtomicInteger();
+		tracePartition = -1;
+		alive = true;
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i + 1);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Gets the number of threads, including the calling thread.
+	 *
+	 * @return the number of threads.
+	 */
+	int getThreads() {
+		return workers.length + 1;
+	}
+
+	/**
+	 * Gets the number of partitions that are currently updated concurrently.
+	 *
+	 * @return the number of partitions.
+	 */
+	int getPartitionCount() {
+		return partitions == null ? 0 : partitions.length;
+	}
+
+	/**
+	 * Updates the schedule for the current time step.
+	 *
+	 * @param s the schedule.
+	 */
+	void render(RenderSchedule s) {
+		s.computeDemand();
+		if(s != schedule) {
+			schedule = s;
+			tracedOwners = new IdentityHashMap<UGen, Integer>();
+			tracedLinks = new ArrayList<int[]>();
+			partition();
+			trace();
+			partition();
+			tracedOwners = null;
+			tracedLinks = null;
+			return;
+		}
+		if(partitions.length > 1 && workers.length > 0) {
+			nextPartition.set(0);
+			await(startBarrier);
+			runPartitions();
+			await(endBarrier);
+		} else {
+			for(int p = 0; p < partitions.length; p++) {
+				s.runPositions(partitions[p]);
+			}
+		}
+		s.runPositions(serial);
+	}
+
+	/**
+	 * Runs every partition on the calling thread with tracing switched on, followed by the serial chain.
+	 */
+	private void trace() {
+		context.renderTracer = this;
+		try {
+			for(int p = 0; p < partitions.length; p++) {
+				tracePartition = p;
+				schedule.runPositions(partitions[p]);
+			}
+			tracePartition = -1;
+			schedule.runPositions(serial);
+		} finally {
+			context.renderTracer = null;
+		}
+	}
+
+	/**
+	 * Called from {@link UGen#update()} while tracing. Records which partition updated (or tried to update) the UGen, and
+	 * links partitions that share it.
+	 *
+	 * @param ugen the UGen.
+	 */
+	void traced(UGen ugen) {
+		if(tracePartition < 0) return;
+		Integer owner = tracedOwners.get(ugen);
+		if(owner == null) {
+			int position = schedule.positionOf(ugen);
+			if(position >= 0) {
+				owner = partitionOf[position];
+			} else {
+				tracedOwners.put(ugen, tracePartition);
+				return;
+			}
+		}
+		if(owner >= 0 && owner != tracePartition) {
+			tracedLinks.add(new int[] {owner, tracePartition});
+		}
+	}
+
+	/**
+	 * Works out the serial chain and partitions for the current schedule, taking into account any links found by tracing.
+	 */
+	private void partition() {
+		int size = schedule.size();
+		int[][] pulls = schedule.pulls;
+		boolean[] inChain = new boolean[size];
+		int current = size - 1;
+		while(current >= 0) {
+			inChain[current] = true;
+			int[] p = pulls[current];
+			int next = -1;
+			for(int i = 0; i < p.length; i++) {
+				if(next == -1) next = p[i];
+				else if(p[i] != next) {
+					next = -2;
+					break;
+				}
+			}
+			current = next < 0 ? -1 : next;
+		}
+		//union-find over the schedule positions that aren't in the chain
+		int[] parent = new int[size];
+		for(int n = 0; n < size; n++) {
+			parent[n] = n;
+		}
+		boolean linkedToChain = false;
+		for(int n = 0; n < size; n++) {
+			if(inChain[n]) continue;
+			int[] p = pulls[n];
+			for(int i = 0; i < p.length; i++) {
+				if(inChain[p[i]]) {
+					linkedToChain = true;
+				} else {
+					union(parent, n, p[i]);
+				}
+			}
+		}
+		if(tracedLinks != null && !tracedLinks.isEmpty()) {
+			//partitionOf still refers to the partitions that were traced
+			int[] representative = new int[partitions.length];
+			for(int p = 0; p < partitions.length; p++) {
+				representative[p] = partitions[p][0];
+			}
+			for(int[] link : tracedLinks) {
+				union(parent, representative[link[0]], representative[link[1]]);
+			}
+		}
+		int[] rootIndex = new int[size];
+		Arrays.fill(rootIndex, -1);
+		ArrayList<ArrayList<Integer>> groups = new ArrayList<ArrayList<Integer>>();
+		if(!linkedToChain) {
+			for(int n = 0; n < size; n++) {
+				if(inChain[n]) continue;
+				int root = find(parent, n);
+				if(rootIndex[root] < 0) {
+					rootIndex[root] = groups.size();
+					groups.add(new ArrayList<Integer>());
+				}
+				groups.get(rootIndex[root]).add(n);
+			}
+		} else {
+			//something outside the chain pulls the chain itself, so give up and run everything serially
+			for(int n = 0; n < size; n++) {
+				inChain[n] = true;
+			}
+		}
+		//largest first, so that the threads finish at roughly the same time
+		Collections.sort(groups, new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				return b.size() - a.size();
+			}
+		});
+		partitions = new int[groups.size()][];
+		partitionOf = new int[size];
+		Arrays.fill(partitionOf, -1);
+		for(int p = 0; p < partitions.length; p++) {
+			ArrayList<Integer> group = groups.get(p);
+			partitions[p] = new int[group.size()];
+			for(int i = 0; i < partitions[p].length; i++) {
+				partitions[p][i] = group.get(i);
+				partitionOf[partitions[p][i]] = p;
+			}
+		}
+		//the chain runs in schedule order, i.e., from the far end back to the root
+		int count = 0;
+		for(int n = 0; n < size; n++) {
+			if(inChain[n]) count++;
+		}
+		serial = new int[count];
+		count = 0;
+		for(int n = 0; n < size; n++) {
+			if(inChain[n]) serial[count++] = n;
+		}
+	}
+
+	private static int find(int[] parent, int n) {
+		while(parent[n] != n) {
+			parent[n] = parent[parent[n]];
+			n = parent[n];
+		}
+		return n;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if(a != b) parent[Math.max(a, b)] = Math.min(a, b);
+	}
+
+	/**
+	 * Claims and runs partitions until there are none left.
+	 */
+	private void runPartitions() {
+		RenderSchedule s = schedule;
+		int[][] parts = partitions;
+		int p;
+		while((p = nextPartition.getAndIncrement()) < parts.length) {
+			try {
+				s.runPositions(parts[p]);
+			} catch(Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (BrokenBarrierException e) {
+			//only happens on shutdown
+		}
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	void shutdown() {
+		alive = false;
+		for(Worker w : workers) {
+			w.interrupt();
+		}
+	}
+
+	/**
+	 * Gets the number of buffers allocated by the worker threads.
+	 *
+	 * @return the number of buffers.
+	 */
+	int getBuffersAllocated() {
+		int count = 0;
+		for(Worker w : workers) {
+			count += w.pool.getAllocated();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the sum of the peak number of buffers in use by each worker thread.
+	 *
+	 * @return the number of buffers.
+	 */
+	int getPeakBuffersInUse() {
+		int count = 0;
+		for(Worker w : workers) {
+			count += w.pool.getPeakInUse();
+		}
+		return count;
+	}
+
+	/**
+	 * Resets the peak number of buffers in use by each worker thread.
+	 */
+	void resetBufferStats() {
+		for(Worker w : workers) {
+			w.pool.resetStats();
+		}
+	}
+
+	/**
+	 * Gets a buffer for the current thread if it is one of this renderer's workers, or null otherwise.
+	 *
+	 * @return a buffer from the worker's reserve, or null.
+	 */
+	float[] getWorkerBuf() {
+		Thread t = Thread.currentThread();
+		if(t instanceof Worker && ((Worker)t).renderer() == this) {
+			return ((Worker)t).pool.getBuf();
+		}
+		return null;
+	}
+
+	/**
+	 * A render thread with its own reserve of buffers, since {@link AudioContext#getBuf()} isn't thread safe.
+	 */
+	private class Worker extends Thread {
+
+		final BufferPool pool;
+
+		Worker(int index) {
+			super("beads render " + index);
+			setDaemon(true);
+			setPriority(Thread.MAX_PRIORITY);
+			pool = new BufferPool(context.getBufferSize(), 0);
+		}
+
+		ParallelRenderer renderer() {
+			return ParallelRenderer.this;
+		}
+
+		public void run() {
+			while(alive) {
+				await(startBarrier);
+				if(!alive) break;
+				pool.reset();
+				runPartitions();
+				await(endBarrier);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,455 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Profiler collects timing information about an {@link AudioContext}: how long each timed {@link UGen} spends in
+ * {@link UGen#calculateBuffer()}, and how long each time step takes to render compared with the time available to render it
+ * (the length of one buffer). Every {@link AudioContext} has a Profiler, which can be got with
+ * {@link AudioContext#getProfiler()}.
+ *
+ * </p>UGens are timed if their timer mode is switched on with {@link UGen#setTimerMode(boolean)}, or if all UGens are being timed
+ * (see {@link #setProfileAll(boolean)}). The time recorded for each update is self time: it includes the UGen's
+ * {@link UGen#calculateBuffer()} but not the time taken to update the UGens connected to its inputs, nor the time taken by
+ * any other timed UGen updated from within it, such as a gain envelope. The last {@link #getWindowSize()} updates of each
+ * UGen are kept, and summarised as the minimum, mean and 99th percentile by {@link #getStats(UGen)}.
+ *
+ * </p>The report produced by {@link #getReport(int)} ranks UGens by mean self time, which makes it easy to see which voices are
+ * taking up the time. The same information can be published through JMX with {@link #registerMBean()}.
+ */
+public class Profiler implements ProfilerMBean {
+
+	/** The default number of updates kept for each UGen. */
+	public static final int DEFAULT_WINDOW_SIZE = 256;
+
+	/** The AudioContext. */
+	private final AudioContext context;
+
+	/** Flag for timing every UGen. */
+	volatile boolean profileAll;
+
+	/** The number of updates kept for each UGen. */
+	private volatile int windowSize;
+
+	/** The UGens that have been timed. */
+	private final ConcurrentLinkedQueue<UGen> timed;
+
+	/** The self time of the timed sections completed on each thread so far, used to work out self time. */
+	private final ThreadLocal<long[]> accounted;
+
+	/** Render times of recent time steps. */
+	private Timing frames;
+
+	/** The number of time steps that took longer than the length of one buffer. */
+	private volatile long overruns;
+
+	/**
+	 * Creates a Profiler for the given AudioContext.
+	 *
+	 * @param context the AudioContext.
+	 */
+	Profiler(AudioContext context) {
+		this.context = context;
+		windowSize = DEFAULT_WINDOW_SIZE;
+		timed = new ConcurrentLinkedQueue<UGen>();
+		accounted = new ThreadLocal<long[]>() {
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+		frames = new Timing(windowSize);
+	}
+
+	/**
+	 * Gets the AudioContext.
+	 *
+	 * @return the AudioContext.
+	 */
+	public AudioContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Switches on or off timing of every UGen, regardless of the UGen's own timer mode. Timing costs two calls to
+	 * {@link System#nanoTime()} for every UGen update, so this is best used when looking for a problem.
+	 *
+	 * @param profileAll true to time every UGen.
+	 */
+	public void setProfileAll(boolean profileAll) {
+		this.profileAll = profileAll;
+	}
+
+	/**
+	 * Determines whether every UGen is being timed.
+	 *
+	 * @return true if every UGen is being timed.
+	 */
+	public boolean isProfileAll() {
+		return profileAll;
+	}
+
+	/**
+	 * Sets the number of updates of each UGen (and of time steps) that are kept. Only affects UGens timed from now on.
+	 *
+	 * @param windowSize the number of updates.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = Math.max(1, windowSize);
+		frames = new Timing(this.windowSize);
+	}
+
+	/**
+	 * Gets the number of updates of each UGen (and of time steps) that are kept.
+	 *
+	 * @return the number of updates.
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Starts timing a UGen update on the current thread.
+	 *
+	 * @return the accumulated self time of the current thread, to be passed to {@link #end(UGen, long, long)}.
+	 */
+	long begin() {
+		return accounted.get()[0];
+	}
+
+	/**
+	 * Finishes timing a UGen update and records its self time.
+	 *
+	 * @param ugen the UGen.
+	 * @param start the time at which the update started.
+	 * @param mark the value returned by {@link #begin()}.
+	 * @return the self time in nanoseconds.
+	 */
+	long end(UGen ugen, long start, long mark) {
+		long total = System.nanoTime() - start;
+		long[] acc = accounted.get();
+		long self = total - (acc[0] - mark);
+		acc[0] += self;
+		Timing t = ugen.timing;
+		if(t == null) {
+			t = ugen.timing = new Timing(windowSize);
+			timed.add(ugen);
+		}
+		t.add(self);
+		return self;
+	}
+
+	/**
+	 * Records the time taken to render a time step.
+	 *
+	 * @param nanos the time taken in nanoseconds.
+	 * @param deadline the length of one buffer in nanoseconds.
+	 */
+	void frame(long nanos, long deadline) {
+		frames.add(nanos);
+		if(nanos > deadline) overruns++;
+	}
+
+	/**
+	 * Gets the timing statistics for a UGen.
+	 *
+	 * @param ugen the UGen.
+	 * @return the statistics, or null if the UGen hasn't been timed.
+	 */
+	public Stats getStats(UGen ugen) {
+		Timing t = ugen.timing;
+		return t == null ? null : t.stats();
+	}
+
+	/**
+	 * Gets the timing statistics for the time taken to render each time step.
+	 *
+	 * @return the statistics.
+	 */
+	public Stats getFrameStats() {
+		return frames.stats();
+	}
+
+	/**
+	 * Gets the time available to render each time step, which is the length of one buffer.
+	 *
+	 * @return the deadline in nanoseconds.
+	 */
+	public long getDeadlineNanos() {
+		return context.getNanoLeap();
+	}
+
+	/**
+	 * Gets the headroom of the slowest recent time step, that is, the deadline minus the longest time taken to render one time
+	 * step. A negative value means that the deadline was missed.
+	 *
+	 * @return the headroom in nanoseconds.
+	 */
+	public long getMinHeadroomNanos() {
+		return getDeadlineNanos() - frames.stats().getMax();
+	}
+
+	/**
+	 * Gets the mean headroom of recent time steps.
+	 *
+	 * @return the headroom in nanoseconds.
+	 */
+	public long getMeanHeadroomNanos() {
+		return getDeadlineNanos() - frames.stats().getMean();
+	}
+
+	/**
+	 * Gets the number of time steps that took longer to render than the length of one buffer.
+	 *
+	 * @return the number of overruns.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Determines whether the last time step was rendered within its deadline.
+	 *
+	 * @return true if the last time step was on time.
+	 */
+	public boolean isLastFrameGood() {
+		return context.isLastFrameGood();
+	}
+
+	/**
+	 * Forgets all timing information collected so far.
+	 */
+	public void reset() {
+		Iterator<UGen> i = timed.iterator();
+		while(i.hasNext()) {
+			i.next().timing = null;
+			i.remove();
+		}
+		frames = new Timing(windowSize);
+		overruns = 0;
+	}
+
+	/**
+	 * Gets the timed UGens, ranked by mean self time, slowest first. UGens that have been killed are forgotten.
+	 *
+	 * @return the UGens.
+	 */
+	public UGen[] getRankedUGens() {
+		final ArrayList<UGen> list = new ArrayList<UGen>();
+		final ArrayList<Stats> stats = new ArrayList<Stats>();
+		Iterator<UGen> i = timed.iterator();
+		while(i.hasNext()) {
+			UGen u = i.next();
+			if(u.isDeleted()) {
+				i.remove();
+				continue;
+			}
+			Timing t = u.timing;
+			if(t != null) {
+				list.add(u);
+				stats.add(t.stats());
+			}
+		}
+		Integer[] order = new Integer[list.size()];
+		for(int k = 0; k < order.length; k++) {
+			order[k] = k;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long ma = stats.get(a).getMean(), mb = stats.get(b).getMean();
+				return ma < mb ? 1 : (ma > mb ? -1 : 0);
+			}
+		});
+		UGen[] ranked = new UGen[order.length];
+		for(int k = 0; k < order.length; k++) {
+			ranked[k] = list.get(order[k]);
+		}
+		return ranked;
+	}
+
+	/**
+	 * Gets a report of the render time of recent time steps and the timed UGens with the highest mean self time.
+	 *
+	 * @param top the maximum number of UGens to list.
+	 * @return the report.
+	 */
+	public String getReport(int top) {
+		StringBuffer sb = new StringBuffer();
+		Stats f = getFrameStats();
+		long deadline = getDeadlineNanos();
+		sb.append("deadline ").append(micros(deadline)).append("us, render min/mean/p99/max ")
+			.append(micros(f.getMin())).append("/").append(micros(f.getMean())).append("/")
+			.append(micros(f.getP99())).append("/").append(micros(f.getMax()))
+			.append("us, min headroom ").append(micros(deadline - f.getMax()))
+			.append("us, overruns ").append(overruns).append("\n");
+		UGen[] ranked = getRankedUGens();
+		long totalMean = 0;
+		ArrayList<Stats> stats = new ArrayList<Stats>();
+		for(int k = 0; k < ranked.length; k++) {
+			Timing t = ranked[k].timing;
+			Stats s = t == null ? new Stats(0, 0, 0, 0, 0) : t.stats();
+			stats.add(s);
+			totalMean += s.getMean();
+		}
+		for(int k = 0; k < ranked.length && k < top; k++) {
+			Stats s = stats.get(k);
+			sb.append(k + 1).append(". ").append(ranked[k]).append(": min/mean/p99 ")
+				.append(micros(s.getMin())).append("/").append(micros(s.getMean())).append("/").append(micros(s.getP99()))
+				.append("us (").append(totalMean == 0 ? 0 : (100 * s.getMean() / totalMean)).append("%)\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets a report listing the ten slowest UGens.
+	 *
+	 * @return the report.
+	 * @see #getReport(int)
+	 */
+	public String getReport() {
+		return getReport(10);
+	}
+
+	/**
+	 * Prints a report listing the given number of slowest UGens to System.out.
+	 *
+	 * @param top the maximum number of UGens to list.
+	 */
+	public void printReport(int top) {
+		System.out.print(getReport(top));
+	}
+
+	/**
+	 * Registers this Profiler with the platform MBean server, under the name
+	 * net.beadsproject.beads:type=Profiler,name=&lt;identity hash of the AudioContext&gt;.
+	 *
+	 * @return the name used, or null if registration failed.
+	 */
+	public ObjectName registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("net.beadsproject.beads:type=Profiler,name=" + Integer.toHexString(System.identityHashCode(context)));
+			if(!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+			return name;
+		} catch(Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the mean time taken to render recent time steps.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public long getMeanRenderNanos() {
+		return getFrameStats().getMean();
+	}
+
+	/**
+	 * Gets the 99th percentile of the time taken to render recent time steps.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public long getP99RenderNanos() {
+		return getFrameStats().getP99();
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	/**
+	 * Summary statistics of a set of timings, in nanoseconds.
+	 */
+	public static class Stats {
+
+		private final long min, mean, p99, max;
+		private final int count;
+
+		Stats(long min, long mean, long p99, long max, int count) {
+			this.min = min;
+			this.mean = mean;
+			this.p99 = p99;
+			this.max = max;
+			this.count = count;
+		}
+
+		/** @return the shortest time. */
+		public long getMin() {
+			return min;
+		}
+
+		/** @return the mean time. */
+		public long getMean() {
+			return mean;
+		}
+
+		/** @return the 99th percentile. */
+		public long getP99() {
+			return p99;
+		}
+
+		/** @return the longest time. */
+		public long getMax() {
+			return max;
+		}
+
+		/** @return the number of timings. */
+		public int getCount() {
+			return count;
+		}
+
+		public String toString() {
+			return "min=" + min + " mean=" + mean + " p99=" + p99 + " max=" + max + " count=" + count;
+		}
+	}
+
+	/**
+	 * A rolling window of timings. Written by one thread at a time; reads from other threads may see a partly updated
+	 * window, which is fine for statistics.
+	 */
+	static class Timing {
+
+		private final long[] times;
+		private int index;
+		private int count;
+
+		Timing(int size) {
+			times = new long[size];
+		}
+
+		void add(long nanos) {
+			times[index] = nanos;
+			index = (index + 1) % times.length;
+			if(count < times.length) count++;
+		}
+
+		Stats stats() {
+			int n = count;
+			if(n == 0) return new Stats(0, 0, 0, 0, 0);
+			long[] sorted = new long[n];
+			System.arraycopy(times, 0, sorted, 0, n);
+			Arrays.sort(sorted);
+			long sum = 0;
+			for(int i = 0; i < n; i++) {
+				sum += sorted[i];
+			}
+			int p = Math.min(n - 1, (int)Math.ceil(n * 0.99) - 1);
+			return new Stats(sorted[0], sum / n, sorted[Math.max(p, 0)], sorted[n - 1], n);
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core;
+
+/**
+ * The JMX management interface of {@link Profiler}.
+ */
+public interface ProfilerMBean {
+
+	public boolean isProfileAll();
+
+	public void setProfileAll(boolean profileAll);
+
+	public int getWindowSize();
+
+	public void setWindowSize(int windowSize);
+
+	public long getDeadlineNanos();
+
+	public long getMeanRenderNanos();
+
+	public long getP99RenderNanos();
+
+	public long getMinHeadroomNanos();
+
+	public long getMeanHeadroomNanos();
+
+	public long getOverruns();
+
+	public boolean isLastFrameGood();
+
+	public String getReport();
+
+	public void reset();
+
+}
@@ -0,0 +1,297 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * RenderSchedule is a flattened form of the UGen graph reachable from a root {@link UGen}, used by {@link AudioContext} to
+ * update the graph with a straight loop instead of recursive calls to {@link UGen#update()}. The graph is compiled into an array
+ * of UGens in topological order (every UGen comes after the UGens connected to its inputs and its dependents), together with
+ * the pre-resolved input connections of each UGen.
+ *
+ * </p>The order is exactly the order in which the recursive update would call {@link UGen#calculateBuffer()}. At each time step a
+ * first pass works backwards from the root to find out which UGens are actually pulled, given that paused and deleted UGens don't
+ * pull their inputs, and a second pass updates those UGens in order. UGens that are updated from within another UGen's
+ * {@link UGen#calculateBuffer()} (such as the gain envelope of a {@link net.beadsproject.beads.ugens.Gain Gain}) are not part
+ * of the schedule and continue to be updated recursively.
+ *
+ * </p>A RenderSchedule is a snapshot; it must be rebuilt whenever connections change, which {@link AudioContext} takes care of.
+ */
+final class RenderSchedule {
+
+	/** The UGens, in the order they are updated. The root is last. */
+	final UGen[] nodes;
+
+	/** The source UGens at each input channel of each UGen, [node][channel][connection]. */
+	final UGen[][][] inputSources;
+
+	/** The output index of each source UGen, [node][channel][connection]. */
+	final int[][][] inputIndices;
+
+	/** The schedule positions of the UGens pulled by each UGen (dependents and inputs). */
+	final int[][] pulls;
+
+	/** Flags set by the demand pass for the UGens that get pulled at the current time step. */
+	private final boolean[] demanded;
+
+	/** The schedule position of each UGen. */
+	private final IdentityHashMap<UGen, Integer> positions;
+
+	/** The UGens whose outputs are last read by each UGen, [node][i], used for buffer reuse. */
+	private final int[][] releases;
+
+	/** The buffer pool slot held by each output of each UGen, [node][output], used for buffer reuse. */
+	private final int[][] held;
+
+	/** Flags for the UGens whose outputs hold pool slots at the current time step. */
+	private final boolean[] holding;
+
+	/** Flag set once the schedule has been run, after which buffers may be reused. */
+	private boolean warm;
+
+	/** Flag set once buffers have been reused. */
+	private boolean reused;
+
+	private RenderSchedule(UGen[] nodes, UGen[][][] inputSources, int[][][] inputIndices, int[][] pulls, IdentityHashMap<UGen, Integer> positions) {
+		this.nodes = nodes;
+		this.inputSources = inputSources;
+		this.inputIndices = inputIndices;
+		this.pulls = pulls;
+		this.positions = positions;
+		demanded = new boolean[nodes.length];
+		holding = new boolean[nodes.length];
+		held = new int[nodes.length][];
+		for(int n = 0; n < nodes.length; n++) {
+			held[n] = new int[nodes[n].outs];
+			nodes[n].updatedOutsideSchedule = false;
+		}
+		//liveness: each UGen's outputs can be released once the last UGen to pull it has been updated
+		int[] lastUse = new int[nodes.length];
+		int[] releaseCount = new int[nodes.length];
+		Arrays.fill(lastUse, -1);
+		for(int n = 0; n < nodes.length; n++) {
+			int[] p = pulls[n];
+			for(int i = 0; i < p.length; i++) {
+				lastUse[p[i]] = n;
+			}
+		}
+		for(int n = 0; n < nodes.length; n++) {
+			if(lastUse[n] >= 0) releaseCount[lastUse[n]]++;
+		}
+		releases = new int[nodes.length][];
+		for(int n = 0; n < nodes.length; n++) {
+			releases[n] = new int[releaseCount[n]];
+			releaseCount[n] = 0;
+		}
+		for(int n = 0; n < nodes.length; n++) {
+			if(lastUse[n] >= 0) releases[lastUse[n]][releaseCount[lastUse[n]]++] = n;
+		}
+	}
+
+	/**
+	 * Compiles the graph reachable from the given root UGen. The traversal is iterative so that very deep graphs can't
+	 * overflow the stack. Feedback loops are broken in the same place that the recursive update breaks them.
+	 *
+	 * @param root the root UGen.
+	 * @return the compiled schedule.
+	 */
+	static RenderSchedule compile(UGen root) {
+		ArrayList<UGen> order = new ArrayList<UGen>();
+		ArrayList<UGen[][]> sourceList = new ArrayList<UGen[][]>();
+		ArrayList<int[][]> indexList = new ArrayList<int[][]>();
+		ArrayList<UGen[]> childList = new ArrayList<UGen[]>();
+		//position in the schedule, or -1 while the UGen is still being visited
+		IdentityHashMap<UGen, Integer> position = new IdentityHashMap<UGen, Integer>();
+		ArrayList<Frame> stack = new ArrayList<Frame>();
+		if(!root.isDeleted()) {
+			stack.add(new Frame(root));
+			position.put(root, -1);
+		}
+		while(!stack.isEmpty()) {
+			Frame f = stack.get(stack.size() - 1);
+			if(f.next < f.children.length) {
+				UGen child = f.children[f.next++];
+				if(!child.isDeleted() && !position.containsKey(child)) {
+					position.put(child, -1);
+					stack.add(new Frame(child));
+				}
+			} else {
+				stack.remove(stack.size() - 1);
+				position.put(f.ugen, order.size());
+				order.add(f.ugen);
+				sourceList.add(f.sources);
+				indexList.add(f.indices);
+				childList.add(f.children);
+			}
+		}
+		int size = order.size();
+		UGen[] nodes = order.toArray(new UGen[size]);
+		UGen[][][] inputSources = sourceList.toArray(new UGen[size][][]);
+		int[][][] inputIndices = indexList.toArray(new int[size][][]);
+		int[][] pulls = new int[size][];
+		for(int n = 0; n < size; n++) {
+			UGen[] children = childList.get(n);
+			int[] p = new int[children.length];
+			int count = 0;
+			for(int c = 0; c < children.length; c++) {
+				Integer pos = position.get(children[c]);
+				//ignore the back edges of feedback loops; they are never updated from here
+				if(pos != null && pos >= 0 && pos < n) {
+					p[count++] = pos;
+				}
+			}
+			pulls[n] = new int[count];
+			System.arraycopy(p, 0, pulls[n], 0, count);
+		}
+		return new RenderSchedule(nodes, inputSources, inputIndices, pulls, position);
+	}
+
+	/**
+	 * Updates the scheduled UGens for the current time step.
+	 */
+	void run() {
+		computeDemand();
+		for(int n = 0; n < nodes.length; n++) {
+			if(demanded[n]) {
+				nodes[n].updateScheduled(inputSources[n], inputIndices[n]);
+			}
+		}
+	}
+
+	/**
+	 * Updates the scheduled UGens for the current time step, returning each UGen's output buffers to the pool as soon as
+	 * the last UGen that pulls it has been updated. UGens that are also updated from outside the schedule (see
+	 * {@link UGen#update()}) are assumed to be read from elsewhere, so their outputs are kept until the end of the time
+	 * step. The first time step after compilation keeps every buffer, so that such UGens are found before any buffer
+	 * is reused, and the pool's peak usage is reset after it.
+	 *
+	 * @param pool the buffer pool, which must be the one that {@link AudioContext#getBuf()} is using.
+	 */
+	void runReusingBuffers(BufferPool pool) {
+		computeDemand();
+		boolean reuse = warm;
+		if(reuse && !reused) {
+			pool.resetStats();
+			reused = true;
+		}
+		for(int n = 0; n < nodes.length; n++) {
+			holding[n] = false;
+			if(demanded[n]) {
+				UGen u = nodes[n];
+				pool.beginNode();
+				u.updateScheduled(inputSources[n], inputIndices[n]);
+				if(reuse) {
+					holding[n] = pool.endNode(u, held[n]);
+				}
+			}
+			if(reuse) {
+				int[] r = releases[n];
+				for(int i = 0; i < r.length; i++) {
+					int m = r[i];
+					if(holding[m] && !nodes[m].updatedOutsideSchedule) {
+						pool.releaseHeld(held[m]);
+						holding[m] = false;
+					}
+				}
+			}
+		}
+		warm = true;
+	}
+
+	/**
+	 * Updates the UGens at the given schedule positions, skipping those that aren't pulled at the current time step. The
+	 * demand pass must already have been run with {@link #computeDemand()}.
+	 *
+	 * @param positions the schedule positions, in increasing order.
+	 */
+	void runPositions(int[] positions) {
+		for(int i = 0; i < positions.length; i++) {
+			int n = positions[i];
+			if(demanded[n]) {
+				nodes[n].updateScheduled(inputSources[n], inputIndices[n]);
+			}
+		}
+	}
+
+	/**
+	 * Works backwards from the root to flag the UGens that get pulled at the current time step.
+	 */
+	void computeDemand() {
+		int last = nodes.length - 1;
+		if(last < 0) return;
+		for(int n = 0; n < last; n++) {
+			demanded[n] = false;
+		}
+		demanded[last] = true;
+		for(int n = last; n >= 0; n--) {
+			if(demanded[n]) {
+				UGen u = nodes[n];
+				if(u.isDeleted()) {
+					demanded[n] = false;
+				} else if(!u.isPaused()) {
+					int[] p = pulls[n];
+					for(int i = 0; i < p.length; i++) {
+						demanded[p[i]] = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the schedule position of a UGen.
+	 *
+	 * @param ugen the UGen.
+	 * @return the position, or -1 if the UGen isn't in the schedule.
+	 */
+	int positionOf(UGen ugen) {
+		Integer pos = positions.get(ugen);
+		return pos == null ? -1 : pos;
+	}
+
+	/**
+	 * Gets the number of UGens in the schedule.
+	 *
+	 * @return the number of UGens.
+	 */
+	int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * A UGen being visited during compilation, along with its snapshotted connections.
+	 */
+	private static class Frame {
+
+		final UGen ugen;
+		final UGen[][] sources;
+		final int[][] indices;
+		final UGen[] children;
+		int next;
+
+		Frame(UGen ugen) {
+			this.ugen = ugen;
+			sources = new UGen[ugen.ins][];
+			indices = new int[ugen.ins][];
+			UGen[] dependents = ugen.snapshotConnections(sources, indices);
+			int count = dependents.length;
+			for(int i = 0; i < sources.length; i++) {
+				count += sources[i].length;
+			}
+			children = new UGen[count];
+			System.arraycopy(dependents, 0, children, 0, dependents.length);
+			count = dependents.length;
+			for(int i = 0; i < sources.length; i++) {
+				System.arraycopy(sources[i], 0, children, count, sources[i].length);
+				count += sources[i].length;
+			}
+			next = 0;
+		}
+
+	}
+
+}
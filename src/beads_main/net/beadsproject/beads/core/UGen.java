@@ -4,11 +4,12 @@
 package net.beadsproject.beads.core;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import net.beadsproject.beads.events.KillTrigger;
 import net.beadsproject.beads.ugens.Clock;
@@ -28,6 +29,12 @@ import net.beadsproject.beads.ugens.Gain;
  * {@link Bead#start()}, {@link Bead#kill()} and {@link Bead#pause(boolean)} behaviour, and messaging system from
  * {@link Bead}. Importantly, when UGens are paused, they cease audio processing, and when they are killed, they are automatically removed from any audio chains. This allows for very easy removal of elements from the call chain.
  * 
+ * </p>A UGen can also tell the UGens that read it when an output has held a single value for the whole of the current buffer (see 
+ * {@link #isConstant(int)}). UGens that take parameters from other UGens use this to work out their parameters once per buffer instead 
+ * of once per frame, taking the same fast paths that they take for fixed values. Similarly, a UGen can be marked as a control signal 
+ * (see {@link #setControlRate(int, ControlInterpolation)}), so that the UGens that read it work out their parameters once per 
+ * block of a few frames.
+ * 
  * </p>The method {@link #calculateBuffer()} must be implemented by subclasses of UGen that actually do something. Each UGen has two 2D arrays of floats, {@link #bufIn}, {@link #bufOut}, holding the current input and output audio buffers (this is stored in the form float[numChannels][bufferSize]). The goal of a {@link UGen#calculateBuffer()} method, therefore, is to fill {@link #bufOut} with appropriate data for the current audio frame. Examples can be found in the source code of classes in the {@link net.beadsproject.beads.ugens} package.
  * 
  * @author ollie
@@ -52,21 +59,41 @@ public abstract class UGen extends Bead {
 	/** The buffer size. This is specified by {@link AudioContext}. */
 	protected int bufferSize;
 	
-	/** An collection of pointers to the output buffers of UGens connected to this UGen's inputs. */
-	private ArrayList<BufferPointer>[] inputsAtChannel;
+	/** Pointers to the output buffers of UGens connected to each of this UGen's inputs. The arrays are never modified, only swapped for new ones, so that the audio thread can read them without locking. */
+	private AtomicReferenceArray<BufferPointer[]> inputsAtChannel;
 		
-	/** A collection of UGens that should be triggered by this one. */
-	private ArrayList<UGen> dependents;
+	/** The UGens that should be triggered by this one. As with {@link #inputsAtChannel}, the array is swapped rather than modified. */
+	private volatile UGen[] dependents;
 	
 	/** Flag used to avoid calling {@link #pullInputs()} unless required. */
-	private boolean noInputs;
+	private volatile boolean noInputs;
+	
+	/** Whether each output holds a single value for the whole of the current buffer (see {@link #isConstant(int)}). */
+	private boolean[] constantOuts;
+	
+	/** Whether each input holds a single value for the whole of the current buffer (see {@link #isInputConstant(int)}). */
+	private boolean[] constantIns;
+	
+	/** The number of frames between the points at which this UGen's outputs need to be read (see {@link #setControlRate(int, ControlInterpolation)}). */
+	private int controlBlockSize = 1;
+	
+	/** How UGens that read this one fill in the frames between the points at which they read it. */
+	private ControlInterpolation controlInterpolation = ControlInterpolation.RAMP;
+
+	private static final BufferPointer[] NO_INPUTS = new BufferPointer[0];
+	private static final UGen[] NO_DEPENDENTS = new UGen[0];
+	private static final AtomicReferenceFieldUpdater<UGen, UGen[]> dependentsUpdater = AtomicReferenceFieldUpdater.newUpdater(UGen.class, UGen[].class, "dependents");
 	
 	/** Counter to track of whether this UGen has been updated at this timeStep (determined by {@link AudioContext}). */
 	private long lastTimeStep;
 	
+	/** Set when this UGen is updated by a call to {@link #update()}, which tells the render schedule that its outputs may be read by UGens it doesn't know about. */
+	boolean updatedOutsideSchedule;
+	
+	/** Used for timing calculateBuffer() (see {@link Profiler}). */
 	private boolean timerMode;
 	private long timeTakenLastUpdate;
-	private long timeTemp;
+	Profiler.Timing timing;
 	
 	/** Used to determine how a UGen sets its outputs up before calculateBuffer() is called. */
 	protected enum OutputInitializationRegime {ZERO, NULL, JUNK, RETAIN};
@@ -105,13 +132,12 @@ public abstract class UGen extends Bead {
 	 * @param outs number of outputs.
 	 */
 	public UGen(AudioContext context, int ins, int outs) {
-		dependents = new ArrayList<UGen>();
+		dependents = NO_DEPENDENTS;
 		noInputs = true;
 		lastTimeStep = -1;
 		outputInitializationRegime = OutputInitializationRegime.JUNK;
 		outputPauseRegime = OutputPauseRegime.ZERO;
 		timerMode = false;
-		timeTemp = 0;
 //		inputProxy = outputProxy = null;
 		setIns(ins);
 		setOuts(outs);
@@ -152,12 +178,12 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @param ins number of inputs.
 	 */
-	@SuppressWarnings("unchecked")
-	private synchronized void setIns(int ins) {
+	private void setIns(int ins) {
 		this.ins = ins;
-		inputsAtChannel = new ArrayList[ins];
+		constantIns = new boolean[ins];
+		inputsAtChannel = new AtomicReferenceArray<BufferPointer[]>(ins);
 		for (int i = 0; i < ins; i++) {
-			inputsAtChannel[i] = new ArrayList<BufferPointer>();
+			inputsAtChannel.set(i, NO_INPUTS);
 		}
 	}
 	
@@ -177,6 +203,7 @@ public abstract class UGen extends Bead {
 	 */
 	private void setOuts(int outs) {
 		this.outs = outs;
+		constantOuts = new boolean[outs];
 	}
 
 	/**
@@ -267,18 +294,14 @@ public abstract class UGen extends Bead {
 	
 	/**
 	 * Tells all UGens up the call chain, and all UGens that are dependents of this UGen, to calculate their ouput buffers.
+	 * This never locks; connections made by other threads in the meantime are picked up at the next time step.
 	 */
-	private synchronized void pullInputs() {
-		//ArrayList<UGen> dependentsClone = (ArrayList<UGen>) dependents.clone(); //this may be slow, but avoids concurrent mod exceptions
-		//don't need to clone the array any more; we'll just be careful how we traverse the array.
-		int size = dependents.size();
-		for(int index = 0; index < size; index++) {
-			UGen dependent = dependents.get(index);
+	private void pullInputs() {
+		UGen[] deps = dependents;
+		for(int index = 0; index < deps.length; index++) {
+			UGen dependent = deps[index];
 			if (dependent.isDeleted()) {
-				// don't need to work with a cloned ArrayList if we adjust our indices properly
-				dependents.remove(index);
-				index--;
-				size--;
+				removeDependent(dependent);
 			} else {
 				dependent.update();
 			}
@@ -286,18 +309,19 @@ public abstract class UGen extends Bead {
 		//dependents done, now actual inputs
 		if (!noInputs) {
 			noInputs = true;
-			for (int i = 0; i < inputsAtChannel.length; i++) {
-				//ArrayList<BufferPointer> inputsAtChannelICopy = (ArrayList<BufferPointer>) inputsAtChannel[i].clone();
-				//don't need to clone the array any more
-				size = inputsAtChannel[i].size();
+			for (int i = 0; i < ins; i++) {
+				BufferPointer[] bps = inputsAtChannel.get(i);
+				int size = bps.length;
 				bufIn[i] = context.getZeroBuf();
+				constantIns[i] = true;
 				if(size == 1) {
-					BufferPointer bp = inputsAtChannel[i].get(0);
+					BufferPointer bp = bps[0];
 					if (bp.ugen.isDeleted()) {
-						removeInputAtChannel(i, bp);
+						removeInputs(i, null, -1);
 					} else {
 						bp.ugen.update();
 						noInputs = false;	//we actually updated something, so we must have inputs
+						constantIns[i] = bp.ugen.isConstant(bp.index);
 						//V1
 						bufIn[i] = bp.getBuffer(); //here we're just pointing to the buffer that is the input
 													//this requires that the data in the output buffer is always correct
@@ -312,27 +336,29 @@ public abstract class UGen extends Bead {
 					}
 				} else if(size != 0) {
 					float[] bi = bufIn[i] = context.getCleanBuf();
+					boolean foundDeleted = false;
 					for (int index = 0; index < size; index++) {
-						BufferPointer bp = inputsAtChannel[i].get(index);
+						BufferPointer bp = bps[index];
 						if (bp.ugen.isDeleted()) {
-							// don't need to work with a cloned array if we adjust our indices properly
-							removeInputAtChannel(i, bp);
-							size--;
-							index--;
+							foundDeleted = true;
 						} else {
 							bp.ugen.update();
 							noInputs = false;	//we actually updated something, so we must have inputs
+							constantIns[i] &= bp.ugen.isConstant(bp.index);
 							for (int j = 0; j < bufferSize; j++) {
 								bi[j] += bp.get(j);
 							}
 						}
 					}
-					
+					if(foundDeleted) {
+						removeInputs(i, null, -1);
+					}
 				}				
 			} 
 		}  else if(ins != 0) {
-			for (int i = 0; i < inputsAtChannel.length; i++) {
+			for (int i = 0; i < ins; i++) {
 				bufIn[i] = context.getZeroBuf();
+				constantIns[i] = true;
 			}
 		}
 	}
@@ -343,33 +369,222 @@ public abstract class UGen extends Bead {
 	 * will firstly propagate the {@link #update()} call up the call chain using {@link #pullInputs()}, and secondly, call its own {@link #calculateBuffer()} method.
 	 */
 	public void update() {
+		if(context.renderTracer != null) {
+			context.renderTracer.traced(this);
+		}
+		updatedOutsideSchedule = true;
 		if(!isPaused()) {
 			if (!isUpdated()) {
-				if(timerMode) {
-					timeTemp = System.nanoTime();
-				}
 				lastTimeStep = context.getTimeStep(); // do this first to break call chain loops
 				pullInputs();
-				//this sets up the output buffers - default behaviour is to use dirty buffers from the AudioContexts
-				//buffer reserve. Override this function to get another behaviour.
-				initializeOuts();
-				calculateBuffer();
-				if(timerMode) {
-					timeTakenLastUpdate = System.nanoTime() - timeTemp;
+				if(timerMode || context.profiler.profileAll) {
+					Profiler profiler = context.profiler;
+					long mark = profiler.begin();
+					long start = System.nanoTime();
+					initializeOuts();
+					calculateBuffer();
+					timeTakenLastUpdate = profiler.end(this, start, mark);
+				} else {
+					//this sets up the output buffers - default behaviour is to use dirty buffers from the AudioContexts
+					//buffer reserve. Override this function to get another behaviour.
+					initializeOuts();
+					calculateBuffer();
 				}
 			} 
 			//by the time we get here, we might have been paused. If so then initialize outs using the pause regime.
 			if(isPaused()) setOutsToPause();
-		} 
+		}
+	}
+
+	/**
+	 * Updates the UGen as part of the {@link AudioContext}'s compiled render schedule. This is equivalent to {@link #update()}
+	 * except that the UGens connected to this UGen's inputs have already been updated by the schedule, so the inputs
+	 * are simply gathered from the pre-resolved arrays rather than pulled recursively.
+	 *
+	 * @param sources the source UGens at each input channel.
+	 * @param indices the output index of each source UGen.
+	 */
+	void updateScheduled(UGen[][] sources, int[][] indices) {
+		if(!isPaused()) {
+			if (!isUpdated()) {
+				lastTimeStep = context.getTimeStep();
+				gatherScheduledInputs(sources, indices);
+				if(timerMode || context.profiler.profileAll) {
+					Profiler profiler = context.profiler;
+					long mark = profiler.begin();
+					long start = System.nanoTime();
+					initializeOuts();
+					if(context.schedulePool != null) {
+						context.schedulePool.markOwnBuffers();
+					}
+					calculateBuffer();
+					timeTakenLastUpdate = profiler.end(this, start, mark);
+				} else {
+					initializeOuts();
+					if(context.schedulePool != null) {
+						context.schedulePool.markOwnBuffers();
+					}
+					calculateBuffer();
+				}
+			}
+			if(isPaused()) setOutsToPause();
+		}
+	}
+
+	/**
+	 * Fills {@link #bufIn} from the output buffers of the given sources, summing where more than one source is connected
+	 * to a channel. This mirrors the input handling of {@link #pullInputs()}, but none of the sources are updated here.
+	 *
+	 * @param sources the source UGens at each input channel.
+	 * @param indices the output index of each source UGen.
+	 */
+	private void gatherScheduledInputs(UGen[][] sources, int[][] indices) {
+		boolean foundInput = false;
+		for (int i = 0; i < ins; i++) {
+			UGen[] src = sources[i];
+			int[] idx = indices[i];
+			bufIn[i] = context.getZeroBuf();
+			constantIns[i] = true;
+			if(src.length == 1) {
+				UGen u = src[0];
+				if(!u.isDeleted()) {
+					foundInput = true;
+					constantIns[i] = u.isConstant(idx[0]);
+					float[] b = u.bufOut[idx[0]];
+					if(b == null) {
+						b = context.getBuf();
+						for (int j = 0; j < bufferSize; j++) {
+							b[j] = u.getValue(idx[0], j);
+						}
+					}
+					bufIn[i] = b;
+				}
+			} else if(src.length != 0) {
+				float[] bi = bufIn[i] = context.getCleanBuf();
+				for (int k = 0; k < src.length; k++) {
+					UGen u = src[k];
+					if(!u.isDeleted()) {
+						foundInput = true;
+						int index = idx[k];
+						constantIns[i] &= u.isConstant(index);
+						float[] b = u.bufOut[index];
+						if(b == null) {
+							for (int j = 0; j < bufferSize; j++) {
+								bi[j] += u.getValue(index, j);
+							}
+						} else {
+							for (int j = 0; j < bufferSize; j++) {
+								bi[j] += b[j];
+							}
+						}
+					}
+				}
+			}
+		}
+		noInputs = !foundInput;
+	}
+
+	/**
+	 * Gets the UGens that this UGen pulls when updated, in the order that {@link #pullInputs()} would pull them,
+	 * for use by the compiled render schedule. Deleted dependents and inputs are removed along the way.
+	 *
+	 * @param sources an array of length {@link #ins}, filled with the source UGens at each input channel.
+	 * @param indices an array of length {@link #ins}, filled with the output index of each source UGen.
+	 * @return the dependents of this UGen.
+	 */
+	UGen[] snapshotConnections(UGen[][] sources, int[][] indices) {
+		UGen[] deps = dependents;
+		for(int index = 0; index < deps.length; index++) {
+			if(deps[index].isDeleted()) {
+				removeDependent(deps[index]);
+			}
+		}
+		boolean foundInput = false;
+		for (int i = 0; i < ins; i++) {
+			removeInputs(i, null, -1);
+			BufferPointer[] bps = inputsAtChannel.get(i);
+			int size = bps.length;
+			sources[i] = new UGen[size];
+			indices[i] = new int[size];
+			for(int index = 0; index < size; index++) {
+				sources[i][index] = bps[index].ugen;
+				indices[i][index] = bps[index].index;
+			}
+			if(size > 0) foundInput = true;
+		}
+		if(!foundInput && ins != 0) {
+			noInputs = true;
+		}
+		return dependents;
+	}
+
+	/**
+	 * Removes connections from the given input channel, without locking. If another thread changes the channel's
+	 * connections at the same time, the removal is simply retried against the new connections.
+	 *
+	 * @param channel the input channel.
+	 * @param sourceUGen the UGen to disconnect, or null to disconnect all deleted UGens.
+	 * @param sourceOutputIndex the output of the UGen to disconnect, or -1 for any output.
+	 * @return the number of connections removed.
+	 */
+	private int removeInputs(int channel, UGen sourceUGen, int sourceOutputIndex) {
+		BufferPointer[] current, updated;
+		int removed;
+		do {
+			current = inputsAtChannel.get(channel);
+			removed = 0;
+			for(int i = 0; i < current.length; i++) {
+				if(matches(current[i], sourceUGen, sourceOutputIndex)) removed++;
+			}
+			if(removed == 0) return 0;
+			updated = current.length == removed ? NO_INPUTS : new BufferPointer[current.length - removed];
+			int count = 0;
+			for(int i = 0; i < current.length; i++) {
+				if(!matches(current[i], sourceUGen, sourceOutputIndex)) updated[count++] = current[i];
+			}
+		} while(!inputsAtChannel.compareAndSet(channel, current, updated));
+		topologyChanged();
+		return removed;
+	}
+
+	private static boolean matches(BufferPointer bp, UGen sourceUGen, int sourceOutputIndex) {
+		if(sourceUGen == null) {
+			return bp.ugen.isDeleted();
+		} else {
+			return sourceUGen.equals(bp.ugen) && (sourceOutputIndex < 0 || bp.index == sourceOutputIndex);
+		}
+	}
+
+	/**
+	 * Counts the connections to all of this UGen's inputs.
+	 *
+	 * @return the number of connections.
+	 */
+	private int countInputs() {
+		int count = 0;
+		for(int i = 0; i < ins; i++) {
+			count += inputsAtChannel.get(i).length;
+		}
+		return count;
+	}
+
+	/**
+	 * Tells the {@link AudioContext} that a connection to or from this UGen has changed, so that the compiled render schedule gets rebuilt.
+	 */
+	private void topologyChanged() {
+		if(context != null) {
+			context.invalidateRenderSchedule();
+		}
 	}
 
 	/**
 	 * Prints a list of UGens connected to this UGen's inputs to System.out.
 	 */
 	public void printInputList() {
-		for (int i = 0; i < inputsAtChannel.length; i++) {
-			System.out.print(inputsAtChannel[i].size() + " inputs: ");
-			for (BufferPointer bp : inputsAtChannel[i]) {
+		for (int i = 0; i < ins; i++) {
+			BufferPointer[] bps = inputsAtChannel.get(i);
+			System.out.print(bps.length + " inputs: ");
+			for (BufferPointer bp : bps) {
 				System.out.print(bp.ugen + ":" + bp.index + " ");
 			}
 			System.out.println();
@@ -384,7 +599,7 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @param sourceUGen the UGen to connect to this UGen.
 	 */
-	public synchronized void addInput(UGen sourceUGen) {
+	public void addInput(UGen sourceUGen) {
 		if(ins != 0 && sourceUGen.outs != 0) {
 			for (int i = 0; i < ins; i++) {
 				//System.out.println("adding " + i);
@@ -402,10 +617,17 @@ public abstract class UGen extends Bead {
 	 * @param sourceOutputIndex the output of the connecting UGen with which to make the
 	 * connection.
 	 */
-	public synchronized void addInput(int inputIndex, UGen sourceUGen, int sourceOutputIndex) {
-		inputsAtChannel[inputIndex].add(new BufferPointer(sourceUGen, sourceOutputIndex));
-		//System.out.println("new input added, channel=" + inputIndex + " total=" + inputsAtChannel[inputIndex].size());
+	public void addInput(int inputIndex, UGen sourceUGen, int sourceOutputIndex) {
+		BufferPointer bp = new BufferPointer(sourceUGen, sourceOutputIndex);
+		BufferPointer[] current, updated;
+		do {
+			current = inputsAtChannel.get(inputIndex);
+			updated = new BufferPointer[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = bp;
+		} while(!inputsAtChannel.compareAndSet(inputIndex, current, updated));
 		noInputs = false;
+		topologyChanged();
 	}
 	
 	/**
@@ -414,7 +636,7 @@ public abstract class UGen extends Bead {
 	 * @param destination the UGen to crossfade towards.
 	 * @param crossoverTime the time taken.
 	 */
-	public synchronized void crossfadeInput(UGen source, final UGen destination, float crossoverTime) {
+	public void crossfadeInput(UGen source, final UGen destination, float crossoverTime) {
 		removeAllConnections(source);
 		//fade the old one out
 		Envelope fadeOut = new Envelope(context, 1f);
@@ -441,8 +663,15 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @param dependent the dependent UGen.
 	 */
-	public synchronized void addDependent(UGen dependent) {
-		dependents.add(dependent);
+	public void addDependent(UGen dependent) {
+		UGen[] current, updated;
+		do {
+			current = dependents;
+			updated = new UGen[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = dependent;
+		} while(!dependentsUpdater.compareAndSet(this, current, updated));
+		topologyChanged();
 	}
 
 	/**
@@ -450,15 +679,31 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @param dependent UGen to remove.
 	 */
-	public synchronized void removeDependent(UGen dependent) {
-		dependents.remove(dependent);
+	public void removeDependent(UGen dependent) {
+		UGen[] current, updated;
+		do {
+			current = dependents;
+			int index = -1;
+			for(int i = 0; i < current.length; i++) {
+				if(dependent.equals(current[i])) {
+					index = i;
+					break;
+				}
+			}
+			if(index < 0) return;
+			updated = new UGen[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, updated.length - index);
+		} while(!dependentsUpdater.compareAndSet(this, current, updated));
+		topologyChanged();
 	}
 	
 	/**
 	 * Clears the list of dependent UGens.
 	 */
-	public synchronized void clearDependents() {
-		dependents.clear();
+	public void clearDependents() {
+		dependents = NO_DEPENDENTS;
+		topologyChanged();
 	}
 
 	/**
@@ -469,16 +714,16 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @return number of UGen outputs connected to that input.
 	 */
-	public synchronized int getNumberOfConnectedUGens(int index) {
-		return inputsAtChannel[index].size();
+	public int getNumberOfConnectedUGens(int index) {
+		return inputsAtChannel.get(index).length;
 	}
 	
 	/**
 	 * Gets the number of dependent UGens.
 	 * @return number of dependent UGens.
 	 */
-	public synchronized int getNumberOfDependents() {
-		return dependents.size();
+	public int getNumberOfDependents() {
+		return dependents.length;
 	}
 
 	/**
@@ -486,14 +731,12 @@ public abstract class UGen extends Bead {
 	 * @param ugen the UGen to test.
 	 * @return true if the given UGen is plugged into this UGen.
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized boolean containsInput(UGen ugen) {
+	public boolean containsInput(UGen ugen) {
 		if(noInputs) {
 			return false;
 		} else {
-			for (int i = 0; i < inputsAtChannel.length; i++) {
-				ArrayList<BufferPointer> bplist = (ArrayList<BufferPointer>) inputsAtChannel[i].clone();
-				for (BufferPointer bp : bplist) {
+			for (int i = 0; i < ins; i++) {
+				for (BufferPointer bp : inputsAtChannel.get(i)) {
 					if (ugen.equals(bp.ugen)) {
 						return true;
 					}
@@ -508,10 +751,10 @@ public abstract class UGen extends Bead {
 	 * 
 	 * @return set of UGens
 	 */
-	public synchronized Set<UGen> getConnectedInputs() {
+	public Set<UGen> getConnectedInputs() {
 		Set<UGen> connectedInputs = new HashSet<UGen>();
 		for(int i = 0; i < ins; i++) {
-			for(BufferPointer bp : inputsAtChannel[i]) {
+			for(BufferPointer bp : inputsAtChannel.get(i)) {
 				connectedInputs.add(bp.ugen);
 			}
 		}
@@ -556,32 +799,20 @@ public abstract class UGen extends Bead {
 		return envelopes;
 	}
 	
-	private synchronized void removeInputAtChannel(int channel, BufferPointer bp) {
-		inputsAtChannel[channel].remove(bp);
-	}	
-	
 	/**
 	 * Disconnects the specified UGen from this UGen at all inputs.
 	 * 
 	 * @param sourceUGen the UGen to disconnect.
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized void removeAllConnections(UGen sourceUGen) {
+	public void removeAllConnections(UGen sourceUGen) {
 		if (!noInputs) {
-				int inputCount = 0;
-				for (int i = 0; i < inputsAtChannel.length; i++) {
-					ArrayList<BufferPointer> bplist = (ArrayList<BufferPointer>) inputsAtChannel[i].clone();
-					for (BufferPointer bp : bplist) {
-						if (sourceUGen.equals(bp.ugen)) {
-							removeInputAtChannel(i,bp);
-						} else
-							inputCount++;
-					}
-				}
-				if (inputCount == 0) {
-					noInputs = true;
-					zeroIns();
-				}
+			for (int i = 0; i < ins; i++) {
+				removeInputs(i, sourceUGen, -1);
+			}
+			if (countInputs() == 0) {
+				noInputs = true;
+				zeroIns();
+			}
 		}
 	}
 	
@@ -596,24 +827,12 @@ public abstract class UGen extends Bead {
 	 *            The channel of the source UGen.
 	 * @return True if a connection was removed; false otherwise.
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized boolean removeConnection(int inputChannel,
+	public boolean removeConnection(int inputChannel,
 			UGen sourceUGen, int sourceOutputChannel) {
 		// Added by Benito
 		if (!noInputs) {
-			int inputCount = 0;
-			boolean ret = false;
-			ArrayList<BufferPointer> bplist = (ArrayList<BufferPointer>) inputsAtChannel[inputChannel].clone();
-			for (BufferPointer bp : bplist) {
-				if (sourceUGen.equals(bp.ugen)
-						&& bp.index == sourceOutputChannel) {
-					removeInputAtChannel(inputChannel, bp);
-					ret = true;
-				} else {
-					inputCount++;
-				}
-			}
-			if (inputCount == 0) {
+			boolean ret = removeInputs(inputChannel, sourceUGen, sourceOutputChannel) > 0;
+			if (countInputs() == 0) {
 				noInputs = true;
 				zeroIns();
 			}
@@ -626,16 +845,13 @@ public abstract class UGen extends Bead {
 	/**
 	 * Clear all of this UGen's input connections.
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized void clearInputConnections() {
-		for(int i = 0; i < inputsAtChannel.length; i++) {
-			ArrayList<BufferPointer> bplist = (ArrayList<BufferPointer>) inputsAtChannel[i].clone();
-			for (BufferPointer bp : bplist) {
-				removeInputAtChannel(i, bp);
-			}
-			noInputs = true;
-			zeroIns();
+	public void clearInputConnections() {
+		for(int i = 0; i < ins; i++) {
+			inputsAtChannel.set(i, NO_INPUTS);
 		}
+		noInputs = true;
+		zeroIns();
+		topologyChanged();
 	}
 
 	/**
@@ -695,6 +911,162 @@ public abstract class UGen extends Bead {
 		return bufOut[i][j];
 	}
 	
+	/**
+	 * Determines whether the given output has held a single value, {@link #getValue(int, int) getValue(i, 0)}, for the whole 
+	 * of the current buffer. A UGen that reads a parameter from another UGen can check this once it has updated the other 
+	 * UGen, and if it is true, work out the parameter once for the buffer rather than for every frame. 
+	 * 
+	 * </p>By default this is false, which is always safe. UGens that know when their outputs are steady say so with 
+	 * {@link #setConstant(int, boolean)}, or override this method. These include {@link net.beadsproject.beads.ugens.Static Static}, 
+	 * {@link Envelope} and {@link net.beadsproject.beads.ugens.Glide Glide} once they have reached their values, and UGens such as 
+	 * {@link Gain} and {@link net.beadsproject.beads.ugens.Function Function} whose inputs and parameters are all constant, 
+	 * so constant signals are followed through the graph. 
+	 * 
+	 * @param i the output.
+	 * @return true if the output is constant for the current buffer.
+	 */
+	public boolean isConstant(int i) {
+		return constantOuts[i];
+	}
+	
+	/**
+	 * Sets whether the given output holds a single value for the whole of the current buffer. A UGen that uses this should 
+	 * call it from {@link #calculateBuffer()} at every update, since the flag stays as it is until it is next set.
+	 * 
+	 * @param i the output.
+	 * @param constant true if the output is constant for the current buffer.
+	 */
+	protected void setConstant(int i, boolean constant) {
+		constantOuts[i] = constant;
+	}
+	
+	/**
+	 * Determines whether the given input has held a single value for the whole of the current buffer, that is, whether 
+	 * nothing is connected to it or every UGen connected to it is constant at that output (see {@link #isConstant(int)}).
+	 * Only valid during {@link #calculateBuffer()}.
+	 * 
+	 * @param i the input.
+	 * @return true if the input is constant for the current buffer.
+	 */
+	protected boolean isInputConstant(int i) {
+		return constantIns[i];
+	}
+	
+	/** Used to determine how a control-rate UGen is filled in between the points at which it is read (see {@link #setControlRate(int, ControlInterpolation)}). */
+	public enum ControlInterpolation {HOLD, RAMP};
+	
+	/**
+	 * Marks this UGen as a control signal, whose outputs only need to be read once every blockSize frames, with the frames 
+	 * in between ramped linearly from one value to the next. See {@link #setControlRate(int, ControlInterpolation)}.
+	 * 
+	 * @param blockSize the number of frames between reads, such as 16 or 64.
+	 * @return this UGen.
+	 */
+	public UGen setControlRate(int blockSize) {
+		return setControlRate(blockSize, ControlInterpolation.RAMP);
+	}
+	
+	/**
+	 * Marks this UGen as a control signal, whose outputs only need to be read once every blockSize frames. UGens that take 
+	 * parameters from it, such as {@link net.beadsproject.beads.ugens.BiquadFilter BiquadFilter}, 
+	 * {@link net.beadsproject.beads.ugens.OnePoleFilter OnePoleFilter} and {@link net.beadsproject.beads.ugens.Panner Panner}, 
+	 * then read it once per block and work out their coefficients once for the block, either holding the values read at the 
+	 * first frame of each block ({@link ControlInterpolation#HOLD}), or ramping linearly from the values read at the last frame 
+	 * of one block to those read at the last frame of the next ({@link ControlInterpolation#RAMP}, which doesn't click). 
+	 * UGens whose own calculation is costly, such as {@link net.beadsproject.beads.ugens.Function Function} 
+	 * and {@link net.beadsproject.beads.ugens.WavePlayer WavePlayer}, also only work out their outputs once per block, and fill 
+	 * in the frames in between in the same way, so that any UGen can still read them at audio rate.
+	 * 
+	 * </p>A block size of 1 (the default) means audio rate. Blocks start at the first frame of each buffer, so the buffer size 
+	 * should be a multiple of the block size.
+	 * 
+	 * @param blockSize the number of frames between reads, such as 16 or 64.
+	 * @param interpolation whether to hold or ramp between reads.
+	 * @return this UGen.
+	 */
+	public UGen setControlRate(int blockSize, ControlInterpolation interpolation) {
+		if (blockSize < 1) blockSize = 1;
+		controlBlockSize = blockSize;
+		controlInterpolation = interpolation;
+		return this;
+	}
+	
+	/**
+	 * Gets the number of frames between the points at which this UGen's outputs need to be read, or 1 if it is at audio rate. 
+	 * See {@link #setControlRate(int, ControlInterpolation)}.
+	 * 
+	 * @return the control block size.
+	 */
+	public int getControlBlockSize() {
+		return controlBlockSize;
+	}
+	
+	/**
+	 * Gets how the frames between the points at which this UGen is read are filled in. 
+	 * See {@link #setControlRate(int, ControlInterpolation)}.
+	 * 
+	 * @return the control interpolation.
+	 */
+	public ControlInterpolation getControlInterpolation() {
+		return controlInterpolation;
+	}
+	
+	/**
+	 * Determines whether this UGen is at control rate, that is, whether its control block size is more than 1.
+	 * 
+	 * @return true if this UGen is at control rate.
+	 */
+	public boolean isControlRate() {
+		return controlBlockSize > 1;
+	}
+	
+	/**
+	 * Gets the number of frames for which a UGen reading the given output as a parameter can use a single value of it in 
+	 * the current buffer: the whole buffer if the output is constant (see {@link #isConstant(int)}), otherwise the control 
+	 * block size. Only valid once this UGen has been updated.
+	 * 
+	 * @param i the output.
+	 * @return the number of frames.
+	 */
+	public int getControlPeriod(int i) {
+		return isConstant(i) ? bufferSize : controlBlockSize;
+	}
+	
+	/**
+	 * Gets the frame of a control block at which a control-rate UGen works out its value: the first frame if it holds its 
+	 * values, the last if it ramps them.
+	 * 
+	 * @param start the first frame of the block.
+	 * @param end the frame after the last frame of the block.
+	 * @return the frame.
+	 */
+	protected int getControlFrame(int start, int end) {
+		return controlInterpolation == ControlInterpolation.HOLD ? start : end - 1;
+	}
+	
+	/**
+	 * Fills in a control block of an output buffer for a control-rate UGen that has worked out its value at the frame 
+	 * given by {@link #getControlFrame(int, int)}, either holding it or ramping to it from the value of the previous block.
+	 * 
+	 * @param buffer the output buffer.
+	 * @param start the first frame of the block.
+	 * @param end the frame after the last frame of the block.
+	 * @param from the value of the previous block.
+	 * @param to the value of this block.
+	 */
+	protected void fillControlBlock(float[] buffer, int start, int end, float from, float to) {
+		if (controlInterpolation == ControlInterpolation.HOLD || from == to) {
+			for (int i = start; i < end; i++) {
+				buffer[i] = to;
+			}
+		} else {
+			float step = (to - from) / (end - start);
+			for (int i = start, k = 1; i < end; i++, k++) {
+				buffer[i] = from + step * k;
+			}
+		}
+	}
+	
 	/**
 	 * Gets an entire output buffer from a specific channel at a given time step. Note that output buffers are swapped
 	 * every time step, so this float[] will only be valid between the time this UGen in updated 
@@ -768,16 +1140,43 @@ public abstract class UGen extends Bead {
 		}
 		super.pause(paused);
 	}
-	
+
+	/**
+	 * Kills the UGen. As well as the behaviour of {@link Bead#kill()}, this tells the {@link AudioContext} to rebuild its render schedule without this UGen.
+	 *
+	 * @see Bead#kill()
+	 */
+	public void kill() {
+		boolean wasDeleted = isDeleted();
+		super.kill();
+		if(!wasDeleted) topologyChanged();
+	}
+
+	/**
+	 * Determines whether this UGen is timing its updates.
+	 * 
+	 * @return true if timing.
+	 * @see #setTimerMode(boolean)
+	 */
 	public boolean isTimerMode() {
 		return timerMode;
 	}
 	
+	/**
+	 * Switches on or off timing of this UGen's updates. Timings are collected by the {@link AudioContext}'s {@link Profiler}.
+	 * 
+	 * @param timerMode true to time updates.
+	 */
 	public void setTimerMode(boolean timerMode) {
 		this.timerMode = timerMode;
 	}
 	
-	/// nanoseconds
+	/**
+	 * Gets the self time of the last timed update, that is, the time spent in initializing outputs and in
+	 * {@link #calculateBuffer()}, but not in updating other timed UGens.
+	 * 
+	 * @return the time in nanoseconds.
+	 */
 	public long getTimeTakenLastUpdate() {
 		return timeTakenLastUpdate;
 	}
@@ -785,7 +1184,7 @@ public abstract class UGen extends Bead {
 	/**
 	 * BufferPointer is a private nested class used by UGens to keep track of the output buffers of other UGens connected to their inputs.
 	 */
-	private class BufferPointer {
+	private static class BufferPointer {
 
 		/** The UGen that owns the output buffer. */
 		final UGen ugen;
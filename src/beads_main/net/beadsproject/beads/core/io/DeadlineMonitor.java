@@ -0,0 +1,279 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.core.io;
+
+import net.beadsproject.beads.core.Bead;
+
+/**
+ * DeadlineMonitor keeps track of the timing of the callbacks made to a realtime {@link net.beadsproject.beads.core.AudioIO} by the
+ * audio system. Each callback has one buffer period to do its work. A callback that takes longer than this is a deadline miss,
+ * and a callback that arrives much later than one period after the previous one is a late callback. Either is a likely cause
+ * of an audible glitch (an xrun).
+ *
+ * </p>Counters are kept for the number of callbacks, deadline misses and late callbacks, along with two histograms: one of
+ * callback durations as a proportion of the buffer period (the load) and one of the intervals between callbacks, also as a
+ * proportion of the buffer period. Both histograms use the buckets given by {@link #getBucketLimits()}. Deadline misses are
+ * timed over the whole callback, including the copying of audio in and out, unlike the overruns counted by
+ * {@link net.beadsproject.beads.core.Profiler}, which only time the rendering of each time step.
+ *
+ * </p>An optional overrun listener is sent a message, with this DeadlineMonitor as the message, whenever a callback misses its
+ * deadline or is late. The message is sent from the audio thread, so the listener should do very little work; typically it
+ * records the event or sets a flag for another thread to act on.
+ *
+ * </p>The counters and histograms are written only by the audio thread and can be read from any thread, although a set of
+ * readings taken while the audio is running won't necessarily be consistent with each other.
+ */
+public class DeadlineMonitor extends Bead {
+
+	/** Upper limits of the histogram buckets, as a proportion of the buffer period. The last bucket has no upper limit. */
+	private static final float[] BUCKET_LIMITS = {0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f, 0.7f, 0.8f, 0.9f, 1f, 1.5f, 2f, Float.POSITIVE_INFINITY};
+
+	/** The number of callbacks. */
+	private volatile long callbacks;
+
+	/** The number of callbacks that took longer than the buffer period. */
+	private volatile long deadlineMisses;
+
+	/** The number of callbacks that arrived late. */
+	private volatile long lateCallbacks;
+
+	/** Duration of the last callback and the longest callback, in nanoseconds. */
+	private volatile long lastDuration, maxDuration;
+
+	/** Interval between the last two callbacks, in nanoseconds. */
+	private volatile long lastInterval;
+
+	/** Start time of the last callback, and whether there is one. */
+	private long lastStart;
+	private boolean haveLastStart;
+
+	/** Flags for the last callback. */
+	private volatile boolean lastMissed, lastLate;
+
+	/** Histograms. */
+	private final long[] loadHistogram, intervalHistogram;
+
+	/** Interval, as a proportion of the buffer period, beyond which a callback counts as late. */
+	private volatile float lateThreshold;
+
+	/** Bead notified of overruns. */
+	private Bead overrunListener;
+
+	/**
+	 * Creates a new DeadlineMonitor.
+	 */
+	public DeadlineMonitor() {
+		loadHistogram = new long[BUCKET_LIMITS.length];
+		intervalHistogram = new long[BUCKET_LIMITS.length];
+		lateThreshold = 1.5f;
+	}
+
+	/**
+	 * Records a callback. Called from the audio thread at the end of each callback.
+	 *
+	 * @param start the time at which the callback started, from {@link System#nanoTime()}.
+	 * @param duration the time taken by the callback in nanoseconds.
+	 * @param period the buffer period in nanoseconds.
+	 */
+	public void callback(long start, long duration, long period) {
+		boolean late = false;
+		if(haveLastStart) {
+			long interval = start - lastStart;
+			lastInterval = interval;
+			intervalHistogram[bucket(interval, period)]++;
+			late = interval > period * lateThreshold;
+		}
+		lastStart = start;
+		haveLastStart = true;
+		lastDuration = duration;
+		if(duration > maxDuration) maxDuration = duration;
+		loadHistogram[bucket(duration, period)]++;
+		boolean missed = duration > period;
+		if(missed) deadlineMisses++;
+		if(late) lateCallbacks++;
+		lastMissed = missed;
+		lastLate = late;
+		callbacks++;
+		if((missed || late) && overrunListener != null) {
+			overrunListener.message(this);
+		}
+	}
+
+	private static int bucket(long nanos, long period) {
+		float proportion = period > 0 ? (float)nanos / period : Float.POSITIVE_INFINITY;
+		int i = 0;
+		while(proportion >= BUCKET_LIMITS[i] && i < BUCKET_LIMITS.length - 1) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Gets the upper limits of the histogram buckets, as proportions of the buffer period. A value falls into the first bucket
+	 * whose limit it is less than; the last limit is infinity.
+	 *
+	 * @return the bucket limits.
+	 */
+	public float[] getBucketLimits() {
+		return BUCKET_LIMITS.clone();
+	}
+
+	/**
+	 * Gets a copy of the histogram of callback durations, as a proportion of the buffer period.
+	 *
+	 * @return the count in each bucket.
+	 */
+	public long[] getLoadHistogram() {
+		return loadHistogram.clone();
+	}
+
+	/**
+	 * Gets a copy of the histogram of intervals between callbacks, as a proportion of the buffer period.
+	 *
+	 * @return the count in each bucket.
+	 */
+	public long[] getIntervalHistogram() {
+		return intervalHistogram.clone();
+	}
+
+	/**
+	 * Gets the number of callbacks.
+	 *
+	 * @return the number of callbacks.
+	 */
+	public long getCallbacks() {
+		return callbacks;
+	}
+
+	/**
+	 * Gets the number of callbacks that took longer than the buffer period.
+	 *
+	 * @return the number of deadline misses.
+	 */
+	public long getDeadlineMisses() {
+		return deadlineMisses;
+	}
+
+	/**
+	 * Gets the number of callbacks that arrived late.
+	 *
+	 * @return the number of late callbacks.
+	 * @see #setLateThreshold(float)
+	 */
+	public long getLateCallbacks() {
+		return lateCallbacks;
+	}
+
+	/**
+	 * Gets the duration of the last callback.
+	 *
+	 * @return the duration in nanoseconds.
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	/**
+	 * Gets the duration of the longest callback.
+	 *
+	 * @return the duration in nanoseconds.
+	 */
+	public long getMaxDuration() {
+		return maxDuration;
+	}
+
+	/**
+	 * Gets the interval between the last two callbacks.
+	 *
+	 * @return the interval in nanoseconds.
+	 */
+	public long getLastInterval() {
+		return lastInterval;
+	}
+
+	/**
+	 * Determines whether the last callback took longer than the buffer period.
+	 *
+	 * @return true if the last callback missed its deadline.
+	 */
+	public boolean isLastDeadlineMissed() {
+		return lastMissed;
+	}
+
+	/**
+	 * Determines whether the last callback arrived late.
+	 *
+	 * @return true if the last callback was late.
+	 */
+	public boolean isLastLate() {
+		return lastLate;
+	}
+
+	/**
+	 * Sets the interval between callbacks, as a proportion of the buffer period, beyond which a callback counts as late. The
+	 * default is 1.5.
+	 *
+	 * @param lateThreshold the threshold.
+	 */
+	public void setLateThreshold(float lateThreshold) {
+		this.lateThreshold = lateThreshold;
+	}
+
+	/**
+	 * Gets the interval between callbacks, as a proportion of the buffer period, beyond which a callback counts as late.
+	 *
+	 * @return the threshold.
+	 */
+	public float getLateThreshold() {
+		return lateThreshold;
+	}
+
+	/**
+	 * Sets the Bead that is sent a message from the audio thread whenever a callback misses its deadline or is late.
+	 *
+	 * @param overrunListener the listener, or null.
+	 */
+	public void setOverrunListener(Bead overrunListener) {
+		this.overrunListener = overrunListener;
+	}
+
+	/**
+	 * Gets the Bead that is sent a message whenever a callback misses its deadline or is late.
+	 *
+	 * @return the listener, or null.
+	 */
+	public Bead getOverrunListener() {
+		return overrunListener;
+	}
+
+	/**
+	 * Forgets the time of the last callback, so that the gap when the audio is stopped and started again doesn't count as a
+	 * late callback. Called by the AudioIO when it starts.
+	 */
+	public void resync() {
+		haveLastStart = false;
+	}
+
+	/**
+	 * Resets the counters and histograms. Should be called when the audio isn't running, or from the audio thread.
+	 */
+	public void reset() {
+		callbacks = 0;
+		deadlineMisses = 0;
+		lateCallbacks = 0;
+		lastDuration = maxDuration = lastInterval = 0;
+		lastMissed = lastLate = false;
+		haveLastStart = false;
+		for(int i = 0; i < BUCKET_LIMITS.length; i++) {
+			loadHistogram[i] = 0;
+			intervalHistogram[i] = 0;
+		}
+	}
+
+	public String toString() {
+		return "callbacks=" + callbacks + " deadlineMisses=" + deadlineMisses + " lateCallbacks=" + lateCallbacks
+			+ " lastDuration=" + lastDuration + " maxDuration=" + maxDuration;
+	}
+
+}
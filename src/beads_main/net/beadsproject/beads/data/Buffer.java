@@ -17,8 +17,11 @@ import net.beadsproject.beads.data.buffers.TriangularWindow;
  * A Buffer stores a one-dimensional buffer of floats for use as a wavetable or a window. Buffer does not perform any interpolation in this version, you should just make sure your buffer 
  * is high-res enough for what you need. Could add interpolation easily if needed. 
  * 
+ * </p>Waveforms with sharp edges, such as {@link #SAW} and {@link #SQUARE}, alias when played at high frequencies. A 
+ * {@link Wavetable} holds band-limited versions of Buffers that don't.
+ * 
  * @beads.category data
- * @see Sample BufferFactory
+ * @see Sample BufferFactory Wavetable
  * @author ollie
  */
 public class Buffer implements Serializable {
@@ -7,6 +7,7 @@ import java.util.Hashtable;
 
 /**
  * Abstract base class for factories that generate {@link Buffer}s. Create subclasses of BufferFactory to generate different types of {@link Buffer}.
+ * The default {@link Buffer} of a BufferFactory can also be got as a band-limited {@link Wavetable}.
  * 
  * @see Buffer
  * 
@@ -51,4 +52,23 @@ public abstract class BufferFactory {
     	return Buffer.staticBufs.get(name);
 	}
 
+	/**
+	 * Gets the band-limited {@link Wavetable} of the BufferFactory's default Buffer (see {@link #getDefault()}). The 
+	 * Wavetable is made the first time and kept statically after that.
+	 * 
+	 * @return the default Wavetable.
+	 */
+	public final Wavetable getWavetable() {
+		if (Wavetable.staticTables==null)
+		{
+			Wavetable.staticTables = new Hashtable<String, Wavetable>();
+		}
+		
+		String name = getName();
+		if(!Wavetable.staticTables.containsKey(name)) {
+			Wavetable.staticTables.put(name, new Wavetable(getDefault()));
+		}
+		return Wavetable.staticTables.get(name);
+	}
+
 }
@@ -0,0 +1,262 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.ArrayList;
+
+/**
+ * RegionCache keeps the total memory used by the loaded regions of all streaming {@link Sample}s (those with a
+ * {@link Sample.TimedRegime}) within a byte budget. There is one RegionCache, owned by {@link SampleManager} (see
+ * {@link SampleManager#getRegionCache()}).
+ *
+ * </p>Whenever a Sample loads a region, the region is added to the cache, and if this takes the cache over its budget, other
+ * regions are evicted to make room. Eviction uses the CLOCK algorithm, an approximation of least recently used: regions are
+ * arranged in a ring, and each has a reference bit that is set whenever the region is read. The clock hand sweeps round
+ * the ring, clearing reference bits, and evicts the first region it finds whose bit is already clear, i.e., one that hasn't
+ * been read since the hand last passed. Marking a region as read is a single write, so reading stays cheap on the audio thread.
+ *
+ * </p>Regions can be pinned (see {@link Sample#pinRegion(int)}), which prevents them from being evicted. A
+ * {@link net.beadsproject.beads.ugens.SamplePlayer} pins the region it is currently playing. Pinned regions still count
+ * towards the budget, so the cache can go over budget if too many regions are pinned at once.
+ *
+ * </p>The per-Sample memory timeout of the TimedRegime still applies as well: a region that hasn't been read for that long
+ * is unloaded whether or not the cache is full.
+ *
+ * </p>The hit and miss counts are updated without synchronisation, so they may be slightly out when several threads read
+ * Samples at once.
+ *
+ * @see Sample.TimedRegime
+ */
+public class RegionCache {
+
+	/**
+	 * A loaded region.
+	 */
+	static class Entry {
+
+		/** The Sample the region belongs to. */
+		final Sample sample;
+
+		/** The index of the region in the Sample. */
+		final int region;
+
+		/** The size of the region in bytes. */
+		final long bytes;
+
+		/** Set whenever the region is read, cleared by the clock hand. */
+		volatile boolean referenced;
+
+		/** The position of this entry in the ring, or -1 once it has been removed. */
+		int slot;
+
+		Entry(Sample sample, int region, long bytes) {
+			this.sample = sample;
+			this.region = region;
+			this.bytes = bytes;
+			referenced = true;
+		}
+	}
+
+	/** The ring of loaded regions. */
+	private final ArrayList<Entry> ring;
+
+	/** The position of the clock hand in the ring. */
+	private int hand;
+
+	/** The budget in bytes. */
+	private long budget;
+
+	/** The bytes used by the loaded regions. */
+	private long usedBytes;
+
+	/** Statistics. */
+	private volatile long hits, misses, loads, evictions, failedEvictions;
+
+	/**
+	 * Creates a new RegionCache with the given budget.
+	 *
+	 * @param budget the budget in bytes.
+	 */
+	RegionCache(long budget) {
+		this.budget = budget;
+		ring = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Adds a newly loaded region, first evicting other regions if necessary to keep within the budget.
+	 *
+	 * @return the entry, which the Sample keeps in order to mark the region as read and to remove it.
+	 */
+	synchronized Entry add(Sample sample, int region, long bytes) {
+		evict(bytes);
+		Entry e = new Entry(sample, region, bytes);
+		e.slot = ring.size();
+		ring.add(e);
+		usedBytes += bytes;
+		loads++;
+		return e;
+	}
+
+	/**
+	 * Removes a region that the Sample has unloaded itself. Does nothing if the region has already been removed.
+	 */
+	synchronized void remove(Entry e) {
+		if(e.slot >= 0) {
+			removeAt(e.slot);
+		}
+	}
+
+	private void removeAt(int slot) {
+		Entry e = ring.get(slot);
+		Entry last = ring.remove(ring.size() - 1);
+		if(last != e) {
+			ring.set(slot, last);
+			last.slot = slot;
+		}
+		e.slot = -1;
+		usedBytes -= e.bytes;
+	}
+
+	/**
+	 * Sweeps the clock hand until there is room for the given number of bytes, or until every region has been
+	 * considered twice (which only happens if the remaining regions are pinned or in use).
+	 */
+	private void evict(long needed) {
+		int limit = 2 * ring.size();
+		for(int i = 0; i < limit && usedBytes + needed > budget && ring.size() > 0; i++) {
+			if(hand >= ring.size()) hand = 0;
+			Entry e = ring.get(hand);
+			if(e.referenced) {
+				e.referenced = false;
+				hand++;
+			} else if(e.sample.evictRegion(e.region)) {
+				//the last entry has been moved into this slot, so the hand stays where it is
+				removeAt(hand);
+				evictions++;
+			} else {
+				failedEvictions++;
+				hand++;
+			}
+		}
+	}
+
+	/**
+	 * Counts a read of a loaded region.
+	 */
+	void hit() {
+		hits++;
+	}
+
+	/**
+	 * Counts a read of a region that wasn't loaded.
+	 */
+	void miss() {
+		misses++;
+	}
+
+	/**
+	 * Sets the budget, evicting regions straight away if the cache is now over budget.
+	 *
+	 * @param budget the budget in bytes.
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict(0);
+	}
+
+	/**
+	 * Gets the budget.
+	 *
+	 * @return the budget in bytes.
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Gets the memory used by all loaded regions.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Gets the number of loaded regions.
+	 *
+	 * @return the number of regions.
+	 */
+	public synchronized int getRegionCount() {
+		return ring.size();
+	}
+
+	/**
+	 * Gets the number of reads of regions that were loaded.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of reads of regions that weren't loaded, which return silence.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the proportion of reads that were hits.
+	 *
+	 * @return the hit ratio, or 1 if there have been no reads.
+	 */
+	public float getHitRatio() {
+		long h = hits, m = misses;
+		return h + m == 0 ? 1f : (float)h / (h + m);
+	}
+
+	/**
+	 * Gets the number of regions loaded.
+	 *
+	 * @return the number of loads.
+	 */
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Gets the number of regions evicted to keep within the budget.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of times the clock hand passed over a region that was due to be evicted but was pinned or in use.
+	 *
+	 * @return the number of failed evictions.
+	 */
+	public long getFailedEvictions() {
+		return failedEvictions;
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public void resetStats() {
+		hits = misses = loads = evictions = failedEvictions = 0;
+	}
+
+	public String toString() {
+		return "RegionCache: " + getRegionCount() + " regions, " + getUsedBytes() + "/" + getBudget() + " bytes, hits=" + hits
+			+ " misses=" + misses + " loads=" + loads + " evictions=" + evictions;
+	}
+
+}
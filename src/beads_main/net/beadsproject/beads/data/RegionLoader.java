@@ -0,0 +1,196 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RegionLoader loads the regions of streaming {@link Sample}s (those with a {@link Sample.TimedRegime}) in the background.
+ * There is one RegionLoader, owned by {@link SampleManager} (see {@link SampleManager#getRegionLoader()}).
+ *
+ * </p>Each request to load a region has a deadline: the time at which the region is expected to be played. Requests are
+ * served by a pool of worker threads in order of deadline, so that when many voices start at once, the regions they need
+ * first are loaded first. A {@link net.beadsproject.beads.ugens.SamplePlayer} computes deadlines for the regions ahead of it
+ * from its position and playback rate (see {@link Sample#prefetch(double, double)}), and reads far enough ahead to cover
+ * the regime's look ahead time at its current rate.
+ *
+ * </p>A worker serving a request also loads any following regions of the same Sample that are queued, with a single seek and
+ * a single read, since reading on from where the last read stopped is much cheaper than seeking. Different Samples are loaded
+ * in parallel, so the number of threads should match the number of reads the storage can serve at once: the default of
+ * {@value #DEFAULT_THREADS} suits an SSD; for a single hard disk, 1 or 2 is better.
+ *
+ * </p>A region that is read before it has been loaded is late, and produces silence. Late regions are counted (see
+ * {@link #getLateRegions()}), and each one makes the Sample concerned read a little further ahead in future.
+ *
+ * @see RegionCache
+ */
+public class RegionLoader {
+
+	/** The default number of worker threads. */
+	public static final int DEFAULT_THREADS = 4;
+
+	/**
+	 * A request to load a region.
+	 */
+	private static class Request implements Runnable, Comparable<Request> {
+
+		final Sample sample;
+		final int region;
+		final long deadline;
+		final long order;
+
+		Request(Sample sample, int region, long deadline, long order) {
+			this.sample = sample;
+			this.region = region;
+			this.deadline = deadline;
+			this.order = order;
+		}
+
+		public int compareTo(Request other) {
+			//deadlines are nanoTime values, which can only be compared by subtraction
+			long d = deadline - other.deadline;
+			if(d == 0) d = order - other.order;
+			return d < 0 ? -1 : (d > 0 ? 1 : 0);
+		}
+
+		public void run() {
+			sample.loadQueuedRegions(region);
+		}
+	}
+
+	/** The worker pool, which takes requests from a priority queue. */
+	private final ThreadPoolExecutor executor;
+
+	/** Used to serve requests with equal deadlines in the order they were made. */
+	private final AtomicLong requests;
+
+	/** Statistics. */
+	private final AtomicLong loads, batches, lateRegions;
+
+	/**
+	 * Creates a new RegionLoader.
+	 *
+	 * @param threads the number of worker threads.
+	 */
+	RegionLoader(int threads) {
+		threads = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "beads region loader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		requests = new AtomicLong();
+		loads = new AtomicLong();
+		batches = new AtomicLong();
+		lateRegions = new AtomicLong();
+	}
+
+	/**
+	 * Queues a region to be loaded.
+	 *
+	 * @param deadline the time by which the region is needed, from {@link System#nanoTime()}.
+	 */
+	void request(Sample sample, int region, long deadline) {
+		executor.execute(new Request(sample, region, deadline, requests.getAndIncrement()));
+	}
+
+	/**
+	 * Records a batch of regions read together.
+	 */
+	void loaded(int regions) {
+		loads.addAndGet(regions);
+		batches.incrementAndGet();
+	}
+
+	/**
+	 * Records a region that was read before it was loaded.
+	 */
+	void late() {
+		lateRegions.incrementAndGet();
+	}
+
+	/**
+	 * Sets the number of worker threads.
+	 *
+	 * @param threads the number of threads.
+	 */
+	public synchronized void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		if(threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Gets the number of worker threads.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getThreads() {
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Gets the number of requests waiting to be served. This includes requests for regions that have since been loaded as
+	 * part of a batch, which are discarded when they come up.
+	 *
+	 * @return the number of requests.
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of regions loaded.
+	 *
+	 * @return the number of regions.
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * Gets the number of reads. Each read loads one or more adjacent regions.
+	 *
+	 * @return the number of reads.
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Gets the number of regions that were read before they had been loaded, causing a gap in the audio.
+	 *
+	 * @return the number of late regions.
+	 */
+	public long getLateRegions() {
+		return lateRegions.get();
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public void resetStats() {
+		loads.set(0);
+		batches.set(0);
+		lateRegions.set(0);
+	}
+
+	public String toString() {
+		return "RegionLoader: " + getThreads() + " threads, " + getQueueLength() + " queued, loads=" + loads + " batches="
+			+ batches + " lateRegions=" + lateRegions;
+	}
+
+}
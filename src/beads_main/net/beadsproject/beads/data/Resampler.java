@@ -0,0 +1,188 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+/**
+ * Resampler does band-limited interpolation with a windowed sinc filter, for reading {@link Sample}s at rates other than
+ * their own without aliasing. It is used when a Sample is read with {@link Sample.Interpolation#SINC} (for example by a
+ * {@link net.beadsproject.beads.ugens.SamplePlayer} with
+ * {@link net.beadsproject.beads.ugens.SamplePlayer.InterpolationType#SINC InterpolationType.SINC}), and by
+ * {@link Sample#resample(float, Quality)}, which converts a whole Sample to another sample rate.
+ *
+ * </p>The filter is a sinc function with a Kaiser window, held in a table with {@link Quality#resolution} points per zero
+ * crossing, between which it is interpolated linearly. Each frame is worked out from the frames either side of it, so any
+ * rate and any fractional position can be read, and the rate can change from frame to frame. When the frames are read faster
+ * than the sample rate (moving on by more than one frame at a time), the filter is stretched to lower its cutoff below the
+ * new Nyquist frequency. This makes it longer, and so more expensive, in proportion to the rate, up to
+ * {@value #MAX_STRETCH} times. Above that, frequencies that alias are only partly removed.
+ *
+ * </p>There is one Resampler for each {@link Quality}, shared by all Samples (see {@link #getResampler(Quality)}), and its
+ * table is built the first time it is asked for.
+ */
+public class Resampler {
+
+	/**
+	 * The quality presets, which trade the sharpness of the filter and how well it removes aliases for CPU time. The CPU
+	 * time is in proportion to the number of zero crossings.
+	 */
+	public static enum Quality {
+
+		/** 4 zero crossings each side, 40dB stopband. Not much better than cubic interpolation when reading at rate 1, but removes aliasing when reading faster. */
+		FAST(4, 128, 0.86f, 40),
+
+		/** 8 zero crossings each side, 60dB stopband. */
+		MEDIUM(8, 256, 0.89f, 60),
+
+		/** 16 zero crossings each side, 80dB stopband. */
+		HIGH(16, 512, 0.92f, 80),
+
+		/** 32 zero crossings each side, 100dB stopband. For offline work. */
+		BEST(32, 1024, 0.95f, 100);
+
+		/** The number of zero crossings of the filter on each side of its centre. */
+		public final int zeroCrossings;
+
+		/** The number of points of the filter table per zero crossing. */
+		public final int resolution;
+
+		/** The cutoff of the filter as a fraction of the Nyquist frequency. */
+		public final float rolloff;
+
+		/** The attenuation of the stopband in dB. */
+		public final float attenuation;
+
+		private Quality(int zeroCrossings, int resolution, float rolloff, float attenuation) {
+			this.zeroCrossings = zeroCrossings;
+			this.resolution = resolution;
+			this.rolloff = rolloff;
+			this.attenuation = attenuation;
+		}
+	}
+
+	/** The quality used when none is given. */
+	public static final Quality DEFAULT_QUALITY = Quality.MEDIUM;
+
+	/** The most that the filter is stretched when reading faster than the sample rate. */
+	public static final int MAX_STRETCH = 8;
+
+	/** The Resamplers, built as they are needed. */
+	private static final Resampler[] resamplers = new Resampler[Quality.values().length];
+
+	/** The quality. */
+	private final Quality quality;
+
+	/** One side of the filter, from its centre outwards, with a zero on the end. */
+	private final float[] table;
+
+	/** The differences between neighbouring points of the table. */
+	private final float[] deltas;
+
+	/** The length of the table, not counting the zero on the end. */
+	private final int tableEnd;
+
+	/**
+	 * Gets the Resampler for the given quality.
+	 *
+	 * @param quality the quality, or null for {@link #DEFAULT_QUALITY}.
+	 * @return the Resampler.
+	 */
+	public static synchronized Resampler getResampler(Quality quality) {
+		if(quality == null) quality = DEFAULT_QUALITY;
+		Resampler resampler = resamplers[quality.ordinal()];
+		if(resampler == null) {
+			resampler = new Resampler(quality);
+			resamplers[quality.ordinal()] = resampler;
+		}
+		return resampler;
+	}
+
+	/**
+	 * Builds the filter table.
+	 */
+	private Resampler(Quality quality) {
+		this.quality = quality;
+		tableEnd = quality.zeroCrossings * quality.resolution;
+		table = new float[tableEnd + 1];
+		deltas = new float[tableEnd + 1];
+		double beta = quality.attenuation > 50 ? 0.1102 * (quality.attenuation - 8.7) :
+			0.5842 * Math.pow(quality.attenuation - 21, 0.4) + 0.07886 * (quality.attenuation - 21);
+		double i0Beta = besselI0(beta);
+		for(int i = 0; i < tableEnd; i++) {
+			double x = (double)i / quality.resolution;
+			double sinc = i == 0 ? 1 : Math.sin(Math.PI * x * quality.rolloff) / (Math.PI * x * quality.rolloff);
+			double r = x / quality.zeroCrossings;
+			double window = besselI0(beta * Math.sqrt(1 - r * r)) / i0Beta;
+			table[i] = (float)(quality.rolloff * sinc * window);
+		}
+		for(int i = 0; i < tableEnd; i++) {
+			deltas[i] = table[i + 1] - table[i];
+		}
+	}
+
+	/**
+	 * The modified Bessel function of the first kind, order zero, for the Kaiser window.
+	 */
+	private static double besselI0(double x) {
+		double sum = 1, term = 1;
+		for(int k = 1; term > sum * 1e-12; k++) {
+			double t = x / (2 * k);
+			term *= t * t;
+			sum += term;
+		}
+		return sum;
+	}
+
+	/**
+	 * Works out a frame between two frames of a channel.
+	 *
+	 * @param src the channel data, which must have {@link #getMargin(float)} frames either side of the frame at j.
+	 * @param j the index of the frame before the position.
+	 * @param fraction the fraction of a frame after it, from 0 to 1.
+	 * @param step the number of frames moved on from the last frame read, which sets the cutoff of the filter.
+	 * @return the frame.
+	 */
+	public float interpolate(float[] src, int j, float fraction, float step) {
+		float scale = step > 1 ? (step < MAX_STRETCH ? 1 / step : 1f / MAX_STRETCH) : 1;
+		float increment = scale * quality.resolution;
+		float sum = 0;
+		//the left wing, from the frame before the position backwards
+		float p = fraction * increment;
+		for(int i = j; p < tableEnd; i--, p += increment) {
+			int k = (int)p;
+			sum += src[i] * (table[k] + (p - k) * deltas[k]);
+		}
+		//the right wing, from the frame after the position forwards
+		p = (1 - fraction) * increment;
+		for(int i = j + 1; p < tableEnd; i++, p += increment) {
+			int k = (int)p;
+			sum += src[i] * (table[k] + (p - k) * deltas[k]);
+		}
+		return sum * scale;
+	}
+
+	/**
+	 * Gets the number of frames needed either side of a position by {@link #interpolate(float[], int, float, float)}.
+	 *
+	 * @param step the number of frames moved on from the last frame read.
+	 * @return the number of frames.
+	 */
+	public int getMargin(float step) {
+		float stretch = step > 1 ? Math.min(step, MAX_STRETCH) : 1;
+		return (int)Math.ceil(quality.zeroCrossings * stretch) + 1;
+	}
+
+	/**
+	 * Gets the quality.
+	 *
+	 * @return the quality.
+	 */
+	public Quality getQuality() {
+		return quality;
+	}
+
+	public String toString() {
+		return "Resampler: " + quality;
+	}
+
+}
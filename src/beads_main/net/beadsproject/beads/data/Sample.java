@@ -3,17 +3,19 @@
  */
 package net.beadsproject.beads.data;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sound.sampled.AudioFileFormat;
@@ -27,6 +29,8 @@ import net.beadsproject.beads.core.IOAudioFormat;
 import net.beadsproject.beads.data.Sample.Regime;
 import net.beadsproject.beads.data.Sample.TotalRegime;
 import net.beadsproject.beads.data.audiofile.AudioFile;
+import net.beadsproject.beads.data.audiofile.AudioFileWriter;
+import net.beadsproject.beads.data.audiofile.MappedAudioFile;
 
 /**
  * A Sample encapsulates audio data, either loaded from an audio file (such as an MP3) or
@@ -45,7 +49,9 @@ import net.beadsproject.beads.data.audiofile.AudioFile;
  * can also be accessed through the methods: 
  * {@link #getFrame(int, float[]) getFrame},
  * {@link #getFrameLinear(double, float[]) getFrameLinear}, and  
- * {@link #getFrames(int, float[][]) getFrames}.
+ * {@link #getFrames(int, float[][]) getFrames}. Blocks of frames at arbitrary positions, with interpolation,
+ * are read with {@link #getFrames(double, double, float[], Interpolation, float[][], int, int)} and
+ * {@link #getFrames(double[], Interpolation, float[][], int, int)}.
  * Sample data can be written with: 
  * {@link #putFrame(int, float[]) putFrame} or
  * {@link #putFrames(int, float[][]) putFrames}. <i>However</i> you can only
@@ -57,6 +63,8 @@ import net.beadsproject.beads.data.audiofile.AudioFile;
  * The {@link Regime buffering regime} of the Sample determines how the data is stored and how it is buffered. 
  * The {@link Sample.TotalRegime TOTAL} regime is the default. Under this regime, the sample loads all the data from the audio file and
  * stores it in Beads' native format. This is appropriate for most small samples.For longer samples or compressed audio consider using a {@link Sample.TimedRegime TimedRegime}.
+ * For uncompressed WAV and AIFF files of any length, a {@link Sample.MappedRegime MappedRegime} reads the data straight from the
+ * file with no loading time at all.
  * </p>
  * 
  * <p>
@@ -64,8 +72,10 @@ import net.beadsproject.beads.data.audiofile.AudioFile;
  * <ul>
  * <li>{@link Sample.Regime#newTotalRegime()}</li>
  * <li>{@link Sample.Regime#newTotalRegimeNative()}</li>
+ * <li>{@link Sample.Regime#newTotalRegimeCompact()}</li>
  * <li>{@link Sample.Regime#newStreamingRegime(long)}</li>
  * <li>{@link Sample.Regime#newStreamingRegimeWithAging(long,long)}</li>
+ * <li>{@link Sample.Regime#newMappedRegime()}</li>
  * </ul>
  * </p>
  * 
@@ -124,6 +134,17 @@ public class Sample implements Runnable {
 			return tr;
 		}
 		
+		/**
+		 * Loads the entire file and keeps it as 16 bit data, in one array per channel. 
+		 * Uses half the memory of {@link #newTotalRegime()}, and is much faster to read than {@link #newTotalRegimeNative()}.
+		 */
+		static public TotalRegime newTotalRegimeCompact()
+		{
+			TotalRegime tr = new TotalRegime();
+			tr.storeIn16BitPlanar = true;
+			return tr;
+		}
+		
 		/**
 		 * Stream the file from disk -- storing the data in the sample. Useful for a forward sample player
 		 * that possibly skips to different parts of the file. Once data is buffered it remains around forever.
@@ -146,6 +167,15 @@ public class Sample implements Runnable {
 		{
 			return new TimedRegime(regionSize,regionSize*2,0,memory,TimedRegime.Order.ORDERED);
 		}
+		
+		/**
+		 * Memory map the file and read the data straight from it. Only works for uncompressed WAV and AIFF files; 
+		 * other files are loaded entirely as with {@link #newTotalRegime()}.
+		 */
+		static public MappedRegime newMappedRegime()
+		{
+			return new MappedRegime();
+		}
 	};
 
 	/**
@@ -164,6 +194,10 @@ public class Sample implements Runnable {
 	 * <li>{@link #loadingOrder}: Affects the order that surrounding regions are queued. NEAREST is suitable if you are playing backwards and forwards around a sample position, while ORDERED is suitable for playing forwards.</li>
 	 * </ul>
 	 * </p>
+	 * <p>
+	 * In addition, the total memory used by the regions of all samples is kept within the budget of the 
+	 * {@link RegionCache} owned by {@link SampleManager}, which evicts the regions that were least recently read.
+	 * </p>
 	 */  
 	static public class TimedRegime extends Regime
 	{
@@ -274,12 +308,46 @@ public class Sample implements Runnable {
 		}
 	};
 
+	/**
+	 * <p>
+	 * A sample with a MappedRegime memory maps an uncompressed WAV or AIFF file and decodes frames directly 
+	 * from the mapping whenever they are requested (see {@link MappedAudioFile}). 
+	 * </p>
+	 * <p>
+	 * Nothing is loaded up front, so even multi-gigabyte files are ready immediately, and any frame can be read 
+	 * at any time without waiting for a region to load. The data lives in the operating system's page cache rather 
+	 * than on the heap, and is shared between all the Samples that map the same file. The first access to a part 
+	 * of the file that isn't cached yet has to wait for the disk, so for realtime use the file should be on a fast 
+	 * disk, or read through once in advance. 
+	 * </p>
+	 * <p>
+	 * Samples with a MappedRegime aren't writeable. If the file can't be mapped (because it is compressed, or 
+	 * isn't a local file) the sample falls back to a {@link TotalRegime}.
+	 * </p>
+	 */
+	static public class MappedRegime extends Regime
+	{
+		public MappedRegime()
+		{
+			super(true);
+		}
+	};
+
 	/**
 	 * A sample with a TotalRegime reads and stores all the audio data upon initialisation.
 	 * This provides faster access (than TimedRegime) at the cost of much more memory used.
 	 */
 	static public class TotalRegime extends Regime
 	{
+		/**
+		 * Store the sample data as 16 bit integers, in one array per channel.
+		 * 
+		 * This uses half the memory of the default format, and is much faster to read 
+		 * than the native format: each sample is converted with a single multiply, in a 
+		 * loop simple enough for the JIT to vectorise. Takes precedence over {@link #storeInNativeBitDepth}.
+		 */
+		public boolean storeIn16BitPlanar;
+		
 		public TotalRegime()
 		{
 			super();
@@ -291,6 +359,33 @@ public class Sample implements Runnable {
 		}
 	};
 
+	/**
+	 * The interpolation used when reading frames at fractional positions.
+	 */
+	public enum Interpolation {
+		/** Take the frame before the position. */
+		NONE, 
+		/** Interpolate linearly between the frames either side of the position. */
+		LINEAR, 
+		/** Cubic interpolation over the four frames around the position. */
+		CUBIC,
+		/** Band-limited interpolation with a windowed sinc filter (see {@link Resampler}), which also removes the 
+		 * frequencies that would alias when reading faster than the sample rate. */
+		SINC
+	};
+	
+	/// The largest span of frames that block reads interpolate over in one go.
+	static private final int MAX_SPAN = 1024;
+	
+	/// Converts 16 bit data to floats.
+	static private final float SHORT_TO_FLOAT = 1.0F / 32768.0F;
+	
+	/// The number of frames written at a time by write().
+	static private final int WRITE_BLOCK = 8192;
+	
+	/// Writes samples in the background.
+	static private ExecutorService writer;
+
 	// Sample stuff
 	private Regime bufferingRegime;
 	private AudioFile audioFile;
@@ -301,8 +396,22 @@ public class Sample implements Runnable {
 	private boolean isBigEndian;
 
 	// TimedRegime Only
-		/// The region master controls the loading of queued regions.
+		/**
+		 * No longer used: queued regions are loaded by the {@link RegionLoader} owned by {@link SampleManager}.
+		 * @deprecated
+		 */
+		@Deprecated
 		static public Executor regionMaster = null;
+		
+		/// The maximum number of adjacent regions loaded with a single read.
+		static private final int MAX_BATCH = 8;
+		
+		/// The maximum number of extra regions to read ahead because of late regions. 
+		static private final int MAX_LATE_BOOST = 4;
+		
+		/// How much sooner than its queued deadline a region must be needed to be queued again, in ns. 
+		/// About one buffer period, so the small jitter between the deadlines worked out on each buffer doesn't requeue regions.
+		static private final long REQUEUE_MARGIN = 10000000L;
 	
 		private int r_regionSize; // region size in frames
 		private int r_lookahead; // num region lookahead
@@ -312,6 +421,7 @@ public class Sample implements Runnable {
 		private int regionSizeInBytes; // the number of bytes per region (regionSize * nChannels * bitconversionfactor)
 		private int numberOfRegions; // total number of regions
 		private int numberOfRegionsLoaded; // number of loaded regions
+		private volatile boolean unloaded; // set by unload(), after which no more regions are loaded
 	
 		private byte[][] regions; // the actual data
 		private float[][][] f_regions; // uninterleaved data
@@ -320,17 +430,32 @@ public class Sample implements Runnable {
 		private long timeAtLastAgeUpdate; // the time at the last age updated operation
 	
 		private boolean[] regionQueued; // true if a region is currently queued
-		private ConcurrentLinkedQueue<Integer> regionQueue; // a queue of regions to be loaded
-		// private Thread regionThread; // the thread that loads regions in the background
-		private Lock[] regionLocks; // to support safe deletion/writing of regions
+		private long[] regionDeadline; // the deadline of the most urgent request for each queued region (System.nanoTime())
+		private boolean[] regionLate; // true if a region has been read since it was queued, before it was loaded
+		private int lateBoost; // extra regions to read ahead, increased whenever a region is late
+		private RegionLoader regionLoader; // loads queued regions in the background
+		private ReentrantLock[] regionLocks; // to support safe deletion/writing of regions
 		
-		private boolean isScheduled;
+		private RegionCache regionCache; // the cache shared by all samples, which keeps the memory used by regions within budget
+		private RegionCache.Entry[] regionEntries; // the cache entry of each loaded region
+		private AtomicIntegerArray regionPins; // the number of pins on each region, pinned regions are never unloaded
 
 	// TotalRegime Only
 		private byte[] sampleData;
 		private float[][] f_sampleData; // f_sampleData[0] first channel, f_sampleData[1] second channel, etc..
+		private short[][] s_sampleData; // 16 bit data with one array per channel, used instead of the above by a compact TotalRegime
 		
-		private float[] current, next; //used as temp buffers whilst calculating interpolation
+		
+	// used as temp buffers by the block reads, like the rest of the read methods they assume one thread at a time
+		private float[][] blockData; // the frames being interpolated
+		private int[] blockIndex; // the frame before each position
+		private float[] blockFrac; // the fraction of a frame after it
+		private double[] blockPositions; // positions worked out from a rate
+		private float[] blockSteps; // the distance moved to each position, in frames, which sets the cutoff of the sinc filter
+		private float[][] sincData; // the frames being filtered, with a margin either side
+		
+	// MappedRegime Only
+		private MappedAudioFile mappedFile;
 
 		/**
 		 * Instantiates a new writable sample with specified length and default audio format: 44.1KHz, 16 bit, stereo.
@@ -354,10 +479,13 @@ public class Sample implements Runnable {
 		this();
 		this.audioFormat = audioFormat;
 		nChannels = audioFormat.channels;
-		current = new float[nChannels];
-		next = new float[nChannels];
+		blockData = new float[nChannels][MAX_SPAN + 4];
 		nFrames = (long) msToSamples(length);
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (isCompact())
+		{
+			s_sampleData = new short[nChannels][(int)nFrames];
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			sampleData = new byte[2*nChannels*(int)nFrames]; //16-bit			
 		}
@@ -373,10 +501,13 @@ public class Sample implements Runnable {
 		bufferingRegime = br;
 		this.audioFormat = audioFormat;
 		nChannels = audioFormat.channels;
-		current = new float[nChannels];
-		next = new float[nChannels];
+		blockData = new float[nChannels][MAX_SPAN + 4];
 		nFrames = (long) msToSamples(length);
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (isCompact())
+		{
+			s_sampleData = new short[nChannels][(int)nFrames];
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			sampleData = new byte[2*nChannels*(int)nFrames]; //16-bit			
 		}
@@ -396,7 +527,6 @@ public class Sample implements Runnable {
 	{
 		bufferingRegime = Regime.newTotalRegime();
 		isBigEndian = true;
-		isScheduled = false;
 		
 	}
 
@@ -494,9 +624,18 @@ public class Sample implements Runnable {
 	{
 		if (frame<0 || frame >= nFrames) return;
 
-		if (isTotal())
+		if (mappedFile!=null)
 		{
-			if (bufferingRegime.storeInNativeBitDepth)
+			mappedFile.getFrame(frame, frameData);
+		}
+		else if (isTotal())
+		{
+			if (s_sampleData!=null)
+			{
+				for(int i=0;i<nChannels;i++)
+					frameData[i] = s_sampleData[i][frame] * SHORT_TO_FLOAT;
+			}
+			else if (bufferingRegime.storeInNativeBitDepth)
 			{
 				int startIndex = frame * 2 * nChannels;			
 				AudioUtils.byteToFloat(frameData,sampleData,isBigEndian,startIndex,frameData.length);
@@ -581,9 +720,7 @@ public class Sample implements Runnable {
 	 * @param result The framedata to fill.
 	 */
 	public void getFrameNoInterp(double posInMS, float[] result) {
-		double frame = msToSamples(posInMS);
-		int frame_floor = (int)Math.floor(frame);
-		getFrame(frame_floor,result);
+		getFrame(posInMS, Interpolation.NONE, result);
 	}
 
 	/**
@@ -594,27 +731,7 @@ public class Sample implements Runnable {
 	 * @param result The framedata to fill.
 	 */
 	public void getFrameLinear(double posInMS, float[] result) {
-		double frame = msToSamples(posInMS);
-		int frame_floor = (int)Math.floor(frame);
-		if(frame_floor > 0 && frame_floor < nFrames) {			
-			double frame_frac = frame - frame_floor;
-			if (frame_floor==nFrames-1)
-			{
-				getFrame(frame_floor,result);
-			}
-			else // lerp
-			{
-				getFrame(frame_floor,current);
-				getFrame(frame_floor+1,next);
-				for (int i = 0; i < nChannels; i++) {
-					result[i] = (float)((1 - frame_frac) * current[i] + frame_frac * next[i]);
-				} 
-			}
-		} else {
-			for(int i = 0; i < nChannels; i++) {
-				result[i] = 0.0f;
-			}
-		}
+		getFrame(posInMS, Interpolation.LINEAR, result);
 	}
 
 	/**
@@ -625,47 +742,438 @@ public class Sample implements Runnable {
 	 * @param result The framedata to fill.
 	 */
 	public void getFrameCubic(double posInMS, float[] result) {
+		getFrame(posInMS, Interpolation.CUBIC, result);
+	}
+	
+	/**
+	 * Retrieves a frame of audio using the given interpolation.
+	 * If the frame is not in the sample range then zeros are returned.
+	 * 
+	 * @param posInMS The frame to read -- can be fractional (e.g., 4.4).
+	 * @param interpolation The interpolation.
+	 * @param result The framedata to fill.
+	 */
+	public void getFrame(double posInMS, Interpolation interpolation, float[] result) {
 		double frame = msToSamples(posInMS);
-		float a0,a1,a2,a3,mu2;
-		float ym1,y0,y1,y2;
-		for (int i = 0; i < nChannels; i++) {
-			int realCurrentSample = (int)Math.floor(frame);
-			float fractionOffset = (float)(frame - realCurrentSample);
-			
-			if(realCurrentSample >= 0 && realCurrentSample < (nFrames - 1)) {
-				realCurrentSample--;
-				if (realCurrentSample < 0) {
-					getFrame(0, current);
-					ym1 = current[i];
-					realCurrentSample = 0;
-				} else {
-					getFrame(realCurrentSample++, current);
-					ym1 = current[i];
+		int index = (int)Math.floor(frame);
+		int chans = Math.min(nChannels, result.length);
+		if (index < 0 || index >= nFrames)
+		{
+			for (int i = 0; i < chans; i++)
+				result[i] = 0.f;
+			return;
+		}
+		float fraction = (float)(frame - index);
+		if (interpolation == Interpolation.SINC)
+		{
+			Resampler resampler = Resampler.getResampler(null);
+			int margin = resampler.getMargin(1);
+			readPadded(index - margin, 2 * margin + 1);
+			for (int i = 0; i < chans; i++)
+				result[i] = resampler.interpolate(sincData[i], margin, fraction, 1);
+			return;
+		}
+		int base = index - 1;
+		readSpan(index, index);
+		for (int i = 0; i < chans; i++)
+			result[i] = interpolate(blockData[i], index - base, fraction, interpolation);
+	}
+	
+	/**
+	 * Reads a block of frames, starting at the given position and moving on by <code>rates[i] * increment</code> 
+	 * ms after the ith frame. Frames outside the sample are zero.
+	 * 
+	 * <p>The result can have more channels than the sample, in which case the sample's channels are repeated.
+	 * Like the other read methods, this isn't thread safe: a sample should only be read by one thread at a time 
+	 * (normally the audio thread).</p>
+	 * 
+	 * @param posInMS The position of the first frame in ms.
+	 * @param increment The distance between frames at a rate of 1, in ms. 
+	 * @param rates The rate for each frame, or null for a rate of 1.
+	 * @param interpolation The interpolation.
+	 * @param result The buffer to fill, with a channel index as the first dimension.
+	 * @param offset The index in the result of the first frame. 
+	 * @param count The number of frames to read.
+	 * @return The position after the last frame, in ms.
+	 */
+	public double getFrames(double posInMS, double increment, float[] rates, Interpolation interpolation, 
+			float[][] result, int offset, int count)
+	{
+		if (blockPositions==null || blockPositions.length < count)
+			blockPositions = new double[count];
+		double[] positions = blockPositions;
+		for (int i = 0; i < count; i++)
+		{
+			positions[i] = posInMS;
+			posInMS += rates==null ? increment : rates[i] * increment;
+		}
+		getFrames(positions, interpolation, result, offset, count);
+		return posInMS;
+	}
+	
+	/**
+	 * Reads a block of frames at the given positions. Frames outside the sample are zero.
+	 * 
+	 * <p>The frames needed are read from the underlying storage (taking each region lock only once, for 
+	 * streamed samples) a span at a time, then interpolated channel by channel. Positions that move steadily 
+	 * through the sample, at any rate, are read in the fewest spans.</p>
+	 * 
+	 * <p>The result can have more channels than the sample, in which case the sample's channels are repeated.
+	 * Like the other read methods, this isn't thread safe: a sample should only be read by one thread at a time 
+	 * (normally the audio thread).</p>
+	 * 
+	 * @param positions The position of each frame in ms.
+	 * @param interpolation The interpolation.
+	 * @param result The buffer to fill, with a channel index as the first dimension.
+	 * @param offset The index in the result of the first frame. 
+	 * @param count The number of frames to read.
+	 */
+	public void getFrames(double[] positions, Interpolation interpolation, float[][] result, int offset, int count)
+	{
+		getFrames(positions, interpolation, null, result, offset, count);
+	}
+	
+	/**
+	 * Like {@link #getFrames(double[], Interpolation, float[][], int, int)}, with the quality of the filter used by 
+	 * {@link Interpolation#SINC}. The cutoff of the filter for each frame is set by the distance from the previous
+	 * position, so that frequencies that would alias are removed when the positions move on by more than a frame at a time.
+	 * 
+	 * @param positions The position of each frame in ms.
+	 * @param interpolation The interpolation.
+	 * @param quality The quality of the sinc filter, or null for {@link Resampler#DEFAULT_QUALITY}.
+	 * @param result The buffer to fill, with a channel index as the first dimension.
+	 * @param offset The index in the result of the first frame. 
+	 * @param count The number of frames to read.
+	 */
+	public void getFrames(double[] positions, Interpolation interpolation, Resampler.Quality quality, 
+			float[][] result, int offset, int count)
+	{
+		if (blockIndex==null || blockIndex.length < count)
+		{
+			blockIndex = new int[count];
+			blockFrac = new float[count];
+		}
+		int[] index = blockIndex;
+		float[] fraction = blockFrac;
+		double sampleRate = audioFormat.sampleRate;
+		for (int i = 0; i < count; i++)
+		{
+			// the same sum as msToSamples, so that positions land on the same frames
+			double frame = positions[i] * sampleRate / 1000.0f;
+			int f = (int)Math.floor(frame);
+			index[i] = f;
+			fraction[i] = (float)(frame - f);
+		}
+		int chans = Math.min(nChannels, result.length);
+		if (interpolation == Interpolation.SINC)
+			getFramesSinc(positions, Resampler.getResampler(quality), result, offset, count, chans);
+		else
+			getFramesInterpolated(interpolation, result, offset, count, chans);
+		// repeat the channels if there are more outputs than channels
+		for (int c = chans; c < result.length; c++)
+			System.arraycopy(result[c % nChannels], offset, result[c], offset, count);
+	}
+	
+	/// the frames before each position and the fractions are in blockIndex and blockFrac
+	private void getFramesInterpolated(Interpolation interpolation, float[][] result, int offset, int count, int chans)
+	{
+		int[] index = blockIndex;
+		float[] fraction = blockFrac;
+		int start = 0;
+		while (start < count)
+		{
+			// extend the span for as long as it stays small enough to read in one go
+			int lo = index[start], hi = lo;
+			int end = start + 1;
+			while (end < count)
+			{
+				int f = index[end];
+				int newLo = f < lo ? f : lo;
+				int newHi = f > hi ? f : hi;
+				if (newHi - newLo > MAX_SPAN) break;
+				lo = newLo;
+				hi = newHi;
+				end++;
+			}
+			if (hi < 0 || lo >= nFrames)
+			{
+				for (int c = 0; c < chans; c++)
+					Arrays.fill(result[c], offset + start, offset + end, 0.f);
+			}
+			else
+			{
+				readSpan(lo, hi);
+				int base = lo - 1;
+				for (int c = 0; c < chans; c++)
+				{
+					float[] src = blockData[c];
+					float[] out = result[c];
+					switch (interpolation)
+					{
+					case NONE:
+						for (int i = start; i < end; i++)
+							out[offset + i] = src[index[i] - base];
+						break;
+					case LINEAR:
+						for (int i = start; i < end; i++)
+						{
+							int j = index[i] - base;
+							out[offset + i] = src[j] + fraction[i] * (src[j + 1] - src[j]);
+						}
+						break;
+					case CUBIC:
+						for (int i = start; i < end; i++)
+						{
+							int j = index[i] - base;
+							float mu = fraction[i];
+							float mu2 = mu * mu;
+							float ym1 = src[j - 1], y0 = src[j], y1 = src[j + 1], y2 = src[j + 2];
+							float a0 = y2 - y1 - ym1 + y0;
+							float a1 = ym1 - y0 - a0;
+							float a2 = y1 - ym1;
+							out[offset + i] = a0 * mu * mu2 + a1 * mu2 + a2 * mu + y0;
+						}
+						break;
+					}
+				}
+				if (lo < 0 || hi >= nFrames)
+				{
+					// zero the frames that are off the ends of the sample
+					for (int i = start; i < end; i++)
+					{
+						if (index[i] < 0 || index[i] >= nFrames)
+						{
+							for (int c = 0; c < chans; c++)
+								result[c][offset + i] = 0.f;
+						}
+					}
+				}
+			}
+			start = end;
+		}
+	}
+	
+	/// like getFramesInterpolated, but reading spans with enough frames either side for the sinc filter
+	private void getFramesSinc(double[] positions, Resampler resampler, float[][] result, int offset, int count, int chans)
+	{
+		int[] index = blockIndex;
+		float[] fraction = blockFrac;
+		if (blockSteps==null || blockSteps.length < count)
+			blockSteps = new float[count];
+		float[] steps = blockSteps;
+		double framesPerMs = audioFormat.sampleRate / 1000.0;
+		for (int i = 0; i < count; i++)
+		{
+			// the first frame takes the step to the second
+			int k = i > 0 ? i : 1;
+			steps[i] = k < count ? (float)Math.abs((positions[k] - positions[k - 1]) * framesPerMs) : 1;
+		}
+		int start = 0;
+		while (start < count)
+		{
+			int lo = index[start], hi = lo;
+			float maxStep = steps[start];
+			int end = start + 1;
+			while (end < count)
+			{
+				int f = index[end];
+				int newLo = f < lo ? f : lo;
+				int newHi = f > hi ? f : hi;
+				if (newHi - newLo > MAX_SPAN) break;
+				lo = newLo;
+				hi = newHi;
+				if (steps[end] > maxStep) maxStep = steps[end];
+				end++;
+			}
+			if (hi < 0 || lo >= nFrames)
+			{
+				for (int c = 0; c < chans; c++)
+					Arrays.fill(result[c], offset + start, offset + end, 0.f);
+			}
+			else
+			{
+				int margin = resampler.getMargin(maxStep);
+				int base = lo - margin;
+				readPadded(base, hi - lo + 1 + 2 * margin);
+				for (int c = 0; c < chans; c++)
+				{
+					float[] src = sincData[c];
+					float[] out = result[c];
+					for (int i = start; i < end; i++)
+					{
+						if (index[i] < 0 || index[i] >= nFrames)
+							out[offset + i] = 0.f;
+						else
+							out[offset + i] = resampler.interpolate(src, index[i] - base, fraction[i], steps[i]);
+					}
 				}
-				getFrame(realCurrentSample++, current);
-				y0 = current[i];
-				if (realCurrentSample >= nFrames) {
-					getFrame((int)nFrames - 1, current);
-					y1 = current[i]; //??
-				} else {
-					getFrame(realCurrentSample++, current);
-					y1 = current[i];
+			}
+			start = end;
+		}
+	}
+	
+	/**
+	 * Reads count frames from frame onwards into sincData, with zeros for the frames off the ends of the sample.
+	 */
+	private void readPadded(int frame, int count)
+	{
+		if (sincData==null || sincData[0].length < count)
+			sincData = new float[nChannels][Math.max(count, MAX_SPAN + 1)];
+		int first = Math.max(frame, 0);
+		int last = (int)Math.min(frame + count - 1, nFrames - 1);
+		if (last >= first)
+			copyFrames(first, sincData, first - frame, last - first + 1);
+		else
+			last = first - 1;
+		for (int c = 0; c < nChannels; c++)
+		{
+			Arrays.fill(sincData[c], 0, first - frame, 0.f);
+			Arrays.fill(sincData[c], last - frame + 1, count, 0.f);
+		}
+	}
+	
+	/// interpolates the frame at src[j] + fraction
+	private static float interpolate(float[] src, int j, float fraction, Interpolation interpolation)
+	{
+		switch (interpolation)
+		{
+		case LINEAR:
+			return src[j] + fraction * (src[j + 1] - src[j]);
+		case CUBIC:
+			float mu2 = fraction * fraction;
+			float a0 = src[j + 2] - src[j + 1] - src[j - 1] + src[j];
+			float a1 = src[j - 1] - src[j] - a0;
+			float a2 = src[j + 1] - src[j - 1];
+			return a0 * fraction * mu2 + a1 * mu2 + a2 * fraction + src[j];
+		default:
+			return src[j];
+		}
+	}
+	
+	/**
+	 * Reads the frames from lo - 1 to hi + 2 into blockData, with blockData[c][0] holding frame lo - 1. 
+	 * Frames off the ends of the sample repeat the first or last frame. hi - lo must be at most MAX_SPAN, and
+	 * the span must overlap the sample.
+	 */
+	private void readSpan(int lo, int hi)
+	{
+		int base = lo - 1;
+		int last = (int)Math.min(hi + 2, nFrames - 1);
+		int first = Math.max(base, 0);
+		copyFrames(first, blockData, first - base, last - first + 1);
+		for (int c = 0; c < nChannels; c++)
+		{
+			float[] data = blockData[c];
+			for (int i = 0; i < first - base; i++)
+				data[i] = data[first - base];
+			for (int i = last - base + 1; i <= hi + 2 - base; i++)
+				data[i] = data[last - base];
+		}
+	}
+	
+	/**
+	 * Copies frames, which must be within the sample, into dest[c][offset] onwards. Streamed regions that
+	 * aren't loaded (or are locked) give zeros.
+	 */
+	private void copyFrames(int frame, float[][] dest, int offset, int count)
+	{
+		if (mappedFile!=null)
+		{
+			mappedFile.getFrames(frame, dest, offset, count);
+		}
+		else if (isTotal())
+		{
+			if (s_sampleData!=null)
+			{
+				for (int c = 0; c < nChannels; c++)
+					shortsToFloats(s_sampleData[c], frame, dest[c], offset, count);
+			}
+			else if (bufferingRegime.storeInNativeBitDepth)
+				bytesToFrames(sampleData, frame * 2 * nChannels, dest, offset, count);
+			else
+			{
+				for (int c = 0; c < nChannels; c++)
+					System.arraycopy(f_sampleData[c], frame, dest[c], offset, count);
+			}
+		}
+		else // bufferingRegime==BufferingRegime.TIMED
+		{
+			while (count > 0)
+			{
+				int r = frame / r_regionSize;
+				int index = frame % r_regionSize;
+				int n = Math.min(count, r_regionSize - index);
+				boolean copied = false;
+				if (regionLocks[r].tryLock())
+				{
+					try {
+						if (bufferingRegime.storeInNativeBitDepth)
+						{
+							byte[] regionData = getRegion(r);
+							if (regionData!=null)
+							{
+								bytesToFrames(regionData, index * 2 * nChannels, dest, offset, n);
+								copied = true;
+							}
+						}
+						else
+						{
+							float[][] regionData = getRegionF(r);
+							if (regionData!=null)
+							{
+								for (int c = 0; c < nChannels; c++)
+									System.arraycopy(regionData[c], index, dest[c], offset, n);
+								copied = true;
+							}
+						}
+					}
+					finally {
+						regionLocks[r].unlock();
+					}
 				}
-				if (realCurrentSample >= nFrames) {
-					getFrame((int)nFrames - 1, current);
-					y2 = current[i]; //??
-				} else {
-					getFrame(realCurrentSample++, current);
-					y2 = current[i];
+				if (!copied)
+				{
+					for (int c = 0; c < nChannels; c++)
+						Arrays.fill(dest[c], offset, offset + n, 0.f);
 				}
-				mu2 = fractionOffset * fractionOffset;
-				a0 = y2 - y1 - ym1 + y0;
-				a1 = ym1 - y0 - a0;
-				a2 = y1 - ym1;
-				a3 = y0;
-				result[i] = a0 * fractionOffset * mu2 + a1 * mu2 + a2 * fractionOffset + a3;
-			} else {
-				result[i] = 0.0f;
+				frame += n;
+				offset += n;
+				count -= n;
+			}
+		}
+	}
+	
+	/// converts 16 bit data to floats, in the same way as AudioUtils.byteToFloat
+	private static void shortsToFloats(short[] in, int inStart, float[] out, int outStart, int count)
+	{
+		for (int i = 0; i < count; i++)
+			out[outStart + i] = in[inStart + i] * SHORT_TO_FLOAT;
+	}
+	
+	/// converts floats to 16 bit data, in the same way as AudioUtils.floatToByte
+	private static void floatsToShorts(float[] in, int inStart, short[] out, int outStart, int count)
+	{
+		for (int i = 0; i < count; i++)
+			out[outStart + i] = (short)(32767. * Math.min(Math.max(in[inStart + i], -1.0f), 1.0f));
+	}
+	
+	/// converts interleaved 16 bit data to frames, in the same way as AudioUtils.byteToFloat
+	private void bytesToFrames(byte[] data, int start, float[][] dest, int offset, int count)
+	{
+		int stride = 2 * nChannels;
+		for (int c = 0; c < nChannels; c++)
+		{
+			float[] out = dest[c];
+			int ib = start + 2 * c;
+			if (isBigEndian)
+			{
+				for (int i = offset; i < offset + count; i++, ib += stride)
+					out[i] = ((data[ib] << 8) | (data[ib + 1] & 0xFF)) / 32768.0F;
+			}
+			else
+			{
+				for (int i = offset; i < offset + count; i++, ib += stride)
+					out[i] = ((data[ib] & 0xFF) | (data[ib + 1] << 8)) / 32768.0F;
 			}
 		}
 	}
@@ -684,11 +1192,20 @@ public class Sample implements Runnable {
 	{
 		if (frame >= nFrames) return;
 
-		if (isTotal())
+		if (mappedFile!=null)
+		{
+			mappedFile.getFrames(frame, frameData, 0, Math.min(frameData[0].length,(int)(nFrames-frame)));
+		}
+		else if (isTotal())
 		{
 			int numFloats = Math.min(frameData[0].length,(int)(nFrames-frame));			
 
-			if (bufferingRegime.storeInNativeBitDepth)
+			if (s_sampleData!=null)
+			{
+				for(int i=0;i<nChannels;i++)
+					shortsToFloats(s_sampleData[i],frame,frameData[i],0,numFloats);
+			}
+			else if (bufferingRegime.storeInNativeBitDepth)
 			{
 				int startIndex = frame * 2 * nChannels;			
 				float[] floatdata = new float[numFloats*nChannels];
@@ -814,7 +1331,12 @@ public class Sample implements Runnable {
 	 */
 	public void clear()
 	{
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (s_sampleData!=null)
+		{
+			for(int i=0;i<nChannels;i++)
+				Arrays.fill(s_sampleData[i], (short)0);
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			Arrays.fill(sampleData,(byte)0);
 		}
@@ -837,7 +1359,12 @@ public class Sample implements Runnable {
 	 */
 	public void putFrame(int frame, float[] frameData)
 	{
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (s_sampleData!=null)
+		{
+			for(int i=0;i<nChannels;i++)
+				floatsToShorts(frameData, i, s_sampleData[i], frame, 1);
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			int startIndex = frame * 2 * nChannels;
 			AudioUtils.floatToByte(sampleData, startIndex, frameData, 0, frameData.length, isBigEndian);
@@ -865,7 +1392,12 @@ public class Sample implements Runnable {
 
 		if(frame < 0) return;
 		
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (s_sampleData!=null)
+		{
+			for(int i=0;i<nChannels;i++)
+				floatsToShorts(frameData[i], 0, s_sampleData[i], frame, numFrames);
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			int startIndex = frame * 2 * nChannels;			
 			int numFloats = numFrames*nChannels;			
@@ -902,7 +1434,12 @@ public class Sample implements Runnable {
 		// clip numFrames
 		numFrames = Math.min(numFrames,(int)(nFrames-frame)); 
 			
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (s_sampleData!=null)
+		{
+			for(int i=0;i<nChannels;i++)
+				floatsToShorts(frameData[i], offset, s_sampleData[i], frame, numFrames);
+		}
+		else if (bufferingRegime.storeInNativeBitDepth)
 		{
 			int startIndex = frame * 2 * nChannels;			
 			int numFloats = numFrames*nChannels;			
@@ -933,89 +1470,256 @@ public class Sample implements Runnable {
 	}
 	
 	/**
-	 * This records the sample to a file with the specified AudioFileFormat.Type.
+	 * This records the sample to a file with the specified AudioFileFormat.Type, as 16 bit data.
 	 * It is BLOCKING.
 	 * 
 	 * @param fn The filename.
 	 * @param type The type (AIFF, WAVE, etc.)
 	 * 
 	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @see #write(String, AudioFileWriter.Type, AudioFileWriter.SampleFormat)
 	 */
 	public void write(String fn, AudioFileFormat.Type type) throws IOException {
-		if (isTotal())
+		if (type == AudioFileFormat.Type.WAVE)
 		{
-			if (bufferingRegime.storeInNativeBitDepth)
-			{			
-				ByteArrayInputStream bais = new ByteArrayInputStream(sampleData);
-				AudioFormat jsaf = new AudioFormat(audioFormat.sampleRate, audioFormat.bitDepth, audioFormat.channels, audioFormat.signed, audioFormat.bigEndian);
-				AudioInputStream aos = new AudioInputStream(bais, jsaf, nFrames);
-				AudioSystem.write(aos, type, new File(fn));
-			}
-			else
-			{
-				// convert the sample data into bytes then write it out as above
-				// slow, but working...
-				
-				// convert de-interleaved data to interleaved bytes...
-				float interleaved[] = new float[(int) (nFrames*nChannels)];
-				AudioUtils.interleave(f_sampleData, nChannels, (int) nFrames, 0, interleaved);
-				
-				byte bytes[] = new byte[(int) (getNumChannels()*getNumFrames()*2)];
-				AudioUtils.floatToByte(bytes, interleaved, isBigEndian);
-				AudioFormat jsaf = new AudioFormat(audioFormat.sampleRate, audioFormat.bitDepth, audioFormat.channels, audioFormat.signed, audioFormat.bigEndian);
-				AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes),jsaf,nFrames), type, new File(fn));
-			}
+			write(fn, AudioFileWriter.Type.WAV, AudioFileWriter.SampleFormat.PCM_16);
 		}
-		else // bufferingRegime==BufferingRegime.TIMED
+		else if (type == AudioFileFormat.Type.AIFF)
 		{
-			throw(new IOException("TimedRegime sample writing not yet supported."));
-			/*
-			// for each region, load it if necessary and write out the data
-			File file = new File(fn);
-			for(int i=0;i<numberOfRegions;i++)
+			write(fn, AudioFileWriter.Type.AIFF, AudioFileWriter.SampleFormat.PCM_16);
+		}
+		else
+		{
+			// other types are written by javasound, which reads the data a block at a time
+			AudioFormat jsaf = new AudioFormat(audioFormat.sampleRate, 16, nChannels, true, isBigEndian);
+			AudioSystem.write(new AudioInputStream(new WriteStream(),jsaf,nFrames), type, new File(fn));
+		}
+	}
+	
+	/**
+	 * This records the sample to a WAV or AIFF file, as 16 or 24 bit data, or 32 bit float data (WAV only).
+	 * It is BLOCKING.
+	 * 
+	 * The sample is written a block at a time through a small buffer, so writing uses the same 
+	 * amount of memory however long the sample is. This works for every regime: the data of a 
+	 * streamed (TimedRegime) sample is read from its audio file as it is written, without 
+	 * disturbing the regions that are loaded. 16 bit data is copied exactly when the sample 
+	 * stores 16 bit data. A writeable sample should not be changed while it is being written.
+	 * 
+	 * @param fn The filename.
+	 * @param type The file type.
+	 * @param format The sample format.
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(String fn, AudioFileWriter.Type type, AudioFileWriter.SampleFormat format) throws IOException {
+		AudioFileWriter writer = new AudioFileWriter(new File(fn), type, format, nChannels, audioFormat.sampleRate);
+		try {
+			boolean copyBytes = format == AudioFileWriter.SampleFormat.PCM_16 && isStored16Bit();
+			byte[] bytes = null;
+			float[][] floats = null;
+			if (copyBytes || !(isTotal() || mappedFile!=null))
+				bytes = new byte[WRITE_BLOCK * 2 * nChannels];
+			if (!copyBytes)
+				floats = new float[nChannels][WRITE_BLOCK];
+			for (long frame = 0; frame < nFrames; frame += WRITE_BLOCK)
 			{
-				try {
-					while (!regionLocks[i].tryLock(10, TimeUnit.MILLISECONDS)){}
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				int count = (int) Math.min(WRITE_BLOCK, nFrames - frame);
+				if (copyBytes)
+				{
+					readBytes((int) frame, count, bytes, type == AudioFileWriter.Type.AIFF);
+					writer.writeBytes(bytes, 0, count * 2 * nChannels);
 				}
+				else
+				{
+					readFloats((int) frame, count, floats, bytes);
+					writer.write(floats, 0, count);
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
 	
-				try {
-					byte[] regionData = getRegion(i);
-					if (regionData!=null)
+	/**
+	 * Records the sample to a WAV or AIFF file in the background, as {@link #write(String, AudioFileWriter.Type, AudioFileWriter.SampleFormat)}.
+	 * Samples are written one at a time, in the order they are asked for, by a thread that keeps the program running until 
+	 * they have all been written.
+	 * 
+	 * @param fn The filename.
+	 * @param type The file type.
+	 * @param format The sample format.
+	 * 
+	 * @return a Future that gives the file once it has been written, or throws the IOException if it couldn't be.
+	 */
+	public Future<File> writeAsync(final String fn, final AudioFileWriter.Type type, final AudioFileWriter.SampleFormat format) {
+		return getWriter().submit(new Callable<File>() {
+			public File call() throws IOException {
+				write(fn, type, format);
+				return new File(fn);
+			}
+		});
+	}
+	
+	/// the thread that writes samples in the background, which stops when it has nothing to do
+	private static synchronized ExecutorService getWriter() {
+		if (writer == null)
+		{
+			writer = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "beads sample writer");
+				}
+			});
+		}
+		return writer;
+	}
+	
+	/// is the data kept (or read, for a streamed sample) as 16 bit integers?
+	private boolean isStored16Bit()
+	{
+		if (mappedFile!=null)
+			return false;
+		else if (isTotal())
+			return s_sampleData!=null || bufferingRegime.storeInNativeBitDepth;
+		else
+			return true;
+	}
+	
+	/// reads frames as interleaved 16 bit data with the given byte order. Only for samples that are isStored16Bit(). 
+	private void readBytes(int frame, int count, byte[] dest, boolean bigEndian)
+	{
+		int length = count * 2 * nChannels;
+		if (s_sampleData!=null)
+		{
+			int ib = 0;
+			for (int f = frame; f < frame + count; f++)
+			{
+				for (int i = 0; i < nChannels; i++)
+				{
+					short y = s_sampleData[i][f];
+					dest[ib++] = (byte) (bigEndian ? (y >> 8) : y);
+					dest[ib++] = (byte) (bigEndian ? y : (y >> 8));
+				}
+			}
+			return;
+		}
+		else if (isTotal())
+		{
+			System.arraycopy(sampleData, frame * 2 * nChannels, dest, 0, length);
+		}
+		else // bufferingRegime==BufferingRegime.TIMED
+		{
+			readFromFile(frame, dest, length);
+		}
+		if (bigEndian != isBigEndian)
+		{
+			for (int i = 0; i < length; i += 2)
+			{
+				byte b = dest[i];
+				dest[i] = dest[i + 1];
+				dest[i + 1] = b;
+			}
+		}
+	}
+	
+	/// reads frames as floats. Streamed samples are read through the byte buffer. 
+	private void readFloats(int frame, int count, float[][] dest, byte[] bytes)
+	{
+		if (isTotal() || mappedFile!=null)
+		{
+			copyFrames(frame, dest, 0, count);
+		}
+		else // bufferingRegime==BufferingRegime.TIMED
+		{
+			readFromFile(frame, bytes, count * 2 * nChannels);
+			bytesToFrames(bytes, 0, dest, 0, count);
+		}
+	}
+	
+	/// reads the bytes of a streamed sample straight from its file. Synchronized with the loading of regions, which uses the same file.
+	private synchronized void readFromFile(int frame, byte[] dest, int length)
+	{
+		int bytesRead = -1;
+		try {
+			audioFile.seek(frame);
+			bytesRead = audioFile.read(dest);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (bytesRead < length)
+			Arrays.fill(dest, Math.max(bytesRead, 0), length, (byte) 0);
+	}
+	
+	/**
+	 * The data of the sample as 16 bit data, a block at a time, for writing through javasound.
+	 */
+	private class WriteStream extends InputStream
+	{
+		private final byte[] block = new byte[WRITE_BLOCK * 2 * nChannels];
+		private int blockPos, blockLength;
+		private long frame;
+		private float[][] floats;
+		private float[] interleaved;
+		
+		public int read(byte[] b, int off, int len)
+		{
+			if (blockPos == blockLength)
+			{
+				if (frame >= nFrames) return -1;
+				int count = (int) Math.min(WRITE_BLOCK, nFrames - frame);
+				if (isStored16Bit())
+				{
+					readBytes((int) frame, count, block, isBigEndian);
+				}
+				else
+				{
+					if (floats == null)
 					{
-						ByteArrayInputStream bais = new ByteArrayInputStream(regionData);
-						AudioInputStream aos = new AudioInputStream(bais, audioFormat, regionSize);
-			            AudioSystem.write(aos, AudioFileFormat.Type.AIFF, file);
+						floats = new float[nChannels][WRITE_BLOCK];
+						interleaved = new float[WRITE_BLOCK * nChannels];
 					}
+					readFloats((int) frame, count, floats, block);
+					AudioUtils.interleave(floats, nChannels, count, 0, interleaved);
+					AudioUtils.floatToByte(block, 0, interleaved, 0, count * nChannels, isBigEndian);
 				}
-				finally {
-					regionLocks[i].unlock();
-				}
+				frame += count;
+				blockPos = 0;
+				blockLength = count * 2 * nChannels;
 			}
-			 */
+			int n = Math.min(len, blockLength - blockPos);
+			System.arraycopy(block, blockPos, b, off, n);
+			blockPos += n;
+			return n;
+		}
+		
+		public int read()
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
 		}
 	}
 	
 	/**
 	 * Simple utility if you just want to write some floats to a sample file.
+	 * The data is written a block at a time, so no copy of it is made.
 	 * @param sampleData the floating point sample data, [channels][frames].
 	 * @param fileName where to write
 	 * @param saf the format
 	 */
 	public static void write(float[][] sampleData, String fileName, SampleAudioFormat saf) {
-		// convert de-interleaved data to interleaved bytes...
-		int nChannels = sampleData.length;
+		AudioFileWriter.SampleFormat format = saf.bitDepth == 32 ? AudioFileWriter.SampleFormat.FLOAT_32 
+				: (saf.bitDepth == 24 ? AudioFileWriter.SampleFormat.PCM_24 : AudioFileWriter.SampleFormat.PCM_16);
 		int nFrames = sampleData[0].length;
-		float interleaved[] = new float[(int) (nFrames*nChannels)];
-		AudioUtils.interleave(sampleData, nChannels, (int) nFrames, 0, interleaved);
-		
-		byte bytes[] = new byte[(int) (nChannels*nFrames*saf.bitDepth/8)];	//!! this is fixed at 2
-		AudioUtils.floatToByte(bytes, interleaved, saf.bigEndian);
-		AudioFormat jsaf = new AudioFormat(saf.sampleRate, saf.bitDepth, saf.channels, saf.signed, saf.bigEndian);
 		try {
-			AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes),jsaf,nFrames), AudioFileFormat.Type.WAVE, new File(fileName));
+			AudioFileWriter writer = new AudioFileWriter(new File(fileName), AudioFileWriter.Type.WAV, format, sampleData.length, saf.sampleRate);
+			try {
+				for (int frame = 0; frame < nFrames; frame += WRITE_BLOCK)
+					writer.write(sampleData, frame, Math.min(WRITE_BLOCK, nFrames - frame));
+			}
+			finally {
+				writer.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -1043,7 +1747,14 @@ public class Sample implements Runnable {
 		{
 			int framesToCopy = (int) Math.min(frames,nFrames);
 			
-			if (bufferingRegime.storeInNativeBitDepth)
+			if (s_sampleData!=null)
+			{
+				short[][] olddata = s_sampleData;
+				s_sampleData = new short[nChannels][(int)frames];
+				for(int i=0;i<nChannels;i++)
+					System.arraycopy(olddata[i],0,s_sampleData[i],0,framesToCopy);					
+			}
+			else if (bufferingRegime.storeInNativeBitDepth)
 			{
 				byte[] olddata = sampleData;
 				sampleData = new byte[(int)frames];
@@ -1078,7 +1789,15 @@ public class Sample implements Runnable {
 		{
 			int framesToCopy = (int) Math.min(frames,nFrames);
 
-			if (bufferingRegime.storeInNativeBitDepth)
+			if (s_sampleData!=null)
+			{
+				// new arrays are already zero
+				short[][] olddata = s_sampleData;
+				s_sampleData = new short[nChannels][(int)frames];
+				for(int i=0;i<nChannels;i++)
+					System.arraycopy(olddata[i],0,s_sampleData[i],0,framesToCopy);
+			}
+			else if (bufferingRegime.storeInNativeBitDepth)
 			{
 				byte[] olddata = sampleData;
 				sampleData = new byte[(int)frames];
@@ -1101,6 +1820,63 @@ public class Sample implements Runnable {
 		}		
 	}
 	
+	/**
+	 * Makes a copy of the sample at a different sample rate, using a windowed sinc filter (see {@link Resampler}).
+	 * For a sample that is played at a sample rate other than its own, this can be done once, when it is loaded (see 
+	 * {@link SampleManager#setSampleRateConversion(float, Resampler.Quality)}), rather than on every playback. 
+	 * 
+	 * The copy is held in memory, compact if this sample has a compact TotalRegime, and has the file name of this 
+	 * sample. Streamed samples are read straight from their file, a block at a time.
+	 * 
+	 * @param sampleRate The new sample rate.
+	 * @param quality The quality of the filter, or null for {@link Resampler#DEFAULT_QUALITY}.
+	 * @return The new sample.
+	 */
+	public Sample resample(float sampleRate, Resampler.Quality quality)
+	{
+		Resampler resampler = Resampler.getResampler(quality);
+		double step = audioFormat.sampleRate / sampleRate; // frames of this sample per frame of the new one
+		long newFrames = (long)Math.ceil(nFrames * (double)sampleRate / audioFormat.sampleRate);
+		SampleAudioFormat format = new SampleAudioFormat(sampleRate, audioFormat.bitDepth, nChannels, 
+				audioFormat.signed, audioFormat.bigEndian);
+		Sample result = new Sample(format, (newFrames + 0.5) * 1000.0 / sampleRate, 
+				isCompact() ? Regime.newTotalRegimeCompact() : Regime.newTotalRegime());
+		result.audioFile = audioFile; // only used for its name, since the copy is held in memory
+		int margin = resampler.getMargin((float)step);
+		int inSize = (int)Math.ceil(WRITE_BLOCK * step) + 2 * margin + 4;
+		float[][] in = new float[nChannels][inSize];
+		float[][] read = new float[nChannels][inSize];
+		float[][] out = new float[nChannels][WRITE_BLOCK];
+		byte[] bytes = isTotal() || mappedFile!=null ? null : new byte[inSize * 2 * nChannels];
+		for (long start = 0; start < newFrames; start += WRITE_BLOCK)
+		{
+			int count = (int)Math.min(WRITE_BLOCK, newFrames - start);
+			// read the frames that this block is made from, with zeros off the ends of the sample
+			int base = (int)Math.floor(start * step) - margin;
+			int length = Math.min(inSize, (int)Math.floor((start + count - 1) * step) + margin + 2 - base);
+			int first = Math.max(base, 0);
+			int last = (int)Math.min(base + length, nFrames);
+			for (int c = 0; c < nChannels; c++)
+				Arrays.fill(in[c], 0, length, 0.f);
+			if (last > first)
+			{
+				readFloats(first, last - first, read, bytes);
+				for (int c = 0; c < nChannels; c++)
+					System.arraycopy(read[c], 0, in[c], first - base, last - first);
+			}
+			for (int i = 0; i < count; i++)
+			{
+				double position = (start + i) * step;
+				int j = (int)Math.floor(position);
+				float fraction = (float)(position - j);
+				for (int c = 0; c < nChannels; c++)
+					out[c][i] = resampler.interpolate(in[c], j - base, fraction, (float)step);
+			}
+			result.putFrames((int)start, out, 0, count);
+		}
+		return result;
+	}
+	
 	/**
 	 * Prints audio format info to System.out.
 	 */
@@ -1196,7 +1972,11 @@ public class Sample implements Runnable {
 	 * @return The number of bytes this sample uses to store each sample. May be different than audioFile.audioFormat.
 	 */
 	public int getBytesPerSample() {
-		if (bufferingRegime.storeInNativeBitDepth)
+		if (mappedFile!=null)
+		{
+			return mappedFile.getNativeFormat().bitDepth/8;
+		}
+		else if (s_sampleData!=null || bufferingRegime.storeInNativeBitDepth)
 		{
 			return 2;
 		}
@@ -1227,6 +2007,50 @@ public class Sample implements Runnable {
 	public int getNumberOfRegionsLoaded() {
 		return numberOfRegionsLoaded;
 	}
+	
+	/**
+	 * Gets the memory used by the audio data of the sample. For a streamed sample, this is the memory used by the 
+	 * regions that are loaded, so it changes as regions are loaded and unloaded. The data of a sample with a 
+	 * MappedRegime is outside the Java heap, so isn't counted.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getMemoryUsed() {
+		if (mappedFile!=null)
+			return 0;
+		else if (isTotal())
+			return (long)nChannels * nFrames * getBytesPerSample();
+		else
+			return (long)numberOfRegionsLoaded * (bufferingRegime.storeInNativeBitDepth ? regionSizeInBytes : 4L * r_regionSize * nChannels);
+	}
+	
+	/**
+	 * Frees the memory held by a streamed sample: the regions that are loaded are unloaded and removed from the 
+	 * {@link RegionCache}, and the audio file is closed. No more audio can be read from the sample after this. This is called by 
+	 * {@link SampleManager} when it unloads a sample that is no longer used (see {@link SampleManager#release(Sample)}).
+	 * Samples with other regimes are freed once they are no longer referenced, so this does nothing for them.
+	 */
+	public synchronized void unload() {
+		if (isTotal() || mappedFile!=null || unloaded) return;
+		unloaded = true;
+		for (int r=0;r<numberOfRegions;r++)
+		{
+			regionLocks[r].lock();
+			try {
+				if (isRegionAvailable(r))
+					releaseRegion(r);
+				regionQueued[r] = false;
+			}
+			finally {
+				regionLocks[r].unlock();
+			}
+		}
+		try {
+			audioFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
 	// Region loading, handling, queuing, removing, etc...	
 	
@@ -1235,6 +2059,12 @@ public class Sample implements Runnable {
 	{
 		return (bufferingRegime instanceof TotalRegime);
 	}
+	
+	/// are we using the total regime with 16 bit planar storage?
+	private boolean isCompact()
+	{
+		return isTotal() && ((TotalRegime)bufferingRegime).storeIn16BitPlanar;
+	}
 
 	/**
 	 * The buffering regime affects how the sample accesses the audio data.
@@ -1256,6 +2086,15 @@ public class Sample implements Runnable {
 	 */
 	private void setFile(String file) throws IOException, UnsupportedAudioFileException
 	{
+		if (bufferingRegime instanceof MappedRegime && new File(file).isFile())
+		{
+			try {
+				setFile(new MappedAudioFile(file));
+				return;
+			} catch (UnsupportedAudioFileException e) {
+				// not uncompressed, so leave it to the AudioFileIOImplementation
+			}
+		}
 		audioFile = SampleManager.getAudioFileIOImplementation().getAudioFile(file);
 		setFile(audioFile);
 	}
@@ -1289,8 +2128,8 @@ public class Sample implements Runnable {
 		audioFormat = audioFile.getFormat();
 		nFrames = audioFile.getNumFrames();
 		nChannels = audioFile.getNumChannels();
-		current = new float[nChannels];
-		next = new float[nChannels];
+		blockData = new float[nChannels][MAX_SPAN + 4];
+		sincData = null;
 		length = audioFile.getLength();
 		isBigEndian = audioFile.getFormat().bigEndian;
 	
@@ -1300,17 +2139,32 @@ public class Sample implements Runnable {
 	/// set everything up, ready to use
 	private void init() throws IOException
 	{
-		if (isTotal())
+		if (bufferingRegime instanceof MappedRegime)
+		{
+			if (audioFile instanceof MappedAudioFile)
+			{
+				// nothing to load, the file was mapped when it was opened
+				mappedFile = (MappedAudioFile) audioFile;
+			}
+			else
+			{
+				System.out.println(
+						"Sample can only map uncompressed WAV and AIFF files. \n" +
+						"Continuing by loading the entire sample."
+				);
+				
+				setBufferingRegime(Regime.newTotalRegime());
+				loadEntireSample();	
+				SampleManager.gcHint();
+			}
+		}
+		else if (isTotal())
 		{
 			// load all the sample data into a byte buffer
 			loadEntireSample();			
 			// lot of crap left over, so call the gc
-			// TODO: should probably call gc() only once after ALL samples are loaded
-			// Can do this in sample manager, for instance
-			// Ollie: or two alternatives: advise user to do this, or AudioContext calls gc() before starting
-			//which assumes that most samples are loaded before system is turned on.
-			//On the other hand, this is probably fine since it is only a hint to the system.
-			System.gc();
+			// SampleManager only calls it once when loading lots of samples in the background
+			SampleManager.gcHint();
 		}
 		else // bufferingRegime instanceof TimedRegime
 		{
@@ -1324,7 +2178,7 @@ public class Sample implements Runnable {
 				
 				setBufferingRegime(Regime.newTotalRegime());
 				loadEntireSample();	
-				System.gc();
+				SampleManager.gcHint();
 			}		
 			else
 			{	
@@ -1386,30 +2240,23 @@ public class Sample implements Runnable {
 				Arrays.fill(regionAge,0);
 		
 				// initialise region thread stuff
-				regionQueue = new ConcurrentLinkedQueue<Integer>();
 				regionQueued = new boolean[numberOfRegions];
-				regionLocks = new Lock[numberOfRegions];
+				regionDeadline = new long[numberOfRegions];
+				regionLate = new boolean[numberOfRegions];
+				regionLocks = new ReentrantLock[numberOfRegions];
 				for (int j=0;j<regionLocks.length;j++)
 				{
 					regionLocks[j] = new ReentrantLock();
 					regionQueued[j] = false;
 				}
 				
-				timeAtLastAgeUpdate = 0;
-				isScheduled = false;
+				regionEntries = new RegionCache.Entry[numberOfRegions];
+				regionPins = new AtomicIntegerArray(numberOfRegions);
+				regionCache = SampleManager.getRegionCache();
 				
-				if (regionMaster==null)
-					regionMaster = Executors.newFixedThreadPool(1, new ThreadFactory()
-						{
-							public Thread newThread(Runnable r)
-							{
-								Thread t = new Thread(r); 
-								t.setDaemon(true); 
-								t.setPriority(Thread.MIN_PRIORITY); 
-								return t;
-							}
-						}
-					);
+				regionLoader = SampleManager.getRegionLoader();
+				
+				timeAtLastAgeUpdate = 0;
 			}
 		}
 	}
@@ -1419,12 +2266,13 @@ public class Sample implements Runnable {
 	{	
 		if (!isRegionAvailable(r))
 		{
-			queueRegionForLoading(r);
+			regionMissed(r);
 			queueRegions(r);
 			return null;
 		}
 		else
 		{
+			regionCache.hit();
 			queueRegions(r);
 			touchRegion(r);
 			return regions[r];
@@ -1436,29 +2284,47 @@ public class Sample implements Runnable {
 	{	
 		if (!isRegionAvailable(r))
 		{
-			queueRegionForLoading(r);
+			regionMissed(r);
 			queueRegions(r);
 			// System.out.println("null");
 			return null;
 		}
 		else
 		{
+			regionCache.hit();
 			queueRegions(r);
 			touchRegion(r);			
 			return f_regions[r];
 		}
 	}
 
+	/// a region is needed right now but isn't loaded
+	private void regionMissed(int r)
+	{
+		regionCache.miss();
+		if (!regionLate[r])
+		{
+			// count each late region once, and read further ahead from now on
+			regionLate[r] = true;
+			regionLoader.late();
+			if (lateBoost < MAX_LATE_BOOST) lateBoost++;
+		}
+		queueRegionForLoading(r, 0);
+	}
+
+	/// queue the regions around r, which is being read, assuming that it is being read at normal speed
 	private void queueRegions(int r)
 	{
+		long regionNanos = (long)(samplesToMs(r_regionSize) * 1000000);
 		if (((TimedRegime)bufferingRegime).loadingOrder==TimedRegime.Order.ORDERED)
 		{
 			// queue the regions from back to front
-			for(int i=Math.max(0,r-r_lookback);i<=Math.min(r+r_lookahead,numberOfRegions-1);i++)
+			int first = Math.max(0,r-r_lookback);
+			for(int i=first;i<=Math.min(r+r_lookahead,numberOfRegions-1);i++)
 			{
 				if (i!=r)
 				{
-					queueRegionForLoading(i);
+					queueRegionForLoading(i, (i - first) * regionNanos);
 					touchRegion(i);
 				}
 			}
@@ -1477,14 +2343,14 @@ public class Sample implements Runnable {
 			{
 				if (backwards)
 				{
-					queueRegionForLoading(r-bp);
+					queueRegionForLoading(r-bp, bp * regionNanos);
 					touchRegion(r-bp);
 					bp++;
 					if (fp<=fr) backwards = false;
 				}
 				else // if forwards
 				{
-					queueRegionForLoading(r+fp);
+					queueRegionForLoading(r+fp, fp * regionNanos);
 					touchRegion(r+fp);
 					fp++;
 					if (bp<=br) backwards = true;
@@ -1496,9 +2362,92 @@ public class Sample implements Runnable {
 	private void touchRegion(int r)
 	{
 		// touch the region, make it new
-		// synchronized (regionAge)
-		// {	regionAge[r] = 0; }
-		//regionAge[r] = 0;
+		// (no need to synchronize, an age that is out by one update doesn't matter)
+		regionAge[r] = 0;
+		RegionCache.Entry e = regionEntries[r];
+		if (e!=null) e.referenced = true;
+	}
+	
+	/**
+	 * Gets the index of the region containing the given position.
+	 * 
+	 * @param ms The position in ms.
+	 * @return The region index, or -1 if the position is out of range or the sample isn't region-based.
+	 */
+	public int getRegionIndex(double ms)
+	{
+		if (regionPins==null) return -1;
+		int r = (int)(msToSamples(ms) / r_regionSize);
+		return (r >= 0 && r < numberOfRegions) ? r : -1;
+	}
+	
+	/**
+	 * Pins a region, preventing it from being unloaded, either by the {@link RegionCache} or because it is old.
+	 * Pins are counted, so each call must be matched by a call to {@link #unpinRegion(int)}.
+	 * Does nothing if the sample isn't region-based or the region is out of range.
+	 * 
+	 * @param r The region index.
+	 * @see #getRegionIndex(double)
+	 */
+	public void pinRegion(int r)
+	{
+		if (regionPins!=null && r >= 0 && r < numberOfRegions)
+			regionPins.incrementAndGet(r);
+	}
+	
+	/**
+	 * Removes a pin added by {@link #pinRegion(int)}.
+	 * 
+	 * @param r The region index.
+	 */
+	public void unpinRegion(int r)
+	{
+		if (regionPins!=null && r >= 0 && r < numberOfRegions)
+			regionPins.decrementAndGet(r);
+	}
+	
+	/**
+	 * @return True if the region is pinned.
+	 */
+	public boolean isRegionPinned(int r)
+	{
+		return regionPins!=null && r >= 0 && r < numberOfRegions && regionPins.get(r) > 0;
+	}
+	
+	/**
+	 * Queues the regions that a player at the given position will need next, each with a deadline 
+	 * based on when the player will reach it. The number of regions queued covers the 
+	 * {@link TimedRegime#lookAhead} time at the given rate, so faster playback reads further ahead.
+	 * Does nothing if the sample isn't region-based.
+	 * 
+	 * @param ms The playback position in ms.
+	 * @param rate The playback rate, negative for backwards.
+	 */
+	public void prefetch(double ms, double rate)
+	{
+		int r = getRegionIndex(ms);
+		if (r<0) return;
+		queueRegionForLoading(r, 0);
+		touchRegion(r);
+		double speed = Math.abs(rate);
+		if (speed==0) return;
+		
+		// the number of regions the look ahead time covers at this rate
+		double regionMs = samplesToMs(r_regionSize);
+		long lookAhead = ((TimedRegime)bufferingRegime).lookAhead;
+		int depth = Math.min((int)Math.ceil(lookAhead * speed / regionMs) + lateBoost, numberOfRegions);
+		
+		double frame = msToSamples(ms);
+		double nanosPerFrame = 1e9 / (speed * audioFormat.sampleRate);
+		for(int k=1;k<=depth;k++)
+		{
+			int q = rate > 0 ? r + k : r - k;
+			if (q < 0 || q >= numberOfRegions) break;
+			// frames until the player gets to the region
+			double distance = rate > 0 ? (double)q * r_regionSize - frame : frame - (q + 1.0) * r_regionSize;
+			queueRegionForLoading(q, (long)(Math.max(0, distance) * nanosPerFrame));
+			touchRegion(q);
+		}
 	}
 
 	public boolean isRegionAvailable(int r)
@@ -1514,49 +2463,79 @@ public class Sample implements Runnable {
 		return regionQueued[r];
 	}
 
-	/// loads the region IMMEDIATELY, blocks until it is loaded
-	// this is called by the regionloader as it loads,
-	// but also by the main thread when it needs a region RIGHT AWAY
-	// 
-	// TODO: Need a way to kill the regionMaster
-	synchronized private void loadRegion(int r)
-	{	
-		// for now, just seek to the correct position 
-		try {			
-			if (bufferingRegime.storeInNativeBitDepth)
+	/**
+	 * Called by the {@link RegionLoader} to load a queued region. Any queued regions following it 
+	 * are loaded at the same time, with a single read. 
+	 */
+	synchronized void loadQueuedRegions(int r)
+	{
+		if (unloaded || !regionQueued[r] || isRegionAvailable(r))
+		{
+			// already loaded as part of an earlier batch
+			regionQueued[r] = false;
+			return;
+		}
+		int count = 1;
+		while (count < MAX_BATCH && r+count < numberOfRegions && regionQueued[r+count] && !isRegionAvailable(r+count))
+			count++;
+		
+		for(int i=r;i<r+count;i++) 
+			regionLocks[i].lock();
+		try {
+			loadRegions(r, count);
+		}
+		finally {
+			for(int i=r;i<r+count;i++)
 			{
-				regions[r] = new byte[regionSizeInBytes];
-				numberOfRegionsLoaded++;
-				audioFile.seek(r_regionSize*r);
-				int bytesRead = audioFile.read(regions[r]);
-				if (bytesRead<=0)
-					regions[r] = null;
+				regionQueued[i] = false;
+				regionLocks[i].unlock();
 			}
-			else // store in float[][] format
+		}
+		regionLoader.loaded(count);
+		ageAllRegions();
+	}
+	
+	/// loads count regions starting at r, with one seek and one read. The caller holds the region locks.
+	private void loadRegions(int r, int count)
+	{	
+		try {			
+			byte[] data = new byte[regionSizeInBytes*count];
+			audioFile.seek(r_regionSize*r);
+			int bytesRead = audioFile.read(data);
+			for(int k=0;k<count;k++)
 			{
-				// load the bytes and convert them on the spot
-				byte[] region = new byte[regionSizeInBytes];
+				int i = r+k;
+				int offset = k*regionSizeInBytes;
+				boolean gotData = bytesRead > offset;
 				numberOfRegionsLoaded++;
-				audioFile.seek(r_regionSize*r);
-				int bytesRead = audioFile.read(region);
-				if (bytesRead<=0)
+				if (bufferingRegime.storeInNativeBitDepth)
 				{
-					f_regions[r] = new float[nChannels][r_regionSize];
-					for(int i=0;i<nChannels;i++)
-						Arrays.fill(f_regions[r][i],0.f);
+					if (gotData)
+					{
+						regions[i] = new byte[regionSizeInBytes];
+						System.arraycopy(data, offset, regions[i], 0, regionSizeInBytes);
+					}
+					else
+						regions[i] = null;
 				}
-				else
-				{	
-					// now convert
-					f_regions[r] = new float[nChannels][r_regionSize];
-					float[] interleaved = new float[nChannels*r_regionSize];
-					AudioUtils.byteToFloat(interleaved, region, isBigEndian);	
-					AudioUtils.deinterleave(interleaved, nChannels, r_regionSize, f_regions[r]);
+				else // store in float[][] format
+				{
+					// convert the bytes on the spot
+					f_regions[i] = new float[nChannels][r_regionSize];
+					if (gotData)
+					{	
+						float[] interleaved = new float[nChannels*r_regionSize];
+						AudioUtils.byteToFloat(interleaved, data, isBigEndian, offset, interleaved.length);	
+						AudioUtils.deinterleave(interleaved, nChannels, r_regionSize, f_regions[i]);
+					}
+				}
+				regionAge[i] = 0;
+				regionLate[i] = false;
+				if (isRegionAvailable(i) && regionEntries[i]==null)
+				{
+					long bytes = bufferingRegime.storeInNativeBitDepth ? regionSizeInBytes : 4L * r_regionSize * nChannels;
+					regionEntries[i] = regionCache.add(this, i, bytes);
 				}
-			}
-			synchronized(regionAge)
-			{
-				regionAge[r] = 0;
 			}
 		} catch (Exception  e) {
 			e.printStackTrace();
@@ -1564,15 +2543,17 @@ public class Sample implements Runnable {
 	}
 
 	/// load the region r when you can, non-blocking
-	private void queueRegionForLoading(int r)
+	/// delay is the time until the region is needed, in ns
+	/// a region that is already queued is only queued again if it is needed more than REQUEUE_MARGIN sooner
+	private void queueRegionForLoading(int r, long delay)
 	{
-		if (!isRegionAvailable(r) && !isRegionQueued(r))
+		if (unloaded || isRegionAvailable(r)) return;
+		long deadline = System.nanoTime() + delay;
+		if (!isRegionQueued(r) || deadline - regionDeadline[r] < -REQUEUE_MARGIN)
 		{
+			regionDeadline[r] = deadline;
 			regionQueued[r] = true;
-			regionQueue.add(r);			
-			
-			// if not scheduled then schedule
-			rescheduleSelf();
+			regionLoader.request(this, r, deadline);
 		}
 	}
 
@@ -1583,22 +2564,51 @@ public class Sample implements Runnable {
 		else
 			f_regions[r]=null;		
 	}
+	
+	/// unloads an old region, and removes it from the cache. The caller holds the region lock.
+	private void releaseRegion(int r)
+	{
+		unloadRegion(r);
+		numberOfRegionsLoaded--;
+		RegionCache.Entry e = regionEntries[r];
+		if (e!=null)
+		{
+			regionEntries[r] = null;
+			regionCache.remove(e);
+		}
+	}
+	
+	/**
+	 * Called by the {@link RegionCache} to evict a region. Fails if the region is pinned, being read, or part of the
+	 * batch being loaded by this thread (the cache evicts regions as each region of a batch is added to it).
+	 * 
+	 * @return True if the region was unloaded.
+	 */
+	boolean evictRegion(int r)
+	{
+		// the lock is reentrant, so tryLock() would succeed for a region this thread is loading
+		if (regionPins.get(r) > 0 || regionLocks[r].isHeldByCurrentThread() || !regionLocks[r].tryLock())
+			return false;
+		try {
+			unloadRegion(r);
+			numberOfRegionsLoaded--;
+			regionEntries[r] = null;
+		}
+		finally {
+			regionLocks[r].unlock();
+		}
+		return true;
+	}
 
 	/**
-	 * <i>Internal:</i> This method is called internally by the region master. It loads the next queued region. 
+	 * <i>Internal:</i> Loads all queued regions straight away. Regions are normally loaded by the {@link RegionLoader}.
 	 */
-	public synchronized void run() {
-		boolean hasMoreQueuedRegions = loadQueuedRegion();
-		
-		ageAllRegions();
-		
-		if (hasMoreQueuedRegions)
+	public void run() {
+		for (int r=0;r<numberOfRegions;r++)
 		{
-			isScheduled = false;
-			rescheduleSelf();
+			if (regionQueued[r])
+				loadQueuedRegions(r);
 		}
-		else
-			isScheduled = false;
 	}
 	
 	/* old run operation
@@ -1659,36 +2669,6 @@ public class Sample implements Runnable {
 	}
 	*/
 	
-	/*
-	 * Loads the next queued region. Returns true if there are more regions queued.
-	 */
-	private boolean loadQueuedRegion()
-	{
-		// First check if the queue has anything to load.
-		if (!regionQueue.isEmpty())
-		{
-			// Load the next region
-			int r = regionQueue.poll();
-			if (regionLocks[r].tryLock())
-			{		
-				try {
-					if (!isRegionAvailable(r)) 
-						loadRegion(r);
-					
-					synchronized(regionQueued)
-					{
-						regionQueued[r] = false;
-					}
-				}
-				finally {
-					regionLocks[r].unlock();
-				}
-			}
-		}
-		
-		return !regionQueue.isEmpty();		
-	}
-	
 	/*
 	 * ages all the regions
 	 * remove the oldest ones if we exceed the memory limit
@@ -1715,7 +2695,7 @@ public class Sample implements Runnable {
 						regionAge[i] += dt;
 					}
 					
-					if (regionAge[i]>r_memory)
+					if (regionAge[i]>r_memory && !isRegionPinned(i))
 					{
 						System.out.printf("deleting a region %dms old (r_memory=%d)\n",regionAge[i],r_memory);
 						
@@ -1723,8 +2703,7 @@ public class Sample implements Runnable {
 						if (regionLocks[i].tryLock())
 						{
 							try {
-								unloadRegion(i);
-								numberOfRegionsLoaded--;
+								releaseRegion(i);
 							}
 							finally {
 								regionLocks[i].unlock();
@@ -1741,18 +2720,6 @@ public class Sample implements Runnable {
 		}
 	}
 	
-	/// notifies the region master that this sample has more stuff to do 
-	private synchronized void rescheduleSelf()
-	{
-		// make sure that only one instance of self is scheduled at once
-		// otherwise we will get asynchronous access of the same audiofile, which we can't have
-		if (!isScheduled)
-		{
-			isScheduled = true;
-			regionMaster.execute(this);
-		}
-	}	
-
 	// a helper function, loads the entire sample into sampleData
 	private void loadEntireSample() throws IOException
 	{
@@ -1804,7 +2771,28 @@ public class Sample implements Runnable {
 		this.nFrames = sampleBufferSize / (2*nChannels);
 		this.length = 1000f * nFrames / audioFormat.sampleRate;
 	
-		if (!bufferingRegime.storeInNativeBitDepth)
+		if (isCompact())
+		{
+			// deinterleave straight into 16 bit arrays
+			s_sampleData = new short[nChannels][(int) nFrames];
+			for(int i=0;i<nChannels;i++)
+			{
+				short[] channel = s_sampleData[i];
+				int ib = 2 * i;
+				int stride = 2 * nChannels;
+				if (isBigEndian)
+				{
+					for(int f=0;f<nFrames;f++, ib+=stride)
+						channel[f] = (short)((data[ib] << 8) | (data[ib + 1] & 0xFF));
+				}
+				else
+				{
+					for(int f=0;f<nFrames;f++, ib+=stride)
+						channel[f] = (short)((data[ib] & 0xFF) | (data[ib + 1] << 8));
+				}
+			}
+		}
+		else if (!bufferingRegime.storeInNativeBitDepth)
 		{
 			// copy and deinterleave entire data	
 			f_sampleData = new float[nChannels][(int) nFrames];
@@ -12,23 +12,50 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.beadsproject.beads.data.audiofile.AudioFileIOImplementation;
+import net.beadsproject.beads.data.audiofile.CachingAudioFileIOImplementation;
 import net.beadsproject.beads.data.audiofile.JavaSoundAudioFileIOImplementation;
 
 /**
  * SampleManager provides a static repository for {@link Sample} data and provides methods to organise samples into groups.
  * 
+ * <p>Samples and groups can also be loaded in the background, with {@link #sampleAsync(String, String, SampleLoadListener)} 
+ * and {@link #groupAsync(String, String)}. Files are decoded in parallel by a pool of threads (see {@link #setLoaderThreads(int)}),
+ * and each sample is added to its group as soon as it has loaded, so playback can start while the rest of the group is 
+ * still loading. The methods of SampleManager can be called from any thread.</p>
+ * 
+ * <p>Samples are kept until they are removed, unless they are managed by reference counting. Code that uses a sample 
+ * {@link #acquire(String)}s it, and {@link #release(Sample)}s it when it is done with it. A sample that has been released by all 
+ * of its users is idle, and is unloaded: it is removed from the repository and from every group, so that its memory 
+ * can be freed. Recently used samples can be kept while they are idle, up to a limit (see {@link #setIdleBudget(long)}), in case 
+ * they are needed again soon. Samples that are never acquired are never unloaded. The memory used by the samples can be 
+ * found with {@link #getMemoryUsed()}, {@link #getGroupMemoryUsed(String)} and {@link Sample#getMemoryUsed()}.</p>
+ * 
  * @beads.category data
  */
 public class SampleManager {
 	
-	private static AudioFileIOImplementation audioFileIOImplementation = new JavaSoundAudioFileIOImplementation();
+	private static volatile AudioFileIOImplementation audioFileIOImplementation = new JavaSoundAudioFileIOImplementation();
 
 	public static AudioFileIOImplementation getAudioFileIOImplementation() {
 		return audioFileIOImplementation;
@@ -39,6 +66,36 @@ public class SampleManager {
 		SampleManager.audioFileIOImplementation = audioFileIOImplementation;
 	}
 	
+	/**
+	 * Keeps the decoded audio of compressed files (MP3, etc.) in the given directory, so that each file is only decoded 
+	 * once. Later loads map the decoded audio straight from the cache. The least recently used files are deleted to 
+	 * keep the directory under the given size. See {@link CachingAudioFileIOImplementation}.
+	 * 
+	 * @param directory the cache directory, or null to stop using a cache.
+	 * @param maxBytes the maximum size of the directory in bytes.
+	 */
+	public static synchronized void setDecodedCache(String directory, long maxBytes) {
+		AudioFileIOImplementation decoder = audioFileIOImplementation;
+		if(decoder instanceof CachingAudioFileIOImplementation) {
+			decoder = ((CachingAudioFileIOImplementation)decoder).getDecoder();
+		}
+		if(directory == null) {
+			audioFileIOImplementation = decoder;
+		} else {
+			audioFileIOImplementation = new CachingAudioFileIOImplementation(decoder, new File(directory), maxBytes);
+		}
+	}
+	
+	/**
+	 * Gets the cache of decoded audio set up by {@link #setDecodedCache(String, long)}.
+	 * 
+	 * @return the cache, or null if there isn't one.
+	 */
+	public static CachingAudioFileIOImplementation getDecodedCache() {
+		AudioFileIOImplementation impl = audioFileIOImplementation;
+		return impl instanceof CachingAudioFileIOImplementation ? (CachingAudioFileIOImplementation)impl : null;
+	}
+	
 	/** List of all Samples, indexed by name. */
 	private final static Map<String, Sample> samples = new TreeMap<String, Sample>();
 	
@@ -54,6 +111,43 @@ public class SampleManager {
 	
 	/** The regime to use when loading the next sample. */
 	private static Sample.Regime nextBufferingRegime = null;
+	
+	/** The threads that load samples in the background. */
+	private final static ThreadPoolExecutor loader = new ThreadPoolExecutor(defaultLoaderThreads(), defaultLoaderThreads(), 
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "beads sample loader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	/** The number of background loads that haven't finished. The gc is called once they all have. */
+	private final static AtomicInteger pendingLoads = new AtomicInteger();
+	
+	/** The cache shared by all streaming samples, with a default budget of a quarter of the maximum heap size. */
+	private final static RegionCache regionCache = new RegionCache(Runtime.getRuntime().maxMemory() / 4);
+	
+	/** The loader shared by all streaming samples. */
+	private final static RegionLoader regionLoader = new RegionLoader(RegionLoader.DEFAULT_THREADS);
+	
+	/** The number of users of each acquired Sample. */
+	private final static Map<Sample, Integer> users = new HashMap<Sample, Integer>();
+	
+	/** Samples that have been released by all their users, least recently released first, with the memory each used. */
+	private final static LinkedHashMap<Sample, Long> idle = new LinkedHashMap<Sample, Long>();
+	
+	/** The memory used by the idle samples. */
+	private static long idleBytes = 0;
+	
+	/** The memory that idle samples can use before the least recently released are unloaded. */
+	private static long idleBudget = 0;
+	
+	/** The sample rate that samples are converted to as they are loaded, or 0 to leave them as they are. */
+	private static float conversionRate = 0;
+	
+	/** The quality of the sample rate conversion. */
+	private static Resampler.Quality conversionQuality = null;
 		
 	/**
 	 * Returns a new Sample from the given filename. If the Sample has already
@@ -78,7 +172,7 @@ public class SampleManager {
 	 * @return the sample.
 	 */
 	public static Sample sample(InputStream is) {
-		Sample sample = samples.get(is.toString());
+		Sample sample = lookup(is.toString());
 		if (sample == null) {
 			try {
 				if (nextBufferingRegime!=null) {
@@ -86,7 +180,8 @@ public class SampleManager {
 				} else {
 					sample = new Sample(is);
 				}
-				samples.put(is.toString(), sample);
+				sample = convert(sample, nextBufferingRegime);
+				sample = register(is.toString(), sample);
 				if(verbose) System.out.println("Loaded " + is.toString());
 			} catch (Exception e) {
 				 //swallow exception
@@ -100,7 +195,7 @@ public class SampleManager {
 	 * @param name
 	 * @param sample
 	 */
-	public static void sample(String name, Sample sample) {
+	public static synchronized void sample(String name, Sample sample) {
 		if (samples.get(name) == null) {
 			samples.put(name, sample);
 		}
@@ -115,23 +210,168 @@ public class SampleManager {
 	 * @return the sample.
 	 */
 	public static Sample sample(String ref, String fn) {
-		Sample sample = samples.get(ref);
+		Sample sample = lookup(ref);
 		if (sample == null) {
-			try {
-				if (nextBufferingRegime!=null) {
-					sample = new Sample(fn,nextBufferingRegime);
-				} else {
-					sample = new Sample(fn);
-				} 
-				samples.put(ref, sample);
-				if(verbose) System.out.println("Loaded " + fn);
-			} catch (Exception e) {
-				//swallow exception
+			sample = load(fn, nextBufferingRegime);
+			if (sample != null) {
+				sample = register(ref, sample);
+			}
+		}
+		return sample;
+	}
+	
+	/**
+	 * Loads a Sample from the given file name in the background. If the Sample has already been loaded, it will not 
+	 * be loaded again.
+	 * 
+	 * @param fn the file path.
+	 * 
+	 * @return a Future that gives the Sample, or null if it couldn't be loaded.
+	 */
+	public static Future<Sample> sampleAsync(String fn) {
+		return sampleAsync(fn, fn, null);
+	}
+	
+	/**
+	 * Like {@link SampleManager#sampleAsync(String)} but with the option to specify the name with which this {@link Sample} 
+	 * is indexed, and a listener that is told when it has loaded.
+	 * 
+	 * @param ref the name with which to index this Sample.
+	 * @param fn the file path.
+	 * @param listener the listener, which is called from the loading thread, or null.
+	 * 
+	 * @return a Future that gives the Sample, or null if it couldn't be loaded.
+	 */
+	public static Future<Sample> sampleAsync(final String ref, final String fn, final SampleLoadListener listener) {
+		final Sample.Regime regime = nextBufferingRegime;
+		return submit(new Callable<Sample>() {
+			public Sample call() {
+				Sample sample = lookup(ref);
+				if (sample == null) {
+					sample = load(fn, regime);
+					if (sample != null) {
+						sample = register(ref, sample);
+					}
+				}
+				if (listener != null) {
+					listener.loaded(ref, sample);
+				}
+				return sample;
 			}
+		});
+	}
+	
+	/**
+	 * Loads a Sample, returning null if it can't be loaded.
+	 */
+	private static Sample load(String fn, Sample.Regime regime) {
+		try {
+			Sample sample;
+			if (regime != null) {
+				sample = new Sample(fn, regime);
+			} else {
+				sample = new Sample(fn);
+			} 
+			if(verbose) System.out.println("Loaded " + fn);
+			return convert(sample, regime);
+		} catch (Exception e) {
+			//swallow exception
+			return null;
+		}
+	}
+	
+	/**
+	 * Converts a newly loaded Sample to the sample rate set with {@link #setSampleRateConversion(float, Resampler.Quality)}, 
+	 * if it is held in memory.
+	 */
+	private static Sample convert(Sample sample, Sample.Regime regime) {
+		float rate;
+		Resampler.Quality quality;
+		synchronized(SampleManager.class) {
+			rate = conversionRate;
+			quality = conversionQuality;
+		}
+		if (rate > 0 && sample.getSampleRate() != rate && (regime == null || regime instanceof Sample.TotalRegime)) {
+			sample = sample.resample(rate, quality);
+			if(verbose) System.out.println("Converted " + sample.getFileName() + " to " + rate + "Hz");
 		}
 		return sample;
 	}
 	
+	/**
+	 * Sets a sample rate that samples are converted to as they are loaded, normally that of the 
+	 * {@link net.beadsproject.beads.core.AudioContext AudioContext} they will be played in. Each sample is converted once, 
+	 * with a windowed sinc filter (see {@link Sample#resample(float, Resampler.Quality)}), and the converted sample is 
+	 * the one kept, so that playing it at its normal rate needs no interpolation at all. Only samples that are held 
+	 * in memory (with a {@link Sample.TotalRegime}) are converted; streamed samples are converted as they are played, 
+	 * with {@link net.beadsproject.beads.ugens.SamplePlayer.InterpolationType#SINC InterpolationType.SINC}. Samples that 
+	 * are already loaded are left as they are.
+	 * 
+	 * @param sampleRate the sample rate, or 0 to stop converting samples.
+	 * @param quality the quality of the filter, or null for {@link Resampler#DEFAULT_QUALITY}.
+	 */
+	public static synchronized void setSampleRateConversion(float sampleRate, Resampler.Quality quality) {
+		conversionRate = sampleRate;
+		conversionQuality = quality;
+	}
+	
+	/**
+	 * Gets the sample rate that samples are converted to as they are loaded.
+	 * 
+	 * @return the sample rate, or 0 if samples aren't converted.
+	 */
+	public static synchronized float getSampleRateConversion() {
+		return conversionRate;
+	}
+	
+	/**
+	 * Gets the Sample with the given name, or null.
+	 */
+	private static synchronized Sample lookup(String ref) {
+		return samples.get(ref);
+	}
+	
+	/**
+	 * Adds a newly loaded Sample, unless another thread has loaded one with the same name in the meantime. 
+	 * Returns the Sample stored under the name.
+	 */
+	private static synchronized Sample register(String ref, Sample sample) {
+		Sample existing = samples.get(ref);
+		if (existing != null) {
+			return existing;
+		}
+		samples.put(ref, sample);
+		return sample;
+	}
+	
+	/**
+	 * Runs a background load. Once all background loads have finished, the gc is called.
+	 */
+	private static <T> Future<T> submit(final Callable<T> task) {
+		pendingLoads.incrementAndGet();
+		return loader.submit(new Callable<T>() {
+			public T call() throws Exception {
+				try {
+					return task.call();
+				} finally {
+					if (pendingLoads.decrementAndGet() == 0) {
+						System.gc();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Called by {@link Sample} after loading, to get rid of the garbage left over from decoding. Does nothing while
+	 * background loads are in progress, since the gc is called once they have all finished.
+	 */
+	static void gcHint() {
+		if (pendingLoads.get() == 0) {
+			System.gc();
+		}
+	}
+	
 	/**
 	 * Like {@link SampleManager#sample(String)} but with the option to specify the name with which this {@link Sample} is indexed.
 	 * 
@@ -141,7 +381,7 @@ public class SampleManager {
 	 * @return the sample.
 	 */
 	public static Sample sample(String ref, InputStream is) {
-		Sample sample = samples.get(ref);
+		Sample sample = lookup(ref);
 		if (sample == null) {	
 			try {
 				if (nextBufferingRegime!=null) {
@@ -149,7 +389,8 @@ public class SampleManager {
 				} else {
 					sample = new Sample(is);
 				}
-				samples.put(ref, sample);
+				sample = convert(sample, nextBufferingRegime);
+				sample = register(ref, sample);
 				if(verbose) System.out.println("Loaded " + ref);
 			} catch(Exception e) {
 				//swallow exception
@@ -158,6 +399,237 @@ public class SampleManager {
 		return sample;
 	}
 
+	/**
+	 * Gets a Sample as {@link #sample(String)} does, and adds a user to it. Each call should be matched by a call to 
+	 * {@link #release(Sample)} once the user has finished with the Sample.
+	 * 
+	 * @param fn the file path.
+	 * 
+	 * @return the sample, or null if it couldn't be loaded.
+	 */
+	public static Sample acquire(String fn) {
+		return acquire(fn, fn);
+	}
+	
+	/**
+	 * Like {@link #acquire(String)} but with the option to specify the name with which this {@link Sample} is indexed.
+	 * 
+	 * @param ref the name with which to index this Sample.
+	 * @param fn the file path.
+	 * 
+	 * @return the sample, or null if it couldn't be loaded.
+	 */
+	public static Sample acquire(String ref, String fn) {
+		synchronized(SampleManager.class) {
+			// an idle sample must be acquired before another release can unload it
+			Sample sample = samples.get(ref);
+			if (sample != null) {
+				return acquire(sample);
+			}
+		}
+		Sample sample = sample(ref, fn);
+		if (sample != null) {
+			acquire(sample);
+		}
+		return sample;
+	}
+	
+	/**
+	 * Adds a user to a Sample that is already loaded. If the Sample is idle, it is no longer unloaded.
+	 * 
+	 * @param sample the Sample.
+	 * 
+	 * @return the Sample.
+	 */
+	public static synchronized Sample acquire(Sample sample) {
+		Integer count = users.get(sample);
+		users.put(sample, count == null ? 1 : count + 1);
+		Long bytes = idle.remove(sample);
+		if (bytes != null) {
+			idleBytes -= bytes;
+		}
+		return sample;
+	}
+	
+	/**
+	 * Adds a user to every Sample in a group.
+	 * 
+	 * @param groupName the group name.
+	 * 
+	 * @return the Samples in the group, which should be passed to {@link #release(List)} when they are no longer needed, 
+	 * or null if there is no such group.
+	 */
+	public static synchronized List<Sample> acquireGroup(String groupName) {
+		ArrayList<Sample> group = groups.get(groupName);
+		if (group == null) {
+			return null;
+		}
+		List<Sample> acquired = new ArrayList<Sample>(group);
+		for (Sample sample : acquired) {
+			acquire(sample);
+		}
+		return acquired;
+	}
+	
+	/**
+	 * Removes a user from a Sample. When the last user has released it, the Sample is idle, and is unloaded as soon as 
+	 * the idle samples use more memory than the idle budget. Does nothing if the Sample hasn't been acquired.
+	 * 
+	 * @param sample the Sample.
+	 */
+	public static void release(Sample sample) {
+		List<String> changed;
+		synchronized(SampleManager.class) {
+			Integer count = users.get(sample);
+			if (count == null) {
+				return;
+			} else if (count > 1) {
+				users.put(sample, count - 1);
+				return;
+			}
+			users.remove(sample);
+			long bytes = sample.getMemoryUsed();
+			idle.put(sample, bytes);
+			idleBytes += bytes;
+			changed = trimIdle();
+		}
+		for (String groupName : changed) {
+			fireChanged(groupName);
+		}
+	}
+	
+	/**
+	 * Removes a user from each of a list of Samples, such as the list returned by {@link #acquireGroup(String)}.
+	 * 
+	 * @param sampleList the Samples.
+	 */
+	public static void release(List<Sample> sampleList) {
+		for (Sample sample : sampleList) {
+			release(sample);
+		}
+	}
+	
+	/**
+	 * Gets the number of users of a Sample.
+	 * 
+	 * @param sample the Sample.
+	 * 
+	 * @return the number of users, which is 0 if the Sample hasn't been acquired or is idle.
+	 */
+	public static synchronized int getUsers(Sample sample) {
+		Integer count = users.get(sample);
+		return count == null ? 0 : count;
+	}
+	
+	/**
+	 * Sets the memory that idle samples can use. When they use more, the least recently released are unloaded. With a 
+	 * budget of 0 (the default), samples are unloaded as soon as they are released by their last user.
+	 * 
+	 * @param bytes the budget in bytes.
+	 */
+	public static void setIdleBudget(long bytes) {
+		List<String> changed;
+		synchronized(SampleManager.class) {
+			idleBudget = bytes;
+			changed = trimIdle();
+		}
+		for (String groupName : changed) {
+			fireChanged(groupName);
+		}
+	}
+	
+	/**
+	 * Gets the memory that idle samples can use.
+	 * 
+	 * @return the budget in bytes.
+	 */
+	public static synchronized long getIdleBudget() {
+		return idleBudget;
+	}
+	
+	/**
+	 * Gets the memory used by idle samples, as it was when each was released.
+	 * 
+	 * @return the number of bytes.
+	 */
+	public static synchronized long getIdleMemoryUsed() {
+		return idleBytes;
+	}
+	
+	/**
+	 * Unloads idle samples, least recently released first, until they are within the idle budget. 
+	 * Returns the names of the groups that have changed.
+	 */
+	private static List<String> trimIdle() {
+		List<String> changed = new ArrayList<String>();
+		Iterator<Map.Entry<Sample, Long>> i = idle.entrySet().iterator();
+		while (i.hasNext() && (idleBudget <= 0 || idleBytes > idleBudget)) {
+			Map.Entry<Sample, Long> e = i.next();
+			i.remove();
+			idleBytes -= e.getValue();
+			unload(e.getKey(), changed);
+		}
+		return changed;
+	}
+	
+	/**
+	 * Removes a Sample from the repository and from every group, adding the names of the groups to the given list, and 
+	 * frees its memory.
+	 */
+	private static void unload(Sample sample, List<String> changedGroups) {
+		samples.values().removeAll(Collections.singleton(sample));
+		for (Map.Entry<String, ArrayList<Sample>> group : groups.entrySet()) {
+			if (group.getValue().remove(sample) && !changedGroups.contains(group.getKey())) {
+				changedGroups.add(group.getKey());
+			}
+		}
+		sample.unload();
+		if(verbose) System.out.println("Unloaded " + sample.getFileName());
+	}
+	
+	/**
+	 * Gets the memory used by all the Samples in the repository and in groups.
+	 * 
+	 * @return the number of bytes.
+	 * @see Sample#getMemoryUsed()
+	 */
+	public static synchronized long getMemoryUsed() {
+		Map<Sample, Boolean> counted = new IdentityHashMap<Sample, Boolean>();
+		long bytes = 0;
+		for (Sample sample : samples.values()) {
+			if (counted.put(sample, Boolean.TRUE) == null) {
+				bytes += sample.getMemoryUsed();
+			}
+		}
+		for (ArrayList<Sample> group : groups.values()) {
+			for (Sample sample : group) {
+				if (counted.put(sample, Boolean.TRUE) == null) {
+					bytes += sample.getMemoryUsed();
+				}
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Gets the memory used by the Samples in a group.
+	 * 
+	 * @param groupName the group name.
+	 * 
+	 * @return the number of bytes, or 0 if there is no such group.
+	 * @see Sample#getMemoryUsed()
+	 */
+	public static synchronized long getGroupMemoryUsed(String groupName) {
+		ArrayList<Sample> group = groups.get(groupName);
+		long bytes = 0;
+		if (group != null) {
+			for (Sample sample : new HashSet<Sample>(group)) {
+				bytes += sample.getMemoryUsed();
+			}
+		}
+		return bytes;
+	}
+
 	/**
 	 * Generates a new group with the given group name and list of Samples to be
 	 * added to the group.
@@ -165,7 +637,7 @@ public class SampleManager {
 	 * @param groupName the group name.
 	 * @param sampleList the sample list.
 	 */
-	public static List<Sample> group(String groupName, Sample[] sampleList) {
+	public static synchronized List<Sample> group(String groupName, Sample[] sampleList) {
 		ArrayList<Sample> group;
 		if (!groups.keySet().contains(groupName)) {
 			group = new ArrayList<Sample>();
@@ -204,6 +676,25 @@ public class SampleManager {
 	 * @param maxItems number of items to limit to.
 	 */
 	public static List<Sample> group(String groupName, String folderName, int maxItems) {
+		return group(groupName, listFolder(groupName, folderName), maxItems);
+	}
+	
+	/**
+	 * Loads a group in the background, like {@link #group(String, String)}.
+	 * 
+	 * @param groupName the group name.
+	 * @param folderName the folder address (URL or file path).
+	 * 
+	 * @return a Future that gives the group once all of its samples have loaded.
+	 */
+	public static Future<List<Sample>> groupAsync(String groupName, String folderName) {
+		return groupAsync(groupName, listFolder(groupName, folderName), Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Finds the files in a group folder, and remembers the folder.
+	 */
+	private static String[] listFolder(String groupName, String folderName) {
 		//first try interpreting the folderName as a system resource
 		File theDirectory = null;
 		try {
@@ -218,7 +709,9 @@ public class SampleManager {
 		if(theDirectory == null || !theDirectory.exists()) {
 			theDirectory = new File(folderName);
 		}
-		groupDirs.put(groupName, theDirectory.getAbsolutePath());
+		synchronized(SampleManager.class) {
+			groupDirs.put(groupName, theDirectory.getAbsolutePath());
+		}
 		String[] fileNameList = theDirectory.list();
 		for (int i = 0; i < fileNameList.length; i++) {
 			String absFileName = theDirectory.getAbsolutePath() + "/" + fileNameList[i];
@@ -227,7 +720,7 @@ public class SampleManager {
 			}
 			
 		}
-		return group(groupName, fileNameList, maxItems);
+		return fileNameList;
 	}
 
 	/**
@@ -250,37 +743,135 @@ public class SampleManager {
 	 * @param maxItems number of items to limit to.
 	 */
 	public static List<Sample> group(String groupName, String[] fileNameList, int maxItems) {
-		ArrayList<Sample> group;
-		if (!groups.keySet().contains(groupName)) {
-			group = new ArrayList<Sample>();
-			groups.put(groupName, group);
-		} else
-			group = groups.get(groupName);
+		ArrayList<Sample> group = createGroup(groupName);
 		int count = 0;
 		for (int i = 0; i < fileNameList.length; i++) {
 			String simpleName = fileNameList[i];
 			try {
 				Sample sample = sample(simpleName, fileNameList[i]);
-				if (!group.contains(simpleName) && sample != null) {
-					if(count++ >= maxItems) break;
-					group.add(sample);
+				synchronized(SampleManager.class) {
+					if (!group.contains(simpleName) && sample != null) {
+						if(count++ >= maxItems) break;
+						group.add(sample);
+					}
 				}
 			} catch(Exception e) {
 				//snuff the exception
 			}
 		}
-		for(SampleGroupListener l : listeners) {
-			l.changed(groupName);
+		fireChanged(groupName);
+		return group;
+	}
+	
+	/**
+	 * Loads a group in the background, like {@link #group(String, String[])}.
+	 * 
+	 * @param groupName the group name.
+	 * @param fileNameList the file name list.
+	 * 
+	 * @return a Future that gives the group once all of its samples have loaded.
+	 */
+	public static Future<List<Sample>> groupAsync(String groupName, String[] fileNameList) {
+		return groupAsync(groupName, fileNameList, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Loads a group in the background, like {@link #group(String, String[], int)}. The files are loaded in parallel, 
+	 * and each Sample is added to the group as soon as it has loaded, so the Samples in the group are in the order 
+	 * they finished loading. Group listeners are told each time a Sample is added, from the loading thread. 
+	 * Cancelling the Future stops the files that haven't started loading yet from being loaded.
+	 * 
+	 * @param groupName the group name.
+	 * @param fileNameList the file name list.
+	 * @param maxItems number of items to limit to.
+	 * 
+	 * @return a Future that gives the group once all of its samples have loaded.
+	 */
+	public static Future<List<Sample>> groupAsync(final String groupName, String[] fileNameList, final int maxItems) {
+		final ArrayList<Sample> group = createGroup(groupName);
+		final FutureTask<List<Sample>> done = new FutureTask<List<Sample>>(new Callable<List<Sample>>() {
+			public List<Sample> call() {
+				fireChanged(groupName);
+				return group;
+			}
+		});
+		if (fileNameList.length == 0) {
+			done.run();
+			return done;
+		}
+		final AtomicInteger remaining = new AtomicInteger(fileNameList.length);
+		final AtomicInteger count = new AtomicInteger();
+		final Sample.Regime regime = nextBufferingRegime;
+		for (int i = 0; i < fileNameList.length; i++) {
+			final String fn = fileNameList[i];
+			submit(new Callable<Sample>() {
+				public Sample call() {
+					Sample sample = null;
+					try {
+						if (!done.isCancelled() && count.get() < maxItems) {
+							sample = lookup(fn);
+							if (sample == null) {
+								sample = load(fn, regime);
+								if (sample != null) {
+									sample = register(fn, sample);
+								}
+							}
+							boolean added = false;
+							synchronized(SampleManager.class) {
+								if (sample != null && !group.contains(sample) && count.get() < maxItems) {
+									count.incrementAndGet();
+									group.add(sample);
+									added = true;
+								}
+							}
+							if (added) {
+								fireChanged(groupName);
+							}
+						}
+					} finally {
+						//the last file to finish completes the group
+						if (remaining.decrementAndGet() == 0) {
+							done.run();
+						}
+					}
+					return sample;
+				}
+			});
+		}
+		return done;
+	}
+	
+	/**
+	 * Gets the named group, creating it if it doesn't exist.
+	 */
+	private static synchronized ArrayList<Sample> createGroup(String groupName) {
+		ArrayList<Sample> group = groups.get(groupName);
+		if (group == null) {
+			group = new ArrayList<Sample>();
+			groups.put(groupName, group);
 		}
 		return group;
 	}
 	
+	/**
+	 * Tells the group listeners about a change to a group.
+	 */
+	private static void fireChanged(String groupName) {
+		SampleGroupListener[] current;
+		synchronized(SampleManager.class) {
+			current = listeners.toArray(new SampleGroupListener[listeners.size()]);
+		}
+		for(SampleGroupListener l : current) {
+			l.changed(groupName);
+		}
+	}
+	
 	/**
 	 * Add a new Sample to a group. Create the group if it doesn't exist.
 	 * @param group the group to add to.
 	 * @param sample the Sample to add.
 	 */
-	public static void addToGroup(String group, Sample sample) {
+	public static synchronized void addToGroup(String group, Sample sample) {
 		ArrayList<Sample> samples;
 		if(!groups.containsKey(group)) {
 			samples = new ArrayList<Sample>();
@@ -302,7 +893,7 @@ public class SampleManager {
 	 * @param group the group to add to.
 	 * @param newSamples the list of Samples to add.
 	 */
-	public static void addToGroup(String group, List<Sample> newSamples) {
+	public static synchronized void addToGroup(String group, List<Sample> newSamples) {
 		if(newSamples == null) return;
 		ArrayList<Sample> samples;
 		if(!groups.containsKey(group)) {
@@ -333,19 +924,21 @@ public class SampleManager {
 	 * List the groups by name as a list of Strings.
 	 * @return a List of Strings.
 	 */
-	public static List<String> groupsAsList() {
+	public static synchronized List<String> groupsAsList() {
 		return new ArrayList<String>(groups.keySet());
 	}
 
 	/**
-	 * Gets the specified group in the form ArrayList&lt;Sample&gt;.
+	 * Gets a copy of the specified group in the form ArrayList&lt;Sample&gt;, taken while no other thread can change
+	 * the group. Changing the copy doesn't change the group.
 	 * 
 	 * @param groupName the group name.
 	 * 
-	 * @return the group.
+	 * @return the group, or null if there is no such group.
 	 */
-	public static ArrayList<Sample> getGroup(String groupName) {
-		return groups.get(groupName);
+	public static synchronized ArrayList<Sample> getGroup(String groupName) {
+		ArrayList<Sample> group = groups.get(groupName);
+		return group == null ? null : new ArrayList<Sample>(group);
 	}
 	
 	/**
@@ -353,7 +946,7 @@ public class SampleManager {
 	 * @param groupName
 	 * @return directory path.
 	 */
-	public static String getGroupDir(String groupName) {
+	public static synchronized String getGroupDir(String groupName) {
 		return groupDirs.get(groupName);
 	}
 	
@@ -364,7 +957,7 @@ public class SampleManager {
 	 * 
 	 * @return a random Sample.
 	 */
-	public static Sample randomFromGroup(String groupName) {
+	public static synchronized Sample randomFromGroup(String groupName) {
 		ArrayList<Sample> group = groups.get(groupName);
 		return group.get((int)(Math.random() * group.size()));
 	}
@@ -378,7 +971,7 @@ public class SampleManager {
 	 * 
 	 * @return the Sample.
 	 */
-	public static Sample fromGroup(String groupName, int index) {
+	public static synchronized Sample fromGroup(String groupName, int index) {
 		ArrayList<Sample> group = groups.get(groupName);
 		if(group == null || group.size() == 0) {
 			return null;
@@ -391,7 +984,7 @@ public class SampleManager {
 	 * 
 	 * @param sampleName the sample name.
 	 */
-	public static void removeSample(String sampleName) {
+	public static synchronized void removeSample(String sampleName) {
 		if(samples.containsKey(sampleName)) {
 			samples.remove(sampleName);
 		}
@@ -402,7 +995,7 @@ public class SampleManager {
 	 * 
 	 * @param sample the Sample.
 	 */
-	public static void removeSample(Sample sample) {
+	public static synchronized void removeSample(Sample sample) {
 		for (String str : samples.keySet()) {
 			if (samples.get(str).equals(sample)) {
 				removeSample(str);
@@ -416,7 +1009,7 @@ public class SampleManager {
 	 * 
 	 * @param groupName the group name.
 	 */
-	public static void removeGroup(String groupName) {
+	public static synchronized void removeGroup(String groupName) {
 		groups.remove(groupName);
 		groupDirs.remove(groupName);
 		for(SampleGroupListener l : listeners) {
@@ -430,7 +1023,7 @@ public class SampleManager {
 	 * 
 	 * @param groupName the group name.
 	 */
-	public static void destroyGroup(String groupName) {
+	public static synchronized void destroyGroup(String groupName) {
 		ArrayList<Sample> group = groups.get(groupName);
 		for (int i = 0; i < group.size(); i++) {
 			removeSample(group.get(i));
@@ -438,18 +1031,18 @@ public class SampleManager {
 		removeGroup(groupName);
 	}
 
-	public static void addGroupListener(SampleGroupListener l) {
+	public static synchronized void addGroupListener(SampleGroupListener l) {
 		listeners.add(l);
 	}
 	
-	public static void removeGroupListener(SampleGroupListener l) {
+	public static synchronized void removeGroupListener(SampleGroupListener l) {
 		listeners.remove(l);
 	}
 	
 	/**
 	 * Prints a list of all {@link Sample}s to System.out.
 	 */
-	public static void printSampleList() {
+	public static synchronized void printSampleList() {
 		for(String s : samples.keySet()) {
 			System.out.println(s + " " + samples.get(s));
 		}
@@ -460,7 +1053,7 @@ public class SampleManager {
 	 * 
 	 * @return ArrayList of Sample names.
 	 */
-	public static List<String> getSampleNameList() {
+	public static synchronized List<String> getSampleNameList() {
 		return new ArrayList<String>(samples.keySet());
 	}
 	
@@ -475,6 +1068,86 @@ public class SampleManager {
 		nextBufferingRegime = r;		
 	}
 
+	/**
+	 * Gets the {@link RegionCache} that limits the memory used by the regions of all samples with a 
+	 * {@link Sample.TimedRegime}, and collects statistics on them.
+	 * 
+	 * @return the RegionCache.
+	 */
+	public static RegionCache getRegionCache() {
+		return regionCache;
+	}
+	
+	/**
+	 * Sets the maximum memory that the regions of all samples with a {@link Sample.TimedRegime} can use together. 
+	 * The default is a quarter of the maximum heap size. 
+	 * 
+	 * @param bytes the budget in bytes.
+	 */
+	public static void setRegionCacheBudget(long bytes) {
+		regionCache.setBudget(bytes);
+	}
+	
+	/**
+	 * Gets the {@link RegionLoader} that loads the regions of all samples with a {@link Sample.TimedRegime} 
+	 * in the background, and collects statistics on them.
+	 * 
+	 * @return the RegionLoader.
+	 */
+	public static RegionLoader getRegionLoader() {
+		return regionLoader;
+	}
+	
+	/**
+	 * Sets the number of threads used to load the regions of samples with a {@link Sample.TimedRegime}. 
+	 * The default is {@value RegionLoader#DEFAULT_THREADS}. 
+	 * 
+	 * @param threads the number of threads.
+	 */
+	public static void setRegionLoaderThreads(int threads) {
+		regionLoader.setThreads(threads);
+	}
+	
+	/**
+	 * Sets the number of threads used to load samples in the background. The default is the number of processors, up to 4.
+	 * 
+	 * @param threads the number of threads.
+	 */
+	public static void setLoaderThreads(int threads) {
+		threads = Math.max(1, threads);
+		synchronized(loader) {
+			if(threads > loader.getMaximumPoolSize()) {
+				loader.setMaximumPoolSize(threads);
+				loader.setCorePoolSize(threads);
+			} else {
+				loader.setCorePoolSize(threads);
+				loader.setMaximumPoolSize(threads);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of threads used to load samples in the background.
+	 * 
+	 * @return the number of threads.
+	 */
+	public static int getLoaderThreads() {
+		return loader.getCorePoolSize();
+	}
+	
+	/**
+	 * Determines if any samples are being loaded in the background.
+	 * 
+	 * @return true if there are background loads that haven't finished.
+	 */
+	public static boolean isLoading() {
+		return pendingLoads.get() > 0;
+	}
+	
+	private static int defaultLoaderThreads() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
 	/**
 	 * Determines if SampleManager is being verbose.
 	 * 
@@ -568,5 +1241,22 @@ public class SampleManager {
 		public void changed(String group);
 	}
 	
+	/**
+	 * Interface for notification of a Sample loaded in the background with 
+	 * {@link SampleManager#sampleAsync(String, String, SampleLoadListener)}.
+	 * 
+	 * @author ollie
+	 *
+	 */
+	public static interface SampleLoadListener {
+		
+		/**
+		 * Called from the loading thread when a Sample has loaded.
+		 * @param ref the name of the Sample.
+		 * @param sample the Sample, or null if it couldn't be loaded.
+		 */
+		public void loaded(String ref, Sample sample);
+	}
+	
 	
 }
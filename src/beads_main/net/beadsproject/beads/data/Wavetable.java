@@ -0,0 +1,171 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data;
+
+import java.util.Hashtable;
+
+import net.beadsproject.beads.analysis.featureextractors.FFT;
+import net.beadsproject.beads.data.buffers.SawBuffer;
+import net.beadsproject.beads.data.buffers.SineBuffer;
+import net.beadsproject.beads.data.buffers.SquareBuffer;
+import net.beadsproject.beads.data.buffers.TriangleBuffer;
+
+/**
+ * A Wavetable holds band-limited versions of one or more {@link Buffer}s, for oscillators that don't alias, such as
+ * {@link net.beadsproject.beads.ugens.WavetablePlayer}. Each Buffer is a frame of the Wavetable, and oscillators can morph
+ * between neighbouring frames.
+ *
+ * </p>When the Wavetable is made, each frame is worked out at a set of levels, one per octave, each with half as many
+ * harmonics as the one before: level 0 keeps all 2048 harmonics of a 4096 point table, level 11 keeps only the
+ * fundamental, and the last level is silent. An oscillator picks the level with as many harmonics as fit under the
+ * Nyquist frequency (see {@link #getLevel(float, float)}), so none of them fold back. All levels are stored at 4096
+ * points, with the first point repeated on the end for interpolation, so a frame takes about 200k of memory.
+ *
+ * </p>Like {@link Buffer}, common Wavetables are kept statically, and {@link BufferFactory#getWavetable()} gets the
+ * Wavetable of a BufferFactory's default Buffer.
+ *
+ * @beads.category data
+ * @see Buffer BufferFactory
+ */
+public class Wavetable {
+
+	/** The number of points in each level, as a power of two. */
+	public static final int TABLE_BITS = 12;
+
+	/** The number of points in each level. */
+	public static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	/** The number of levels, including the silent one. */
+	public static final int NUM_LEVELS = TABLE_BITS + 1;
+
+	/**
+	 * A static storage area for common Wavetables, such as a band-limited saw wave. Used by {@link BufferFactory} to keep
+	 * track of common Wavetables.
+	 */
+	public static Hashtable<String, Wavetable> staticTables = new Hashtable<String, Wavetable>();
+
+	// A collection of default wavetables, initialised for your convenience.
+	public static final Wavetable SINE = new SineBuffer().getWavetable();
+	public static final Wavetable SAW = new SawBuffer().getWavetable();
+	public static final Wavetable SQUARE = new SquareBuffer().getWavetable();
+	public static final Wavetable TRIANGLE = new TriangleBuffer().getWavetable();
+
+	/** The tables, indexed by frame and then level, each with TABLE_SIZE + 1 points. */
+	private final float[][][] tables;
+
+	/**
+	 * Instantiates a new Wavetable from one or more Buffers. Buffers of other than {@link #TABLE_SIZE} points are
+	 * resampled to it first.
+	 *
+	 * @param frames the Buffers, each holding one cycle of a waveform.
+	 */
+	public Wavetable(Buffer... frames) {
+		tables = new float[frames.length][][];
+		float[] silence = new float[TABLE_SIZE + 1];
+		for(int i = 0; i < frames.length; i++) {
+			tables[i] = makeLevels(frames[i].buf, silence);
+		}
+	}
+
+	/**
+	 * Works out the levels of one frame.
+	 */
+	private static float[][] makeLevels(float[] buf, float[] silence) {
+		float[] spectrum = new float[TABLE_SIZE];
+		if(buf.length == TABLE_SIZE) {
+			System.arraycopy(buf, 0, spectrum, 0, TABLE_SIZE);
+		} else {
+			for(int i = 0; i < TABLE_SIZE; i++) {
+				float position = (float)i * buf.length / TABLE_SIZE;
+				int index = (int)position;
+				float fraction = position - index;
+				spectrum[i] = buf[index] * (1 - fraction) + buf[(index + 1) % buf.length] * fraction;
+			}
+		}
+		FFT.fft(spectrum, TABLE_SIZE, true);
+		float[][] levels = new float[NUM_LEVELS][];
+		float[] data = new float[TABLE_SIZE];
+		for(int level = 0; level < NUM_LEVELS - 1; level++) {
+			// keep the harmonics up to TABLE_SIZE / 2 >> level
+			int harmonics = (TABLE_SIZE / 2) >> level;
+			System.arraycopy(spectrum, 0, data, 0, TABLE_SIZE);
+			if(level > 0) {
+				data[1] = 0;
+				for(int i = 2 * (harmonics + 1); i < TABLE_SIZE; i++) {
+					data[i] = 0;
+				}
+			}
+			FFT.fft(data, TABLE_SIZE, false);
+			float[] table = new float[TABLE_SIZE + 1];
+			float scale = 2f / TABLE_SIZE;
+			for(int i = 0; i < TABLE_SIZE; i++) {
+				table[i] = data[i] * scale;
+			}
+			table[TABLE_SIZE] = table[0];
+			levels[level] = table;
+		}
+		levels[NUM_LEVELS - 1] = silence;
+		return levels;
+	}
+
+	/**
+	 * Gets the number of frames.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNumFrames() {
+		return tables.length;
+	}
+
+	/**
+	 * Gets the level to use for a given frequency: the one with the most harmonics that all fit under the Nyquist
+	 * frequency. Frequencies at or above the Nyquist frequency get the silent level.
+	 *
+	 * @param frequency the frequency in Hz.
+	 * @param sampleRate the sample rate in Hz.
+	 *
+	 * @return the level.
+	 */
+	public static int getLevel(float frequency, float sampleRate) {
+		// the level is the base 2 log of the number of table points per sample, rounded up
+		float pointsPerSample = Math.abs(frequency) * TABLE_SIZE / sampleRate;
+		if(!(pointsPerSample > 1)) return 0;
+		int bits = Float.floatToIntBits(pointsPerSample);
+		int level = (bits >>> 23) - 127;
+		if((bits & 0x7FFFFF) != 0) level++;
+		return Math.min(level, NUM_LEVELS - 1);
+	}
+
+	/**
+	 * Gets the points of a level of a frame. The array has {@link #TABLE_SIZE} points with the first point repeated on
+	 * the end, and must not be changed.
+	 *
+	 * @param frame the frame.
+	 * @param level the level.
+	 *
+	 * @return the points.
+	 */
+	public float[] getTable(int frame, int level) {
+		return tables[frame][level];
+	}
+
+	/**
+	 * Returns the value of a level of a frame at the given fraction along its length (0 = start, 1 = end), interpolating
+	 * between points. Fractions outside this range wrap around.
+	 *
+	 * @param frame the frame.
+	 * @param level the level.
+	 * @param fraction the point along the table to inspect.
+	 *
+	 * @return the value at that point.
+	 */
+	public float getValueFraction(int frame, int level, float fraction) {
+		float[] table = tables[frame][level];
+		float position = (fraction - (float)Math.floor(fraction)) * TABLE_SIZE;
+		int index = Math.min((int)position, TABLE_SIZE - 1);
+		float a = table[index];
+		return a + (position - index) * (table[index + 1] - a);
+	}
+
+}
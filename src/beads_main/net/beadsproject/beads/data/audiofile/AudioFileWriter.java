@@ -0,0 +1,407 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * AudioFileWriter streams audio to a WAV or AIFF file, as 16 or 24 bit PCM or (WAV only) 32 bit float. Unlike writing through
+ * JavaSound, the length of the file doesn't need to be known in advance: the header is written with zero lengths and filled
+ * in by {@link #close()}, so frames can be appended for as long as required (up to the 4GB limit of the formats).
+ *
+ * </p>Conversion from floats is separate from writing, so that the conversion can be done into a buffer on one thread (see
+ * {@link #convert(float[][], int, int, byte[], int)}) and the buffer written on another (see
+ * {@link #writeBytes(byte[], int, int)}). {@link #write(float[][], int, int)} does both, using a buffer that is reused
+ * from call to call.
+ *
+ * </p>AudioFileWriter isn't thread safe.
+ */
+public class AudioFileWriter {
+
+	/**
+	 * The type of file.
+	 */
+	public static enum Type {
+
+		/** RIFF WAVE, little endian. */
+		WAV,
+
+		/** AIFF, big endian. */
+		AIFF;
+
+		/**
+		 * Guesses the type from a file name, defaulting to WAV.
+		 *
+		 * @param filename the file name.
+		 * @return the type.
+		 */
+		public static Type forFilename(String filename) {
+			String lower = filename.toLowerCase();
+			if(lower.endsWith(".aif") || lower.endsWith(".aiff")) {
+				return AIFF;
+			}
+			return WAV;
+		}
+	}
+
+	/**
+	 * The sample format.
+	 */
+	public static enum SampleFormat {
+
+		/** 16 bit signed integer. */
+		PCM_16(2),
+
+		/** 24 bit signed integer. */
+		PCM_24(3),
+
+		/** 32 bit IEEE float (WAV only). */
+		FLOAT_32(4);
+
+		/** The number of bytes per sample. */
+		public final int bytesPerSample;
+
+		private SampleFormat(int bytesPerSample) {
+			this.bytesPerSample = bytesPerSample;
+		}
+	}
+
+	/** The file. */
+	private final File file;
+
+	/** The output. */
+	private RandomAccessFile raf;
+
+	/** The file type. */
+	private final Type type;
+
+	/** The sample format. */
+	private final SampleFormat format;
+
+	/** The number of channels. */
+	private final int channels;
+
+	/** The sample rate. */
+	private final float sampleRate;
+
+	/** The number of bytes per frame. */
+	private final int frameSize;
+
+	/** The length of the header in bytes. */
+	private final int headerSize;
+
+	/** The number of frames written. */
+	private long framesWritten;
+
+	/** Buffer used by {@link #write(float[][], int, int)}. */
+	private byte[] buffer;
+
+	/**
+	 * Creates a new AudioFileWriter, creating or overwriting the given file.
+	 *
+	 * @param file the file.
+	 * @param type the file type.
+	 * @param format the sample format.
+	 * @param channels the number of channels.
+	 * @param sampleRate the sample rate.
+	 * @throws IOException if the file can't be opened.
+	 * @throws IllegalArgumentException if the format isn't supported by the type.
+	 */
+	public AudioFileWriter(File file, Type type, SampleFormat format, int channels, float sampleRate) throws IOException {
+		if(type == Type.AIFF && format == SampleFormat.FLOAT_32) {
+			throw new IllegalArgumentException("AIFF doesn't support 32 bit float");
+		}
+		this.file = file;
+		this.type = type;
+		this.format = format;
+		this.channels = channels;
+		this.sampleRate = sampleRate;
+		frameSize = channels * format.bytesPerSample;
+		headerSize = type == Type.WAV ? 44 : 54;
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		writeHeader();
+	}
+
+	/**
+	 * Creates a new 16 bit AudioFileWriter, guessing the file type from the file name.
+	 *
+	 * @param filename the file name.
+	 * @param channels the number of channels.
+	 * @param sampleRate the sample rate.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public AudioFileWriter(String filename, int channels, float sampleRate) throws IOException {
+		this(new File(filename), Type.forFilename(filename), SampleFormat.PCM_16, channels, sampleRate);
+	}
+
+	/**
+	 * Writes (or rewrites) the header for the number of frames written so far.
+	 */
+	private void writeHeader() throws IOException {
+		byte[] h = new byte[headerSize];
+		long dataBytes = framesWritten * frameSize;
+		int bits = format.bytesPerSample * 8;
+		if(type == Type.WAV) {
+			long pad = dataBytes & 1;
+			ascii(h, 0, "RIFF");
+			le32(h, 4, 36 + dataBytes + pad);
+			ascii(h, 8, "WAVE");
+			ascii(h, 12, "fmt ");
+			le32(h, 16, 16);
+			le16(h, 20, format == SampleFormat.FLOAT_32 ? 3 : 1);
+			le16(h, 22, channels);
+			le32(h, 24, (long)sampleRate);
+			le32(h, 28, (long)sampleRate * frameSize);
+			le16(h, 32, frameSize);
+			le16(h, 34, bits);
+			ascii(h, 36, "data");
+			le32(h, 40, dataBytes);
+		} else {
+			long pad = dataBytes & 1;
+			ascii(h, 0, "FORM");
+			be32(h, 4, 4 + 26 + 16 + dataBytes + pad);
+			ascii(h, 8, "AIFF");
+			ascii(h, 12, "COMM");
+			be32(h, 16, 18);
+			be16(h, 20, channels);
+			be32(h, 22, framesWritten);
+			be16(h, 26, bits);
+			extended(h, 28, sampleRate);
+			ascii(h, 38, "SSND");
+			be32(h, 42, 8 + dataBytes);
+			be32(h, 46, 0);
+			be32(h, 50, 0);
+		}
+		raf.seek(0);
+		raf.write(h);
+	}
+
+	/**
+	 * Converts frames to bytes in this writer's format.
+	 *
+	 * @param data the frames, as [channel][frame].
+	 * @param offset the first frame to convert.
+	 * @param frames the number of frames to convert.
+	 * @param dest the destination, which needs room for frames * {@link #getFrameSize()} bytes.
+	 * @param destOffset the position in the destination.
+	 * @return the number of bytes written into the destination.
+	 */
+	public int convert(float[][] data, int offset, int frames, byte[] dest, int destOffset) {
+		int b = destOffset;
+		boolean bigEndian = type == Type.AIFF;
+		switch(format) {
+		case PCM_16:
+			for(int i = offset; i < offset + frames; i++) {
+				for(int c = 0; c < channels; c++) {
+					float x = data[c][i];
+					int s = (int)(32767f * (x > 1f ? 1f : (x < -1f ? -1f : x)));
+					if(bigEndian) {
+						dest[b++] = (byte)(s >> 8);
+						dest[b++] = (byte)s;
+					} else {
+						dest[b++] = (byte)s;
+						dest[b++] = (byte)(s >> 8);
+					}
+				}
+			}
+			break;
+		case PCM_24:
+			for(int i = offset; i < offset + frames; i++) {
+				for(int c = 0; c < channels; c++) {
+					float x = data[c][i];
+					int s = (int)(8388607f * (x > 1f ? 1f : (x < -1f ? -1f : x)));
+					if(bigEndian) {
+						dest[b++] = (byte)(s >> 16);
+						dest[b++] = (byte)(s >> 8);
+						dest[b++] = (byte)s;
+					} else {
+						dest[b++] = (byte)s;
+						dest[b++] = (byte)(s >> 8);
+						dest[b++] = (byte)(s >> 16);
+					}
+				}
+			}
+			break;
+		case FLOAT_32:
+			for(int i = offset; i < offset + frames; i++) {
+				for(int c = 0; c < channels; c++) {
+					int s = Float.floatToRawIntBits(data[c][i]);
+					dest[b++] = (byte)s;
+					dest[b++] = (byte)(s >> 8);
+					dest[b++] = (byte)(s >> 16);
+					dest[b++] = (byte)(s >> 24);
+				}
+			}
+			break;
+		}
+		return b - destOffset;
+	}
+
+	/**
+	 * Converts and writes frames to the file.
+	 *
+	 * @param data the frames, as [channel][frame].
+	 * @param offset the first frame to write.
+	 * @param frames the number of frames to write.
+	 * @throws IOException if the file can't be written.
+	 */
+	public void write(float[][] data, int offset, int frames) throws IOException {
+		int length = frames * frameSize;
+		if(buffer == null || buffer.length < length) {
+			buffer = new byte[length];
+		}
+		writeBytes(buffer, 0, convert(data, offset, frames, buffer, 0));
+	}
+
+	/**
+	 * Writes frames that have already been converted with {@link #convert(float[][], int, int, byte[], int)}.
+	 *
+	 * @param bytes the converted frames.
+	 * @param offset the position of the first byte.
+	 * @param length the number of bytes, which must be a whole number of frames.
+	 * @throws IOException if the file can't be written.
+	 */
+	public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+		raf.write(bytes, offset, length);
+		framesWritten += length / frameSize;
+	}
+
+	/**
+	 * Fills in the header and closes the file. Does nothing if the file is already closed.
+	 *
+	 * @throws IOException if the file can't be written.
+	 */
+	public void close() throws IOException {
+		if(raf == null) return;
+		try {
+			long dataBytes = framesWritten * frameSize;
+			if((dataBytes & 1) != 0) {
+				raf.seek(headerSize + dataBytes);
+				raf.write(0);
+			}
+			writeHeader();
+		} finally {
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of frames written so far.
+	 *
+	 * @return the number of frames.
+	 */
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Gets the number of bytes in each frame.
+	 *
+	 * @return the frame size.
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Gets the sample rate.
+	 *
+	 * @return the sample rate.
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Gets the file type.
+	 *
+	 * @return the type.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the sample format.
+	 *
+	 * @return the sample format.
+	 */
+	public SampleFormat getSampleFormat() {
+		return format;
+	}
+
+	private static void ascii(byte[] b, int i, String s) {
+		for(int k = 0; k < 4; k++) {
+			b[i + k] = (byte)s.charAt(k);
+		}
+	}
+
+	private static void le16(byte[] b, int i, int v) {
+		b[i] = (byte)v;
+		b[i + 1] = (byte)(v >> 8);
+	}
+
+	private static void le32(byte[] b, int i, long v) {
+		b[i] = (byte)v;
+		b[i + 1] = (byte)(v >> 8);
+		b[i + 2] = (byte)(v >> 16);
+		b[i + 3] = (byte)(v >> 24);
+	}
+
+	private static void be16(byte[] b, int i, int v) {
+		b[i] = (byte)(v >> 8);
+		b[i + 1] = (byte)v;
+	}
+
+	private static void be32(byte[] b, int i, long v) {
+		b[i] = (byte)(v >> 24);
+		b[i + 1] = (byte)(v >> 16);
+		b[i + 2] = (byte)(v >> 8);
+		b[i + 3] = (byte)v;
+	}
+
+	/**
+	 * Writes an 80 bit IEEE 754 extended precision number, as used for the AIFF sample rate.
+	 */
+	private static void extended(byte[] b, int i, double v) {
+		int exponent = 16383 + 63;
+		long mantissa = 0;
+		if(v > 0) {
+			long whole = (long)v;
+			//normalise so that the top bit of the mantissa is set
+			int shift = Long.numberOfLeadingZeros(whole);
+			mantissa = whole << shift;
+			exponent -= shift;
+		} else {
+			exponent = 0;
+		}
+		be16(b, i, exponent);
+		for(int k = 0; k < 8; k++) {
+			b[i + 2 + k] = (byte)(mantissa >>> (56 - 8 * k));
+		}
+	}
+
+}
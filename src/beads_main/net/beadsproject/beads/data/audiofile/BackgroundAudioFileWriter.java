@@ -0,0 +1,358 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BackgroundAudioFileWriter moves the disk writes of an {@link AudioFileWriter} onto a thread of its own, so that the thread
+ * producing the audio only has to convert it. Frames passed to {@link #write(float[][], int, int)} or
+ * {@link #offer(float[][], int, int)} are converted straight into one of a fixed ring of preallocated blocks; when a block is full
+ * it is handed over to the writer thread, and the producer carries on filling the next one. With two blocks this is classic
+ * double buffering: rendering into one block overlaps with writing the other to disk. Nothing is allocated after construction.
+ *
+ * </p>The ring is single producer, single consumer and lock free. If the producer gets a whole ring ahead of the disk,
+ * {@link #write(float[][], int, int)} waits for a block to become free, so no audio is lost; this suits offline rendering.
+ * {@link #offer(float[][], int, int)} never waits: the frames that don't fit are dropped and counted instead, which suits the
+ * audio thread, where a slow disk mustn't hold up rendering.
+ *
+ * </p>Long recordings can be split into a series of files of a fixed length (see {@link FileSource}). Switching files happens on
+ * the writer thread, at an exact frame boundary, so joining the files back together gives the complete recording.
+ *
+ * </p>{@link #closeInBackground()} finishes the recording without waiting: the writer thread writes what is left, fills in the
+ * header and closes the file by itself, which suits the audio thread. {@link #awaitClosed()} waits for that to happen, and
+ * {@link #close()} does both. The writer thread is a daemon, so a program that exits straight after recording must wait for
+ * it to close the file first.
+ */
+public class BackgroundAudioFileWriter {
+
+	/**
+	 * Supplies the files of a recording that is split into several files.
+	 */
+	public static interface FileSource {
+
+		/**
+		 * Opens the file with the given index. Every file must have the same number of channels and sample format.
+		 *
+		 * @param index the index of the file, starting from 0.
+		 * @return the AudioFileWriter.
+		 * @throws IOException if the file can't be opened.
+		 */
+		public AudioFileWriter open(int index) throws IOException;
+	}
+
+	/** How long the writer thread sleeps when there is nothing to write, in nanoseconds. */
+	private static final long IDLE_NANOS = 1000000;
+
+	/** The file writer currently in use by the writer thread. */
+	private volatile AudioFileWriter writer;
+
+	/** Supplies further files, or null if there is only one file. */
+	private final FileSource files;
+
+	/** The number of frames in each file, or 0 for no limit. */
+	private final long framesPerFile;
+
+	/** The index of the current file. */
+	private volatile int fileIndex;
+
+	/** The number of bytes per frame. */
+	private final int frameSize;
+
+	/** The blocks. */
+	private final byte[][] blocks;
+
+	/** The number of bytes used in each block. */
+	private final int[] blockLengths;
+
+	/** The capacity of each block in frames. */
+	private final int blockFrames;
+
+	/** The number of blocks handed to the writer thread, and the number it has finished with. */
+	private volatile long published, consumed;
+
+	/** The number of frames in the block being filled. */
+	private int fill;
+
+	/** The total number of frames written to disk. */
+	private volatile long framesWritten;
+
+	/** The number of calls to {@link #offer(float[][], int, int)} that lost frames, and the number of frames lost. */
+	private volatile long droppedBlocks, droppedFrames;
+
+	/** The writer thread. */
+	private final Thread thread;
+
+	/** Flag telling the writer thread to close the file once the ring is empty. */
+	private volatile boolean closing;
+
+	/** Set by the writer thread once it has closed the file. */
+	private volatile boolean closed;
+
+	/** Set if the writer thread fails. */
+	private volatile IOException error;
+
+	/**
+	 * Creates a new BackgroundAudioFileWriter that writes to a single file, and starts its thread.
+	 *
+	 * @param writer the AudioFileWriter to write to. It belongs to this object from now on.
+	 * @param blockFrames the number of frames in each block.
+	 * @param blockCount the number of blocks, at least 2.
+	 */
+	public BackgroundAudioFileWriter(AudioFileWriter writer, int blockFrames, int blockCount) {
+		this(writer, null, 0, blockFrames, blockCount);
+	}
+
+	/**
+	 * Creates a new BackgroundAudioFileWriter that writes to a series of files, each (except the last) of the given length, and
+	 * starts its thread.
+	 *
+	 * @param files supplies the files.
+	 * @param framesPerFile the number of frames in each file.
+	 * @param blockFrames the number of frames in each block.
+	 * @param blockCount the number of blocks, at least 2.
+	 * @throws IOException if the first file can't be opened.
+	 */
+	public BackgroundAudioFileWriter(FileSource files, long framesPerFile, int blockFrames, int blockCount) throws IOException {
+		this(files.open(0), files, framesPerFile, blockFrames, blockCount);
+	}
+
+	private BackgroundAudioFileWriter(AudioFileWriter writer, FileSource files, long framesPerFile, int blockFrames, int blockCount) {
+		this.writer = writer;
+		this.files = files;
+		this.framesPerFile = framesPerFile;
+		this.blockFrames = blockFrames;
+		frameSize = writer.getFrameSize();
+		blockCount = Math.max(2, blockCount);
+		blocks = new byte[blockCount][blockFrames * frameSize];
+		blockLengths = new int[blockCount];
+		thread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "beads file writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Converts and queues frames to be written. Waits if the ring is full.
+	 *
+	 * @param data the frames, as [channel][frame].
+	 * @param offset the first frame to write.
+	 * @param frames the number of frames to write.
+	 * @throws IOException if the writer thread has failed.
+	 */
+	public void write(float[][] data, int offset, int frames) throws IOException {
+		while(frames > 0) {
+			if(error != null) throw error;
+			if(fill == 0 && !waitForFreeBlock()) {
+				continue;
+			}
+			int n = Math.min(frames, blockFrames - fill);
+			convert(data, offset, n);
+			offset += n;
+			frames -= n;
+			if(fill == blockFrames) {
+				publish(true);
+			}
+		}
+	}
+
+	/**
+	 * Converts and queues frames to be written, without ever waiting. Frames that don't fit because the writer thread has
+	 * fallen a whole ring behind are dropped and counted.
+	 *
+	 * @param data the frames, as [channel][frame].
+	 * @param offset the first frame to write.
+	 * @param frames the number of frames to write.
+	 * @return true if all of the frames were queued.
+	 */
+	public boolean offer(float[][] data, int offset, int frames) {
+		while(frames > 0) {
+			if(error != null || (fill == 0 && published - consumed >= blocks.length)) {
+				droppedBlocks++;
+				droppedFrames += frames;
+				return false;
+			}
+			int n = Math.min(frames, blockFrames - fill);
+			convert(data, offset, n);
+			offset += n;
+			frames -= n;
+			if(fill == blockFrames) {
+				publish(false);
+			}
+		}
+		return true;
+	}
+
+	private void convert(float[][] data, int offset, int frames) {
+		int slot = (int)(published % blocks.length);
+		writer.convert(data, offset, frames, blocks[slot], fill * frameSize);
+		fill += frames;
+	}
+
+	/**
+	 * Waits until the block at the head of the ring is free.
+	 *
+	 * @return true once it is free, or false if the writer thread failed while waiting.
+	 */
+	private boolean waitForFreeBlock() {
+		while(published - consumed >= blocks.length) {
+			if(error != null) return false;
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(IDLE_NANOS / 10);
+		}
+		return true;
+	}
+
+	/**
+	 * Hands the block being filled to the writer thread.
+	 *
+	 * @param wake true to wake the writer thread rather than leave it to notice the block itself.
+	 */
+	private void publish(boolean wake) {
+		blockLengths[(int)(published % blocks.length)] = fill * frameSize;
+		fill = 0;
+		published++;
+		if(wake) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * The writer thread's loop.
+	 */
+	private void writeLoop() {
+		while(true) {
+			if(consumed < published) {
+				int slot = (int)(consumed % blocks.length);
+				try {
+					if(error == null) {
+						writeBlock(blocks[slot], blockLengths[slot]);
+					}
+				} catch(IOException e) {
+					error = e;
+				}
+				consumed++;
+			} else if(closing) {
+				//the last block is published before closing is set, so it may only show up now
+				if(consumed < published) continue;
+				try {
+					writer.close();
+				} catch(IOException e) {
+					if(error == null) error = e;
+				}
+				closed = true;
+				break;
+			} else {
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Writes a block, moving on to the next file whenever the current one is full.
+	 */
+	private void writeBlock(byte[] block, int length) throws IOException {
+		int offset = 0;
+		while(length > 0) {
+			int n = length;
+			if(files != null && framesPerFile > 0) {
+				long room = framesPerFile - writer.getFramesWritten();
+				if(room <= 0) {
+					writer.close();
+					writer = files.open(++fileIndex);
+					room = framesPerFile;
+				}
+				n = (int)Math.min(length, room * frameSize);
+			}
+			writer.writeBytes(block, offset, n);
+			framesWritten += n / frameSize;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Hands over any frames still queued and tells the writer thread to close the file once it has written them, without
+	 * waiting. Safe to call from the audio thread. Nothing more can be written afterwards.
+	 */
+	public void closeInBackground() {
+		if(fill > 0) {
+			publish(true);
+		}
+		closing = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Waits for the writer thread to write everything and close the file, after {@link #closeInBackground()}.
+	 *
+	 * @throws IOException if any write failed, or the file couldn't be closed.
+	 */
+	public void awaitClosed() throws IOException {
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(error != null) throw error;
+	}
+
+	/**
+	 * Writes any frames still queued, closes the file and waits for this to finish.
+	 *
+	 * @throws IOException if any write failed, or the file can't be closed.
+	 */
+	public void close() throws IOException {
+		closeInBackground();
+		awaitClosed();
+	}
+
+	/**
+	 * Determines whether the writer thread has closed the file.
+	 *
+	 * @return true if the file is closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Gets the number of frames written to disk so far, across all files.
+	 *
+	 * @return the number of frames.
+	 */
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Gets the number of calls to {@link #offer(float[][], int, int)} that lost frames because the disk couldn't keep up.
+	 *
+	 * @return the number of dropped blocks.
+	 */
+	public long getDroppedBlocks() {
+		return droppedBlocks;
+	}
+
+	/**
+	 * Gets the number of frames lost because the disk couldn't keep up.
+	 *
+	 * @return the number of dropped frames.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Gets the index of the file currently being written.
+	 *
+	 * @return the file index, starting from 0.
+	 */
+	public int getFileIndex() {
+		return fileIndex;
+	}
+
+}
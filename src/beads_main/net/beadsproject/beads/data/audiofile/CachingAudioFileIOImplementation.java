@@ -0,0 +1,338 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import net.beadsproject.beads.core.AudioUtils;
+
+/**
+ * CachingAudioFileIOImplementation keeps a cache on disk of the decoded audio of compressed files (MP3, Ogg, etc.), so that
+ * each file only has to be decoded once, rather than every time the program runs. It wraps another
+ * {@link AudioFileIOImplementation}, which does the decoding. To use it, call
+ * {@link net.beadsproject.beads.data.SampleManager#setDecodedCache(String, long) SampleManager.setDecodedCache()}, or pass
+ * it to {@link net.beadsproject.beads.data.SampleManager#setAudioFileIOImplementation(AudioFileIOImplementation)}.
+ *
+ * </p>The first time a compressed file is asked for, it is decoded into a WAV file in the cache directory. From then on,
+ * the WAV file is returned as a {@link MappedAudioFile}, which needs no decoding at all. Cache files are named after a hash
+ * of the path, size and modification time of the original file and of the cached sample format, so a file that changes is
+ * decoded again. Uncompressed files (WAV and AIFF), files that aren't local and InputStreams are passed straight to the
+ * wrapped implementation.
+ *
+ * </p>The total size of the cache directory is kept under a limit by deleting the least recently used files. Each use of a
+ * cached file updates its modification time, which is what the cleanup goes by.
+ */
+public class CachingAudioFileIOImplementation extends AudioFileIOImplementation {
+
+	/** The extension of cache files. */
+	private static final String EXTENSION = ".wav";
+
+	/** The wrapped implementation, which decodes files on a cache miss. */
+	private final AudioFileIOImplementation decoder;
+
+	/** The cache directory. */
+	private final File directory;
+
+	/** The maximum size of the cache directory in bytes. */
+	private long maxBytes;
+
+	/** The format of the cached audio. */
+	private final AudioFileWriter.SampleFormat format;
+
+	/** Statistics. */
+	private volatile long hits, misses;
+
+	/**
+	 * Creates a new CachingAudioFileIOImplementation that caches 16 bit audio.
+	 *
+	 * @param decoder the implementation used to decode files.
+	 * @param directory the cache directory, which is created if necessary.
+	 * @param maxBytes the maximum size of the cache directory in bytes.
+	 */
+	public CachingAudioFileIOImplementation(AudioFileIOImplementation decoder, File directory, long maxBytes) {
+		this(decoder, directory, maxBytes, AudioFileWriter.SampleFormat.PCM_16);
+	}
+
+	/**
+	 * Creates a new CachingAudioFileIOImplementation.
+	 *
+	 * @param decoder the implementation used to decode files.
+	 * @param directory the cache directory, which is created if necessary.
+	 * @param maxBytes the maximum size of the cache directory in bytes.
+	 * @param format the format of the cached audio, either {@link AudioFileWriter.SampleFormat#PCM_16} (the decoders
+	 * produce 16 bit audio, so nothing is lost) or {@link AudioFileWriter.SampleFormat#FLOAT_32}.
+	 */
+	public CachingAudioFileIOImplementation(AudioFileIOImplementation decoder, File directory, long maxBytes,
+			AudioFileWriter.SampleFormat format) {
+		if(format == AudioFileWriter.SampleFormat.PCM_24) {
+			throw new IllegalArgumentException("The cache only supports 16 bit and float audio");
+		}
+		this.decoder = decoder;
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.format = format;
+		directory.mkdirs();
+	}
+
+	/* (non-Javadoc)
+	 * @see net.beadsproject.beads.data.audiofile.AudioFileIOImplementation#getAudioFile(java.lang.String)
+	 */
+	@Override
+	public AudioFile getAudioFile(String filename) throws IOException, UnsupportedAudioFileException {
+		File source = new File(filename);
+		if(!source.isFile() || isUncompressed(filename)) {
+			return decoder.getAudioFile(filename);
+		}
+		File cached = getCacheFile(source);
+		if(cached.isFile()) {
+			try {
+				AudioFile af = open(cached, filename);
+				cached.setLastModified(System.currentTimeMillis());
+				hits++;
+				return af;
+			} catch(UnsupportedAudioFileException e) {
+				//a damaged cache file, so decode it again
+				cached.delete();
+			}
+		}
+		misses++;
+		try {
+			decode(filename, cached);
+		} catch(IOException e) {
+			//can't write to the cache, so carry on without it
+			e.printStackTrace();
+			return decoder.getAudioFile(filename);
+		}
+		cleanup(cached);
+		return open(cached, filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see net.beadsproject.beads.data.audiofile.AudioFileIOImplementation#getAudioFile(java.io.InputStream)
+	 */
+	@Override
+	public AudioFile getAudioFile(InputStream is) throws IOException, UnsupportedAudioFileException {
+		return decoder.getAudioFile(is);
+	}
+
+	/**
+	 * Opens a cache file, giving it the name of the original file.
+	 */
+	private AudioFile open(File cached, String filename) throws IOException, UnsupportedAudioFileException {
+		MappedAudioFile af = new MappedAudioFile(cached.getPath());
+		af.name = filename;
+		return af;
+	}
+
+	/**
+	 * Decodes a file into the cache. The audio is written to a temporary file which is then renamed, so that a cache
+	 * file is never seen half written.
+	 */
+	private void decode(String filename, File cached) throws IOException, UnsupportedAudioFileException {
+		File temp = File.createTempFile("decode", ".tmp", directory);
+		AudioFile af = null;
+		AudioFileWriter writer = null;
+		try {
+			af = decoder.getAudioFile(filename);
+			af.open();
+			int channels = af.getNumChannels();
+			writer = new AudioFileWriter(temp, AudioFileWriter.Type.WAV, format, channels, af.getFormat().sampleRate);
+			boolean bigEndian = af.getFormat().bigEndian;
+			byte[] bytes = new byte[4096 * 2 * channels];
+			float[] interleaved = null;
+			float[][] frames = null;
+			int bytesRead;
+			while((bytesRead = af.read(bytes)) != -1) {
+				int numFrames = bytesRead / (2 * channels);
+				if(numFrames == 0) continue;
+				if(format == AudioFileWriter.SampleFormat.PCM_16) {
+					//the decoders produce 16 bit audio, so copy it straight across, in WAV byte order
+					if(bigEndian) {
+						for(int i = 0; i < numFrames * 2 * channels; i += 2) {
+							byte b = bytes[i];
+							bytes[i] = bytes[i + 1];
+							bytes[i + 1] = b;
+						}
+					}
+					writer.writeBytes(bytes, 0, numFrames * 2 * channels);
+				} else {
+					if(frames == null) {
+						interleaved = new float[4096 * channels];
+						frames = new float[channels][4096];
+					}
+					AudioUtils.byteToFloat(interleaved, bytes, bigEndian, numFrames * channels);
+					AudioUtils.deinterleave(interleaved, channels, numFrames, frames);
+					writer.write(frames, 0, numFrames);
+				}
+			}
+			writer.close();
+			writer = null;
+			af.close();
+			af = null;
+			if(!temp.renameTo(cached)) {
+				//another thread or program got there first
+				if(!cached.isFile()) {
+					throw new IOException("Can't rename " + temp + " to " + cached);
+				}
+			}
+		} finally {
+			//only reached here with the writer or decoder open if something failed, so failures to close them
+			//are printed rather than thrown, leaving the original exception to be seen
+			if(writer != null) {
+				try {
+					writer.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if(af != null) {
+				try {
+					af.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used cache files until the cache is within its size limit. The file just added is kept.
+	 */
+	private synchronized void cleanup(File keep) {
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		long total = 0;
+		for(File f : files) {
+			total += f.length();
+		}
+		if(total <= maxBytes) return;
+		final long[] lastUsed = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for(int i = 0; i < files.length; i++) {
+			lastUsed[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lastUsed[a] < lastUsed[b] ? -1 : (lastUsed[a] > lastUsed[b] ? 1 : 0);
+			}
+		});
+		for(int i = 0; i < order.length && total > maxBytes; i++) {
+			File f = files[order[i]];
+			if(f.equals(keep) || !f.getName().endsWith(EXTENSION)) continue;
+			long length = f.length();
+			//files that are in use can't be deleted on some systems, in which case they are left for next time
+			if(f.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * Gets the cache file for a file.
+	 *
+	 * @param source the original file.
+	 * @return the cache file, which might not exist.
+	 */
+	public File getCacheFile(File source) {
+		String key = source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified() + "|" + format;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			StringBuffer name = new StringBuffer();
+			for(byte b : hash) {
+				name.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+			}
+			return new File(directory, name + EXTENSION);
+		} catch(NoSuchAlgorithmException e) {
+			return new File(directory, Integer.toHexString(key.hashCode()) + EXTENSION);
+		} catch(UnsupportedEncodingException e) {
+			return new File(directory, Integer.toHexString(key.hashCode()) + EXTENSION);
+		}
+	}
+
+	private static boolean isUncompressed(String filename) {
+		String lower = filename.toLowerCase();
+		return lower.endsWith(".wav") || lower.endsWith(".aif") || lower.endsWith(".aiff") || lower.endsWith(".aifc")
+			|| lower.endsWith(".au");
+	}
+
+	/**
+	 * Deletes every file in the cache.
+	 */
+	public synchronized void clear() {
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		for(File f : files) {
+			if(f.getName().endsWith(EXTENSION)) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Gets the cache directory.
+	 *
+	 * @return the directory.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the maximum size of the cache directory. Takes effect the next time a file is added.
+	 *
+	 * @param maxBytes the size in bytes.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets the maximum size of the cache directory.
+	 *
+	 * @return the size in bytes.
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Gets the number of files found in the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of files that had to be decoded.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the wrapped implementation.
+	 *
+	 * @return the implementation used to decode files.
+	 */
+	public AudioFileIOImplementation getDecoder() {
+		return decoder;
+	}
+
+}
@@ -31,6 +31,11 @@ import org.tritonus.share.sampled.file.TAudioFileFormat;
  * This will hopefull be fixed in the future, but until then 
  * resaving your .wavs with a different audio util may help.
  * 
+ * MP3 files are seeked using an {@link MP3FrameIndex}, which is built the first time 
+ * the file is skipped or seeked through, or when {@link #buildFrameIndex()} is called. 
+ * Seeking is then exact, including for variable bit rate files, and doesn't depend on 
+ * the distance or direction of the seek. See {@link #setFrameIndexing(boolean, boolean)}.
+ * 
  * @author ben
  */
 public class JavaSoundAudioFile extends AudioFile {
@@ -57,6 +62,13 @@ public class JavaSoundAudioFile extends AudioFile {
 	private boolean isEncoded = false; // is the audio file encoded 
 	private int bufferSize;	
 	
+	// mp3 seeking
+	private static boolean indexOnOpen = false;
+	private static boolean saveIndexes = false;
+	private MP3FrameIndex frameIndex;
+	private MP3FrameIndex.DecodedStream indexedStream; // non-null while the file is being decoded using the index
+	private boolean indexFailed = false;
+	
 	/**
 	 * Load an audio file from disk. 
 	 * The audiofile needs to be open()'ed before it's data can be read.
@@ -161,6 +173,12 @@ public class JavaSoundAudioFile extends AudioFile {
 	{
 		if (trace) System.err.printf("AudioFile \"%s\" reset\n",name);
 		
+		if (indexedStream!=null)
+		{
+			seekIndexed(0);
+			return;
+		}
+		
 		try{
 			if (encodedStream.markSupported())		
 			{		
@@ -193,9 +211,9 @@ public class JavaSoundAudioFile extends AudioFile {
 	/**
 	 * Skips a number of frames.
 	 * Note: this function skips frames, not bytes.
-	 * Doesn't work for vbr!
 	 * 
-	 * Known issue: MP3 seeking is not precise. Why?
+	 * MP3 files are skipped exactly, using a frame index. Other encoded files are skipped 
+	 * by a proportion of the file, which is not precise, and doesn't work for vbr!
 	 *
 	 * @param frames Number of frames to skip
 	 */
@@ -204,6 +222,12 @@ public class JavaSoundAudioFile extends AudioFile {
 		if (frames<=0) return;
 		if (trace) System.err.printf("AudioFile skip %d frames\n",frames);
 		
+		if (useFrameIndex())
+		{
+			seekIndexed(nTotalFramesRead + frames);
+			return;
+		}
+		
 		try {
 			if (isEncoded && nFrames!=AudioSystem.NOT_SPECIFIED)
 			{
@@ -248,7 +272,11 @@ public class JavaSoundAudioFile extends AudioFile {
 	 */
 	public void seek(int frame)
 	{
-		if (frame>=nTotalFramesRead)
+		if (useFrameIndex())
+		{
+			seekIndexed(frame);
+		}
+		else if (frame>=nTotalFramesRead)
 		{
 			skip(frame-nTotalFramesRead);
 		}
@@ -258,6 +286,110 @@ public class JavaSoundAudioFile extends AudioFile {
 			skip(frame);
 		}
 	}
+	
+	/**
+	 * Sets how MP3 files are indexed for seeking. By default, a file is indexed the first time 
+	 * it is skipped or seeked through, and the index is thrown away when the file is.
+	 * 
+	 * @param onOpen Index files when they are opened, which also gives them an exact length.
+	 * @param save Save indexes next to the files (with the extension {@value MP3FrameIndex#EXTENSION}), 
+	 *             and use saved indexes, so that each file is only scanned once.
+	 */
+	public static void setFrameIndexing(boolean onOpen, boolean save)
+	{
+		indexOnOpen = onOpen;
+		saveIndexes = save;
+	}
+	
+	/**
+	 * Builds the index used to seek in an MP3 file, if it hasn't been built already. If the file 
+	 * is open, the number of frames is not changed until it is next opened.
+	 * 
+	 * @return true if the file has an index, false if it can't be indexed (e.g., it isn't an MP3 file on disk).
+	 */
+	public boolean buildFrameIndex()
+	{
+		if (frameIndex==null && !indexFailed)
+		{
+			if (file==null || !audioFileFormat.properties().containsKey("mp3.version.layer"))
+			{
+				indexFailed = true;
+				return false;
+			}
+			try {
+				frameIndex = MP3FrameIndex.getIndex(file, saveIndexes);
+			} catch (IOException e) {
+				e.printStackTrace();
+				indexFailed = true;
+			}
+		}
+		return frameIndex!=null;
+	}
+	
+	/**
+	 * Gets the index used to seek in an MP3 file.
+	 * 
+	 * @return the index, or null if it hasn't been built.
+	 */
+	public MP3FrameIndex getFrameIndex()
+	{
+		return frameIndex;
+	}
+	
+	/// switches an open mp3 file over to decoding with the index, building it if necessary
+	private boolean useFrameIndex()
+	{
+		if (indexedStream!=null) return true;
+		if (!isEncoded || isClosed() || !buildFrameIndex()) return false;
+		try {
+			decodedStream.close();
+			encodedStream.close();
+			openIndexedStream();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			indexFailed = true;
+			frameIndex = null;
+			try {
+				reopen();
+			} catch (Exception e2) {
+				e2.printStackTrace();
+			}
+			return false;
+		}
+	}
+	
+	/// opens a stream that decodes the file using the index, in place of the javasound streams 
+	private void openIndexedStream() throws IOException
+	{
+		indexedStream = frameIndex.openStream(file, decodedFormat.isBigEndian());
+		encodedStream = decodedStream = new AudioInputStream(indexedStream, decodedFormat, AudioSystem.NOT_SPECIFIED);
+		finished = false;
+		nTotalFramesRead = 0;
+	}
+	
+	/// moves to a frame using the index
+	/// if the index can't be used, it is dropped and the file is reopened and skipped through like other encoded files
+	private void seekIndexed(long frame)
+	{
+		try {
+			indexedStream.seek(frame);
+			nTotalFramesRead = frame;
+			finished = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			indexFailed = true;
+			frameIndex = null;
+			try {
+				close();
+				reopen();
+			} catch (Exception e2) {
+				e2.printStackTrace();
+				return;
+			}
+			skip(frame);
+		}
+	}
 
 	/**
 	 * Opens the audio file, ready for data access.
@@ -290,7 +422,12 @@ public class JavaSoundAudioFile extends AudioFile {
 
 		audioInfo = decodedFormat.properties();
 		
-		if (AudioSystem.isConversionSupported(decodedFormat, encodedFormat))
+		// 16-bit PCM needs no decoding (newer JavaSound versions claim to support the trivial conversion, 
+		// which would lose the length of the file)
+		boolean isPCM16 = encodedFormat.getEncoding() == javax.sound.sampled.AudioFormat.Encoding.PCM_SIGNED 
+			&& encodedFormat.getSampleSizeInBits() == bitDepth;
+		
+		if (!isPCM16 && AudioSystem.isConversionSupported(decodedFormat, encodedFormat))
 		{
 			isEncoded = true;
 			decodedStream = AudioSystem.getAudioInputStream(decodedFormat, encodedStream);
@@ -306,7 +443,19 @@ public class JavaSoundAudioFile extends AudioFile {
 			else
 			{
 				nFrames = (long)(decodedFormat.getSampleRate() * (getLength()/1000.));
-			}			
+			}
+			
+			if (frameIndex!=null || indexOnOpen)
+			{
+				if (buildFrameIndex())
+				{
+					decodedStream.close();
+					encodedStream.close();
+					openIndexedStream();
+					nFrames = frameIndex.getNumFrames();
+					setLength(1000.f * nFrames / decodedFormat.getSampleRate());
+				}
+			}
 		}
 		else
 		{
@@ -334,7 +483,7 @@ public class JavaSoundAudioFile extends AudioFile {
 			System.err.println("Error with frame size calculation.");
 		}		
 		
-		if (file != null && encodedStream.markSupported()) {
+		if (file != null && indexedStream == null && encodedStream.markSupported()) {
 			encodedStream.mark(Math.min(bufferSize,(int) file.length()));
 		}
 		
@@ -349,6 +498,12 @@ public class JavaSoundAudioFile extends AudioFile {
 		finished = false;
 		nTotalFramesRead = 0;
 		
+		if (isEncoded && frameIndex!=null)
+		{
+			openIndexedStream();
+			return;
+		}
+		
 //		if (file.exists())
 		encodedStream = getStream();
 		if (isEncoded)		
@@ -392,7 +547,7 @@ public class JavaSoundAudioFile extends AudioFile {
 	{
 		if (trace) System.err.printf("AudioFile \"%s\" closing\n",name);
 		
-		if (isEncoded)
+		if (isEncoded && decodedStream!=null)
 			decodedStream.close();
 		
 		if (encodedStream!=null)
@@ -402,6 +557,7 @@ public class JavaSoundAudioFile extends AudioFile {
 		}
 		
 		decodedStream = null;		
+		indexedStream = null;
 	}
 
 	/**
@@ -0,0 +1,575 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.SampleBuffer;
+
+/**
+ * MP3FrameIndex is a table of the position in the file of every MPEG audio frame of an MP3 (or MP2) file, which makes it
+ * possible to seek to any sample frame exactly and quickly, for constant and variable bit rate files alike.
+ * {@link JavaSoundAudioFile} builds one the first time an MP3 file is skipped or seeked through (or when
+ * {@link JavaSoundAudioFile#buildFrameIndex()} is called), and from then on decodes the file itself, starting from the
+ * nearest MPEG frame, rather than skipping a proportion of the file's bytes or decoding from the start.
+ *
+ * </p>Building an index reads through the whole file once, but only parses the frame headers, which is much faster than
+ * decoding. Indexes can be saved next to the file they belong to (see {@link #getIndex(File, boolean)}), so that the scan
+ * happens only once. A saved index records the size and modification time of the file, and is ignored if the file changes.
+ *
+ * </p>Every frame decodes to the same number of sample frames, so the MPEG frame containing a given sample frame is found
+ * by division. Decoding has to start a little before that frame, since the decoder carries state from one frame to the
+ * next (the bit reservoir of layer III, and the overlap of the filterbanks), so a seek decodes a few extra frames, which
+ * are thrown away; the result is identical to decoding the file from the start.
+ */
+public class MP3FrameIndex {
+
+	/** The extension added to the name of a file to get the name of its saved index. */
+	public static final String EXTENSION = ".seek";
+
+	/** Identifies saved indexes. */
+	private static final int MAGIC = 0x42534958;
+
+	/** The version of the saved index format. */
+	private static final int VERSION = 1;
+
+	/** The largest number of bytes of main data that a layer III frame can borrow from earlier frames. */
+	private static final int MAX_RESERVOIR = 511;
+
+	/** The largest number of bytes in a frame that aren't main data (header, CRC and side information). */
+	private static final int MAX_OVERHEAD = 4 + 2 + 32;
+
+	/** Bit rates in kbit/s, indexed by [MPEG 1 or not][layer - 1][bitrate index]. */
+	private static final int[][][] BITRATES = {
+		{ // MPEG 2 and 2.5
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+		},
+		{ // MPEG 1
+			{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+			{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+		}
+	};
+
+	/** Sample rates of MPEG 1, which are halved for MPEG 2 and quartered for MPEG 2.5. */
+	private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+	/** The size and modification time of the file when it was indexed. */
+	private final long fileLength, lastModified;
+
+	/** The position of each frame in the file. */
+	private final long[] offsets;
+
+	/** The number of sample frames that each MPEG frame decodes to. */
+	private final int samplesPerFrame;
+
+	/** The layer (1, 2 or 3). */
+	private final int layer;
+
+	/** The sample rate. */
+	private final int sampleRate;
+
+	/** The number of channels. */
+	private final int channels;
+
+	private MP3FrameIndex(long fileLength, long lastModified, long[] offsets, int layer, int samplesPerFrame, int sampleRate,
+			int channels) {
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.offsets = offsets;
+		this.layer = layer;
+		this.samplesPerFrame = samplesPerFrame;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+	}
+
+	/**
+	 * Gets the index of a file, either by loading the index saved next to it or by scanning the file. If the file is
+	 * scanned and save is true, the new index is saved next to the file.
+	 *
+	 * @param file the MP3 file.
+	 * @param save whether to look for a saved index, and save a new one.
+	 * @return the index.
+	 * @throws IOException if the file can't be read or isn't an MPEG audio file that can be indexed.
+	 */
+	public static MP3FrameIndex getIndex(File file, boolean save) throws IOException {
+		File indexFile = new File(file.getPath() + EXTENSION);
+		if(save && indexFile.isFile()) {
+			MP3FrameIndex index = load(indexFile);
+			if(index != null && index.isIndexOf(file)) {
+				return index;
+			}
+		}
+		MP3FrameIndex index = scan(file);
+		if(save) {
+			try {
+				index.save(indexFile);
+			} catch(IOException e) {
+				//the index is only an optimisation, so a file that can't be written (e.g., in a read-only folder) is left
+				indexFile.delete();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Builds the index of a file by reading through its frame headers.
+	 *
+	 * @param file the MP3 file.
+	 * @return the index.
+	 * @throws IOException if the file can't be read or isn't an MPEG audio file that can be indexed.
+	 */
+	public static MP3FrameIndex scan(File file) throws IOException {
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			long pos = 0;
+			long[] offsets = new long[1024];
+			int count = 0;
+			//the version, layer, sample rate and mode of the first frame, which every other frame must share
+			int first = -1;
+			int layer = 0, samplesPerFrame = 0, sampleRate = 0, channels = 0;
+			byte[] header = new byte[10];
+			in.mark(10);
+			if(readFully(in, header, 10) == 10 && header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+				//skip the ID3v2 tag, whose size is stored as four 7 bit bytes
+				long size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14) | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+				if((header[5] & 0x10) != 0) size += 10; //footer
+				pos = 10 + skipFully(in, size);
+			} else {
+				in.reset();
+			}
+			int b = 0, prev = 0;
+			while(true) {
+				//find the next frame sync
+				prev = b;
+				b = in.read();
+				if(b < 0) break;
+				pos++;
+				if(prev != 0xFF || (b & 0xE0) != 0xE0) continue;
+				in.mark(2);
+				int b2 = in.read(), b3 = in.read();
+				if(b3 < 0) break;
+				int h = 0xFF000000 | (b << 16) | (b2 << 8) | b3;
+				int frameLength = getFrameLength(h);
+				if(frameLength <= 0 || (first != -1 && (h & 0xFFFE0C00) != (first & 0xFFFE0C00))
+						|| pos - 2 + frameLength > fileLength) {
+					//not a frame header after all (or one cut short by the end of the file), so keep looking
+					in.reset();
+					continue;
+				}
+				if(first == -1) {
+					first = h;
+					int version = (h >> 19) & 3;
+					layer = 4 - ((h >> 17) & 3);
+					sampleRate = SAMPLE_RATES[(h >> 10) & 3] >> (version == 3 ? 0 : (version == 2 ? 1 : 2));
+					samplesPerFrame = layer == 1 ? 384 : (layer == 3 && version != 3 ? 576 : 1152);
+					channels = ((h >> 6) & 3) == 3 ? 1 : 2;
+				}
+				if(count == offsets.length) {
+					long[] bigger = new long[count * 2];
+					System.arraycopy(offsets, 0, bigger, 0, count);
+					offsets = bigger;
+				}
+				offsets[count++] = pos - 2;
+				//the rest of the frame, after the four header bytes
+				skipFully(in, frameLength - 4);
+				pos += frameLength - 2;
+				b = 0;
+			}
+			if(count == 0) {
+				throw new IOException("No MPEG audio frames found in " + file);
+			}
+			long[] trimmed = new long[count];
+			System.arraycopy(offsets, 0, trimmed, 0, count);
+			return new MP3FrameIndex(fileLength, lastModified, trimmed, layer, samplesPerFrame, sampleRate, channels);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the length in bytes of the frame with the given header.
+	 *
+	 * @return the length, or -1 if the header isn't valid (including free format frames, which can't be indexed).
+	 */
+	private static int getFrameLength(int h) {
+		int version = (h >> 19) & 3;
+		int layer = 4 - ((h >> 17) & 3);
+		int bitrateIndex = (h >> 12) & 15;
+		int sampleRateIndex = (h >> 10) & 3;
+		int padding = (h >> 9) & 1;
+		if(version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+			return -1;
+		}
+		int mpeg1 = version == 3 ? 1 : 0;
+		int bitrate = BITRATES[mpeg1][layer - 1][bitrateIndex] * 1000;
+		int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (version == 3 ? 0 : (version == 2 ? 1 : 2));
+		if(layer == 1) {
+			return (12 * bitrate / sampleRate + padding) * 4;
+		} else if(layer == 3 && mpeg1 == 0) {
+			return 72 * bitrate / sampleRate + padding;
+		} else {
+			return 144 * bitrate / sampleRate + padding;
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] b, int length) throws IOException {
+		int total = 0;
+		while(total < length) {
+			int n = in.read(b, total, length - total);
+			if(n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static long skipFully(InputStream in, long n) throws IOException {
+		long total = 0;
+		while(total < n) {
+			long skipped = in.skip(n - total);
+			if(skipped <= 0) {
+				if(in.read() < 0) break;
+				skipped = 1;
+			}
+			total += skipped;
+		}
+		return total;
+	}
+
+	/**
+	 * Loads a saved index.
+	 *
+	 * @param indexFile the saved index.
+	 * @return the index, or null if the file isn't a saved index.
+	 * @throws IOException if the file can't be read.
+	 */
+	public static MP3FrameIndex load(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long fileLength = in.readLong();
+			long lastModified = in.readLong();
+			int layer = in.readInt();
+			int samplesPerFrame = in.readInt();
+			int sampleRate = in.readInt();
+			int channels = in.readInt();
+			int count = in.readInt();
+			long[] offsets = new long[count];
+			long offset = in.readLong();
+			for(int i = 0; i < count; i++) {
+				//stored as the distance from the previous frame
+				offset += in.readInt();
+				offsets[i] = offset;
+			}
+			return new MP3FrameIndex(fileLength, lastModified, offsets, layer, samplesPerFrame, sampleRate, channels);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the index.
+	 *
+	 * @param indexFile the file to save to.
+	 * @throws IOException if the file can't be written.
+	 */
+	public void save(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeInt(layer);
+			out.writeInt(samplesPerFrame);
+			out.writeInt(sampleRate);
+			out.writeInt(channels);
+			out.writeInt(offsets.length);
+			out.writeLong(offsets[0]);
+			long offset = offsets[0];
+			for(int i = 0; i < offsets.length; i++) {
+				out.writeInt((int)(offsets[i] - offset));
+				offset = offsets[i];
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Checks whether this is an up to date index of the given file.
+	 *
+	 * @param file the file.
+	 * @return true if the file has the same size and modification time as when it was indexed.
+	 */
+	public boolean isIndexOf(File file) {
+		return file.length() == fileLength && file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Gets the number of MPEG frames in the file.
+	 *
+	 * @return the number of MPEG frames.
+	 */
+	public int getNumMPEGFrames() {
+		return offsets.length;
+	}
+
+	/**
+	 * Gets the position in the file of an MPEG frame.
+	 *
+	 * @param mpegFrame the MPEG frame.
+	 * @return the position in bytes.
+	 */
+	public long getOffset(int mpegFrame) {
+		return offsets[mpegFrame];
+	}
+
+	/**
+	 * Gets the number of sample frames that each MPEG frame decodes to.
+	 *
+	 * @return the number of sample frames.
+	 */
+	public int getSamplesPerMPEGFrame() {
+		return samplesPerFrame;
+	}
+
+	/**
+	 * Gets the exact number of sample frames in the decoded file.
+	 *
+	 * @return the number of sample frames.
+	 */
+	public long getNumFrames() {
+		return (long)offsets.length * samplesPerFrame;
+	}
+
+	/**
+	 * Gets the sample rate.
+	 *
+	 * @return the sample rate.
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Gets the number of channels.
+	 *
+	 * @return the number of channels.
+	 */
+	public int getNumChannels() {
+		return channels;
+	}
+
+	/**
+	 * Gets the MPEG frame that contains a sample frame.
+	 *
+	 * @param frame the sample frame.
+	 * @return the MPEG frame.
+	 */
+	public int getMPEGFrame(long frame) {
+		return (int)Math.min(frame / samplesPerFrame, offsets.length);
+	}
+
+	/**
+	 * Gets the MPEG frame to start decoding from in order to decode an MPEG frame exactly. The filterbanks need the
+	 * previous 512 sample frames, and a layer III frame can use up to 511 bytes of data from the frames before it. Also, the
+	 * previous layer III frame must itself be decoded exactly, since half of its output overlaps this frame.
+	 *
+	 * @param mpegFrame the MPEG frame to decode.
+	 * @return the MPEG frame to start from.
+	 */
+	public int getStartFrame(int mpegFrame) {
+		int start = mpegFrame;
+		while(start > 0 && (mpegFrame - start) * samplesPerFrame < 512) {
+			start--;
+		}
+		if(layer == 3 && start > 0) {
+			//go back far enough to cover the data the previous frame borrows
+			int previous = mpegFrame - 1;
+			start = Math.min(start, previous);
+			while(start > 0 && offsets[previous] - offsets[start] - (long)(previous - start) * MAX_OVERHEAD < MAX_RESERVOIR) {
+				start--;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Opens a stream of the decoded audio of a file, as 16 bit samples, which can seek to any sample frame.
+	 *
+	 * @param file the file, which must be the one indexed.
+	 * @param bigEndian the byte order of the decoded samples.
+	 * @return the stream, positioned at the start.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public DecodedStream openStream(File file, boolean bigEndian) throws IOException {
+		return new DecodedStream(file, bigEndian);
+	}
+
+	/**
+	 * A stream of the decoded audio of an indexed file, which can seek to any sample frame.
+	 */
+	public class DecodedStream extends InputStream {
+
+		private final FileInputStream file;
+		private final boolean bigEndian;
+		private Bitstream bitstream;
+		private Decoder decoder;
+
+		/** The decoded bytes of the current MPEG frame. */
+		private byte[] pending;
+		private int pendingPos, pendingLength;
+
+		/** The next MPEG frame to decode. */
+		private int nextFrame;
+
+		/** The MPEG frame that was seeked to, and the number of its sample frames to skip. */
+		private int targetFrame, skipFrames;
+
+		/** The current position in sample frames. */
+		private long position;
+
+		private DecodedStream(File file, boolean bigEndian) throws IOException {
+			this.file = new FileInputStream(file);
+			this.bigEndian = bigEndian;
+			pending = new byte[samplesPerFrame * channels * 2];
+			seek(0);
+		}
+
+		/**
+		 * Moves to a sample frame. Positions beyond the end of the file are at the end.
+		 *
+		 * @param frame the sample frame.
+		 * @throws IOException if the file can't be read.
+		 */
+		public void seek(long frame) throws IOException {
+			frame = Math.max(0, Math.min(frame, getNumFrames()));
+			int mpegFrame = getMPEGFrame(frame);
+			int start = getStartFrame(mpegFrame);
+			pendingPos = pendingLength = 0;
+			position = frame;
+			if(mpegFrame == offsets.length) {
+				nextFrame = mpegFrame;
+				bitstream = null;
+				return;
+			}
+			//the old bitstream is dropped rather than closed, which would close the file
+			file.getChannel().position(offsets[start]);
+			bitstream = new Bitstream(new BufferedInputStream(file, 16384));
+			//a new decoder, since an old bit reservoir would be decoded as if it came before the new position
+			decoder = new Decoder();
+			nextFrame = start;
+			targetFrame = mpegFrame;
+			skipFrames = (int)(frame - (long)mpegFrame * samplesPerFrame);
+		}
+
+		/**
+		 * Gets the current position.
+		 *
+		 * @return the position in sample frames.
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Decodes the next MPEG frame into the pending bytes.
+		 *
+		 * @return false at the end of the file.
+		 */
+		private boolean decodeFrame() throws IOException {
+			while(true) {
+				if(bitstream == null || nextFrame >= offsets.length) {
+					return false;
+				}
+				try {
+					Header header = bitstream.readFrame();
+					if(header == null) {
+						return false;
+					}
+					SampleBuffer output = (SampleBuffer)decoder.decodeFrame(header, bitstream);
+					bitstream.closeFrame();
+					if(nextFrame++ < targetFrame) {
+						//decoded only to set up the decoder (and possibly silent, if it needed data from before the start)
+						continue;
+					}
+					short[] samples = output.getBuffer();
+					int length = output.getBufferLength();
+					int start = nextFrame - 1 == targetFrame ? Math.min(skipFrames * channels, length) : 0;
+					int j = 0;
+					for(int i = start; i < length; i++) {
+						short s = samples[i];
+						pending[j++] = (byte)(bigEndian ? (s >> 8) : s);
+						pending[j++] = (byte)(bigEndian ? s : (s >> 8));
+					}
+					pendingPos = 0;
+					pendingLength = j;
+					if(j > 0) {
+						return true;
+					}
+				} catch(BitstreamException e) {
+					throw new IOException(e.getMessage());
+				} catch(DecoderException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int total = 0;
+			while(total < len) {
+				if(pendingPos == pendingLength && !decodeFrame()) {
+					break;
+				}
+				int n = Math.min(len - total, pendingLength - pendingPos);
+				System.arraycopy(pending, pendingPos, b, off + total, n);
+				pendingPos += n;
+				total += n;
+			}
+			position += total / (2 * channels);
+			return total == 0 && len > 0 ? -1 : total;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = position;
+			long target = Math.min(start + n / (2 * channels), getNumFrames());
+			seek(target);
+			return (target - start) * 2 * channels;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+}
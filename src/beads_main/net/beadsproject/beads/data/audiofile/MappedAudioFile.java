@@ -0,0 +1,495 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.data.audiofile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import net.beadsproject.beads.data.SampleAudioFormat;
+
+/**
+ * A MappedAudioFile gives random access to an uncompressed WAV or AIFF file on disk by memory mapping its audio data. Frames
+ * are decoded straight from the mapping, so opening a file costs the same however long it is, no audio data is copied onto the
+ * heap, and the operating system's page cache is shared by every Sample (and every process) reading the same file. Seeking
+ * is O(1) in both directions.
+ *
+ * </p>The following encodings are supported: 8, 16, 24 and 32 bit integer PCM and 32 and 64 bit float, in WAV (including
+ * WAVE_FORMAT_EXTENSIBLE), AIFF and uncompressed AIFF-C ('NONE', 'sowt', 'fl32' and 'fl64'). Anything else causes an
+ * UnsupportedAudioFileException, in which case the file should be read with a {@link JavaSoundAudioFile} instead.
+ *
+ * </p>{@link #getFrame(long, float[])} and {@link #getFrames(long, float[][], int, int)} don't use the file position and
+ * may be called from any number of threads at once. The stream style methods inherited from AudioFile ({@link #read(byte[])},
+ * {@link #read(float[][])}, {@link #seek(int)}, etc.) share a single position. As for other AudioFiles, {@link #read(byte[])}
+ * delivers 16 bit data, as described by {@link #getFormat()}; the format of the file itself is given by
+ * {@link #getNativeFormat()}.
+ *
+ * </p>Files larger than 2GB are mapped in several segments.
+ *
+ * @see net.beadsproject.beads.data.Sample.MappedRegime
+ */
+public class MappedAudioFile extends AudioFile {
+
+	/** Encodings. */
+	private static final int PCM_U8 = 0, PCM_S8 = 1, PCM_16 = 2, PCM_24 = 3, PCM_32 = 4, FLOAT_32 = 5, FLOAT_64 = 6;
+
+	/** The file. */
+	private final File file;
+
+	/** The format of the audio data in the file. */
+	private final SampleAudioFormat nativeFormat;
+
+	/** The encoding, one of the constants above. */
+	private final int encoding;
+
+	/** The position of the audio data in the file, in bytes. */
+	private final long dataOffset;
+
+	/** The number of bytes per frame in the file. */
+	private final int bytesPerFrame;
+
+	/** The number of bytes per sample in the file. */
+	private final int bytesPerSample;
+
+	/** Frames per segment, as a power of two, and the mask for the position within a segment. */
+	private final int segmentShift;
+	private final long segmentMask;
+
+	/** The mapped segments, or null if the file isn't open. */
+	private volatile ByteBuffer[] segments;
+
+	/** The stream position, in frames. */
+	private long position;
+
+	/**
+	 * Creates a new MappedAudioFile, reading the file's header. The file needs to be {@link #open() opened} before its data
+	 * can be read.
+	 *
+	 * @param filename the name of the file.
+	 * @throws IOException if the file can't be read.
+	 * @throws UnsupportedAudioFileException if the file isn't an uncompressed WAV or AIFF file.
+	 */
+	public MappedAudioFile(String filename) throws IOException, UnsupportedAudioFileException {
+		file = new File(filename);
+		name = file.getAbsolutePath();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] id = new byte[12];
+			raf.readFully(id);
+			String riff = new String(id, 0, 4, "US-ASCII");
+			String form = new String(id, 8, 4, "US-ASCII");
+			Header h;
+			if(riff.equals("RIFF") && form.equals("WAVE")) {
+				h = readWavHeader(raf);
+			} else if(riff.equals("FORM") && (form.equals("AIFF") || form.equals("AIFC"))) {
+				h = readAiffHeader(raf, form.equals("AIFC"));
+			} else {
+				throw new UnsupportedAudioFileException(name + " is not a WAV or AIFF file.");
+			}
+			if(h.dataOffset < 0 || h.channels <= 0 || h.sampleRate <= 0) {
+				throw new UnsupportedAudioFileException(name + " has no audio data.");
+			}
+			encoding = h.encoding;
+			bytesPerSample = h.bits / 8;
+			bytesPerFrame = bytesPerSample * h.channels;
+			dataOffset = h.dataOffset;
+			//trust the file length over the header, which is often wrong for files that weren't closed properly
+			long available = Math.max(0, raf.length() - dataOffset);
+			long dataBytes = h.dataBytes < 0 ? available : Math.min(h.dataBytes, available);
+			nFrames = dataBytes / bytesPerFrame;
+			nativeFormat = new SampleAudioFormat(h.sampleRate, h.bits, h.channels, encoding != PCM_U8, h.bigEndian);
+			audioFormat = new SampleAudioFormat(h.sampleRate, 16, h.channels, true, h.bigEndian);
+			length = 1000f * nFrames / h.sampleRate;
+		} finally {
+			raf.close();
+		}
+		//largest power of two number of frames that fits into 1GB
+		segmentShift = 30 - (32 - Integer.numberOfLeadingZeros(bytesPerFrame - 1));
+		segmentMask = (1L << segmentShift) - 1;
+		audioInfo = new HashMap<String, Object>();
+		audioInfo.put("encoding", encoding == FLOAT_32 || encoding == FLOAT_64 ? "PCM_FLOAT" : "PCM");
+		audioInfo.put("bits", nativeFormat.bitDepth);
+	}
+
+	/** The fields read from a header. */
+	private static class Header {
+		int channels, bits, encoding = -1;
+		float sampleRate;
+		boolean bigEndian;
+		long dataOffset = -1, dataBytes = -1;
+	}
+
+	private Header readWavHeader(RandomAccessFile raf) throws IOException, UnsupportedAudioFileException {
+		Header h = new Header();
+		h.bigEndian = false;
+		int tag = -1;
+		long pos = 12;
+		long end = raf.length();
+		byte[] b = new byte[40];
+		while(pos + 8 <= end && h.dataOffset < 0) {
+			raf.seek(pos);
+			raf.readFully(b, 0, 8);
+			String chunk = new String(b, 0, 4, "US-ASCII");
+			long size = le32(b, 4);
+			if(chunk.equals("fmt ")) {
+				int n = (int)Math.min(size, b.length);
+				raf.readFully(b, 0, n);
+				tag = le16(b, 0);
+				h.channels = le16(b, 2);
+				h.sampleRate = le32(b, 4);
+				h.bits = le16(b, 14);
+				if(tag == 0xFFFE && n >= 26) {
+					//WAVE_FORMAT_EXTENSIBLE: the real format tag starts the sub format GUID
+					tag = le16(b, 24);
+				}
+			} else if(chunk.equals("data")) {
+				h.dataOffset = pos + 8;
+				//a size of 0 or 0xFFFFFFFF usually means the length was never filled in
+				h.dataBytes = size == 0 || size == 0xFFFFFFFFL ? -1 : size;
+			}
+			pos += 8 + size + (size & 1);
+		}
+		if(tag == 1) {
+			switch(h.bits) {
+			case 8: h.encoding = PCM_U8; break;
+			case 16: h.encoding = PCM_16; break;
+			case 24: h.encoding = PCM_24; break;
+			case 32: h.encoding = PCM_32; break;
+			}
+		} else if(tag == 3) {
+			if(h.bits == 32) h.encoding = FLOAT_32;
+			else if(h.bits == 64) h.encoding = FLOAT_64;
+		}
+		if(h.encoding < 0) {
+			throw new UnsupportedAudioFileException(name + " is not uncompressed PCM (format " + tag + ", " + h.bits + " bits).");
+		}
+		return h;
+	}
+
+	private Header readAiffHeader(RandomAccessFile raf, boolean aifc) throws IOException, UnsupportedAudioFileException {
+		Header h = new Header();
+		h.bigEndian = true;
+		String compression = "NONE";
+		long pos = 12;
+		long end = raf.length();
+		byte[] b = new byte[30];
+		boolean haveComm = false;
+		while(pos + 8 <= end && (!haveComm || h.dataOffset < 0)) {
+			raf.seek(pos);
+			raf.readFully(b, 0, 8);
+			String chunk = new String(b, 0, 4, "US-ASCII");
+			long size = be32(b, 4);
+			if(chunk.equals("COMM")) {
+				int n = (int)Math.min(size, b.length);
+				raf.readFully(b, 0, n);
+				h.channels = be16(b, 0);
+				h.bits = be16(b, 6);
+				h.sampleRate = (float)extended(b, 8);
+				if(aifc && n >= 22) {
+					compression = new String(b, 18, 4, "US-ASCII");
+				}
+				haveComm = true;
+			} else if(chunk.equals("SSND")) {
+				raf.readFully(b, 0, 8);
+				long offset = be32(b, 0);
+				h.dataOffset = pos + 16 + offset;
+				h.dataBytes = size == 0 ? -1 : size - 8 - offset;
+			}
+			pos += 8 + size + (size & 1);
+		}
+		//round the sample size up to whole bytes, as AIFF stores samples left justified
+		h.bits = (h.bits + 7) / 8 * 8;
+		if(compression.equals("NONE") || compression.equals("twos") || compression.equals("sowt")) {
+			h.bigEndian = !compression.equals("sowt");
+			switch(h.bits) {
+			case 8: h.encoding = PCM_S8; break;
+			case 16: h.encoding = PCM_16; break;
+			case 24: h.encoding = PCM_24; break;
+			case 32: h.encoding = PCM_32; break;
+			}
+		} else if(compression.equalsIgnoreCase("fl32")) {
+			h.bits = 32;
+			h.encoding = FLOAT_32;
+		} else if(compression.equalsIgnoreCase("fl64")) {
+			h.bits = 64;
+			h.encoding = FLOAT_64;
+		}
+		if(h.encoding < 0) {
+			throw new UnsupportedAudioFileException(name + " is not uncompressed PCM (" + compression + ", " + h.bits + " bits).");
+		}
+		return h;
+	}
+
+	/**
+	 * Maps the file. Does nothing if it is already open.
+	 *
+	 * @throws IOException if the file can't be mapped.
+	 */
+	public synchronized void open() throws IOException {
+		if(segments != null) return;
+		if(trace) System.err.printf("MappedAudioFile \"%s\" open\n", name);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long segmentFrames = 1L << segmentShift;
+			int count = (int)((nFrames + segmentFrames - 1) / segmentFrames);
+			ByteBuffer[] mapped = new ByteBuffer[Math.max(count, 1)];
+			if(count == 0) {
+				mapped[0] = ByteBuffer.allocate(0);
+			}
+			for(int i = 0; i < count; i++) {
+				long frames = Math.min(segmentFrames, nFrames - i * segmentFrames);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + i * segmentFrames * bytesPerFrame,
+						frames * bytesPerFrame);
+				buf.order(nativeFormat.bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+				mapped[i] = buf;
+			}
+			segments = mapped;
+		} finally {
+			//the mapping stays valid after the channel is closed
+			raf.close();
+		}
+		position = 0;
+	}
+
+	/**
+	 * Releases the mapping. The memory is actually unmapped when the garbage collector next runs.
+	 */
+	public synchronized void close() {
+		if(trace) System.err.printf("MappedAudioFile \"%s\" closing\n", name);
+		segments = null;
+	}
+
+	public boolean isClosed() {
+		return segments == null;
+	}
+
+	/**
+	 * Reads a single frame, decoding it from the mapped file. Does nothing if the frame is out of range.
+	 *
+	 * @param frame the frame.
+	 * @param frameData the array to fill, with at least one element per channel.
+	 */
+	public void getFrame(long frame, float[] frameData) {
+		ByteBuffer[] segments = this.segments;
+		if(frame < 0 || frame >= nFrames || segments == null) return;
+		ByteBuffer buf = segments[(int)(frame >> segmentShift)];
+		int index = (int)(frame & segmentMask) * bytesPerFrame;
+		for(int c = 0; c < nativeFormat.channels; c++) {
+			frameData[c] = decode(buf, index);
+			index += bytesPerSample;
+		}
+	}
+
+	/**
+	 * Reads a series of frames, decoding them from the mapped file. Frames beyond the end of the file aren't touched.
+	 *
+	 * @param frame the first frame.
+	 * @param frameData the arrays to fill, as [channel][frame].
+	 * @param offset the position in frameData of the first frame.
+	 * @param frames the number of frames.
+	 * @return the number of frames read.
+	 */
+	public int getFrames(long frame, float[][] frameData, int offset, int frames) {
+		ByteBuffer[] segments = this.segments;
+		if(segments == null || frame < 0) return 0;
+		int total = (int)Math.max(0, Math.min(frames, nFrames - frame));
+		int done = 0;
+		while(done < total) {
+			long f = frame + done;
+			ByteBuffer buf = segments[(int)(f >> segmentShift)];
+			int start = (int)(f & segmentMask);
+			int n = (int)Math.min(total - done, (1L << segmentShift) - start);
+			for(int c = 0; c < nativeFormat.channels; c++) {
+				decode(buf, start * bytesPerFrame + c * bytesPerSample, frameData[c], offset + done, n);
+			}
+			done += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Decodes one sample.
+	 */
+	private float decode(ByteBuffer buf, int i) {
+		switch(encoding) {
+		case PCM_16:
+			return buf.getShort(i) / 32768f;
+		case PCM_24:
+			return int24(buf, i) / 8388608f;
+		case PCM_32:
+			return buf.getInt(i) / 2147483648f;
+		case FLOAT_32:
+			return buf.getFloat(i);
+		case FLOAT_64:
+			return (float)buf.getDouble(i);
+		case PCM_U8:
+			return ((buf.get(i) & 0xFF) - 128) / 128f;
+		default:
+			return buf.get(i) / 128f;
+		}
+	}
+
+	/**
+	 * Decodes a run of samples from one channel, with the switch outside the loop.
+	 */
+	private void decode(ByteBuffer buf, int i, float[] out, int offset, int n) {
+		int stride = bytesPerFrame;
+		int end = offset + n;
+		switch(encoding) {
+		case PCM_16:
+			for(int k = offset; k < end; k++, i += stride) out[k] = buf.getShort(i) / 32768f;
+			break;
+		case PCM_24:
+			for(int k = offset; k < end; k++, i += stride) out[k] = int24(buf, i) / 8388608f;
+			break;
+		case PCM_32:
+			for(int k = offset; k < end; k++, i += stride) out[k] = buf.getInt(i) / 2147483648f;
+			break;
+		case FLOAT_32:
+			for(int k = offset; k < end; k++, i += stride) out[k] = buf.getFloat(i);
+			break;
+		default:
+			for(int k = offset; k < end; k++, i += stride) out[k] = decode(buf, i);
+		}
+	}
+
+	private int int24(ByteBuffer buf, int i) {
+		if(nativeFormat.bigEndian) {
+			return (buf.get(i) << 16) | ((buf.get(i + 1) & 0xFF) << 8) | (buf.get(i + 2) & 0xFF);
+		} else {
+			return (buf.get(i + 2) << 16) | ((buf.get(i + 1) & 0xFF) << 8) | (buf.get(i) & 0xFF);
+		}
+	}
+
+	/**
+	 * Reads 16 bit frames (as described by {@link #getFormat()}) from the current position.
+	 *
+	 * @param buffer a buffer to fill with whole frames.
+	 * @return the number of bytes read, or -1 at the end of the file.
+	 */
+	public int read(byte[] buffer) {
+		ByteBuffer[] segments = this.segments;
+		if(segments == null || position >= nFrames) return -1;
+		int channels = nativeFormat.channels;
+		int frames = (int)Math.min(buffer.length / (2 * channels), nFrames - position);
+		boolean bigEndian = audioFormat.bigEndian;
+		int b = 0;
+		for(int f = 0; f < frames; f++, position++) {
+			ByteBuffer buf = segments[(int)(position >> segmentShift)];
+			int index = (int)(position & segmentMask) * bytesPerFrame;
+			for(int c = 0; c < channels; c++, index += bytesPerSample) {
+				int s;
+				if(encoding == PCM_16) {
+					s = buf.getShort(index);
+				} else {
+					s = (int)(32768f * decode(buf, index));
+					s = s > 32767 ? 32767 : (s < -32768 ? -32768 : s);
+				}
+				if(bigEndian) {
+					buffer[b++] = (byte)(s >> 8);
+					buffer[b++] = (byte)s;
+				} else {
+					buffer[b++] = (byte)s;
+					buffer[b++] = (byte)(s >> 8);
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Reads frames from the current position.
+	 *
+	 * @param buffer the buffer to fill, as [channel][frame].
+	 * @return the number of frames read.
+	 */
+	public int read(float[][] buffer) {
+		int n = getFrames(position, buffer, 0, buffer[0].length);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Moves the position back to the start. Doesn't involve any disk access.
+	 */
+	public void reset() {
+		position = 0;
+	}
+
+	/**
+	 * Skips a number of frames. Doesn't involve any disk access.
+	 *
+	 * @param frames the number of frames to skip.
+	 */
+	public void skip(long frames) {
+		position += frames;
+	}
+
+	/**
+	 * Moves to a specific frame. Unlike other AudioFiles, this takes the same (negligible) time in either direction.
+	 *
+	 * @param frame the frame.
+	 */
+	public void seek(int frame) {
+		position = frame;
+	}
+
+	/**
+	 * Gets the file.
+	 *
+	 * @return the file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the format of the audio data as it is stored in the file.
+	 *
+	 * @return the native format.
+	 */
+	public SampleAudioFormat getNativeFormat() {
+		return nativeFormat;
+	}
+
+	private static int le16(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8);
+	}
+
+	private static long le32(byte[] b, int i) {
+		return (b[i] & 0xFFL) | ((b[i + 1] & 0xFFL) << 8) | ((b[i + 2] & 0xFFL) << 16) | ((b[i + 3] & 0xFFL) << 24);
+	}
+
+	private static int be16(byte[] b, int i) {
+		return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+	}
+
+	private static long be32(byte[] b, int i) {
+		return ((b[i] & 0xFFL) << 24) | ((b[i + 1] & 0xFFL) << 16) | ((b[i + 2] & 0xFFL) << 8) | (b[i + 3] & 0xFFL);
+	}
+
+	/**
+	 * Reads an 80 bit IEEE 754 extended precision number, as used for the AIFF sample rate.
+	 */
+	private static double extended(byte[] b, int i) {
+		int exponent = ((b[i] & 0x7F) << 8) | (b[i + 1] & 0xFF);
+		long mantissa = 0;
+		for(int k = 0; k < 8; k++) {
+			mantissa = (mantissa << 8) | (b[i + 2 + k] & 0xFF);
+		}
+		if(exponent == 0 && mantissa == 0) return 0;
+		//the mantissa has an explicit leading one at bit 63
+		double value = (mantissa >>> 11) * Math.pow(2, exponent - 16383 - 52);
+		return (b[i] & 0x80) != 0 ? -value : value;
+	}
+
+}
@@ -71,16 +71,23 @@ public class Add extends UGen {
 	 */
 	@Override
 	public void calculateBuffer() {
-		if (adderUGen == null) {
+		boolean constantAdder = adderUGen == null;
+		if (!constantAdder) {
+			adderUGen.update();
+			if (adderUGen.isConstant(0)) {
+				adder = adderUGen.getValue(0, 0);
+				constantAdder = true;
+			}
+		}
+		if (constantAdder) {
 			for (int j = 0; j < outs; j++) {
 				float[] bi = bufIn[j];
 				float[] bo = bufOut[j];
 				for (int i = 0; i < bufferSize; i++) {
-					bo[i] = bi[j] + adder;
+					bo[i] = bi[i] + adder;
 				}
 			}
 		} else {
-			adderUGen.update();
 			if (outs == 1) {
 				float[] bi = bufIn[0];
 				float[] bo = bufOut[0];
@@ -98,6 +105,9 @@ public class Add extends UGen {
 				}
 			}
 		}
+		for (int j = 0; j < outs; j++) {
+			setConstant(j, constantAdder && isInputConstant(j));
+		}
 	}
 
 	/**
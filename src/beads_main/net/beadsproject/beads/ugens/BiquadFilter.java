@@ -164,6 +164,14 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 	protected UGen freqUGen, qUGen, gainUGen;
 	protected boolean isFreqStatic, isQStatic, isGainStatic, areAllStatic;
 
+	// coefficients at the control points of the current buffer, five to a point
+	// (b0, b1, b2, a1, a2, divided by a0), starting with the last ones used
+	private float[] controlCoefs;
+
+	// coefficients at the start of each control block, when some parameters
+	// are held and others ramped
+	private float[] controlStartCoefs;
+
 	/**
 	 * Constructor for a multi-channel low-pass biquad filter UGen with the
 	 * specified number of channels.
@@ -334,6 +342,32 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 
 		float[] bi, bo;
 
+		// parameters that are constant for this buffer are treated like static ones
+		boolean steady = areAllStatic;
+		if (!steady) {
+			freqUGen.update();
+			qUGen.update();
+			gainUGen.update();
+			if (freqUGen.isConstant(0) && qUGen.isConstant(0) && gainUGen.isConstant(0)) {
+				freq = freqUGen.getValue(0, 0);
+				q = qUGen.getValue(0, 0);
+				gain = gainUGen.getValue(0, 0);
+				vc.calcVals();
+				steady = true;
+			}
+		}
+
+		// parameters at control rate are read once per control block
+		int period = 1;
+		float[] rampFrom = null;
+		if (!steady) {
+			period = Math.min(freqUGen.getControlPeriod(0), Math.min(
+					qUGen.getControlPeriod(0), gainUGen.getControlPeriod(0)));
+			if (period > 1) {
+				rampFrom = calcControlCoefs(period);
+			}
+		}
+
 		if (channels == 1) {
 			
 			if(cuedInputMemory) {
@@ -350,7 +384,7 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 			bi = bufIn[0];
 			bo = bufOut[0];
 
-			if (areAllStatic) {
+			if (steady) {
 
 				// first two samples
 				bo[0] = (b0 * bi[0] + b1 * bi1 + b2 * bi2 - a1 * bo1 - a2 * bo2)
@@ -367,11 +401,11 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 							/ a0;
 				}
 
-			} else {
+			} else if (period > 1) {
+
+				filterControlBlocks(bi, bo, bi1, bi2, bo1, bo2, period, rampFrom);
 
-				freqUGen.update();
-				qUGen.update();
-				gainUGen.update();
+			} else {
 
 				// first two samples
 				freq = freqUGen.getValue(0, 0);
@@ -433,7 +467,7 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 			}
 
 
-			if (areAllStatic) {
+			if (steady) {
 
 				for (int i = 0; i < channels; i++) {
 					bi = bufIn[i];
@@ -467,11 +501,26 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 
 				}
 
-			} else {
+			} else if (period > 1) {
 
-				freqUGen.update();
-				qUGen.update();
-				gainUGen.update();
+				for (int i = 0; i < channels; i++) {
+					bi = bufIn[i];
+					bo = bufOut[i];
+
+					filterControlBlocks(bi, bo, bi1m[i], bi2m[i], bo1m[i],
+							bo2m[i], period, rampFrom);
+
+					// get 2 samples of "memory" between sample vectors
+					bi2m[i] = bi[bufferSize - 2];
+					bi1m[i] = bi[bufferSize - 1];
+					bo2m[i] = bo[bufferSize - 2];
+
+					// and check to make sure filter didn't blow up
+					if (Float.isNaN(bo1m[i] = bo[bufferSize - 1]))
+						reset();
+				}
+
+			} else {
 
 				// first two samples
 				freq = freqUGen.getValue(0, 0);
@@ -529,6 +578,142 @@ public class BiquadFilter extends IIRFilter implements DataBeadReceiver {
 
 	}
 
+	/**
+	 * Determines whether a parameter changes over the current buffer, or has
+	 * changed since it was last read.
+	 */
+	private static boolean changes(UGen u, float last) {
+		return !u.isConstant(0) || u.getValue(0, 0) != last;
+	}
+
+	private static boolean isRamped(UGen u, float last) {
+		return u.getControlInterpolation() == UGen.ControlInterpolation.RAMP
+				&& changes(u, last);
+	}
+
+	private static boolean isHeld(UGen u, float last) {
+		return u.getControlInterpolation() == UGen.ControlInterpolation.HOLD
+				&& changes(u, last);
+	}
+
+	/**
+	 * Works out the coefficients for each control block of the current buffer,
+	 * after those last used. Each parameter follows its own
+	 * {@link UGen#getControlInterpolation()}: it is read at the first frame of
+	 * each block if it is held, at the last if it is ramped. The coefficients
+	 * then ramp over each block from those worked out with the ramped
+	 * parameters at their values for the block before and the held ones at
+	 * their values for this block, so that a held parameter steps at the start
+	 * of the block while the others glide.
+	 * 
+	 * @return the coefficients to ramp from, indexed like
+	 *         {@link #controlCoefs} but one point earlier, or null to hold the
+	 *         coefficients for each block.
+	 */
+	private float[] calcControlCoefs(int period) {
+		boolean rampFreq = isRamped(freqUGen, freq);
+		boolean rampQ = isRamped(qUGen, q);
+		boolean rampGain = isRamped(gainUGen, gain);
+		boolean ramp = rampFreq || rampQ || rampGain;
+		// only when some parameters are held and others ramped do the
+		// coefficients at the start of a block differ from those at the end of
+		// the block before
+		boolean mixed = ramp
+				&& (isHeld(freqUGen, freq) || isHeld(qUGen, q) || isHeld(
+						gainUGen, gain));
+		int points = (bufferSize + period - 1) / period;
+		// the first time round there may be no coefficients to ramp from
+		boolean first = controlCoefs == null;
+		if (first || controlCoefs.length < (points + 1) * 5) {
+			controlCoefs = new float[(points + 1) * 5];
+			controlStartCoefs = new float[(points + 1) * 5];
+		}
+		storeCoefs(controlCoefs, 0);
+		float lastFreq = freq, lastQ = q, lastGain = gain;
+		if (first) {
+			int last = Math.min(period, bufferSize) - 1;
+			lastFreq = freqUGen.getValue(0, last);
+			lastQ = qUGen.getValue(0, last);
+			lastGain = gainUGen.getValue(0, last);
+		}
+		for (int p = 1; p <= points; p++) {
+			int start = (p - 1) * period;
+			int last = Math.min(p * period, bufferSize) - 1;
+			float newFreq = freqUGen.getValue(0, rampFreq ? last : start);
+			float newQ = qUGen.getValue(0, rampQ ? last : start);
+			float newGain = gainUGen.getValue(0, rampGain ? last : start);
+			if (mixed) {
+				freq = rampFreq ? lastFreq : newFreq;
+				q = rampQ ? lastQ : newQ;
+				gain = rampGain ? lastGain : newGain;
+				vc.calcVals();
+				storeCoefs(controlStartCoefs, p - 1);
+			}
+			freq = lastFreq = newFreq;
+			q = lastQ = newQ;
+			gain = lastGain = newGain;
+			vc.calcVals();
+			storeCoefs(controlCoefs, p);
+		}
+		if (first) {
+			System.arraycopy(controlCoefs, 5, controlCoefs, 0, 5);
+		}
+		if (!ramp) {
+			return null;
+		}
+		return mixed ? controlStartCoefs : controlCoefs;
+	}
+
+	private void storeCoefs(float[] c, int p) {
+		int k = p * 5;
+		c[k] = b0 / a0;
+		c[k + 1] = b1 / a0;
+		c[k + 2] = b2 / a0;
+		c[k + 3] = a1 / a0;
+		c[k + 4] = a2 / a0;
+	}
+
+	/**
+	 * Filters a channel with the coefficients from
+	 * {@link #calcControlCoefs(int)}, holding them for each control block or
+	 * ramping them to those of each block from rampFrom. Ramping between two
+	 * stable filters always gives a stable filter.
+	 */
+	private void filterControlBlocks(float[] bi, float[] bo, float x1,
+			float x2, float y1, float y2, int period, float[] rampFrom) {
+		float[] c = controlCoefs;
+		boolean ramp = rampFrom != null;
+		for (int start = 0, k = 5; start < bufferSize; start += period, k += 5) {
+			int end = Math.min(start + period, bufferSize);
+			float cb0 = c[k], cb1 = c[k + 1], cb2 = c[k + 2], ca1 = c[k + 3], ca2 = c[k + 4];
+			float db0 = 0, db1 = 0, db2 = 0, da1 = 0, da2 = 0;
+			if (ramp) {
+				float r = 1f / (end - start);
+				db0 = (cb0 - (cb0 = rampFrom[k - 5])) * r;
+				db1 = (cb1 - (cb1 = rampFrom[k - 4])) * r;
+				db2 = (cb2 - (cb2 = rampFrom[k - 3])) * r;
+				da1 = (ca1 - (ca1 = rampFrom[k - 2])) * r;
+				da2 = (ca2 - (ca2 = rampFrom[k - 1])) * r;
+			}
+			for (int currsamp = start; currsamp < end; currsamp++) {
+				if (ramp) {
+					cb0 += db0;
+					cb1 += db1;
+					cb2 += db2;
+					ca1 += da1;
+					ca2 += da2;
+				}
+				float x0 = bi[currsamp];
+				float y0 = cb0 * x0 + cb1 * x1 + cb2 * x2 - ca1 * y1 - ca2 * y2;
+				bo[currsamp] = y0;
+				x2 = x1;
+				x1 = x0;
+				y2 = y1;
+				y1 = y0;
+			}
+		}
+	}
+
 	/**
 	 * Resets the filter in case it "explodes".
 	 */
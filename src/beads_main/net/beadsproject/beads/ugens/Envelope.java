@@ -4,8 +4,9 @@
 package net.beadsproject.beads.ugens;
 
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.Bead;
@@ -23,15 +24,23 @@ import net.beadsproject.beads.core.UGen;
  * over a given duration. Instead of a linear transition, a curved transition 
  * can be used. The curve is defined as the mapping of the range <code>[0,1]</code> 
  * from <code>y=x</code> to <code>y=x^p</code> with a given exponent <code>p</code>.    
+ * 
+ * Segments can be added from any thread without locking; they are picked up by the
+ * audio thread as the Envelope reaches them.
  *
  * @beads.category control
  * @author ollie
  */
 public class Envelope extends UGen {
 
-    /** The queue of segments. */
-	//TODO this should be a queue!
-    private ArrayList<Segment> segments;
+    /**
+     * The queue of segments still to come (not including the current segment). {@link #clear()} swaps in a new queue, so
+     * that segments added after it can't be lost with the ones that were cleared.
+     */
+    private AtomicReference<ConcurrentLinkedQueue<Segment>> segments;
+    
+    /** The queue that the audio thread is taking segments from. When it isn't the latest queue, the Envelope was cleared. */
+    private ConcurrentLinkedQueue<Segment> currentQueue;
     
     /** The current start value. */
     private float currentStartValue;
@@ -49,7 +58,7 @@ public class Envelope extends UGen {
     private boolean lock;
     
     /** Flag used to note whether the Envelope needs to move to a new segment. */
-    private boolean unchanged;
+    private volatile boolean unchanged;
     
     /** The real output buffer. */
     protected float[] myBufOut;
@@ -100,7 +109,8 @@ public class Envelope extends UGen {
 	 */
     public Envelope(AudioContext context) {
         super(context, 1);
-        segments = new ArrayList<Segment>();
+        currentQueue = new ConcurrentLinkedQueue<Segment>();
+        segments = new AtomicReference<ConcurrentLinkedQueue<Segment>>(currentQueue);
         currentStartValue = 0;
         currentValue = 0;
         currentSegment = null;
@@ -152,10 +162,10 @@ public class Envelope extends UGen {
 	 * @param curvature
 	 *            the exponent of the curve.
 	 */
-    public synchronized Envelope addSegment(float endValue, float duration, float curvature) { //synchronized
+    public Envelope addSegment(float endValue, float duration, float curvature) {
         if(!lock) {
         	if(!Float.isNaN(endValue) && !Float.isInfinite(endValue)) {
-        		segments.add(new Segment(endValue, duration, curvature, null));
+        		segments.get().add(new Segment(endValue, duration, curvature, null));
                 unchanged = false;
         	}
         }
@@ -174,10 +184,10 @@ public class Envelope extends UGen {
 	 * @param trigger
 	 *            the trigger.
 	 */
-    public synchronized Envelope addSegment(float endValue, float duration, float curvature, Bead trigger) { //synchronized
+    public Envelope addSegment(float endValue, float duration, float curvature, Bead trigger) {
         if(!lock) {
         	if(!Float.isNaN(endValue) && !Float.isInfinite(endValue)) {
-        		segments.add(new Segment(endValue, duration, curvature, trigger));
+        		segments.get().add(new Segment(endValue, duration, curvature, trigger));
                 unchanged = false;
         	}
         }
@@ -216,9 +226,10 @@ public class Envelope extends UGen {
      */
     public Envelope addSegments(List<Segment> segments) {
 		if(!lock) {
+			ConcurrentLinkedQueue<Segment> queue = this.segments.get();
 			for(Segment s : segments) {
             	if(!Float.isNaN(s.endValue) && !Float.isInfinite(s.endValue)) {
-            		segments.add(s);
+            		queue.add(s);
                     unchanged = false;
             	}
             }
@@ -241,10 +252,11 @@ public class Envelope extends UGen {
     /**
 	 * Clears the list of Segments.
 	 */
-    public synchronized Envelope clear() { //synchronized
+    public Envelope clear() {
     	if(!lock) {
-    		segments = new ArrayList<Segment>();
-        	currentSegment = null;
+    		// the old queue is emptied too, in case the audio thread is still taking from it
+    		segments.getAndSet(new ConcurrentLinkedQueue<Segment>()).clear();
+    		unchanged = false;
     	} 
     	return this;
     }
@@ -254,22 +266,17 @@ public class Envelope extends UGen {
 	 * 
 	 * @return the next segment.
 	 */
-    private synchronized void getNextSegment() {
+    private void getNextSegment() {
         if(currentSegment != null) {
             currentStartValue = currentSegment.endValue;
             currentValue = currentStartValue;
-            segments.remove(currentSegment);
             if(currentSegment.trigger != null) {
             	currentSegment.trigger.message(this);
             }
         } else {
         	currentStartValue = currentValue;
         }
-        if(segments.size() > 0) {
-            currentSegment = segments.get(0);
-        } else {
-            currentSegment = null;
-        }
+        currentSegment = currentQueue.poll();
         currentTime = 0;
     }
     
@@ -286,7 +293,12 @@ public class Envelope extends UGen {
 	 * @see com.olliebown.beads.core.UGen#calculateBuffer()
 	 */
 	@Override
-	public synchronized void calculateBuffer() {
+	public void calculateBuffer() {
+		ConcurrentLinkedQueue<Segment> queue = segments.get();
+		if(queue != currentQueue) {
+			currentQueue = queue;
+			currentSegment = null;
+		}
 		if(!unchanged) {
 			boolean iChanged = false;
 			for(int i = 0; i < bufferSize; ++i) {
@@ -308,8 +320,15 @@ public class Envelope extends UGen {
 		        }
 				myBufOut[i] = currentValue;
 			}
-			if(!iChanged) unchanged = true;
-		} 
+			if(!iChanged) {
+				unchanged = true;
+				//a segment may have been added by another thread since we last looked
+				if(!segments.get().isEmpty()) unchanged = false;
+			}
+			setConstant(0, !iChanged);
+		} else {
+			setConstant(0, true);
+		}
 	}
 	
 	public float getValue(int i, int j) {
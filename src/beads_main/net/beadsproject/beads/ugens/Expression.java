@@ -0,0 +1,695 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Buffer;
+
+/**
+ * Expression works out a formula over the outputs of other {@link UGen}s, like {@link Function}, but a buffer at a time
+ * rather than a frame at a time. The formula is built from {@link Term}s, starting with {@link #input(UGen)} and
+ * {@link #value(float)}, for example:
+ *
+ * <code><pre>
+ * Expression e = new Expression(ac, Expression.input(sound).times(Expression.input(mod).times(0.5f).plus(0.5f)).times(0.1f));
+ * </pre></code>
+ *
+ * which does the same as the Function in which <code>calculate()</code> returns
+ * <code>x[0] * (x[1] * 0.5f + 0.5f) * 0.1f</code>, and gives the same results.
+ *
+ * </p>When the Expression is made, the formula is compiled into a list of operations, each of which runs over a whole
+ * buffer in a tight loop. Terms made of fixed values are worked out there and then, and a Term used more than once is
+ * only worked out once per buffer. Inputs are read straight from the output buffers of their UGens. When an operation's
+ * inputs are constant for a buffer (see {@link UGen#isConstant(int)}), it is worked out once for the buffer, and if the
+ * whole formula is constant, so is the Expression's output. An Expression set to control rate with
+ * {@link UGen#setControlRate(int, UGen.ControlInterpolation)} only works out the formula once per control block.
+ *
+ * @beads.category utilities
+ */
+public class Expression extends UGen {
+
+	// the operations
+	private static final int VALUE = 0, INPUT = 1, NEG = 2, ABS = 3, SQRT = 4, EXP = 5, LOG = 6, SIN = 7, COS = 8,
+			TANH = 9, FLOOR = 10, LOOKUP = 11, ADD = 12, SUB = 13, MUL = 14, DIV = 15, MIN = 16, MAX = 17, POW = 18,
+			GT = 19, LT = 20, GE = 21, LE = 22, EQ = 23, SELECT = 24;
+
+	/**
+	 * A Term is part of the formula of an {@link Expression}. Terms are made with {@link Expression#input(UGen)},
+	 * {@link Expression#value(float)} and {@link Expression#select(Term, Term, Term)}, and combined with their own
+	 * methods, each of which makes a new Term. A Term can be used more than once, in one Expression or in several.
+	 */
+	public static final class Term {
+
+		private final int op;
+		private final Term a, b, c;
+		private final float value;
+		private final UGen ugen;
+		private final int output;
+		private final Buffer table;
+
+		private Term(int op, Term a, Term b, Term c, float value, UGen ugen, int output, Buffer table) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.value = value;
+			this.ugen = ugen;
+			this.output = output;
+			this.table = table;
+		}
+
+		private Term(int op, Term a, Term b) {
+			this(op, a, b, null, 0, null, 0, null);
+		}
+
+		/** This Term plus another. */
+		public Term plus(Term t) {
+			return new Term(ADD, this, t);
+		}
+
+		/** This Term plus a value. */
+		public Term plus(float v) {
+			return plus(value(v));
+		}
+
+		/** This Term minus another. */
+		public Term minus(Term t) {
+			return new Term(SUB, this, t);
+		}
+
+		/** This Term minus a value. */
+		public Term minus(float v) {
+			return minus(value(v));
+		}
+
+		/** This Term times another. */
+		public Term times(Term t) {
+			return new Term(MUL, this, t);
+		}
+
+		/** This Term times a value. */
+		public Term times(float v) {
+			return times(value(v));
+		}
+
+		/** This Term divided by another. */
+		public Term dividedBy(Term t) {
+			return new Term(DIV, this, t);
+		}
+
+		/** This Term divided by a value. */
+		public Term dividedBy(float v) {
+			return dividedBy(value(v));
+		}
+
+		/** The smaller of this Term and another. */
+		public Term min(Term t) {
+			return new Term(MIN, this, t);
+		}
+
+		/** The smaller of this Term and a value. */
+		public Term min(float v) {
+			return min(value(v));
+		}
+
+		/** The larger of this Term and another. */
+		public Term max(Term t) {
+			return new Term(MAX, this, t);
+		}
+
+		/** The larger of this Term and a value. */
+		public Term max(float v) {
+			return max(value(v));
+		}
+
+		/** This Term kept between two others. */
+		public Term clamp(Term low, Term high) {
+			return max(low).min(high);
+		}
+
+		/** This Term kept between two values. */
+		public Term clamp(float low, float high) {
+			return max(low).min(high);
+		}
+
+		/** This Term raised to the power of another. */
+		public Term pow(Term t) {
+			return new Term(POW, this, t);
+		}
+
+		/** This Term raised to the power of a value. */
+		public Term pow(float v) {
+			return pow(value(v));
+		}
+
+		/** 1 where this Term is greater than another, otherwise 0. */
+		public Term greaterThan(Term t) {
+			return new Term(GT, this, t);
+		}
+
+		/** 1 where this Term is greater than a value, otherwise 0. */
+		public Term greaterThan(float v) {
+			return greaterThan(value(v));
+		}
+
+		/** 1 where this Term is less than another, otherwise 0. */
+		public Term lessThan(Term t) {
+			return new Term(LT, this, t);
+		}
+
+		/** 1 where this Term is less than a value, otherwise 0. */
+		public Term lessThan(float v) {
+			return lessThan(value(v));
+		}
+
+		/** 1 where this Term is greater than or equal to another, otherwise 0. */
+		public Term greaterOrEqual(Term t) {
+			return new Term(GE, this, t);
+		}
+
+		/** 1 where this Term is greater than or equal to a value, otherwise 0. */
+		public Term greaterOrEqual(float v) {
+			return greaterOrEqual(value(v));
+		}
+
+		/** 1 where this Term is less than or equal to another, otherwise 0. */
+		public Term lessOrEqual(Term t) {
+			return new Term(LE, this, t);
+		}
+
+		/** 1 where this Term is less than or equal to a value, otherwise 0. */
+		public Term lessOrEqual(float v) {
+			return lessOrEqual(value(v));
+		}
+
+		/** 1 where this Term equals another, otherwise 0. */
+		public Term equalTo(Term t) {
+			return new Term(EQ, this, t);
+		}
+
+		/** 1 where this Term equals a value, otherwise 0. */
+		public Term equalTo(float v) {
+			return equalTo(value(v));
+		}
+
+		/** Minus this Term. */
+		public Term negate() {
+			return new Term(NEG, this, null);
+		}
+
+		/** The absolute value of this Term. */
+		public Term abs() {
+			return new Term(ABS, this, null);
+		}
+
+		/** The square root of this Term. */
+		public Term sqrt() {
+			return new Term(SQRT, this, null);
+		}
+
+		/** e to the power of this Term. */
+		public Term exp() {
+			return new Term(EXP, this, null);
+		}
+
+		/** The natural logarithm of this Term. */
+		public Term log() {
+			return new Term(LOG, this, null);
+		}
+
+		/** The sine of this Term, in radians. */
+		public Term sin() {
+			return new Term(SIN, this, null);
+		}
+
+		/** The cosine of this Term, in radians. */
+		public Term cos() {
+			return new Term(COS, this, null);
+		}
+
+		/** The hyperbolic tangent of this Term. */
+		public Term tanh() {
+			return new Term(TANH, this, null);
+		}
+
+		/** The largest whole number no greater than this Term. */
+		public Term floor() {
+			return new Term(FLOOR, this, null);
+		}
+
+		/**
+		 * The value of a Buffer at this Term, as a fraction of its length, as given by
+		 * {@link Buffer#getValueFraction(float)}.
+		 */
+		public Term lookup(Buffer buffer) {
+			return new Term(LOOKUP, this, null, null, 0, null, 0, buffer);
+		}
+	}
+
+	/**
+	 * Makes a Term that reads the first output of a UGen.
+	 *
+	 * @param ugen the UGen.
+	 * @return the Term.
+	 */
+	public static Term input(UGen ugen) {
+		return input(ugen, 0);
+	}
+
+	/**
+	 * Makes a Term that reads an output of a UGen.
+	 *
+	 * @param ugen the UGen.
+	 * @param output the output.
+	 * @return the Term.
+	 */
+	public static Term input(UGen ugen, int output) {
+		return new Term(INPUT, null, null, null, 0, ugen, output, null);
+	}
+
+	/**
+	 * Makes a Term with a fixed value.
+	 *
+	 * @param value the value.
+	 * @return the Term.
+	 */
+	public static Term value(float value) {
+		return new Term(VALUE, null, null, null, value, null, 0, null);
+	}
+
+	/**
+	 * Makes a Term that chooses between two others: ifTrue where the condition is greater than 0, otherwise ifFalse.
+	 * Both are worked out whichever is chosen.
+	 *
+	 * @param condition the condition, such as a Term made with {@link Term#greaterThan(Term)}.
+	 * @param ifTrue the Term chosen where the condition is greater than 0.
+	 * @param ifFalse the Term chosen elsewhere.
+	 * @return the Term.
+	 */
+	public static Term select(Term condition, Term ifTrue, Term ifFalse) {
+		return new Term(SELECT, condition, ifTrue, ifFalse, 0, null, 0, null);
+	}
+
+	/** The formula. */
+	private final Term term;
+
+	/** The compiled formula: the operation of each register, in the order that they are worked out, and their arguments. */
+	private int[] ops, argA, argB, argC;
+
+	/** The UGen and output read by each input register, and the Buffer read by each lookup. */
+	private UGen[] ugens;
+	private int[] outputs;
+	private Buffer[] tables;
+
+	/** The register holding the result. */
+	private int result;
+
+	/** Whether each register is constant for the current buffer, and if so, its value. */
+	private boolean[] constant;
+	private float[] scalars;
+
+	/** The data in each register that is not constant. */
+	private float[][] data;
+
+	/** Buffers filled with the value of constant registers, for operations that have no version for constants. */
+	private float[][] fills;
+	private float[] filledWith;
+
+	/** The value worked out for the last control block, which the next block ramps from. */
+	private float controlValue = Float.NaN;
+
+	/**
+	 * Creates a new Expression, compiling the given formula.
+	 *
+	 * @param context the AudioContext.
+	 * @param term the formula.
+	 */
+	public Expression(AudioContext context, Term term) {
+		super(context, 1);
+		this.term = term;
+		compile();
+	}
+
+	/**
+	 * Gets the formula.
+	 *
+	 * @return the formula.
+	 */
+	public Term getTerm() {
+		return term;
+	}
+
+	/**
+	 * Turns the formula into a list of registers, each worked out from those before it.
+	 */
+	private void compile() {
+		List<Term> order = new ArrayList<Term>();
+		Map<Term, Integer> registers = new IdentityHashMap<Term, Integer>();
+		List<Float> values = new ArrayList<Float>();
+		result = compile(term, order, registers, values);
+		int count = order.size();
+		ops = new int[count];
+		argA = new int[count];
+		argB = new int[count];
+		argC = new int[count];
+		ugens = new UGen[count];
+		outputs = new int[count];
+		tables = new Buffer[count];
+		constant = new boolean[count];
+		scalars = new float[count];
+		data = new float[count][];
+		fills = new float[count][];
+		filledWith = new float[count];
+		for(int r = 0; r < count; r++) {
+			Term t = order.get(r);
+			ops[r] = t.op;
+			argA[r] = t.a == null ? -1 : registers.get(t.a);
+			argB[r] = t.b == null ? -1 : registers.get(t.b);
+			argC[r] = t.c == null ? -1 : registers.get(t.c);
+			ugens[r] = t.ugen;
+			outputs[r] = t.output;
+			tables[r] = t.table;
+			if(t.op == VALUE) {
+				constant[r] = true;
+				scalars[r] = values.get(r);
+			}
+			filledWith[r] = Float.NaN;
+		}
+	}
+
+	/**
+	 * Compiles a Term after its arguments, unless it has been compiled already, and gets its register. Terms whose
+	 * arguments are all fixed values are worked out and become fixed values themselves. Inputs reading the same output of
+	 * the same UGen share a register.
+	 */
+	private int compile(Term t, List<Term> order, Map<Term, Integer> registers, List<Float> values) {
+		Integer done = registers.get(t);
+		if(done != null) return done;
+		Term compiled = t;
+		float value = 0;
+		if(t.op == INPUT) {
+			for(int r = 0; r < order.size(); r++) {
+				Term other = order.get(r);
+				if(other.op == INPUT && other.ugen == t.ugen && other.output == t.output) {
+					registers.put(t, r);
+					return r;
+				}
+			}
+		} else if(t.op == VALUE) {
+			value = t.value;
+		} else {
+			int a = compile(t.a, order, registers, values);
+			int b = t.b == null ? -1 : compile(t.b, order, registers, values);
+			int c = t.c == null ? -1 : compile(t.c, order, registers, values);
+			if(order.get(a).op == VALUE && (b < 0 || order.get(b).op == VALUE) && (c < 0 || order.get(c).op == VALUE)) {
+				value = apply(t.op, values.get(a), b < 0 ? 0 : values.get(b), c < 0 ? 0 : values.get(c), t.table);
+				compiled = value(value);
+			}
+		}
+		int r = order.size();
+		order.add(compiled);
+		values.add(value);
+		registers.put(t, r);
+		return r;
+	}
+
+	/**
+	 * Works out an operation on single values.
+	 */
+	private static float apply(int op, float a, float b, float c, Buffer table) {
+		switch(op) {
+		case NEG: return -a;
+		case ABS: return Math.abs(a);
+		case SQRT: return (float)Math.sqrt(a);
+		case EXP: return (float)Math.exp(a);
+		case LOG: return (float)Math.log(a);
+		case SIN: return (float)Math.sin(a);
+		case COS: return (float)Math.cos(a);
+		case TANH: return (float)Math.tanh(a);
+		case FLOOR: return (float)Math.floor(a);
+		case LOOKUP: return table.getValueFraction(a);
+		case ADD: return a + b;
+		case SUB: return a - b;
+		case MUL: return a * b;
+		case DIV: return a / b;
+		case MIN: return Math.min(a, b);
+		case MAX: return Math.max(a, b);
+		case POW: return (float)Math.pow(a, b);
+		case GT: return a > b ? 1 : 0;
+		case LT: return a < b ? 1 : 0;
+		case GE: return a >= b ? 1 : 0;
+		case LE: return a <= b ? 1 : 0;
+		case EQ: return a == b ? 1 : 0;
+		case SELECT: return a > 0 ? b : c;
+		default: throw new IllegalArgumentException("Unknown operation " + op);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see net.beadsproject.beads.core.UGen#calculateBuffer()
+	 */
+	@Override
+	public void calculateBuffer() {
+		// at control rate, the formula is worked out at one frame of each control block
+		int period = isControlRate() ? getControlBlockSize() : 1;
+		int n = (bufferSize + period - 1) / period;
+		for(int r = 0; r < ops.length; r++) {
+			if(ops[r] == INPUT) {
+				load(r, period, n);
+			} else if(ops[r] != VALUE) {
+				evaluate(r, n, r == result && period == 1 ? bufOut[0] : context.getBuf());
+			}
+		}
+		float[] bo = bufOut[0];
+		if(constant[result]) {
+			Arrays.fill(bo, controlValue = scalars[result]);
+		} else if(period > 1) {
+			float[] points = data[result];
+			for(int start = 0, p = 0; start < bufferSize; start += period, p++) {
+				float value = points[p];
+				fillControlBlock(bo, start, Math.min(start + period, bufferSize),
+						Float.isNaN(controlValue) ? value : controlValue, value);
+				controlValue = value;
+			}
+		} else {
+			if(data[result] != bo) {
+				System.arraycopy(data[result], 0, bo, 0, bufferSize);
+			}
+			controlValue = bo[bufferSize - 1];
+		}
+		setConstant(0, constant[result]);
+	}
+
+	/**
+	 * Updates the UGen read by an input register and points the register at its output, or at the frames read from it
+	 * at control rate.
+	 */
+	private void load(int r, int period, int n) {
+		UGen u = ugens[r];
+		int o = outputs[r];
+		u.update();
+		if(constant[r] = u.isConstant(o)) {
+			scalars[r] = u.getValue(o, 0);
+		} else if(period > 1) {
+			float[] points = data[r] = context.getBuf();
+			for(int start = 0, p = 0; p < n; start += period, p++) {
+				points[p] = u.getValue(o, getControlFrame(start, Math.min(start + period, bufferSize)));
+			}
+		} else {
+			float[] buf = u.getOutBuffer(o);
+			if(buf == null) {
+				// UGens such as Static don't keep their outputs in buffers
+				buf = context.getBuf();
+				for(int i = 0; i < bufferSize; i++) {
+					buf[i] = u.getValue(o, i);
+				}
+			}
+			data[r] = buf;
+		}
+	}
+
+	/**
+	 * Gets the data in a register, filling a buffer with its value if it is constant.
+	 */
+	private float[] vector(int r) {
+		if(!constant[r]) return data[r];
+		float value = scalars[r];
+		if(fills[r] == null) {
+			fills[r] = new float[bufferSize];
+		}
+		if(Float.floatToIntBits(value) != Float.floatToIntBits(filledWith[r])) {
+			Arrays.fill(fills[r], value);
+			filledWith[r] = value;
+		}
+		return fills[r];
+	}
+
+	/**
+	 * Works out a register over n frames, writing into out unless its arguments are all constant, in which case it is
+	 * worked out once.
+	 */
+	private void evaluate(int r, int n, float[] out) {
+		int op = ops[r], a = argA[r], b = argB[r], c = argC[r];
+		if(constant[a] && (b < 0 || constant[b]) && (c < 0 || constant[c])) {
+			constant[r] = true;
+			scalars[r] = apply(op, scalars[a], b < 0 ? 0 : scalars[b], c < 0 ? 0 : scalars[c], tables[r]);
+			return;
+		}
+		constant[r] = false;
+		data[r] = out;
+		// the commonest operations have versions for a constant argument
+		if(op >= ADD && op <= POW && (constant[a] || constant[b])) {
+			evaluateScalar(op, a, b, n, out);
+			return;
+		}
+		float[] x = vector(a);
+		float[] y = b < 0 ? null : vector(b);
+		switch(op) {
+		case NEG:
+			for(int i = 0; i < n; i++) out[i] = -x[i];
+			break;
+		case ABS:
+			for(int i = 0; i < n; i++) out[i] = Math.abs(x[i]);
+			break;
+		case SQRT:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.sqrt(x[i]);
+			break;
+		case EXP:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.exp(x[i]);
+			break;
+		case LOG:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.log(x[i]);
+			break;
+		case SIN:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.sin(x[i]);
+			break;
+		case COS:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.cos(x[i]);
+			break;
+		case TANH:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.tanh(x[i]);
+			break;
+		case FLOOR:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.floor(x[i]);
+			break;
+		case LOOKUP: {
+			float[] t = tables[r].buf;
+			int last = t.length - 1;
+			for(int i = 0; i < n; i++) {
+				int index = (int)(x[i] * t.length);
+				out[i] = t[index < 0 ? 0 : (index > last ? last : index)];
+			}
+			break;
+		}
+		case ADD:
+			for(int i = 0; i < n; i++) out[i] = x[i] + y[i];
+			break;
+		case SUB:
+			for(int i = 0; i < n; i++) out[i] = x[i] - y[i];
+			break;
+		case MUL:
+			for(int i = 0; i < n; i++) out[i] = x[i] * y[i];
+			break;
+		case DIV:
+			for(int i = 0; i < n; i++) out[i] = x[i] / y[i];
+			break;
+		case MIN:
+			for(int i = 0; i < n; i++) out[i] = Math.min(x[i], y[i]);
+			break;
+		case MAX:
+			for(int i = 0; i < n; i++) out[i] = Math.max(x[i], y[i]);
+			break;
+		case POW:
+			for(int i = 0; i < n; i++) out[i] = (float)Math.pow(x[i], y[i]);
+			break;
+		case GT:
+			for(int i = 0; i < n; i++) out[i] = x[i] > y[i] ? 1 : 0;
+			break;
+		case LT:
+			for(int i = 0; i < n; i++) out[i] = x[i] < y[i] ? 1 : 0;
+			break;
+		case GE:
+			for(int i = 0; i < n; i++) out[i] = x[i] >= y[i] ? 1 : 0;
+			break;
+		case LE:
+			for(int i = 0; i < n; i++) out[i] = x[i] <= y[i] ? 1 : 0;
+			break;
+		case EQ:
+			for(int i = 0; i < n; i++) out[i] = x[i] == y[i] ? 1 : 0;
+			break;
+		case SELECT: {
+			float[] z = vector(c);
+			for(int i = 0; i < n; i++) out[i] = x[i] > 0 ? y[i] : z[i];
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Works out an arithmetic operation where one argument is constant.
+	 */
+	private void evaluateScalar(int op, int a, int b, int n, float[] out) {
+		if(constant[b]) {
+			float[] x = data[a];
+			float s = scalars[b];
+			switch(op) {
+			case ADD:
+				for(int i = 0; i < n; i++) out[i] = x[i] + s;
+				break;
+			case SUB:
+				for(int i = 0; i < n; i++) out[i] = x[i] - s;
+				break;
+			case MUL:
+				for(int i = 0; i < n; i++) out[i] = x[i] * s;
+				break;
+			case DIV:
+				for(int i = 0; i < n; i++) out[i] = x[i] / s;
+				break;
+			case MIN:
+				for(int i = 0; i < n; i++) out[i] = Math.min(x[i], s);
+				break;
+			case MAX:
+				for(int i = 0; i < n; i++) out[i] = Math.max(x[i], s);
+				break;
+			case POW:
+				for(int i = 0; i < n; i++) out[i] = (float)Math.pow(x[i], s);
+				break;
+			}
+		} else {
+			float s = scalars[a];
+			float[] y = data[b];
+			switch(op) {
+			case ADD:
+				for(int i = 0; i < n; i++) out[i] = s + y[i];
+				break;
+			case SUB:
+				for(int i = 0; i < n; i++) out[i] = s - y[i];
+				break;
+			case MUL:
+				for(int i = 0; i < n; i++) out[i] = s * y[i];
+				break;
+			case DIV:
+				for(int i = 0; i < n; i++) out[i] = s / y[i];
+				break;
+			case MIN:
+				for(int i = 0; i < n; i++) out[i] = Math.min(s, y[i]);
+				break;
+			case MAX:
+				for(int i = 0; i < n; i++) out[i] = Math.max(s, y[i]);
+				break;
+			case POW:
+				for(int i = 0; i < n; i++) out[i] = (float)Math.pow(s, y[i]);
+				break;
+			}
+		}
+	}
+
+}
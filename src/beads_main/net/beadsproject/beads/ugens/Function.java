@@ -3,26 +3,41 @@
  */
 package net.beadsproject.beads.ugens;
 
+import java.util.Arrays;
+
 import net.beadsproject.beads.core.UGen;
 
 /**
  * Function is an abstract class which can be quickly subclassed to make a custom {@link UGen} on the fly. Subclasses of Function must implement {@link #calculate()}, getting data from the array {@link #x}, and returning the result. {@link #x} provides access to the array of {@link UGen}s that are passed to Function's constructor. 
+ * 
+ * </p>A Function whose result depends only on {@link #x} can be switched to fold constants with {@link #setFoldConstants(boolean)}: 
+ * when all the inputs are constant for a buffer (see {@link UGen#isConstant(int)}), {@link #calculate()} is then only called once for 
+ * the buffer, and the output is constant too. This is off by default, since it changes the output of Functions that use anything else, 
+ * such as random numbers or values that they keep between calls.
+ * 
+ * </p>{@link Expression} does the same job for formulas built from arithmetic, comparisons and common maths functions, working 
+ * a buffer at a time, which is much faster when there are many of them.
+ * 
+ * </p>A Function set to control rate with {@link UGen#setControlRate(int, UGen.ControlInterpolation)} only calls 
+ * {@link #calculate()} once per control block, and holds or ramps the result over the block.
  *
  * @beads.category utilities
  * @author ollie
  */
 public abstract class Function extends UGen {
 
-	// TODO curious challenge: 
-	//can we get Function to not bother updating if its inputs are not updating?
-	//could UGen have a method 'hasChanged()'?
-	
 	/** An array representing the current values from the array of input UGens. */
 	protected float[] x;
 	
 	/** The inputs. */
 	private UGen[] inputs;
 	
+	/** Whether to calculate once per buffer when all the inputs are constant. */
+	private boolean foldConstants;
+	
+	/** The value calculated for the last control block, which the next block ramps from. */
+	private float controlValue = Float.NaN;
+	
 	/**
 	 * Instantiates a new function.
 	 * 
@@ -47,15 +62,57 @@ public abstract class Function extends UGen {
 	 * @see net.beadsproject.beads.core.UGen#calculateBuffer()
 	 */
 	public final void calculateBuffer() {
+		boolean constant = foldConstants;
 		for(int i = 0; i < inputs.length; i++) {
 			inputs[i].update();
+			constant &= inputs[i].isConstant(0);
 		}
-		for(int i = 0; i < bufferSize; i++) {
+		if(constant) {
 			for(int j = 0; j < inputs.length; j++) {
-				x[j] = inputs[j].getValue(0, i);
+				x[j] = inputs[j].getValue(0, 0);
 			}
-			bufOut[0][i] = calculate();
+			Arrays.fill(bufOut[0], controlValue = calculate());
+		} else if(isControlRate()) {
+			int period = getControlBlockSize();
+			for(int start = 0; start < bufferSize; start += period) {
+				int end = Math.min(start + period, bufferSize);
+				int frame = getControlFrame(start, end);
+				for(int j = 0; j < inputs.length; j++) {
+					x[j] = inputs[j].getValue(0, frame);
+				}
+				float value = calculate();
+				fillControlBlock(bufOut[0], start, end, Float.isNaN(controlValue) ? value : controlValue, value);
+				controlValue = value;
+			}
+		} else {
+			for(int i = 0; i < bufferSize; i++) {
+				for(int j = 0; j < inputs.length; j++) {
+					x[j] = inputs[j].getValue(0, i);
+				}
+				bufOut[0][i] = calculate();
+			}
+			controlValue = bufOut[0][bufferSize - 1];
 		}
+		setConstant(0, constant);
+	}
+	
+	/**
+	 * Sets whether {@link #calculate()} is called just once per buffer when all the inputs are constant. Off by default. 
+	 * Only switch this on if the result depends on nothing but {@link #x}.
+	 * 
+	 * @param foldConstants true to calculate once per buffer when the inputs are constant.
+	 */
+	public void setFoldConstants(boolean foldConstants) {
+		this.foldConstants = foldConstants;
+	}
+	
+	/**
+	 * Determines whether {@link #calculate()} is called just once per buffer when all the inputs are constant.
+	 * 
+	 * @return true if calculating once per buffer when the inputs are constant.
+	 */
+	public boolean isFoldConstants() {
+		return foldConstants;
 	}
 	
 	/**
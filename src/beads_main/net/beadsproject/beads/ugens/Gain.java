@@ -142,7 +142,15 @@ public class Gain extends UGen implements DataBeadReceiver {
 	 */
 	@Override
 	public void calculateBuffer() {
-		if (gainUGen == null) {
+		boolean constantGain = gainUGen == null;
+		if (!constantGain) {
+			gainUGen.update();
+			if (gainUGen.isConstant(0)) {
+				gain = gainUGen.getValue(0, 0);
+				constantGain = true;
+			}
+		}
+		if (constantGain) {
 			for (int channel = 0; channel < ins; channel++) {
 				float[] bi = bufIn[channel];
 				float[] bo = bufOut[channel];
@@ -152,7 +160,6 @@ public class Gain extends UGen implements DataBeadReceiver {
 				}
 			}
 		} else {
-			gainUGen.update();
 			for (int i = 0; i < bufferSize; ++i) {
 				gain = gainUGen.getValue(0, i);
 				for (int channel = 0; channel < ins; channel++) {
@@ -160,6 +167,9 @@ public class Gain extends UGen implements DataBeadReceiver {
 				}
 			}
 		}
+		for (int channel = 0; channel < ins; channel++) {
+			setConstant(channel, constantGain && isInputConstant(channel));
+		}
 	}
 
 	public DataBeadReceiver sendData(DataBead db) {
@@ -118,7 +118,7 @@ public class Glide extends UGen {
 						nothingChanged = false;
 					} else if(countSinceGlide > glideTime) {
 						gliding = false;
-						bufOut[0][i] = previousValue = targetValue;
+						bufOut[0][i] = previousValue = currentValue = targetValue;
 					} else {
 						float offset = ((float)countSinceGlide / glideTime);
 						bufOut[0][i] = currentValue = offset * targetValue + (1f - offset) * previousValue;
@@ -130,6 +130,7 @@ public class Glide extends UGen {
 				}
 			}
 		}
+		setConstant(0, nothingChanged);
 	}
 
 }
@@ -59,6 +59,19 @@ public class GranularSamplePlayer extends SamplePlayer {
 	/** Flag to determine whether, looping occurs within individual grains. */
 	private boolean loopInsideGrains;
 
+	/** Flag used to tell the audio thread to drop all grains after the Sample has been changed. */
+	private volatile boolean resetGrains;
+	
+	/** The pitch, rate, loop points and direction after each frame of the current buffer, used to move the grains on. */
+	private float[] pitches, rates, loopStarts, loopEnds;
+	private boolean[] directions;
+	
+	/** The window value for each frame of the current grain. */
+	private float[] windowValues;
+	
+	/** The frames read for the current grain. */
+	private float[][] grainFrames;
+
 	/**
 	 * The nested class Grain. Stores information about the start time, current position, age, and grain size of the grain.
 	 */
@@ -75,6 +88,9 @@ public class GranularSamplePlayer extends SamplePlayer {
 		
 		/** The pan level for each channel. Currently only 2 channel is supported. */
 		float[] pan;
+		
+		/** The frame of the current buffer at which the grain starts. */
+		int start;
 	}
 
 	/**
@@ -96,6 +112,13 @@ public class GranularSamplePlayer extends SamplePlayer {
 		setWindow(new CosineWindow().getDefault());
 		msPerSample = context.samplesToMs(1f);
 		loopInsideGrains = false;
+		pitches = new float[bufferSize];
+		rates = new float[bufferSize];
+		loopStarts = new float[bufferSize];
+		loopEnds = new float[bufferSize];
+		directions = new boolean[bufferSize];
+		windowValues = new float[bufferSize];
+		grainFrames = new float[outs][bufferSize];
 	}
 
 	/**
@@ -328,19 +351,16 @@ public class GranularSamplePlayer extends SamplePlayer {
 	 * @deprecated Use {@link #setSample(Sample)} instead.
 	 */
 	@Deprecated
-	public synchronized void setBuffer(Sample buffer) {
-		super.setSample(buffer);
-		grains.clear();
-		timeSinceLastGrain = 0f;
+	public void setBuffer(Sample buffer) {
+		setSample(buffer);
 	}
 	
 	/* (non-Javadoc)
 	 * @see net.beadsproject.beads.ugens.SamplePlayer#setBuffer(net.beadsproject.beads.data.Sample)
 	 */
-	public synchronized void setSample(Sample buffer) {
+	public void setSample(Sample buffer) {
 		super.setSample(buffer);
-		grains.clear();
-		timeSinceLastGrain = 0f;
+		resetGrains = true;
 	}
 
 	/* (non-Javadoc)
@@ -401,7 +421,14 @@ public class GranularSamplePlayer extends SamplePlayer {
 	 * @see com.olliebown.beads.ugens.SamplePlayer#calculateBuffer()
 	 */
 	@Override
-	public synchronized void calculateBuffer() {
+	public void calculateBuffer() {
+		//the grain lists are only touched by the audio thread
+		if(resetGrains) {
+			resetGrains = false;
+			freeGrains.addAll(grains);
+			grains.clear();
+			timeSinceLastGrain = 0f;
+		}
 		//special condition for first grain
 		//update the various envelopes
 		if(sample != null) {
@@ -417,7 +444,9 @@ public class GranularSamplePlayer extends SamplePlayer {
 			randomnessEnvelope.update();
 			randomPanEnvelope.update();
 			firstGrain();
-			//now loop through the buffer
+			//the interpolation is chosen from the pitch at the start of the buffer
+			Sample.Interpolation interpolation = getInterpolation(pitch);
+			//first loop through the buffer, starting new grains and moving the playback position on
 			for (int i = 0; i < bufferSize; i++) {
 				//determine if we need a new grain
 				if (timeSinceLastGrain > grainIntervalEnvelope.getValue(0, i)) {
@@ -430,68 +459,63 @@ public class GranularSamplePlayer extends SamplePlayer {
 					}
 					resetGrain(g, i);
 					setGrainPan(g, randomPanEnvelope.getValue(0, i));
+					g.start = i;
 					grains.add(g);
 					timeSinceLastGrain = 0f;
 				}
-				//for each channel, start by resetting current output frame
-				for (int j = 0; j < outs; j++) {
-					bufOut[j][i] = 0.0f;
-				}
-				//gather the output from each grain
-				for(int gi = 0; gi < grains.size(); gi++) {
-					Grain g = grains.get(gi);
-					//calculate value of grain window
-					float windowScale = window.getValueFraction((float)(g.age / g.grainSize));
-					//get position in sample for this grain
-					//get the frame for this grain
-					switch (interpolationType) {
-					case ADAPTIVE: 
-						if(pitch > ADAPTIVE_INTERP_HIGH_THRESH) {
-							sample.getFrameNoInterp(g.position, frame);
-						} else if(pitch > ADAPTIVE_INTERP_LOW_THRESH) {
-							sample.getFrameLinear(g.position, frame);
-						} else {
-							sample.getFrameCubic(g.position, frame);
-						}
-						break;
-					case LINEAR:
-						sample.getFrameLinear(g.position, frame);
-						break;
-					case CUBIC:
-						sample.getFrameCubic(g.position, frame);
-						break;
-					case NONE:
-						sample.getFrameNoInterp(g.position, frame);
-						break;
-					}
-					//add it to the current output frame
-					for (int j = 0; j < outs; j++) {
-						bufOut[j][i] += g.pan[j] * windowScale * frame[j % sample.getNumChannels()];
-					}
-				}
 				//increment time and stuff
 				calculateNextPosition(i);
 				pitch = Math.abs(pitchEnvelope.getValue(0, i));
-				for(int gi = 0; gi < grains.size(); gi++) {
-					Grain g = grains.get(gi);
-					calculateNextGrainPosition(g);
-				}
+				//remember what the grains need to move on
+				pitches[i] = pitch;
+				rates[i] = rate;
+				loopStarts[i] = loopStart;
+				loopEnds[i] = loopEnd;
+				directions[i] = forwards;
 				//increment timeSinceLastGrain
 				timeSinceLastGrain += msPerSample;
-				//finally, see if any grains are dead
-				for(int gi = 0; gi < grains.size(); gi++) {
-					Grain g = grains.get(gi);
-					if(g.age > g.grainSize) {
-						freeGrains.add(g);
-						deadGrains.add(g);
+			}
+			//for each channel, start by resetting the output
+			for (int j = 0; j < outs; j++) {
+				for (int i = 0; i < bufferSize; i++) {
+					bufOut[j][i] = 0.0f;
+				}
+			}
+			//then gather the output from each grain, reading the frames for the whole grain at once
+			for(int gi = 0; gi < grains.size(); gi++) {
+				Grain g = grains.get(gi);
+				int start = g.start;
+				int end = start;
+				while(end < bufferSize && g.age <= g.grainSize) {
+					//calculate value of grain window
+					windowValues[end - start] = window.getValueFraction((float)(g.age / g.grainSize));
+					//get position in sample for this grain
+					positions[end - start] = g.position;
+					calculateNextGrainPosition(g, end);
+					end++;
+				}
+				g.start = 0;
+				sample.getFrames(positions, interpolation, resamplerQuality, grainFrames, 0, end - start);
+				//add it to the output
+				for (int j = 0; j < outs; j++) {
+					float pan = g.pan[j];
+					float[] frames = grainFrames[j];
+					float[] out = bufOut[j];
+					for (int i = start; i < end; i++) {
+						out[i] += pan * windowValues[i - start] * frames[i - start];
 					}
 				}
-				for(int gi = 0; gi < deadGrains.size(); gi++) {
-					Grain g = deadGrains.get(gi);
-					grains.remove(g);
+				//finally, see if the grain is dead
+				if(g.age > g.grainSize) {
+					freeGrains.add(g);
+					deadGrains.add(g);
 				}
-				deadGrains.clear();
 			}
+			for(int gi = 0; gi < deadGrains.size(); gi++) {
+				Grain g = deadGrains.get(gi);
+				grains.remove(g);
+			}
+			deadGrains.clear();
 		}
 	}
 
@@ -499,8 +523,14 @@ public class GranularSamplePlayer extends SamplePlayer {
 	 * Calculate next position for the given Grain.
 	 * 
 	 * @param g the Grain.
+	 * @param i the index of the frame in the current buffer.
 	 */
-	private void calculateNextGrainPosition(Grain g) {
+	private void calculateNextGrainPosition(Grain g, int i) {
+		float rate = rates[i];
+		float pitch = pitches[i];
+		float loopStart = loopStarts[i];
+		float loopEnd = loopEnds[i];
+		boolean forwards = directions[i];
 		int direction = rate >= 0 ? 1 : -1;	//this is a bit odd in the case when controlling grain from positionEnvelope
 		g.age += msPerSample;
 		if(loopInsideGrains) {
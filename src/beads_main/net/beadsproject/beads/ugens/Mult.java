@@ -71,7 +71,15 @@ public class Mult extends UGen {
 	 */
 	@Override
 	public void calculateBuffer() {
-		if (multiplierUGen == null) {
+		boolean constantMultiplier = multiplierUGen == null;
+		if (!constantMultiplier) {
+			multiplierUGen.update();
+			if (multiplierUGen.isConstant(0)) {
+				multiplier = multiplierUGen.getValue(0, 0);
+				constantMultiplier = true;
+			}
+		}
+		if (constantMultiplier) {
 			for (int j = 0; j < outs; j++) {
 				float[] bi = bufIn[j];
 				float[] bo = bufOut[j];
@@ -81,7 +89,6 @@ public class Mult extends UGen {
 				}
 			}
 		} else {
-			multiplierUGen.update();
 			if (outs == 1) {
 				float[] bi = bufIn[0];
 				float[] bo = bufOut[0];
@@ -99,6 +106,9 @@ public class Mult extends UGen {
 				}
 			}
 		}
+		for (int j = 0; j < outs; j++) {
+			setConstant(j, constantMultiplier && isInputConstant(j));
+		}
 	}
 
 	/**
@@ -21,6 +21,8 @@ public class OnePoleFilter extends IIRFilter implements DataBeadReceiver {
 	private UGen freqUGen;
 	protected float samplingfreq, two_pi_over_sf;
 	protected boolean isFreqStatic;
+	// whether the coefficients have been worked out at control rate yet, so can be ramped from
+	private boolean controlStarted;
 
 	/**
 	 * Constructor for cut-off frequency specified by a static float.
@@ -63,15 +65,46 @@ public class OnePoleFilter extends IIRFilter implements DataBeadReceiver {
 		float[] bi = bufIn[0];
 		float[] bo = bufOut[0];
 
-		if (isFreqStatic) {
+		boolean steady = isFreqStatic;
+		if (!steady) {
+			freqUGen.update();
+			if (freqUGen.isConstant(0)) {
+				freq = freqUGen.getValue(0, 0);
+				calcVals();
+				steady = true;
+			}
+		}
+
+		if (steady) {
 
 			for (int currsamp = 0; currsamp < bufferSize; currsamp++) {
 				bo[currsamp] = y1 = b0 * bi[currsamp] - a1 * y1;
 			}
 
-		} else {
+		} else if (freqUGen.isControlRate()) {
+
+			// read the frequency once per control block
+			int period = freqUGen.getControlBlockSize();
+			boolean ramp = freqUGen.getControlInterpolation() == UGen.ControlInterpolation.RAMP;
+			for (int start = 0; start < bufferSize; start += period) {
+				int end = Math.min(start + period, bufferSize);
+				float last = b0, step = 0;
+				freq = freqUGen.getValue(0, ramp ? end - 1 : start);
+				calcVals();
+				if (ramp && controlStarted) {
+					step = (b0 - last) / (end - start);
+					b0 = last;
+				}
+				controlStarted = true;
+				for (int currsamp = start; currsamp < end; currsamp++) {
+					if (step != 0) {
+						a1 = (b0 += step) - 1;
+					}
+					bo[currsamp] = y1 = b0 * bi[currsamp] - a1 * y1;
+				}
+			}
 
-			freqUGen.update();
+		} else {
 
 			for (int currsamp = 0; currsamp < bufferSize; currsamp++) {
 				a1 = (b0 = (float) Math.sin(two_pi_over_sf
@@ -3,6 +3,8 @@
  */
 package net.beadsproject.beads.ugens;
 
+import java.util.Arrays;
+
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.UGen;
 import net.beadsproject.beads.data.Buffer;
@@ -10,89 +12,168 @@ import net.beadsproject.beads.data.Buffer;
 /**
  * An OscillatorBank sums the output of a set of oscillators with assignable frequencies and amplitudes. The frequencies and amplitudes of the set of oscillators can be assigned using arrays.
  *
+ * </p>OscillatorBank is built for additive synthesis with thousands of partials. Each oscillator is worked out for a whole
+ * buffer at a time, with a fixed point phase that wraps around by itself, and reads the Buffer with linear interpolation.
+ * Oscillators at or above the Nyquist frequency, and those whose gains are below a threshold (see
+ * {@link #setGainThreshold(float)}), are skipped. New frequencies and gains are ramped to over a buffer so that they
+ * don't click, and can also be smoothed over a longer time (see {@link #setSmoothingTime(float)}).
+ *
  * @beads.category synth
  * @author ollie
  */
 public class OscillatorBank extends UGen {
 
+    /** The number of points in the lookup table, as a power of two, which is the default size of a Buffer. */
+    private static final int TABLE_BITS = 12;
+
+    /** The number of low bits of the phase that are the fraction between table points. */
+    private static final int FRACTION_BITS = 32 - TABLE_BITS;
+
+    /** The mask for the fraction bits of the phase. */
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+
+    /**
+     * The bits of the float 1, to which the fraction bits of the phase are added as the top of the mantissa to make a
+     * float between 1 and 2. This is much faster than converting the fraction from an int.
+     */
+    private static final int ONE_BITS = 0x3F800000;
+
+    /** The shift from the fraction bits of the phase to the top of a float's mantissa. */
+    private static final int MANTISSA_SHIFT = 23 - FRACTION_BITS;
+
     /** The array of frequencies of individual oscillators. */
     private float[] frequency;
-    
+
     /** The array of gains of individual oscillators. */
     private float[] gains;
-    
-    /** The array of current positions of individual oscillators. */
-    private float[] point;
-    
-    /** The array of increment rates of individual oscillators, given their frequencies. */
-    private double[] increment;
-    
+
+    /** The frequencies and gains that the oscillators have got to, which move towards the ones set. */
+    private float[] currentFrequency, currentGain;
+
+    /** The array of current positions of individual oscillators, as fixed point fractions of the Buffer, where 2^32 is the whole Buffer. */
+    private int[] phase;
+
     /** The buffer used by all oscillators. */
     private Buffer buffer;
-    
+
+    /**
+     * A copy of the Buffer's data, resampled to 2^TABLE_BITS points if need be, with the first point repeated on the end
+     * so that interpolation doesn't need to wrap.
+     */
+    private float[] table;
+
     /** The number of oscillators. */
     private int numOscillators;
-    
+
     /** The sample rate and master gain of the OscillatorBank. */
     private float gain;
-    
+
+    /** The time taken by frequencies and gains to get most of the way to new values, in milliseconds. */
+    private float smoothingTime;
+
+    /** The gain below which oscillators are skipped. */
+    private float gainThreshold;
+
+    /** The number of oscillators worked out in the last buffer. */
+    private int numActiveOscillators;
+
+    /** Whether the oscillators have been worked out yet. Until then, they start at their frequencies and gains. */
+    private boolean started;
+
     /**
      * Instantiates a new OscillatorBank.
-     * 
+     *
      * @param context the AudioContext.
      * @param buffer the buffer used as a lookup table by the oscillators.
      * @param numOscillators the number of oscillators.
      */
     public OscillatorBank(AudioContext context, Buffer buffer, int numOscillators) {
         super(context, 1);
-        this.buffer = buffer;
+        setBuffer(buffer);
         setNumOscillators(numOscillators);
         gain = 1f / (float)numOscillators;
+        gainThreshold = 0.00001f;
     }
-    
-    
+
+    /**
+     * Sets the Buffer used by the oscillators. The Buffer's data is copied, so if it is changed afterwards, this
+     * method must be called again. Buffers of other than the default size are resampled to it.
+     *
+     * @param buffer the Buffer.
+     */
+    public void setBuffer(Buffer buffer) {
+        float[] b = buffer.buf;
+        int length = 1 << TABLE_BITS;
+        float[] t = new float[length + 1];
+        if(length == b.length) {
+            System.arraycopy(b, 0, t, 0, length);
+        } else {
+            for(int i = 0; i < length; i++) {
+                float position = (float)i * b.length / length;
+                int index = (int)position;
+                float fraction = position - index;
+                t[i] = b[index] * (1 - fraction) + b[(index + 1) % b.length] * fraction;
+            }
+        }
+        t[length] = t[0];
+        this.buffer = buffer;
+        table = t;
+    }
+
+    /**
+     * Gets the Buffer used by the oscillators.
+     *
+     * @return the Buffer.
+     */
+    public Buffer getBuffer() {
+        return buffer;
+    }
+
     /**
      * Sets the number of oscillators.
-     * 
+     *
      * @param numOscillators the new number of oscillators.
      */
     public void setNumOscillators(int numOscillators) {
-    	this.numOscillators = numOscillators;
-		float[] old = frequency;
-		frequency = new float[numOscillators];
-		increment = new double[numOscillators];
-		int min = 0;
-		if(old != null) min = Math.min(frequency.length, old.length);
-		for(int i = 0; i < min; i++) {
-			frequency[i] = old[i];
-            increment[i] = frequency[i] / context.getSampleRate();
-		}
-		for(int i = min; i < frequency.length; i++) {
-			frequency[i] = 0f;
-            increment[i] = frequency[i] / context.getSampleRate();
-		}
-		old = gains;
-		gains = new float[numOscillators];
-		for(int i = 0; i < min; i++) {
-			gains[i] = old[i];
-		}
-		for(int i = min; i < gains.length; i++) {
-			gains[i] = 1f;
-		}    		
-		old = point;
-		point = new float[numOscillators];
-		for(int i = 0; i < min; i++) {
-			point[i] = old[i];
-		}
-		for(int i = min; i < point.length; i++) {
-			point[i] = 0f;
-		}
-    }
-    
+        this.numOscillators = numOscillators;
+        frequency = resize(frequency, numOscillators, 0f);
+        currentFrequency = resize(currentFrequency, numOscillators, 0f);
+        gains = resize(gains, numOscillators, 1f);
+        currentGain = resize(currentGain, numOscillators, 1f);
+        int[] old = phase;
+        phase = new int[numOscillators];
+        if(old != null) {
+            System.arraycopy(old, 0, phase, 0, Math.min(old.length, numOscillators));
+        }
+    }
+
+    /**
+     * Copies an array into a new one of a given length, filling any new elements with a value.
+     */
+    private static float[] resize(float[] old, int length, float value) {
+        float[] array = new float[length];
+        int min = 0;
+        if(old != null) {
+            min = Math.min(length, old.length);
+            System.arraycopy(old, 0, array, 0, min);
+        }
+        Arrays.fill(array, min, length, value);
+        return array;
+    }
+
+    /**
+     * Gets the number of oscillators.
+     *
+     * @return the number of oscillators.
+     */
+    public int getNumOscillators() {
+        return numOscillators;
+    }
+
     /**
      * Sets the frequencies and gains of all oscillators from an array freqsGains[][] where freqsGains[i][0] gives the
      * ith frequency, and freqsGains[i][1] gives the ith gain. This is the format generated by the SpectralPeaks FeatureExtractor.
-     * 
+     *
      * @param freqsGains
      */
     public void setFrequenciesAndGains(float[][] freqsGains) {
@@ -103,13 +184,12 @@ public class OscillatorBank extends UGen {
         	} else {
         		frequency[i] = 0f;
         	}
-            increment[i] = frequency[i] / context.getSampleRate();
         }
     }
-    
+
     /**
      * Sets the frequencies of all oscillators.
-     * 
+     *
      * @param frequencies the new frequencies.
      */
     public void setFrequencies(float[] frequencies) {
@@ -119,10 +199,9 @@ public class OscillatorBank extends UGen {
         	} else {
         		frequency[i] = 0f;
         	}
-            increment[i] = frequency[i] / context.getSampleRate();
         }
     }
-    
+
     /**
      * Gets the array of frequencies.
      * @return array of frequencies.
@@ -130,10 +209,10 @@ public class OscillatorBank extends UGen {
     public float[] getFrequencies() {
     	return frequency;
     }
-    
+
     /**
      * Sets the gains of all oscillators.
-     * 
+     *
      * @param gains the new gains.
      */
     public void setGains(float[] gains) {
@@ -153,22 +232,138 @@ public class OscillatorBank extends UGen {
     	return gains;
     }
 
+    /**
+     * Sets the time taken by the oscillators to get most (1 - 1/e) of the way to new frequencies and gains. With a time
+     * of 0, the default, they get there over the next buffer.
+     *
+     * @param smoothingTime the time in milliseconds.
+     */
+    public void setSmoothingTime(float smoothingTime) {
+        this.smoothingTime = Math.max(0, smoothingTime);
+    }
+
+    /**
+     * Gets the time taken by the oscillators to get most of the way to new frequencies and gains.
+     *
+     * @return the time in milliseconds.
+     */
+    public float getSmoothingTime() {
+        return smoothingTime;
+    }
+
+    /**
+     * Sets the gain below which oscillators are skipped. The default is 0.00001 (-100dB).
+     *
+     * @param gainThreshold the gain.
+     */
+    public void setGainThreshold(float gainThreshold) {
+        this.gainThreshold = gainThreshold;
+    }
+
+    /**
+     * Gets the gain below which oscillators are skipped.
+     *
+     * @return the gain.
+     */
+    public float getGainThreshold() {
+        return gainThreshold;
+    }
+
+    /**
+     * Gets the number of oscillators that were worked out in the last buffer, that is, those that weren't skipped.
+     *
+     * @return the number of oscillators.
+     */
+    public int getNumActiveOscillators() {
+        return numActiveOscillators;
+    }
+
     /* (non-Javadoc)
      * @see com.olliebown.beads.core.UGen#calculateBuffer()
      */
     @Override
     public void calculateBuffer() {
-        zeroOuts();
-        for(int i = 0; i < bufferSize; i++) {
-            for(int j = 0; j < numOscillators; j++) {
-                point[j] = (float)(point[j] + increment[j]) % 1f;
-                bufOut[0][i] += gains[j] * buffer.getValueFraction(point[j]);
+        float[] bo = bufOut[0];
+        Arrays.fill(bo, 0f);
+        if(!started) {
+            System.arraycopy(frequency, 0, currentFrequency, 0, numOscillators);
+            System.arraycopy(gains, 0, currentGain, 0, numOscillators);
+            started = true;
+        }
+        float sampleRate = context.getSampleRate();
+        float nyquist = sampleRate / 2;
+        // the fraction of the way to the new values moved in this buffer
+        float smoothing = smoothingTime <= 0 ? 1 :
+            (float)(1 - Math.exp(-bufferSize / (smoothingTime * sampleRate / 1000)));
+        // in double, since a float increment can be out by up to 64 units for high partials, and the phase drifts
+        double phaseScale = 4294967296.0 / sampleRate;
+        double rampScale = 1.0 / bufferSize;
+        float[] t = table;
+        int active = 0;
+        for(int j = 0; j < numOscillators; j++) {
+            // move the frequency and gain towards the ones set
+            float f0 = currentFrequency[j];
+            float g0 = currentGain[j];
+            float f1 = frequency[j];
+            float g1 = gains[j];
+            if(smoothing < 1) {
+                f1 = Math.abs(f1 - f0) < 0.001f ? f1 : f0 + (f1 - f0) * smoothing;
+                g1 = Math.abs(g1 - g0) < 0.0000001f ? g1 : g0 + (g1 - g0) * smoothing;
+            }
+            currentFrequency[j] = f1;
+            currentGain[j] = g1;
+            // skip oscillators that can't be heard
+            if(f0 >= nyquist || f1 >= nyquist) continue;
+            if(Math.abs(g0) < gainThreshold && Math.abs(g1) < gainThreshold) continue;
+            active++;
+            if(f0 == f1 && g0 == g1) {
+                phase[j] = add(bo, bufferSize, t, phase[j], (int)(long)(f0 * phaseScale), g0 * gain);
+            } else {
+                // ramp the increment and gain over the buffer
+                phase[j] = addRamped(bo, bufferSize, t, phase[j], (int)(long)(f0 * phaseScale),
+                        (float)((f1 - f0) * phaseScale * rampScale), g0 * gain, (float)((g1 - g0) * gain * rampScale));
             }
-            bufOut[0][i] *= gain;
         }
-    }   
+        numActiveOscillators = active;
+    }
+
+    /**
+     * Adds an oscillator with a steady frequency and gain to a buffer.
+     *
+     * @return the phase at the end of the buffer.
+     */
+    private static int add(float[] bo, int length, float[] t, int p, int increment, float g) {
+        for(int i = 0; i < length; i++) {
+            p += increment;
+            int index = p >>> FRACTION_BITS;
+            float fraction = Float.intBitsToFloat(ONE_BITS | (p & FRACTION_MASK) << MANTISSA_SHIFT) - 1f;
+            float a = t[index];
+            bo[i] += g * (a + fraction * (t[index + 1] - a));
+        }
+        return p;
+    }
+
+    /**
+     * Adds an oscillator to a buffer, ramping its phase increment and gain. The ramp is kept apart from the starting
+     * increment, so that it stays small enough to be exact in a float.
+     *
+     * @return the phase at the end of the buffer.
+     */
+    private static int addRamped(float[] bo, int length, float[] t, int p, int increment, float incrementStep,
+            float g, float gainStep) {
+        float ramp = 0;
+        for(int i = 0; i < length; i++) {
+            p += increment + (int)(ramp += incrementStep);
+            g += gainStep;
+            int index = p >>> FRACTION_BITS;
+            float fraction = Float.intBitsToFloat(ONE_BITS | (p & FRACTION_MASK) << MANTISSA_SHIFT) - 1f;
+            float a = t[index];
+            bo[i] += g * (a + fraction * (t[index + 1] - a));
+        }
+        return p;
+    }
+
 
-    
 }
 
 
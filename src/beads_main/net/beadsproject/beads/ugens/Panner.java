@@ -25,6 +25,8 @@ public class Panner extends UGen implements DataBeadReceiver {
 	protected float pos = 0, p1, p2;
 	protected UGen posUGen;
 	protected boolean isPosStatic;
+	// whether the gains have been worked out at control rate yet, so can be ramped from
+	private boolean controlStarted;
 
 	/**
 	 * Constructor that sets the pan to the middle by default.
@@ -69,33 +71,52 @@ public class Panner extends UGen implements DataBeadReceiver {
 		float[] bo1 = bufOut[0];
 		float[] bo2 = bufOut[1];
 
-		if (isPosStatic) {
+		boolean steady = isPosStatic;
+		if (!steady) {
+			posUGen.update();
+			if (posUGen.isConstant(0)) {
+				pos = posUGen.getValue(0, 0);
+				calcGains();
+				steady = true;
+			}
+		}
+
+		if (steady) {
 
 			for (int currsample = 0; currsample < bufferSize; currsample++) {
 				bo1[currsample] = p1 * bi[currsample];
 				bo2[currsample] = p2 * bi[currsample];
 			}
 
-		} else {
+		} else if (posUGen.isControlRate()) {
 
-			posUGen.update();
+			// read the position once per control block
+			int period = posUGen.getControlBlockSize();
+			boolean ramp = posUGen.getControlInterpolation() == UGen.ControlInterpolation.RAMP;
+			for (int start = 0; start < bufferSize; start += period) {
+				int end = Math.min(start + period, bufferSize);
+				float last1 = p1, last2 = p2, step1 = 0, step2 = 0;
+				pos = posUGen.getValue(0, ramp ? end - 1 : start);
+				calcGains();
+				if (ramp && controlStarted) {
+					step1 = (p1 - last1) / (end - start);
+					step2 = (p2 - last2) / (end - start);
+					p1 = last1;
+					p2 = last2;
+				}
+				controlStarted = true;
+				for (int currsample = start; currsample < end; currsample++) {
+					bo1[currsample] = (p1 += step1) * bi[currsample];
+					bo2[currsample] = (p2 += step2) * bi[currsample];
+				}
+			}
+
+		} else {
 
 			for (int currsample = 0; currsample < bufferSize; currsample++) {
 
-				if ((pos = posUGen.getValue(0, currsample)) >= 1) {
-					p1 = 0;
-					p2 = 1;
-				} else if (pos <= -1) {
-					p1 = 1;
-					p2 = 0;
-				} else {
-					int n1;
-					float f = (pos + 1) * .5f * (float) rootSize;
-					f -= (n1 = (int) Math.floor(f));
-					p2 = ROOTS[n1] * (1 - f) + ROOTS[n1 + 1] * f;
-					p1 = ROOTS[rootSize - n1] * (1 - f)
-							+ ROOTS[rootSize - (n1 + 1)] * f;
-				}
+				pos = posUGen.getValue(0, currsample);
+				calcGains();
 
 				bo1[currsample] = p1 * bi[currsample];
 				bo2[currsample] = p2 * bi[currsample];
@@ -103,6 +124,26 @@ public class Panner extends UGen implements DataBeadReceiver {
 		}
 	}
 
+	/**
+	 * Calculates the gains of the two outputs from the pan position.
+	 */
+	private void calcGains() {
+		if (pos >= 1) {
+			p1 = 0;
+			p2 = 1;
+		} else if (pos <= -1) {
+			p1 = 1;
+			p2 = 0;
+		} else {
+			int n1;
+			float f = (pos + 1) * .5f * (float) rootSize;
+			f -= (n1 = (int) Math.floor(f));
+			p2 = ROOTS[n1] * (1 - f) + ROOTS[n1 + 1] * f;
+			p1 = ROOTS[rootSize - n1] * (1 - f)
+					+ ROOTS[rootSize - (n1 + 1)] * f;
+		}
+	}
+
 	/**
 	 * Calculates an array of square-roots from 0 to 1.
 	 * 
@@ -136,20 +177,8 @@ public class Panner extends UGen implements DataBeadReceiver {
 	 * @return This Panner instance.
 	 */
 	public Panner setPos(float pos) {
-		if ((this.pos = pos) >= 1) {
-			p1 = 0;
-			p2 = 1;
-		} else if (pos <= -1) {
-			p1 = 1;
-			p2 = 0;
-		} else {
-			int n1;
-			float f = (pos + 1) * .5f * (float) rootSize;
-			f -= (n1 = (int) Math.floor(f));
-			p2 = ROOTS[n1] * (1 - f) + ROOTS[n1 + 1] * f;
-			p1 = ROOTS[rootSize - n1] * (1 - f) + ROOTS[rootSize - (n1 + 1)]
-					* f;
-		}
+		this.pos = pos;
+		calcGains();
 		isPosStatic = true;
 		posUGen = null;
 		return this;
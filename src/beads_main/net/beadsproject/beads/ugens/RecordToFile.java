@@ -1,127 +1,238 @@
-package net.beadsproject.beads.ugens;
-/*
- * This file is part of Beads. See http://www.beadsproject.net for all information.
- */
-import java.io.File;
-import java.io.IOException;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-
-import net.beadsproject.beads.core.AudioContext;
-import net.beadsproject.beads.core.AudioUtils;
-import net.beadsproject.beads.core.UGen;
-
-import org.tritonus.share.sampled.AudioSystemShadow;
-import org.tritonus.share.sampled.file.AudioOutputStream;
-
-/**
- * RecordToFile records audio into a file.
- * 
- * You must {@link #kill() kill} this object when finished to finalise the writing of the file header.
- * 
- * IMPORTANT NOTE: At the moment only the WAVE (*.wav) type is supported.
- * 
- * @beads.category utilities
- * @author bp
- */
-public class RecordToFile extends UGen {
-	static final private boolean DEBUG = false; 
-	
-	/** The stream the input is output to. */
-	private AudioOutputStream audioOutputStream;
-	
-	/** The audio format of the output file. */
-	private AudioFormat audioFormat;
-	
-	/**
-	 * Instantiates a recorder for file recording.
-	 * 
-	 * @param context 
-	 * 				The AudioContext 	
-	 * @param numberOfChannels 
-	 * 				The number of channels
-	 * @param file
-	 * 				The file to output to
-	 * @param type
-	 * 				The type of the file
-	 * @throws IOException 
-	 * 				if the audio format is not supported on this machine.
-	 * 				
-	 */
-	public RecordToFile(AudioContext context, int numberOfChannels, File file, AudioFileFormat.Type type) throws IOException {
-		super(context,numberOfChannels,0);	
-		if (type!=AudioFileFormat.Type.WAVE) {
-			System.out.printf("RecordToFile: AudioFileFormat.%s is unsupported. (Only WAVE is currently supported.) \n" +
-					"Beads will continue to use the type specified but it may not output sensible audio data.\n", type.toString());
-		}		
-		
-		audioFormat = new AudioFormat(
-				AudioFormat.Encoding.PCM_SIGNED,
-				context.getSampleRate(), 
-				16 /* number of bits per sample */, 
-				getIns(), 
-				2 * getIns(), /* bytes per frame */
-				context.getSampleRate(), 
-				false /* big-endian? */
-				);
-		
-		audioOutputStream = AudioSystemShadow.getAudioOutputStream(
-				type, 
-				audioFormat, 
-				AudioSystem.NOT_SPECIFIED, 
-				file);				
-	}
-	
-	/**
-	 * Instantiates a recorder for file recording. Uses the .wav format.
-	 * 
-	 * @param context 
-	 * 				The AudioContext 	
-	 * @param numberOfChannels 
-	 * 				The number of channels
-	 * @param file
-	 * 				The file to output to. Extension should be .wav.
-	 * @throws IOException if the audio format is not supported on this machine.
-	 * 				
-	 */
-	public RecordToFile(AudioContext context, int numberOfChannels, File file) throws IOException {
-		this(context,numberOfChannels,file,AudioFileFormat.Type.WAVE);
-	}
-	
-	@Override
-	public void calculateBuffer() {
-		// INV: bufIn[0] exists
-		int length = bufIn[0].length;
-		byte bytes[] = new byte[(int) (getIns()*length*2)];
-		if (getIns() > 1) {
-			float interleaved[] = new float[(int) (getIns()*length)];
-			AudioUtils.interleave(bufIn, getIns(), length, 0, interleaved);
-			AudioUtils.floatToByte(bytes, interleaved, false);
-		}
-		else {		
-			AudioUtils.floatToByte(bytes, bufIn[0], false);
-		}
-		try {
-			int numBytesWritten = audioOutputStream.write(bytes, 0, bytes.length);
-			if(DEBUG)
-				System.out.printf("Wrote %d bytes\n",numBytesWritten);
-		} catch (IOException e) {			
-			e.printStackTrace();			
-		}	
-		if(DEBUG) {	
-			long usedMem = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-			System.out.printf("%dm mem used\n", usedMem/(1024*1024));
-		}
-	}
-	
-	public void kill() {
-		super.kill();
-		try {
-			audioOutputStream.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}		
-	}
-}
+package net.beadsproject.beads.ugens;
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.sampled.AudioFileFormat;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.audiofile.AudioFileWriter;
+import net.beadsproject.beads.data.audiofile.BackgroundAudioFileWriter;
+
+/**
+ * RecordToFile records audio into a file.
+ *
+ * You must {@link #kill() kill} this object when finished to finalise the writing of the file header. Killing it doesn't
+ * wait for the disk, so it is safe from the audio thread: the rest of the recording is written and the file is closed in the
+ * background. It can be killed from any thread, since the last block is always handed over on the audio thread. Callers that
+ * need the finished file, for example before the program exits, must call {@link #awaitClosed()} (not from the audio thread).
+ *
+ * The audio thread never touches the disk: each buffer is converted into a preallocated block, and full blocks are written
+ * by a background thread. If the disk can't keep up for long enough to fill every block, buffers are dropped rather than
+ * holding up the audio, and counted (see {@link #getDroppedBlocks()}). Recordings can be in WAV (16 bit, 24 bit or 32 bit float)
+ * or AIFF (16 or 24 bit), and can be of any length: the header is filled in when the recording is finished, and open ended
+ * recordings can be split into a series of files of fixed length.
+ *
+ * @beads.category utilities
+ * @author bp
+ */
+public class RecordToFile extends UGen {
+
+	/** The number of frames in each block handed to the writer thread. */
+	private static final int BLOCK_FRAMES = 8192;
+
+	/** The number of blocks, which sets how long the disk can stall for (about 1.5 seconds at 44.1KHz). */
+	private static final int BLOCKS = 8;
+
+	/** The background writer. */
+	private BackgroundAudioFileWriter writer;
+
+	/** The thread that calls {@link #calculateBuffer()}, the only one that may hand blocks to the writer. */
+	private volatile Thread audioThread;
+
+	/** Set once the writer has been told to close. */
+	private final AtomicBoolean closeStarted = new AtomicBoolean();
+
+	/**
+	 * Instantiates a recorder for file recording.
+	 *
+	 * @param context
+	 * 				The AudioContext
+	 * @param numberOfChannels
+	 * 				The number of channels
+	 * @param file
+	 * 				The file to output to
+	 * @param type
+	 * 				The type of the file
+	 * @throws IOException
+	 * 				if the file can't be opened.
+	 *
+	 */
+	public RecordToFile(AudioContext context, int numberOfChannels, File file, AudioFileFormat.Type type) throws IOException {
+		this(context, numberOfChannels, file, toType(type), AudioFileWriter.SampleFormat.PCM_16);
+	}
+
+	/**
+	 * Instantiates a recorder for file recording. Uses the .wav format.
+	 *
+	 * @param context
+	 * 				The AudioContext
+	 * @param numberOfChannels
+	 * 				The number of channels
+	 * @param file
+	 * 				The file to output to. Extension should be .wav.
+	 * @throws IOException if the file can't be opened.
+	 *
+	 */
+	public RecordToFile(AudioContext context, int numberOfChannels, File file) throws IOException {
+		this(context,numberOfChannels,file,AudioFileFormat.Type.WAVE);
+	}
+
+	/**
+	 * Instantiates a recorder for file recording with the given file type and sample format.
+	 *
+	 * @param context
+	 * 				The AudioContext
+	 * @param numberOfChannels
+	 * 				The number of channels
+	 * @param file
+	 * 				The file to output to.
+	 * @param type
+	 * 				The type of the file.
+	 * @param format
+	 * 				The sample format. 32 bit float is only supported by WAV.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public RecordToFile(AudioContext context, int numberOfChannels, File file, AudioFileWriter.Type type, AudioFileWriter.SampleFormat format) throws IOException {
+		super(context, numberOfChannels, 0);
+		writer = new BackgroundAudioFileWriter(new AudioFileWriter(file, type, format, numberOfChannels, context.getSampleRate()),
+				BLOCK_FRAMES, BLOCKS);
+	}
+
+	/**
+	 * Instantiates a recorder for an open ended recording that is split into a series of files of the given length. The files
+	 * are named after the given file with a four digit index added before the extension, so that recording to take.wav gives
+	 * take-0000.wav, take-0001.wav, etc.
+	 *
+	 * @param context
+	 * 				The AudioContext
+	 * @param numberOfChannels
+	 * 				The number of channels
+	 * @param file
+	 * 				The file name to base the file names on.
+	 * @param type
+	 * 				The type of the files.
+	 * @param format
+	 * 				The sample format. 32 bit float is only supported by WAV.
+	 * @param chunkLength
+	 * 				The length of each file in milliseconds.
+	 * @throws IOException if the first file can't be opened.
+	 */
+	public RecordToFile(final AudioContext context, final int numberOfChannels, final File file, final AudioFileWriter.Type type,
+			final AudioFileWriter.SampleFormat format, double chunkLength) throws IOException {
+		super(context, numberOfChannels, 0);
+		writer = new BackgroundAudioFileWriter(new BackgroundAudioFileWriter.FileSource() {
+			public AudioFileWriter open(int index) throws IOException {
+				return new AudioFileWriter(chunkFile(file, index), type, format, numberOfChannels, context.getSampleRate());
+			}
+		}, (long)context.msToSamples(chunkLength), BLOCK_FRAMES, BLOCKS);
+	}
+
+	/**
+	 * Gets the name of a file in a recording that is split into a series of files.
+	 *
+	 * @param file the file name the recording is based on.
+	 * @param index the index of the file.
+	 * @return the file.
+	 */
+	public static File chunkFile(File file, int index) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot < 0 ? name : name.substring(0, dot);
+		String extension = dot < 0 ? "" : name.substring(dot);
+		String number = String.valueOf(index);
+		while(number.length() < 4) {
+			number = "0" + number;
+		}
+		return new File(file.getParentFile(), base + "-" + number + extension);
+	}
+
+	private static AudioFileWriter.Type toType(AudioFileFormat.Type type) {
+		if(type == AudioFileFormat.Type.AIFF) {
+			return AudioFileWriter.Type.AIFF;
+		} else if (type != AudioFileFormat.Type.WAVE) {
+			System.out.printf("RecordToFile: AudioFileFormat.%s is unsupported. (Only WAVE and AIFF are currently supported.) \n" +
+					"Beads will use WAVE instead.\n", type.toString());
+		}
+		return AudioFileWriter.Type.WAV;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		audioThread = Thread.currentThread();
+		writer.offer(bufIn, 0, bufferSize);
+	}
+
+	/**
+	 * Gets the number of buffers that were lost, wholly or partly, because the disk couldn't keep up.
+	 *
+	 * @return the number of dropped blocks.
+	 */
+	public long getDroppedBlocks() {
+		return writer.getDroppedBlocks();
+	}
+
+	/**
+	 * Gets the number of frames that were lost because the disk couldn't keep up.
+	 *
+	 * @return the number of dropped frames.
+	 */
+	public long getDroppedFrames() {
+		return writer.getDroppedFrames();
+	}
+
+	/**
+	 * Gets the number of frames written to disk so far.
+	 *
+	 * @return the number of frames.
+	 */
+	public long getFramesWritten() {
+		return writer.getFramesWritten();
+	}
+
+	/**
+	 * Kills the recorder, and has the rest of the recording written and the file closed in the background. Called from
+	 * another thread while the audio is running, the last block is handed over by a command posted to the audio thread
+	 * (see {@link AudioContext#post(Runnable)}), since only the audio thread may add blocks to the writer. Use
+	 * {@link #awaitClosed()} to wait for the file to be finished.
+	 */
+	public void kill() {
+		super.kill();
+		Thread t = audioThread;
+		if(t == null || t == Thread.currentThread() || !context.isRunning()) {
+			closeWriter();
+		} else {
+			context.post(new Runnable() {
+				public void run() {
+					closeWriter();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Hands the last block to the writer and tells it to close, once only.
+	 */
+	private void closeWriter() {
+		if(closeStarted.compareAndSet(false, true)) {
+			writer.closeInBackground();
+		}
+	}
+
+	/**
+	 * Waits until the file has been finished after {@link #kill()}. Don't call this from the audio thread. If the audio was
+	 * stopped before a close posted by {@link #kill()} could run, the file is closed here instead.
+	 *
+	 * @throws IOException if writing or closing the file failed.
+	 */
+	public void awaitClosed() throws IOException {
+		if(isDeleted() && !context.isRunning()) {
+			closeWriter();
+		}
+		writer.awaitClosed();
+	}
+}
@@ -3,10 +3,13 @@
  */
 package net.beadsproject.beads.ugens;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.AudioUtils;
 import net.beadsproject.beads.core.Bead;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Resampler;
 import net.beadsproject.beads.data.Sample;
 
 /**
@@ -14,7 +17,8 @@ import net.beadsproject.beads.data.Sample;
  * The playback point in the {@link Sample} can also be directly controlled from {@link UGen} to perform scrubbing. 
  * The player can be set to a number of different loop modes. If constructed with a {@link Sample} argument, the number 
  * of outputs of SamplePlayer is determined by the number of channels of the {@link Sample}. {@link Sample} playback can 
- * use either linear or cubic interpolation.
+ * use linear or cubic interpolation, or a windowed sinc filter, which doesn't alias when playing faster than the 
+ * sample's rate (see {@link InterpolationType#SINC}).
  * 
  * TODO: Loop cross-fading has not been implemented yet.
  * 
@@ -41,6 +45,10 @@ public class SamplePlayer extends UGen {
 		/** Use cubic interpolation. */
 		CUBIC,
 		
+		/** Use a windowed sinc filter, with the quality set by {@link SamplePlayer#setResamplerQuality(Resampler.Quality)}. 
+		 * The most expensive, but free of aliasing at any rate. */
+		SINC,
+		
 		/** Use context dependent interpolation: 
 		 * NONE above 2x, 
 		 * CUBIC below 0.5x, 
@@ -106,6 +114,9 @@ public class SamplePlayer extends UGen {
 
 	/** The interpolation type. */
 	protected InterpolationType interpolationType;
+	
+	/** The quality of the sinc filter used by {@link InterpolationType#SINC}. */
+	protected Resampler.Quality resamplerQuality;
 
 	/** The loop start envelope. */
 	protected UGen loopStartEnvelope;              
@@ -137,8 +148,30 @@ public class SamplePlayer extends UGen {
 	/** Array for temp storage. */
 	protected float[] frame;
 	
+	/** The playback position for each frame of the current buffer, in milliseconds. */
+	protected double[] positions;
+	
 	/** Bead responding to sample at end (only applies when not in loop mode). */
 	private Bead endListener;
+	
+	/** The region of a streaming Sample pinned at the playback position, or null. */
+	private final AtomicReference<Pin> pin = new AtomicReference<Pin>();
+	
+	/** Set by {@link #kill()} so that a pin made by the audio thread while it is being killed is removed again. */
+	private volatile boolean released;
+	
+	/**
+	 * A region pinned in a Sample. The pin is handed between threads with {@link AtomicReference#getAndSet(Object)},
+	 * so whichever thread takes it out of {@link SamplePlayer#pin} is the only one that removes it.
+	 */
+	private static class Pin {
+		final Sample sample;
+		final int region;
+		Pin(Sample sample, int region) {
+			this.sample = sample;
+			this.region = region;
+		}
+	}
 
 	/**
 	 * Instantiates a new SamplePlayer with given number of outputs.
@@ -152,12 +185,14 @@ public class SamplePlayer extends UGen {
 		positionEnvelope = null;
 		envelopeType = EnvelopeType.FINE;
 		interpolationType = InterpolationType.ADAPTIVE;
+		resamplerQuality = Resampler.DEFAULT_QUALITY;
 		loopType = LoopType.NO_LOOP_FORWARDS;
 		forwards = true;
 		killOnEnd = true;
 		loopStartEnvelope = new Static(context, 0.0f);
 		loopEndEnvelope = new Static(context, 0.0f);
 		positionIncrement = context.samplesToMs(1);
+		positions = new double[bufferSize];
 	}
 
 	/**
@@ -173,9 +208,10 @@ public class SamplePlayer extends UGen {
 	}
 
 	/**
-	 * Sets the Sample.
+	 * Sets the Sample. Removes the pin on the region of the old Sample, if it is streaming.
 	 */
 	public void setSample(Sample sample) {
+		unpinRegion();
 		this.sample = sample;
 //		sampleRate = sample.getSampleRate();
 		frame = new float[sample.getNumChannels()];
@@ -432,6 +468,25 @@ public class SamplePlayer extends UGen {
 	public void setInterpolationType(InterpolationType interpolationType) {
 		this.interpolationType = interpolationType;
 	}
+	
+	/**
+	 * Gets the quality of the sinc filter used by {@link InterpolationType#SINC}.
+	 * 
+	 * @return the quality.
+	 */
+	public Resampler.Quality getResamplerQuality() {
+		return resamplerQuality;
+	}
+	
+	/**
+	 * Sets the quality of the sinc filter used by {@link InterpolationType#SINC}, trading CPU time for the sharpness 
+	 * of the filter.
+	 * 
+	 * @param resamplerQuality the quality.
+	 */
+	public void setResamplerQuality(Resampler.Quality resamplerQuality) {
+		this.resamplerQuality = resamplerQuality;
+	}
 
 	/**
 	 * Gets the loop cross fade.
@@ -588,6 +643,7 @@ public class SamplePlayer extends UGen {
 	@Override
 	public void calculateBuffer(){
 		if(sample != null) {
+			pinRegion();
 			if(positionEnvelope != null) {
 				positionEnvelope.update();
 			} else {
@@ -599,6 +655,7 @@ public class SamplePlayer extends UGen {
 				loopStartEnvelope.update();
 				loopEndEnvelope.update();
 			}
+			prefetch();
 			
 			// depending on the envelope type, we either copy whole chunks of data (COARSE), or step per frame (FINE)
 			if (envelopeType==EnvelopeType.COARSE)
@@ -698,50 +755,114 @@ public class SamplePlayer extends UGen {
 			}
 			else  // envelopeType==EnvelopeType.FINE
 			{			
+				//the interpolation is chosen from the rate at the start of the buffer
+				Sample.Interpolation interpolation = getInterpolation(positionEnvelope == null ? rateEnvelope.getValue(0, 0) : rate);
+				//work out the position of each frame, then read them all at once
 				for (int i = 0; i < bufferSize; i++) {
-					//calculate the samples		
-					switch (interpolationType) {
-					case ADAPTIVE: 
-						if(rate > ADAPTIVE_INTERP_HIGH_THRESH) {
-							sample.getFrameNoInterp(position, frame);
-						} else if(rate > ADAPTIVE_INTERP_LOW_THRESH) {
-							sample.getFrameLinear(position, frame);
-						} else {
-							sample.getFrameCubic(position, frame);
-						}
-						break;
-					case LINEAR:
-						sample.getFrameLinear(position, frame);
-						break;
-					case CUBIC:
-						sample.getFrameCubic(position, frame);
-						break;
-					case NONE:
-						sample.getFrameNoInterp(position, frame);
-						break;
-					}
-					for (int j = 0; j < outs; j++) {
-						bufOut[j][i] = frame[j % sample.getNumChannels()];
-					}
+					positions[i] = position;
 					//update the position, loop state, direction
 					calculateNextPosition(i);
-					//if the SamplePlayer gets paused or deleted, zero the remaining outs and quit the loop
-					//Ollie - pretty sure we don't need this now that we have outputPauseRegime
-	//				if(isPaused() || isDeleted()) {
-	//					//make sure to zero the remaining outs
-	//					while(i < bufferSize) {
-	//						for (int j = 0; j < outs; j++) {
-	//							bufOut[j][i] = 0.0f;
-	//						}
-	//						i++;
-	//					}
-	//					break;
-	//				}
 				}
+				sample.getFrames(positions, interpolation, resamplerQuality, bufOut, 0, bufferSize);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the {@link Sample.Interpolation} to read the Sample with, given the {@link InterpolationType} and, for 
+	 * {@link InterpolationType#ADAPTIVE}, the playback rate.
+	 * 
+	 * @param rate the playback rate.
+	 * @return the interpolation.
+	 */
+	protected Sample.Interpolation getInterpolation(float rate) {
+		switch (interpolationType) {
+		case ADAPTIVE: 
+			if(rate > ADAPTIVE_INTERP_HIGH_THRESH) {
+				return Sample.Interpolation.NONE;
+			} else if(rate > ADAPTIVE_INTERP_LOW_THRESH) {
+				return Sample.Interpolation.LINEAR;
+			} else {
+				return Sample.Interpolation.CUBIC;
 			}
+		case LINEAR:
+			return Sample.Interpolation.LINEAR;
+		case CUBIC:
+			return Sample.Interpolation.CUBIC;
+		case SINC:
+			return Sample.Interpolation.SINC;
+		default:
+			return Sample.Interpolation.NONE;
 		}
 	}
 
+	/**
+	 * Pins the region of the Sample at the playback position, so that it can't be evicted from the 
+	 * {@link net.beadsproject.beads.data.RegionCache RegionCache} while it is being played. Only affects streaming Samples.
+	 * Called from the audio thread. If the Sample has been changed since the last buffer, the pin on the old Sample is
+	 * removed here.
+	 * 
+	 * </p>Pins are only removed when the Sample is changed and when the SamplePlayer is killed, so a SamplePlayer that is
+	 * dropped without being killed keeps its region in memory.
+	 */
+	private void pinRegion() {
+		Sample s = sample;
+		int r = s.getRegionIndex(position);
+		Pin current = pin.get();
+		if(current == null || current.sample != s || current.region != r) {
+			s.pinRegion(r);
+			release(pin.getAndSet(new Pin(s, r)));
+			if(released) {
+				//killed meanwhile, and kill() may have missed the new pin
+				unpinRegion();
+			}
+		}
+	}
+	
+	/**
+	 * Asks the Sample to queue the regions ahead of the playback position, in the direction of playback and
+	 * at the current rate. Only affects streaming Samples.
+	 */
+	private void prefetch() {
+		double rate = positionEnvelope == null ? rateEnvelope.getValue(0, 0) : 1;
+		switch(loopType) {
+			case NO_LOOP_BACKWARDS:
+			case LOOP_BACKWARDS:
+				rate = -rate;
+				break;
+			case LOOP_ALTERNATING:
+				if(!forwards) rate = -rate;
+				break;
+		}
+		sample.prefetch(position, rate);
+	}
+	
+	/**
+	 * Removes the pin added by {@link #pinRegion()}. Safe to call from any thread.
+	 */
+	private void unpinRegion() {
+		release(pin.getAndSet(null));
+	}
+	
+	/**
+	 * Removes a pin taken out of {@link #pin}, if there is one.
+	 */
+	private static void release(Pin p) {
+		if(p != null) {
+			p.sample.unpinRegion(p.region);
+		}
+	}
+	
+	/**
+	 * Kills the SamplePlayer and removes its pin on the region of a streaming Sample.
+	 */
+	@Override
+	public void kill() {
+		super.kill();
+		released = true;
+		unpinRegion();
+	}
+
 	/**
 	 * Sets/unsets option for SamplePlayer to kill itself when it reaches the end of the Sample it is playing. True by default.
 	 * 
@@ -62,6 +62,13 @@ public class Static extends UGen {
 		return x;
 	}
 	
+	/* (non-Javadoc)
+	 * @see net.beadsproject.beads.core.UGen#isConstant(int)
+	 */
+	public boolean isConstant(int i) {
+		return true;
+	}
+	
 	
 	
 }
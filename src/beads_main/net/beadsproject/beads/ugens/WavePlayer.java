@@ -19,6 +19,10 @@ import net.beadsproject.beads.data.buffers.SquareBuffer;
  * WavePlayer wp = new WavePlayer(ac, 440.f, Buffer.SINE);
  * </code>
  * 
+ * </p>A WavePlayer used as a low frequency oscillator can be set to control rate with
+ * {@link UGen#setControlRate(int, UGen.ControlInterpolation)}, in which case it reads the frequency and the Buffer once per
+ * control block, and holds or ramps the value over the block.
+ * 
  * @see Buffer
  * @see SineBuffer
  * @see SawBuffer
@@ -49,6 +53,9 @@ public class WavePlayer extends UGen {
 
 	private boolean isFreqStatic;
 
+	/** The value worked out for the last control block, which the next block ramps from. */
+	private float controlValue = Float.NaN;
+
 	private WavePlayer(AudioContext context, Buffer buffer) {
 		super(context, 1);
 		this.buffer = buffer;
@@ -106,10 +113,35 @@ public class WavePlayer extends UGen {
 	public void calculateBuffer() {
 		frequencyEnvelope.update();
 		float[] bo = bufOut[0];
-		if (phaseEnvelope == null) {
+		if (phaseEnvelope == null && isControlRate()) {
+			int period = getControlBlockSize();
+			for (int start = 0; start < bufferSize; start += period) {
+				int end = Math.min(start + period, bufferSize);
+				int frame = getControlFrame(start, end);
+				frequency = frequencyEnvelope.getValue(0, frame);
+				float increment = frequency * one_over_sr;
+				phase += increment * (frame - start + 1);
+				phase -= Math.floor(phase);
+				float value = buffer.getValueFraction((float) phase);
+				fillControlBlock(bo, start, end, Float.isNaN(controlValue) ? value : controlValue, value);
+				controlValue = value;
+				// move on to the last frame of the block
+				phase += increment * (end - 1 - frame);
+				phase -= Math.floor(phase);
+			}
+		} else if (phaseEnvelope == null && frequencyEnvelope.isConstant(0)) {
+			frequency = frequencyEnvelope.getValue(0, 0);
+			float increment = frequency * one_over_sr;
+			for (int i = 0; i < bufferSize; i++) {
+				phase += increment;
+				phase -= Math.floor(phase);
+				bo[i] = buffer.getValueFraction((float) phase);
+			}
+		} else if (phaseEnvelope == null) {
 			for (int i = 0; i < bufferSize; i++) {
 				frequency = frequencyEnvelope.getValue(0, i);
-				phase = (((phase + frequency * one_over_sr) % 1.0f) + 1.0f) % 1.0f;
+				phase += frequency * one_over_sr;
+				phase -= Math.floor(phase);
 				bo[i] = buffer.getValueFraction((float) phase);
 			}
 		} else {
@@ -0,0 +1,371 @@
+/*
+ * This file is part of Beads. See http://www.beadsproject.net for all information.
+ */
+package net.beadsproject.beads.ugens;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.data.Wavetable;
+
+/**
+ * WavetablePlayer is an oscillator that plays a band-limited {@link Wavetable}, so that, unlike a {@link WavePlayer}
+ * playing a saw or square {@link net.beadsproject.beads.data.Buffer}, it doesn't alias at high frequencies. Like
+ * WavePlayer, its frequency is controlled by a {@link UGen}.
+ *
+ * The simplest use of WavetablePlayer is: <code>
+ * WavetablePlayer wp = new WavetablePlayer(ac, 440.f, Wavetable.SAW);
+ * </code>
+ *
+ * </p>The output is worked out in blocks of {@value #BLOCK_SIZE} frames. For each block, the level of the Wavetable is
+ * picked from the highest frequency in the block (see {@link Wavetable#getLevel(float, float)}), and the Wavetable is
+ * read with linear interpolation. When the level changes, the block crossfades from the old level to the new one.
+ *
+ * </p>A Wavetable with more than one frame can be morphed with {@link #setMorph(UGen)}, which goes from the first frame
+ * at 0 to the last frame at 1. The morph is read once per block and ramped over the block.
+ *
+ * @see Wavetable
+ * @see WavePlayer
+ *
+ * @beads.category synth
+ */
+public class WavetablePlayer extends UGen {
+
+	/** The number of frames over which the level and morph are worked out. */
+	public static final int BLOCK_SIZE = 64;
+
+	/** The number of low bits of the phase that are the fraction between table points. */
+	private static final int FRACTION_BITS = 32 - Wavetable.TABLE_BITS;
+
+	/** The mask for the fraction bits of the phase. */
+	private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+
+	/** The bits of the float 1, to which the fraction bits of the phase are added to make a float between 1 and 2. */
+	private static final int ONE_BITS = 0x3F800000;
+
+	/** The shift from the fraction bits of the phase to the top of a float's mantissa. */
+	private static final int MANTISSA_SHIFT = 23 - FRACTION_BITS;
+
+	/** The Wavetable. */
+	private Wavetable wavetable;
+
+	/** The frequency envelope. */
+	private UGen frequencyUGen;
+
+	/** Whether the frequency is static. */
+	private boolean isFreqStatic;
+
+	/** The oscillation frequency. */
+	private float frequency;
+
+	/** The morph envelope. */
+	private UGen morphUGen;
+
+	/** Whether the morph is static. */
+	private boolean isMorphStatic;
+
+	/** The playback point in the Wavetable, as a fixed point fraction, where 2^32 is the whole Wavetable. */
+	private int phase;
+
+	/** The phases of the current block, indexed by frame in the buffer. */
+	private int[] phases;
+
+	/** The level used for the last block, or -1 before the first block. */
+	private int level;
+
+	/** The morph used for the last block, as a position between frames. */
+	private float morphPosition;
+
+	private WavetablePlayer(AudioContext context, Wavetable wavetable) {
+		super(context, 1);
+		this.wavetable = wavetable;
+		phases = new int[bufferSize];
+		level = -1;
+		setMorph(0);
+	}
+
+	/**
+	 * Instantiates a new WavetablePlayer with given frequency envelope and Wavetable.
+	 *
+	 * @param context
+	 *            the AudioContext.
+	 * @param frequencyController
+	 *            the frequency envelope.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavetablePlayer(AudioContext context, UGen frequencyController, Wavetable wavetable) {
+		this(context, wavetable);
+		setFrequency(frequencyController);
+	}
+
+	/**
+	 * Instantiates a new WavetablePlayer with given static frequency and Wavetable.
+	 *
+	 * @param context
+	 *            the AudioContext.
+	 * @param frequency
+	 *            the frequency in Hz.
+	 * @param wavetable
+	 *            the Wavetable.
+	 */
+	public WavetablePlayer(AudioContext context, float frequency, Wavetable wavetable) {
+		this(context, wavetable);
+		setFrequency(frequency);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.olliebown.beads.core.UGen#start()
+	 */
+	public void start() {
+		super.start();
+		phase = 0;
+		level = -1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.olliebown.beads.core.UGen#calculateBuffer()
+	 */
+	@Override
+	public void calculateBuffer() {
+		frequencyUGen.update();
+		morphUGen.update();
+		float[] bo = bufOut[0];
+		float sampleRate = context.getSampleRate();
+		float phaseScale = 4294967296f / sampleRate;
+		boolean constant = frequencyUGen.isConstant(0);
+		int lastFrame = wavetable.getNumFrames() - 1;
+		int p = phase;
+		for (int start = 0; start < bufferSize; start += BLOCK_SIZE) {
+			int end = Math.min(start + BLOCK_SIZE, bufferSize);
+			// work out the phases, and pick the level from the highest frequency in the block
+			float maxFrequency;
+			if (constant) {
+				frequency = frequencyUGen.getValue(0, 0);
+				int increment = (int) (frequency * phaseScale);
+				for (int i = start; i < end; i++) {
+					phases[i] = p += increment;
+				}
+				maxFrequency = Math.abs(frequency);
+			} else {
+				maxFrequency = 0;
+				for (int i = start; i < end; i++) {
+					frequency = frequencyUGen.getValue(0, i);
+					phases[i] = p += (int) (frequency * phaseScale);
+					maxFrequency = Math.max(maxFrequency, Math.abs(frequency));
+				}
+			}
+			int newLevel = Wavetable.getLevel(maxFrequency, sampleRate);
+			float newMorphPosition = Math.max(0, Math.min(1, morphUGen.getValue(0, end - 1))) * lastFrame;
+			if (level < 0) {
+				level = newLevel;
+				morphPosition = newMorphPosition;
+			}
+			// crossfade from the last block's level and morph to this block's
+			boolean add = false;
+			int firstFrame = (int) Math.min(morphPosition, newMorphPosition);
+			int endFrame = Math.min((int) Math.ceil(Math.max(morphPosition, newMorphPosition)), lastFrame);
+			for (int l = level; ; l = newLevel) {
+				for (int f = firstFrame; f <= endFrame; f++) {
+					float from = l == level ? Math.max(0, 1 - Math.abs(morphPosition - f)) : 0;
+					float to = l == newLevel ? Math.max(0, 1 - Math.abs(newMorphPosition - f)) : 0;
+					if (from != 0 || to != 0) {
+						render(bo, start, end, phases, wavetable.getTable(f, l), from, to, add);
+						add = true;
+					}
+				}
+				if (l == newLevel) break;
+			}
+			level = newLevel;
+			morphPosition = newMorphPosition;
+		}
+		phase = p;
+	}
+
+	/**
+	 * Reads a table at the phases of a block, with a gain that ramps over the block, and either writes the result to
+	 * the output or adds it.
+	 */
+	private static void render(float[] bo, int start, int end, int[] phases, float[] t, float from, float to,
+			boolean add) {
+		if (from == to && !add) {
+			for (int i = start; i < end; i++) {
+				int p = phases[i];
+				int index = p >>> FRACTION_BITS;
+				float fraction = Float.intBitsToFloat(ONE_BITS | (p & FRACTION_MASK) << MANTISSA_SHIFT) - 1f;
+				float a = t[index];
+				bo[i] = from * (a + fraction * (t[index + 1] - a));
+			}
+		} else {
+			float step = (to - from) / (end - start);
+			for (int i = start, k = 1; i < end; i++, k++) {
+				int p = phases[i];
+				int index = p >>> FRACTION_BITS;
+				float fraction = Float.intBitsToFloat(ONE_BITS | (p & FRACTION_MASK) << MANTISSA_SHIFT) - 1f;
+				float a = t[index];
+				float value = (from + step * k) * (a + fraction * (t[index + 1] - a));
+				bo[i] = add ? bo[i] + value : value;
+			}
+		}
+	}
+
+	/**
+	 * Gets the UGen that controls the frequency.
+	 *
+	 * @return The frequency controller UGen.
+	 */
+	public UGen getFrequencyUGen() {
+		if (isFreqStatic) {
+			return null;
+		} else {
+			return frequencyUGen;
+		}
+	}
+
+	/**
+	 * Gets the current frequency.
+	 *
+	 * @return The current frequency.
+	 */
+	public float getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * Sets a UGen to control the frequency.
+	 *
+	 * @param frequencyUGen
+	 *            The new frequency controller.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setFrequency(UGen frequencyUGen) {
+		if (frequencyUGen == null) {
+			setFrequency(frequency);
+		} else {
+			this.frequencyUGen = frequencyUGen;
+			isFreqStatic = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the frequency to a static value.
+	 *
+	 * @param frequency
+	 *            The new frequency value.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setFrequency(float frequency) {
+		if (isFreqStatic) {
+			((Static) frequencyUGen).setValue(frequency);
+		} else {
+			frequencyUGen = new Static(context, frequency);
+			isFreqStatic = true;
+		}
+		this.frequency = frequency;
+		return this;
+	}
+
+	/**
+	 * Gets the UGen that controls the morph.
+	 *
+	 * @return The morph controller UGen.
+	 */
+	public UGen getMorphUGen() {
+		if (isMorphStatic) {
+			return null;
+		} else {
+			return morphUGen;
+		}
+	}
+
+	/**
+	 * Gets the current morph, from 0 at the first frame of the Wavetable to 1 at the last.
+	 *
+	 * @return The current morph.
+	 */
+	public float getMorph() {
+		return morphUGen.getValue();
+	}
+
+	/**
+	 * Sets a UGen to control the morph, from 0 at the first frame of the Wavetable to 1 at the last.
+	 *
+	 * @param morphUGen
+	 *            The new morph controller.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setMorph(UGen morphUGen) {
+		if (morphUGen == null) {
+			setMorph(0);
+		} else {
+			this.morphUGen = morphUGen;
+			isMorphStatic = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the morph to a static value, from 0 at the first frame of the Wavetable to 1 at the last.
+	 *
+	 * @param morph
+	 *            The new morph value.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setMorph(float morph) {
+		if (isMorphStatic) {
+			((Static) morphUGen).setValue(morph);
+		} else {
+			morphUGen = new Static(context, morph);
+			isMorphStatic = true;
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the current phase.
+	 *
+	 * @return The current phase.
+	 */
+	public float getPhase() {
+		return (float) ((phase & 0xFFFFFFFFL) / 4294967296.0);
+	}
+
+	/**
+	 * Sets the phase.
+	 *
+	 * @param phase
+	 *            The new phase.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setPhase(float phase) {
+		this.phase = (int) (long) ((phase - Math.floor(phase)) * 4294967296.0);
+		return this;
+	}
+
+	/**
+	 * Sets the Wavetable.
+	 *
+	 * @param wavetable
+	 *            The new Wavetable.
+	 * @return This WavetablePlayer instance.
+	 */
+	public WavetablePlayer setWavetable(Wavetable wavetable) {
+		this.wavetable = wavetable;
+		morphPosition = Math.min(morphPosition, wavetable.getNumFrames() - 1);
+		return this;
+	}
+
+	/**
+	 * Gets the Wavetable.
+	 *
+	 * @return The Wavetable.
+	 */
+	public Wavetable getWavetable() {
+		return wavetable;
+	}
+
+}
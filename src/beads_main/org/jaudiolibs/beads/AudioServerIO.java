@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.AudioIO;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.core.io.DeadlineMonitor;
 import org.jaudiolibs.audioservers.AudioClient;
 import org.jaudiolibs.audioservers.AudioConfiguration;
 import org.jaudiolibs.audioservers.AudioServer;
@@ -25,15 +26,29 @@ public class AudioServerIO extends AudioIO implements AudioClient {
     private AudioServer server;
     private AudioConfiguration config;   
     private List<FloatBuffer> inputs;
+    private final DeadlineMonitor deadlineMonitor;
 
     private AudioServerIO(String device, boolean jack) {
         this.jack = jack;
         this.device = device;
+        deadlineMonitor = new DeadlineMonitor();
+    }
+
+    /**
+     * Gets the DeadlineMonitor that tracks the duration of each audio callback
+     * against the buffer period, counting deadline misses and late callbacks.
+     * Set an overrun listener on it to be told about them as they happen.
+     *
+     * @return the DeadlineMonitor.
+     */
+    public DeadlineMonitor getDeadlineMonitor() {
+        return deadlineMonitor;
     }
 
     @Override
     protected boolean start() {
         System.out.println("Starting AudioServerIO");
+        deadlineMonitor.resync();
         config = new AudioConfiguration(
                 context.getSampleRate(),
                 context.getAudioFormat().inputs,
@@ -87,12 +102,14 @@ public class AudioServerIO extends AudioIO implements AudioClient {
         if (!context.isRunning()) {
             return false;
         }
+        long start = System.nanoTime();
         this.inputs = inputs;
         update();
         for (int i=0; i < outputs.size(); i++ ) {
             outputs.get(i).put(context.out.getOutBuffer(i));
         }
         this.inputs = null;
+        deadlineMonitor.callback(start, System.nanoTime() - start, context.getNanoLeap());
         return true;
     }
 